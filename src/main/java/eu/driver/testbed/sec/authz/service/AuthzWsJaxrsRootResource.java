@@ -18,21 +18,47 @@
  */
 package eu.driver.testbed.sec.authz.service;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.AbstractMap;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
 import java.util.stream.Collectors;
-import java.util.stream.StreamSupport;
+import java.util.stream.IntStream;
 
 import javax.ws.rs.BadRequestException;
+import javax.ws.rs.ClientErrorException;
 import javax.ws.rs.Consumes;
 import javax.ws.rs.DELETE;
 import javax.ws.rs.GET;
@@ -41,14 +67,28 @@ import javax.ws.rs.POST;
 import javax.ws.rs.PUT;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
+import javax.ws.rs.QueryParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.ServiceUnavailableException;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.MultivaluedMap;
 import javax.ws.rs.core.PathSegment;
+import javax.ws.rs.core.Request;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.ResponseBuilder;
+import javax.ws.rs.core.StreamingOutput;
 import javax.xml.bind.JAXBException;
 import javax.xml.transform.stream.StreamSource;
 
 import org.everit.json.schema.Schema;
+import org.everit.json.schema.ValidationException;
 import org.json.JSONArray;
+import org.json.JSONException;
 import org.json.JSONObject;
 import org.ow2.authzforce.core.pdp.api.EnvironmentPropertyName;
 import org.ow2.authzforce.core.pdp.api.policy.PolicyVersion;
@@ -56,6 +96,7 @@ import org.ow2.authzforce.core.pdp.impl.DefaultEnvironmentProperties;
 import org.ow2.authzforce.core.pdp.impl.PdpEngineConfiguration;
 import org.ow2.authzforce.core.pdp.impl.PdpModelHandler;
 import org.ow2.authzforce.core.xmlns.pdp.Pdp;
+import org.ow2.authzforce.core.xmlns.pdp.StaticRefBasedRootPolicyProvider;
 import org.ow2.authzforce.core.xmlns.pdp.StaticRefPolicyProvider;
 import org.ow2.authzforce.rest.pdp.jaxrs.XacmlPdpResource;
 import org.ow2.authzforce.xacml.json.model.XacmlJsonUtils;
@@ -67,6 +108,9 @@ import org.springframework.util.ResourceUtils;
 
 import com.google.common.base.Preconditions;
 import com.google.common.collect.Iterators;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.Striped;
 
 /**
  * Root resource for the PAP
@@ -76,9 +120,46 @@ public class AuthzWsJaxrsRootResource
 {
 	private static final Logger LOGGER = LoggerFactory.getLogger(AuthzWsJaxrsRootResource.class);
 
-	private static final String DRIVER_ACCESS_POLICY_CONTENT_TYPE_ID = "driver.json";
+	static final String DRIVER_ACCESS_POLICY_CONTENT_TYPE_ID = "driver.json";
 	private static final String DEFAULT_POLICY_VERSION = "1.0";
 
+	/*
+	 * Attribute aliases identifying the parent (resource type) and child (resource ID) policies in bulk policy updates
+	 */
+	private static final String RESOURCE_TYPE_ATTRIBUTE_ALIAS = "resource.type";
+	private static final String RESOURCE_ID_ATTRIBUTE_ALIAS = "resource.id";
+
+	/*
+	 * Number of locks for concurrency control of policy updates (the locks are assigned to the parent policies by hashing)
+	 */
+	private static final int PARENT_POLICY_LOCK_STRIPES = 16;
+
+	/*
+	 * Max number of attempts of a policy update in case of concurrent updates of the same child policies (optimistic concurrency control)
+	 */
+	private static final int MAX_POLICY_UPDATE_ATTEMPTS = 10;
+
+	/*
+	 * Max number of Individual Decision Requests in a Multiple Decision Request (repeated attribute categories), to prevent combinatorial explosion
+	 */
+	private static final int MAX_INDIVIDUAL_DECISION_REQUEST_COUNT = 1000;
+
+	/*
+	 * Number of recent requests kept to warm up a new PDP engine before it is used
+	 */
+	private static final int WARM_UP_REQUEST_COUNT = 16;
+
+	/*
+	 * Max time to wait for the PDP threads to evaluate the queued requests on close
+	 */
+	private static final long PDP_EXECUTOR_SHUTDOWN_TIMEOUT_SECONDS = 30;
+
+	/**
+	 * HTTP response header giving the policy generation resulting from a policy update on the PAP, i.e. the generation the PDP must reach (see 'generation' on /pdp/stats) for the update to take
+	 * effect
+	 */
+	public static final String POLICY_GENERATION_HEADER = "X-Policy-Generation";
+
 	// private static final JSONObject convertJaxbAttributeDesignatorToJson(final AttributeDesignatorType jaxbAttributeDesignator/* , final Map<String, String> equalFunctionsByDatatype */)
 	// {
 	// assert jaxbAttributeDesignator != null/* && equalFunctionsByDatatype != null && !equalFunctionsByDatatype.isEmpty() */;
@@ -106,6 +187,17 @@ public class AuthzWsJaxrsRootResource
 
 	// private static final int MAX_JSON_DEPTH = 100;
 
+	private static ThreadPoolExecutor newPdpExecutor(final int threadCount, final int maxQueuedRequests)
+	{
+		Preconditions.checkArgument(maxQueuedRequests > 0, "Invalid options: pdpMaxQueuedRequests = %s (expected > 0)", maxQueuedRequests);
+		final AtomicInteger threadCounter = new AtomicInteger(0);
+		return new ThreadPoolExecutor(threadCount, threadCount, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(maxQueuedRequests), runnable -> {
+			final Thread thread = new Thread(runnable, "pdp-" + threadCounter.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
 	private static String incrementPolicyVersion(final String policyVersion)
 	{
 		assert policyVersion != null;
@@ -138,13 +230,98 @@ public class AuthzWsJaxrsRootResource
 
 	// private final Map<String, JSONObject> jsonAttributeDesignatorsByAlias;
 	private final Pdp pdpJaxbConf;
+	/*
+	 * refPolicyProvider in pdpJaxbConf, whose policy locations are replaced with the latest policy versions before each PDP (re)load; null if the in-memory policy provider is used instead
+	 */
+	private final StaticRefPolicyProvider refPolicyProviderConf;
+	/*
+	 * Configuration of the in-memory policy provider set in pdpJaxbConf, null if not used (refPolicyProviderConf used instead)
+	 */
+	private final PrpRefPolicyProvider.Configuration prpRefPolicyProviderConf;
 	private final DefaultEnvironmentProperties pdpEnvProps;
 	private final PrpDao prpDao;
+	/*
+	 * Same as prpDao if the policy content cache is enabled, else null
+	 */
+	private final CachingPrpDao policyContentCache;
+	/*
+	 * Handler of the Driver-to-XACML/JSON template, null if DRIVER access policies are compiled directly (DriverAccessPolicyHandler#compileXacmlJsonPolicy())
+	 */
 	private final DriverAccessPolicyHandler driverAccessPolicyHandler;
+	private final Schema driverAccessPolicyJsonSchema;
+
+	/*
+	 * Root policy ID if the DRIVER policy index is enabled, else null
+	 */
+	private final String driverPolicyIndexRootPolicyId;
+
+	/*
+	 * Canonicalizer of subject DNs (DRIVER policy index, and subject-id canonicalization if enabled)
+	 */
+	private final X500NameCanonicalizer x500NameCanonicalizer = new X500NameCanonicalizer();
+
+	/*
+	 * Same as x500NameCanonicalizer if subject-id canonicalization is enabled, else null
+	 */
+	private final X500NameCanonicalizer subjectIdCanonicalizer;
+
+	/*
+	 * Loader of the request attribute pruner of each new PDP engine, null if pruning disabled
+	 */
+	private final RequestAttributePruner.Loader requestAttributePrunerLoader;
+
+	/*
+	 * Decision cache, null if disabled
+	 */
+	private final DecisionCache decisionCache;
+
+	/*
+	 * Coalescing of identical concurrent decision requests, null if disabled
+	 */
+	private final DecisionCoalescer decisionCoalescer;
+
+	/*
+	 * Background PDP reloader, null if the PDP is reloaded synchronously on policy update
+	 */
+	private final PdpReloader pdpReloader;
+
+	/*
+	 * Background removal of old policy versions, null if disabled (all versions retained)
+	 */
+	private final PolicyVersionCompactor policyVersionCompactor;
+
+	/*
+	 * Threads dedicated to PDP evaluation, null if PDP requests are evaluated on the HTTP server threads
+	 */
+	private final ThreadPoolExecutor pdpExecutor;
+	private final LongAdder pdpRejectedRequestCount = new LongAdder();
+
+	/*
+	 * Limit of concurrent PAP requests updating the policies, null if unlimited
+	 */
+	private final Bulkhead papBulkhead;
+
+	/*
+	 * Locks on the parent policies (resource.type=...), held while writing the policy updates to prpDao
+	 */
+	private final Striped<Lock> parentPolicyLocks = Striped.lock(PARENT_POLICY_LOCK_STRIPES);
+
+	private final AtomicReferenceArray<JSONObject> recentRequests = new AtomicReferenceArray<>(WARM_UP_REQUEST_COUNT);
+	private final AtomicInteger recentRequestCount = new AtomicInteger(0);
+
+	/*
+	 * Generation of the policy repository state (number of policy updates since startup), and the matching DRIVER policy index. Modified only while holding the lock on prpDao.
+	 */
+	private transient volatile long policyGeneration = 0;
+	private transient volatile DriverPolicyIndex driverPolicyIndex;
 
 	// private final Map<String, String> equalFunctionsByDatatype;
 	// private final DriverToXacmlJsonPolicyConverter driverToXacmlJsonPolicyConverter;
-	private transient volatile XacmlPdpResource pdpResource = null;
+	private transient volatile PdpEngineSnapshot pdp = null;
+	/*
+	 * PDP engine loaded by the latest policy update, to replace the current one on the next asynchronous PDP reload (null if none). Modified only while holding the lock on prpDao.
+	 */
+	private transient PdpEngineSnapshot nextPdp = null;
 
 	/**
 	 * Constructs API's root resource - PAP and PDP - from PDP configuration parameters and an attribute dictionary. Locations here may be any resource string supported by Spring ResourceLoader. More
@@ -193,7 +370,8 @@ public class AuthzWsJaxrsRootResource
 	 * @param driverAccessPolicyJsonSchema
 	 *            JSON schema of DRIVER's access policy
 	 * @param driverToXacmlJsonPolicyFtlLocation
-	 *            location of Driver+-to-XACML/JSON access policy transformation's Freemarker template
+	 *            location of Driver+-to-XACML/JSON access policy transformation's Freemarker template, used only if direct policy conversion is disabled (see
+	 *            {@link AuthzWsOptions#setDirectPolicyConversionEnabled(boolean)})
 	 * @throws java.lang.IllegalArgumentException
 	 *             if {@code pdpConf.getXacmlExpressionFactory() == null || pdpConf.getRootPolicyProvider() == null}
 	 * @throws java.io.IOException
@@ -203,7 +381,36 @@ public class AuthzWsJaxrsRootResource
 	public AuthzWsJaxrsRootResource(final Resource confLocation, final String catalogLocation, final String extensionXsdLocation, final String xacmlJsonPolicyFilenameSuffix,
 	        final Schema driverAccessPolicyJsonSchema, final String driverToXacmlJsonPolicyFtlLocation) throws IllegalArgumentException, IOException
 	{
-		Preconditions.checkArgument(confLocation != null && catalogLocation != null && extensionXsdLocation != null);
+		this(confLocation, catalogLocation, extensionXsdLocation, xacmlJsonPolicyFilenameSuffix, driverAccessPolicyJsonSchema, driverToXacmlJsonPolicyFtlLocation, new AuthzWsOptions());
+	}
+
+	/**
+	 * Same as {@link #AuthzWsJaxrsRootResource(Resource, String, String, String, Schema, String)} with optional (performance-related) settings
+	 * 
+	 * @param confLocation
+	 *            location of PDP configuration XML file, compliant with the PDP XML schema (pdp.xsd)
+	 * @param catalogLocation
+	 *            location of XML catalog for resolving XSDs imported by the extension XSD specified as 'extensionXsdLocation' argument (may be null if 'extensionXsdLocation' is null)
+	 * @param extensionXsdLocation
+	 *            location of user-defined extension XSD (may be null if no extension to load)
+	 * @param xacmlJsonPolicyFilenameSuffix
+	 *            XACML/JSON filename suffix of policy files in policy repository
+	 * @param driverAccessPolicyJsonSchema
+	 *            JSON schema of DRIVER's access policy
+	 * @param driverToXacmlJsonPolicyFtlLocation
+	 *            location of Driver+-to-XACML/JSON access policy transformation's Freemarker template, used only if direct policy conversion is disabled (see
+	 *            {@link AuthzWsOptions#setDirectPolicyConversionEnabled(boolean)})
+	 * @param options
+	 *            optional settings
+	 * @throws java.lang.IllegalArgumentException
+	 *             if {@code pdpConf.getXacmlExpressionFactory() == null || pdpConf.getRootPolicyProvider() == null}, or invalid {@code options}
+	 * @throws java.io.IOException
+	 *             error closing {@code pdpConf.getRootPolicyProvider()} when static resolution is to be used
+	 */
+	public AuthzWsJaxrsRootResource(final Resource confLocation, final String catalogLocation, final String extensionXsdLocation, final String xacmlJsonPolicyFilenameSuffix,
+	        final Schema driverAccessPolicyJsonSchema, final String driverToXacmlJsonPolicyFtlLocation, final AuthzWsOptions options) throws IllegalArgumentException, IOException
+	{
+		Preconditions.checkArgument(confLocation != null && catalogLocation != null && extensionXsdLocation != null && options != null);
 
 		/*
 		 * Policy repository settings
@@ -279,7 +486,54 @@ public class AuthzWsJaxrsRootResource
 		 */
 		final int lastWildcardIndex = policyLocationPatternAfterReplacement.lastIndexOf('*');
 		final String pdpInputPolicyFilenameSuffix = policyLocationPatternAfterReplacement.substring(lastWildcardIndex + 1);
-		this.prpDao = new FsBasedPrpDao(policiesDir, pdpInputPolicyFilenameSuffix, xacmlJsonPolicyFilenameSuffix);
+		final PdpInputPolicyConverter pdpInputPolicyConverter = new PdpInputPolicyConverter(options.isDirectPolicyConversionEnabled());
+		final String policyStoreFile = options.getPolicyStoreFile();
+		if (policyStoreFile != null && !policyStoreFile.isEmpty() && !options.isInMemoryPolicyProviderEnabled())
+		{
+			throw new IllegalArgumentException("Invalid options: policyStoreFile requires inMemoryPolicyProviderEnabled = true");
+		}
+
+		final PrpDao basePrpDao;
+		if (options.isInMemoryPolicyProviderEnabled())
+		{
+			/*
+			 * Replace the StaticRefPolicyProvider with the in-memory one, loaded from the policy repository by the DAO
+			 */
+			final PdpPolicyStore pdpPolicyStore = new PdpPolicyStore();
+			if (policyStoreFile == null || policyStoreFile.isEmpty())
+			{
+				basePrpDao = new FsBasedPrpDao(policiesDir, pdpInputPolicyFilenameSuffix, xacmlJsonPolicyFilenameSuffix, pdpPolicyStore, pdpInputPolicyConverter);
+			}
+			else
+			{
+				/*
+				 * The policies directory is only the source of the initial migration to the store
+				 */
+				basePrpDao = new MvStorePrpDao(Paths.get(this.pdpEnvProps.replacePlaceholders(policyStoreFile)), policiesDir, pdpInputPolicyFilenameSuffix, xacmlJsonPolicyFilenameSuffix,
+				        pdpPolicyStore, pdpInputPolicyConverter);
+			}
+
+			this.prpRefPolicyProviderConf = new PrpRefPolicyProvider.Configuration(refPolicyProviderConf.getId(), pdpPolicyStore);
+			this.pdpJaxbConf.setRefPolicyProvider(this.prpRefPolicyProviderConf);
+			this.refPolicyProviderConf = null;
+		}
+		else
+		{
+			basePrpDao = new FsBasedPrpDao(policiesDir, pdpInputPolicyFilenameSuffix, xacmlJsonPolicyFilenameSuffix, null, pdpInputPolicyConverter);
+			this.refPolicyProviderConf = (StaticRefPolicyProvider) refPolicyProviderConf;
+			this.prpRefPolicyProviderConf = null;
+		}
+
+		if (options.getPolicyContentCacheMaxWeight() > 0)
+		{
+			this.policyContentCache = new CachingPrpDao(basePrpDao, options.getPolicyContentCacheMaxWeight());
+			this.prpDao = this.policyContentCache;
+		}
+		else
+		{
+			this.policyContentCache = null;
+			this.prpDao = basePrpDao;
+		}
 
 		// if (LOGGER.isDebugEnabled())
 		// {
@@ -289,10 +543,107 @@ public class AuthzWsJaxrsRootResource
 		// globPattern);
 		// }
 
-		final PdpEngineConfiguration pdpEngineConf = new PdpEngineConfiguration(pdpJaxbConf, this.pdpEnvProps);
-		this.pdpResource = new XacmlPdpResource(pdpEngineConf);
+		final String decisionCacheSpec = options.getDecisionCacheSpec();
+		this.decisionCache = decisionCacheSpec == null || decisionCacheSpec.isEmpty() ? null : new DecisionCache(decisionCacheSpec);
+		this.decisionCoalescer = options.isDecisionCoalescingEnabled() ? new DecisionCoalescer() : null;
+
+		if (options.isDriverPolicyIndexEnabled())
+		{
+			final AbstractPolicyProvider rootPolicyProviderConf = pdpJaxbConf.getRootPolicyProvider();
+			if (!(rootPolicyProviderConf instanceof StaticRefBasedRootPolicyProvider))
+			{
+				throw new IllegalArgumentException("Invalid PDP configuration for DRIVER policy index: rootPolicyProvider not instance of " + StaticRefBasedRootPolicyProvider.class);
+			}
+
+			this.driverPolicyIndexRootPolicyId = ((StaticRefBasedRootPolicyProvider) rootPolicyProviderConf).getPolicyRef().getValue();
+		}
+		else
+		{
+			this.driverPolicyIndexRootPolicyId = null;
+		}
+
+		if (options.isRequestAttributePruningEnabled() && !this.pdpJaxbConf.getAttributeProviders().isEmpty())
+		{
+			/*
+			 * Attribute providers may need any request attribute
+			 */
+			LOGGER.warn("Request attribute pruning disabled: not supported with attribute providers in the PDP configuration");
+			this.requestAttributePrunerLoader = null;
+		}
+		else
+		{
+			this.requestAttributePrunerLoader = options.isRequestAttributePruningEnabled() ? new RequestAttributePruner.Loader() : null;
+		}
+
+		this.subjectIdCanonicalizer = options.isSubjectIdCanonicalizationEnabled() ? this.x500NameCanonicalizer : null;
+		this.driverPolicyIndex = newDriverPolicyIndex();
+		this.pdp = newPdpEngine(new XacmlPdpResource(newPdpEngineConfiguration(Optional.empty())), this.policyGeneration, this.driverPolicyIndex);
+		this.pdpReloader = options.getAsyncPdpReloadDelayMillis() < 0 ? null : new PdpReloader(options.getAsyncPdpReloadDelayMillis(), this::reloadPdpIfOutdated);
+		if (options.getPolicyVersionRetentionCount() > 0 || options.getPolicyVersionRetentionMillis() > 0)
+		{
+			/*
+			 * Child policies ('{parentPolicyId}#...') are updated while holding the lock on their parent policy
+			 */
+			this.policyVersionCompactor = new PolicyVersionCompactor(this.prpDao, policyId -> {
+				final int childPolicyIdSeparatorIndex = policyId.indexOf('#');
+				return this.parentPolicyLocks.get(childPolicyIdSeparatorIndex < 0 ? policyId : policyId.substring(0, childPolicyIdSeparatorIndex));
+			}, options.getPolicyVersionRetentionCount(), options.getPolicyVersionRetentionMillis(), options.getPolicyCompactionIntervalMillis());
+		}
+		else
+		{
+			this.policyVersionCompactor = null;
+		}
+
+		this.pdpExecutor = options.getPdpThreadCount() > 0 ? newPdpExecutor(options.getPdpThreadCount(), options.getPdpMaxQueuedRequests()) : null;
+		this.papBulkhead = options.getPapMaxConcurrentRequests() > 0 ? new Bulkhead("PAP", options.getPapMaxConcurrentRequests()) : null;
+		this.driverAccessPolicyHandler = options.isDirectPolicyConversionEnabled() ? null : new DriverAccessPolicyHandler(driverAccessPolicyJsonSchema, driverToXacmlJsonPolicyFtlLocation);
+		this.driverAccessPolicyJsonSchema = driverAccessPolicyJsonSchema;
+	}
+
+	/**
+	 * Releases the resources of the service: background threads (PDP reload, policy compaction, PDP threads), then the policy repository (e.g. open files), e.g. as destroy method of the Spring
+	 * bean. The service must not be used afterwards.
+	 */
+	public void close()
+	{
+		if (this.pdpReloader != null)
+		{
+			this.pdpReloader.close();
+		}
+
+		if (this.policyVersionCompactor != null)
+		{
+			this.policyVersionCompactor.close();
+		}
+
+		if (this.pdpExecutor != null)
+		{
+			/*
+			 * The requests already queued are evaluated
+			 */
+			this.pdpExecutor.shutdown();
+			try
+			{
+				if (!this.pdpExecutor.awaitTermination(PDP_EXECUTOR_SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS))
+				{
+					LOGGER.warn("PDP threads not terminated after {}s -> interrupting", PDP_EXECUTOR_SHUTDOWN_TIMEOUT_SECONDS);
+					this.pdpExecutor.shutdownNow();
+				}
+			}
+			catch (final InterruptedException e)
+			{
+				this.pdpExecutor.shutdownNow();
+				Thread.currentThread().interrupt();
+			}
+		}
 
-		this.driverAccessPolicyHandler = new DriverAccessPolicyHandler(driverAccessPolicyJsonSchema, driverToXacmlJsonPolicyFtlLocation);
+		/*
+		 * Not in the middle of a commit
+		 */
+		synchronized (this.prpDao)
+		{
+			this.prpDao.close();
+		}
 	}
 
 	/**
@@ -340,459 +691,1374 @@ public class AuthzWsJaxrsRootResource
 		return parentPolicyId + "#" + matrixArg.getKey() + "=" + matrixArg.getValue();
 	}
 
-	/**
-	 * Get the latest version of a top-level policy in XACML/JSON format
-	 * 
-	 * @param policyId
-	 *            top-level policy ID
-	 * 
-	 * 
-	 * @return the child policy of policy {policyId} with Target = [a1=val1 AND a2=val2, etc.] (in XACML, this is a sequence of AnyOf, where each AnyOf is a single Allof with a single Match) where aN
-	 *         is an attribute alias defined by {@code attributeDictionary} arg to {@link #AuthzWsJaxrsRootResource(Resource, String, String, String, Resource, String)}
+	/*
+	 * Creates the PDP engine configuration from the current state of the policy repository, or the state after commit of a given transaction. Instead of the policy location pattern in the
+	 * original PDP configuration, which matches all versions of all policies (to be parsed, then ignored if old versions), only the latest version of each policy is passed to the PDP; or the
+	 * in-memory policy provider is used if enabled. Must be called while holding the lock on prpDao.
 	 */
-	@GET
-	@Path("/pap/policies/{policyId}")
-	@Produces({ "application/json" })
-	public JSONObject getLatestPolicyVersion(@PathParam("policyId") final String policyId)
+	private PdpEngineConfiguration newPdpEngineConfiguration(final Optional<Transaction> tx) throws IOException, IllegalArgumentException
 	{
-		final Optional<JSONObject> optJSONObject = this.prpDao.getLatestPolicyVersionContent(policyId, Optional.empty());
-		if (!optJSONObject.isPresent())
+		if (this.refPolicyProviderConf == null)
 		{
-			throw new NotFoundException("Policy '" + policyId + "' not found");
+			/*
+			 * In-memory policy provider, always in sync with the policy repository; or a copy with the changes of the transaction
+			 */
+			this.pdpJaxbConf.setRefPolicyProvider(
+			        tx.isPresent() ? new PrpRefPolicyProvider.Configuration(this.prpRefPolicyProviderConf.getId(), this.prpDao.getPdpPolicyStore(tx.get())) : this.prpRefPolicyProviderConf);
+			return new PdpEngineConfiguration(this.pdpJaxbConf, this.pdpEnvProps);
 		}
 
-		return optJSONObject.get();
+		final List<String> policyLocations = this.refPolicyProviderConf.getPolicyLocations();
+		policyLocations.clear();
+		policyLocations.addAll(tx.isPresent() ? this.prpDao.getLatestPdpInputPolicyLocations(tx.get()) : this.prpDao.getLatestPdpInputPolicyLocations());
+		return new PdpEngineConfiguration(this.pdpJaxbConf, this.pdpEnvProps);
 	}
 
-	/**
-	 * Updates access policy in DRIVER/JSON format
-	 * 
-	 * @param policyId
-	 *            top-level policy ID
-	 * 
-	 * @param pathSegments
-	 *            path segments {@code policies;a1=val1;a2=val2/...}
-	 * 
-	 * 
-	 * @param validChildPolicyInDriverFormat
-	 *            Driver+-JSON-formatted policy that is a child of the top-level policy identified by {@code policyId} (must be validated against schema by Json provider in Spring/JAX-RS service
-	 *            configuration
-	 * 
-	 * @return creates/updates the child policy of policy {policyId} with Target = [a1=val1 AND a2=val2, etc.] (in XACML, this is a sequence of AnyOf, where each AnyOf is a single Allof with a single
-	 *         Match) where aN is an attribute alias defined by {@code attributeDictionary} arg to {@link #AuthzWsJaxrsRootResource(Resource, String, String, String, Resource, String)}
+	/*
+	 * New PDP engine snapshot from a loaded PDP, with the request attribute pruner matching the current state of the policy repository
 	 */
-	@PUT
-	@Path("/pap/policies/{policyId}/{var: .*}")
-	@Produces({ "application/json" })
-	@Consumes({ "application/json" })
-	public JSONObject setChildPolicyFromDriverFormat(@PathParam("policyId") final String policyId, @PathParam("var") final List<PathSegment> pathSegments,
-	        final JSONObject validChildPolicyInDriverFormat)
+	private PdpEngineSnapshot newPdpEngine(final XacmlPdpResource pdpResource, final long policyGeneration, final DriverPolicyIndex driverPolicyIndex)
 	{
-		if (pathSegments.size() > 1)
+		final RequestAttributePruner requestAttributePruner = this.requestAttributePrunerLoader == null ? RequestAttributePruner.DISABLED : this.requestAttributePrunerLoader.load(this.prpDao);
+		return new PdpEngineSnapshot(pdpResource, driverPolicyIndex, requestAttributePruner, this.subjectIdCanonicalizer, policyGeneration);
+	}
+
+	/*
+	 * Builds the DRIVER policy index from the current state of the policy repository (empty if disabled)
+	 */
+	private DriverPolicyIndex newDriverPolicyIndex()
+	{
+		if (this.driverPolicyIndexRootPolicyId == null)
 		{
-			throw new BadRequestException("Too many path segments: " + pathSegments.size() + " (> 1)");
+			return DriverPolicyIndex.EMPTY;
 		}
 
-		final PathSegment pathSeg0 = pathSegments.get(0);
-		if (!pathSeg0.getPath().equals("policies"))
+		final Optional<JSONObject> wrappedRootXacmlJsonPolicy = this.prpDao.getLatestPolicyVersionContent(this.driverPolicyIndexRootPolicyId, Optional.empty());
+		final JSONObject rootXacmlJsonPolicy = wrappedRootXacmlJsonPolicy.isPresent() ? wrappedRootXacmlJsonPolicy.get().optJSONObject("policy") : null;
+		if (rootXacmlJsonPolicy == null)
 		{
-			throw new BadRequestException("Unexpected path in last segment: " + pathSeg0.getPath() + ". Expected: 'policies'");
+			LOGGER.warn("DRIVER policy index disabled: root policy '{}' not found in XACML/JSON format", this.driverPolicyIndexRootPolicyId);
+			return DriverPolicyIndex.EMPTY;
 		}
 
-		final Entry<String, String> matrixArg = getSingleMatrixArg(pathSegments.get(0));
-		if (matrixArg == null)
+		return DriverPolicyIndex.newInstance(rootXacmlJsonPolicy, this.prpDao::getLatestEffectivePolicyVersionContent,
+		        policyId -> this.prpDao.getLatestPolicyVersionContent(policyId, Optional.of(DRIVER_ACCESS_POLICY_CONTENT_TYPE_ID)), this.x500NameCanonicalizer);
+	}
+
+	/*
+	 * Pre-warms the new PDP engine with recent requests, then swaps it in place of the current one. Decisions cached for the previous PDP engine are discarded.
+	 */
+	private void swapPdp(final PdpEngineSnapshot newPdp)
+	{
+		final List<JSONObject> warmUpRequests = new ArrayList<>(this.recentRequests.length());
+		for (int i = 0; i < this.recentRequests.length(); i++)
 		{
-			throw new BadRequestException("Missing matrix parameter");
+			final JSONObject recentRequest = this.recentRequests.get(i);
+			if (recentRequest != null)
+			{
+				warmUpRequests.add(recentRequest);
+			}
 		}
 
-		/*
-		 * Check whether matching parent and child policies already exist, ie whether directories named '{policyId} and '{policyId}#param0=val0' exist, to get current version (and increment for the
-		 * new policy)
-		 */
-		final String childPolicyId = getChildPolicyId(policyId, matrixArg);
-
-		/*
-		 * Verify parameter name is an attribute alias/key in attribute dictionary
-		 */
-		// final JSONObject jsonAttDesignator = jsonAttributeDesignatorsByAlias.get(matrixArg.getKey());
-		// if (jsonAttDesignator == null)
-		// {
-		// throw new BadRequestException("Invalid matrix parameter: '" + matrixArg.getKey() + "' (no corresponding XACML attribute definition registered)");
-		// }
+		newPdp.warmUp(warmUpRequests);
+		this.pdp = newPdp;
+		if (this.decisionCache != null)
+		{
+			this.decisionCache.invalidateAll();
+		}
+	}
 
-		/*
-		 * We assume the constructor made sure there is always a *-equal function corresponding to the datatype of jsonAttDesignator, else fatal error
-		 */
-		// final String attType = jsonAttDesignator.getString("dataType");
-		// final String equalFunctionId = this.equalFunctionsByDatatype.get(attType);
-		// if (equalFunctionId == null)
-		// {
-		// throw new RuntimeException("No *-equal function registered for attribute datatype: " + attType);
-		// }
+	/*
+	 * Asynchronous PDP reload (called by pdpReloader): swaps the PDP engine validated by the latest policy update in place of the current one, if not done yet
+	 */
+	private void reloadPdpIfOutdated()
+	{
+		final PdpEngineSnapshot newPdp;
+		synchronized (this.prpDao)
+		{
+			newPdp = this.nextPdp;
+			this.nextPdp = null;
+		}
 
-		// final JSONArray xacmlJsonTargetValue = newXacmlJsonTargetValue(equalFunctionId, matrixArg.getValue(), jsonAttDesignator);
+		if (newPdp == null)
+		{
+			return;
+		}
 
-		final Optional<PolicyVersion> latestChildPolicyVersion;
-		final String newChildPolicyVersion;
+		swapPdp(newPdp);
+		LOGGER.debug("PDP reloaded: generation = {}", newPdp.getGeneration());
+	}
 
+	/*
+	 * Commits the transaction and makes the policy update visible to the PDP. Commits are serialized on prpDao.
+	 * 
+	 * The new PDP engine is loaded before commit, from the state of the policy repository after commit (staged changes of the transaction), so that a policy update rejected by the PDP is not
+	 * committed if failOnInvalidPdpConf (IllegalArgumentException, the caller closing the transaction rolls it back); else the policy update is committed anyway, and the previous PDP engine remains
+	 * in use until the next successful update. The new PDP engine replaces the current one right after commit if synchronous PDP reload, else on the next asynchronous PDP reload (see
+	 * requestPdpReload()).
+	 * 
+	 * driverPolicyIndexUpdate is applied to the DRIVER policy index at commit time, so that concurrent updates of different parent policies are all taken into account.
+	 */
+	private long commitPolicyUpdate(final Transaction tx, final UnaryOperator<DriverPolicyIndex> driverPolicyIndexUpdate, final boolean failOnInvalidPdpConf) throws IOException
+	{
 		synchronized (this.prpDao)
 		{
-			final Optional<PolicyVersion> optLatestPolicyVersion = this.prpDao.getLatestPolicyVersion(policyId);
-			if (!optLatestPolicyVersion.isPresent())
-			{
-				throw new NotFoundException("Policy '" + policyId + "' not found");
-			}
-
-			latestChildPolicyVersion = this.prpDao.getLatestPolicyVersion(childPolicyId);
-
-			if (!latestChildPolicyVersion.isPresent())
+			XacmlPdpResource newPdpResource;
+			try
 			{
-				newChildPolicyVersion = DEFAULT_POLICY_VERSION;
+				newPdpResource = new XacmlPdpResource(newPdpEngineConfiguration(Optional.of(tx)));
 			}
-			else
+			catch (final IllegalArgumentException e)
 			{
-				newChildPolicyVersion = incrementPolicyVersion(latestChildPolicyVersion.get().toString());
+				if (failOnInvalidPdpConf)
+				{
+					throw e;
+				}
+
+				/*
+				 * FIXME: remove this line
+				 */
+				LOGGER.error("Error loading PDP configuration after policy update", e);
+				newPdpResource = null;
+			}
+
+			tx.commit();
+
+			final long newPolicyGeneration = this.policyGeneration + 1;
+			final DriverPolicyIndex newDriverPolicyIndex = driverPolicyIndexUpdate.apply(this.driverPolicyIndex);
+			this.driverPolicyIndex = newDriverPolicyIndex;
+			this.policyGeneration = newPolicyGeneration;
+			if (newPdpResource != null)
+			{
+				final PdpEngineSnapshot newPdp = newPdpEngine(newPdpResource, newPolicyGeneration, newDriverPolicyIndex);
+				if (this.pdpReloader == null)
+				{
+					swapPdp(newPdp);
+				}
+				else
+				{
+					this.nextPdp = newPdp;
+				}
+			}
+
+			return newPolicyGeneration;
+		}
+	}
+
+	/*
+	 * Requests a PDP reload after a committed policy update if asynchronous PDP reload enabled
+	 */
+	private void requestPdpReload()
+	{
+		if (this.pdpReloader != null)
+		{
+			this.pdpReloader.requestReload();
+		}
+	}
+
+	/*
+	 * Response with the policy content as stored (unless not modified according to the request's preconditions, e.g. If-None-Match)
+	 */
+	private static Response newStoredPolicyContentResponse(final StoredPolicyContent storedContent, final Request request)
+	{
+		final EntityTag entityTag = new EntityTag(storedContent.getRevision());
+		final ResponseBuilder notModifiedResponseBuilder = request.evaluatePreconditions(entityTag);
+		if (notModifiedResponseBuilder != null)
+		{
+			return notModifiedResponseBuilder.build();
+		}
+
+		return Response.ok((StreamingOutput) storedContent::writeTo, MediaType.APPLICATION_JSON_TYPE).tag(entityTag).build();
+	}
+
+	/**
+	 * Get the latest version of a top-level policy in XACML/JSON format
+	 * 
+	 * @param policyId
+	 *            top-level policy ID
+	 * @param request
+	 *            HTTP request, for conditional requests (If-None-Match with the ETag of a previous response)
+	 * 
+	 * 
+	 * @return the child policy of policy {policyId} with Target = [a1=val1 AND a2=val2, etc.] (in XACML, this is a sequence of AnyOf, where each AnyOf is a single Allof with a single Match) where aN
+	 *         is an attribute alias defined by {@code attributeDictionary} arg to {@link #AuthzWsJaxrsRootResource(Resource, String, String, String, Resource, String)}
+	 */
+	@GET
+	@Path("/pap/policies/{policyId}")
+	@Produces({ "application/json" })
+	public Response getLatestPolicyVersion(@PathParam("policyId") final String policyId, @Context final Request request)
+	{
+		final Optional<StoredPolicyContent> optStoredContent = this.prpDao.getLatestPolicyVersionStoredContent(policyId, Optional.empty());
+		if (!optStoredContent.isPresent())
+		{
+			throw new NotFoundException("Policy '" + policyId + "' not found");
+		}
+
+		final StoredPolicyContent storedContent = optStoredContent.get();
+		final List<String> childPolicyIds = this.prpDao.getChildPolicyIds(policyId);
+		if (childPolicyIds.isEmpty())
+		{
+			/*
+			 * Effective policy = stored policy
+			 */
+			return newStoredPolicyContentResponse(storedContent, request);
+		}
+
+		/*
+		 * Child policies are referenced implicitly (see PrpDao#getChildPolicyIds()) and may be created/deleted without new version of the parent policy, therefore part of the entity tag.
+		 */
+		final Hasher childPolicyIdsHasher = Hashing.murmur3_128().newHasher();
+		childPolicyIds.forEach(childPolicyId -> childPolicyIdsHasher.putString(childPolicyId, StandardCharsets.UTF_8).putByte((byte) 0));
+		final EntityTag entityTag = new EntityTag(storedContent.getRevision() + "-" + childPolicyIdsHasher.hash());
+		final ResponseBuilder notModifiedResponseBuilder = request.evaluatePreconditions(entityTag);
+		if (notModifiedResponseBuilder != null)
+		{
+			return notModifiedResponseBuilder.build();
+		}
+
+		/*
+		 * Parsed content from the policy content cache if enabled, unless a new version was added in the meantime (must match the entity tag)
+		 */
+		final Optional<JSONObject> optJSONObject = this.prpDao.getLatestPolicyVersionContent(policyId, Optional.empty());
+		final JSONObject storedJson;
+		if (optJSONObject.isPresent() && storedContent.getVersion().toString().equals(optJSONObject.get().getJSONObject("policy").optString("version")))
+		{
+			storedJson = optJSONObject.get();
+		}
+		else
+		{
+			try
+			{
+				storedJson = storedContent.toJson();
+			}
+			catch (final NoSuchFileException e)
+			{
+				/*
+				 * Deleted in the meantime
+				 */
+				throw new NotFoundException("Policy '" + policyId + "' not found");
+			}
+			catch (final IOException e)
+			{
+				throw new RuntimeException("Error reading policy '" + policyId + "'", e);
+			}
+		}
+
+		return Response.ok(PdpInputPolicyConverter.addChildPolicyRefs(storedJson, childPolicyIds), MediaType.APPLICATION_JSON_TYPE).tag(entityTag).build();
+	}
+
+	/**
+	 * Updates access policy in DRIVER/JSON format
+	 * 
+	 * @param policyId
+	 *            top-level policy ID
+	 * 
+	 * @param pathSegments
+	 *            path segments {@code policies;a1=val1;a2=val2/...}
+	 * 
+	 * 
+	 * @param validChildPolicyInDriverFormat
+	 *            Driver+-JSON-formatted policy that is a child of the top-level policy identified by {@code policyId} (must be validated against schema by Json provider in Spring/JAX-RS service
+	 *            configuration
+	 * 
+	 * @return creates/updates the child policy of policy {policyId} with Target = [a1=val1 AND a2=val2, etc.] (in XACML, this is a sequence of AnyOf, where each AnyOf is a single Allof with a single
+	 *         Match) where aN is an attribute alias defined by {@code attributeDictionary} arg to {@link #AuthzWsJaxrsRootResource(Resource, String, String, String, Resource, String)}. The response
+	 *         has the header {@value #POLICY_GENERATION_HEADER}: the policy generation from which the update is visible to the PDP.
+	 */
+	@PUT
+	@Path("/pap/policies/{policyId}/{var: .*}")
+	@Produces({ "application/json" })
+	@Consumes({ "application/json" })
+	public Response setChildPolicyFromDriverFormat(@PathParam("policyId") final String policyId, @PathParam("var") final List<PathSegment> pathSegments,
+	        final JSONObject validChildPolicyInDriverFormat)
+	{
+		try (final Bulkhead.Permit papPermit = enterPapBulkhead())
+		{
+			final Entry<String, String> matrixArg = getChildPolicyTargetMatch(pathSegments);
+
+			/*
+			 * Check whether matching parent and child policies already exist, ie whether directories named '{policyId} and '{policyId}#param0=val0' exist, to get current version (and increment for the
+			 * new policy)
+			 */
+			final String childPolicyId = getChildPolicyId(policyId, matrixArg);
+
+			/*
+			 * Verify parameter name is an attribute alias/key in attribute dictionary
+			 */
+			// final JSONObject jsonAttDesignator = jsonAttributeDesignatorsByAlias.get(matrixArg.getKey());
+			// if (jsonAttDesignator == null)
+			// {
+			// throw new BadRequestException("Invalid matrix parameter: '" + matrixArg.getKey() + "' (no corresponding XACML attribute definition registered)");
+			// }
+
+			/*
+			 * We assume the constructor made sure there is always a *-equal function corresponding to the datatype of jsonAttDesignator, else fatal error
+			 */
+			// final String attType = jsonAttDesignator.getString("dataType");
+			// final String equalFunctionId = this.equalFunctionsByDatatype.get(attType);
+			// if (equalFunctionId == null)
+			// {
+			// throw new RuntimeException("No *-equal function registered for attribute datatype: " + attType);
+			// }
+
+			// final JSONArray xacmlJsonTargetValue = newXacmlJsonTargetValue(equalFunctionId, matrixArg.getValue(), jsonAttDesignator);
+
+			final long newPolicyGeneration = applyChildPolicyUpdates(
+			        Collections.singletonList(new ChildPolicyUpdate(policyId, childPolicyId, matrixArg.getValue(), Optional.of(validChildPolicyInDriverFormat))), true);
+			requestPdpReload();
+			return Response.ok(validChildPolicyInDriverFormat).header(POLICY_GENERATION_HEADER, newPolicyGeneration).build();
+		}
+	}
+
+	/*
+	 * Permit to run a PAP request updating the policies, to be closed when done (no-op if unlimited)
+	 */
+	private Bulkhead.Permit enterPapBulkhead()
+	{
+		return this.papBulkhead == null ? () -> {
+			// unlimited
+		} : this.papBulkhead.enter();
+	}
+
+	private static String getPolicyRefId(final Object policyJson)
+	{
+		if (policyJson instanceof JSONObject)
+		{
+			final JSONObject policyRefJsonObject = ((JSONObject) policyJson).optJSONObject("policyRef");
+			return policyRefJsonObject == null ? null : policyRefJsonObject.getString("id");
+		}
+
+		return null;
+	}
+
+	/*
+	 * New version of a child policy, prepared (converted to AuthzForce XACML/JSON format) without holding any lock, based on the latest version at that time
+	 */
+	private static final class ChildPolicyVersion
+	{
+		private final String policyId;
+		private final Optional<PolicyVersion> previousLatestVersion;
+		private final String version;
+		private final JSONObject wrappedXacmlJsonPolicy;
+		private final JSONObject driverPolicy;
+
+		private ChildPolicyVersion(final String policyId, final Optional<PolicyVersion> previousLatestVersion, final String version, final JSONObject wrappedXacmlJsonPolicy,
+		        final JSONObject driverPolicy)
+		{
+			this.policyId = policyId;
+			this.previousLatestVersion = previousLatestVersion;
+			this.version = version;
+			this.wrappedXacmlJsonPolicy = wrappedXacmlJsonPolicy;
+			this.driverPolicy = driverPolicy;
+		}
+	}
+
+	/*
+	 * Prepares a new version of a child policy in AuthzForce XACML/JSON format. No lock required: the new version must be added with addChildPolicyVersion() only if
+	 * previousLatestVersion is still the latest version by then (optimistic concurrency control).
+	 */
+	private ChildPolicyVersion newChildPolicyVersion(final String childPolicyId, final String childPolicyTargetValue, final JSONObject validChildPolicyInDriverFormat)
+	{
+		/*
+		 * Increase current policy version if already exists, else default: 1.0
+		 */
+		final Optional<PolicyVersion> latestChildPolicyVersion = this.prpDao.getLatestPolicyVersion(childPolicyId);
+		final String newChildPolicyVersion = latestChildPolicyVersion.isPresent() ? incrementPolicyVersion(latestChildPolicyVersion.get().toString()) : DEFAULT_POLICY_VERSION;
+
+		/*
+		 * Convert to AuthzForce/XACML/JSON format. childPolicyInDriverFormat is assumed validated against schema (by JsonRiJaxrsProvider in JAX-RS service configuration, or by the caller)
+		 */
+		final JSONObject xacmlJsonPolicy;
+		if (driverAccessPolicyHandler == null)
+		{
+			/*
+			 * Valid by construction
+			 */
+			xacmlJsonPolicy = DriverAccessPolicyHandler.compileXacmlJsonPolicy(validChildPolicyInDriverFormat, childPolicyId, newChildPolicyVersion, childPolicyTargetValue,
+			        this.subjectIdCanonicalizer);
+		}
+		else
+		{
+			xacmlJsonPolicy = driverAccessPolicyHandler.toXacmlJsonPolicy(validChildPolicyInDriverFormat, childPolicyId, newChildPolicyVersion, childPolicyTargetValue, this.subjectIdCanonicalizer);
+
+			/*
+			 * Validate result against schema
+			 */
+			XacmlJsonUtils.POLICY_SCHEMA.validate(xacmlJsonPolicy);
+		}
+
+		/*
+		 * It is not absolutely necessary to wrap the JSON object with the root key 'policy' but we do it here for readability: the policy store's admin can guess the type of data in the JSON file by
+		 * looking at the root key.
+		 */
+		final JSONObject wrappedChildXacmlJsonPolicy = new JSONObject(Collections.singletonMap("policy", xacmlJsonPolicy));
+		return new ChildPolicyVersion(childPolicyId, latestChildPolicyVersion, newChildPolicyVersion, wrappedChildXacmlJsonPolicy, validChildPolicyInDriverFormat);
+	}
+
+	/*
+	 * Adds a new version of a child policy - in AuthzForce XACML/JSON and DRIVER formats - to the transaction. The reference from the parent policy is handled separately by
+	 * the parent policy's implicit reference (see PrpDao#getChildPolicyIds(String)). Must be called while holding the lock on the parent policy.
+	 */
+	private void addChildPolicyVersion(final Transaction tx, final ChildPolicyVersion childPolicyVersion)
+	{
+		this.prpDao.addPolicyVersion(tx, childPolicyVersion.policyId, childPolicyVersion.version, childPolicyVersion.wrappedXacmlJsonPolicy, Optional.empty());
+		/*
+		 * BEGIN DRIVER+-specific stuff: commit policy in DRIVER+ format
+		 * 
+		 * TODO: to be removed on the long term
+		 */
+		this.prpDao.addPolicyVersion(tx, childPolicyVersion.policyId, childPolicyVersion.version, childPolicyVersion.driverPolicy, Optional.of(DRIVER_ACCESS_POLICY_CONTENT_TYPE_ID));
+	}
+
+	/*
+	 * Removes the explicit references to deleted child policies from the latest version of the parent policy, and adds the result as a new version of the parent policy to the transaction, only if
+	 * there was any. Child policies are referenced implicitly by the parent policy (see PrpDao#getChildPolicyIds(String)), therefore explicit references only exist in parent policies created
+	 * by previous versions of this service. Must be called while holding the lock on the parent policy.
+	 */
+	private void removeChildPolicyRefs(final Transaction tx, final String parentPolicyId, final Set<String> removedChildPolicyIds)
+	{
+		final Optional<JSONObject> wrappedParentXacmlJsonPolicy = this.prpDao.getLatestPolicyVersionContent(parentPolicyId, Optional.empty());
+		if (!wrappedParentXacmlJsonPolicy.isPresent())
+		{
+			throw new NotFoundException("Policy '" + parentPolicyId + "' not found");
+		}
+
+		final JSONObject parentXacmlJsonPolicy = wrappedParentXacmlJsonPolicy.get().optJSONObject("policy");
+		if (parentXacmlJsonPolicy == null)
+		{
+			throw new RuntimeException("Invalid policy '" + parentPolicyId + "' (latest version): no 'policy' root key");
+		}
+
+		final JSONArray policiesJsonArray = parentXacmlJsonPolicy.optJSONArray("policies");
+		if (policiesJsonArray == null || !Iterators.removeIf(policiesJsonArray.iterator(), json -> removedChildPolicyIds.contains(getPolicyRefId(json))))
+		{
+			/*
+			 * Parent policy unchanged
+			 */
+			return;
+		}
+
+		final String latestParentPolicyVersion = parentXacmlJsonPolicy.optString("version");
+		if (latestParentPolicyVersion == null)
+		{
+			throw new RuntimeException("Invalid policy '" + parentPolicyId + "' (latest version): no 'version' key");
+		}
+
+		final String newParentPolicyVersion = incrementPolicyVersion(latestParentPolicyVersion);
+		this.prpDao.addPolicyVersion(tx, parentPolicyId, newParentPolicyVersion, wrappedParentXacmlJsonPolicy.get(), Optional.empty());
+	}
+
+	/*
+	 * Update (or deletion if driverPolicy is empty) of a child policy
+	 */
+	private static final class ChildPolicyUpdate
+	{
+		private final String parentPolicyId;
+		private final String childPolicyId;
+		private final String targetValue;
+		private final Optional<JSONObject> driverPolicy;
+
+		private ChildPolicyUpdate(final String parentPolicyId, final String childPolicyId, final String targetValue, final Optional<JSONObject> driverPolicy)
+		{
+			this.parentPolicyId = parentPolicyId;
+			this.childPolicyId = childPolicyId;
+			this.targetValue = targetValue;
+			this.driverPolicy = driverPolicy;
+		}
+	}
+
+	/*
+	 * Applies updates of child policies in a single transaction, each parent policy being updated (policyRefs) once. Concurrency control is done at the granularity of the parent policy: the new
+	 * versions of the child policies are prepared (converted) without any lock, then written - if no other update of the same child policies happened in the meantime (compare-and-set on the latest
+	 * policy version), else everything is prepared again - while holding the locks on the parent policies only. Updates of different parent policies (e.g. topics and groups) therefore run in
+	 * parallel, and only the final commit (PDP reload if synchronous) is serialized, on prpDao.
+	 */
+	private long applyChildPolicyUpdates(final List<ChildPolicyUpdate> childPolicyUpdates, final boolean failOnInvalidPdpConf)
+	{
+		/*
+		 * Parent policy ID -> child policy updates
+		 */
+		final Map<String, Set<String>> removedChildPolicyIdsByParentId = new LinkedHashMap<>();
+		final Map<String, Map<String, Optional<JSONObject>>> driverPoliciesByParentId = new LinkedHashMap<>();
+		for (final ChildPolicyUpdate childPolicyUpdate : childPolicyUpdates)
+		{
+			final Set<String> removedChildPolicyIds = removedChildPolicyIdsByParentId.computeIfAbsent(childPolicyUpdate.parentPolicyId, k -> new HashSet<>());
+			if (!childPolicyUpdate.driverPolicy.isPresent())
+			{
+				removedChildPolicyIds.add(childPolicyUpdate.childPolicyId);
+			}
+
+			driverPoliciesByParentId.computeIfAbsent(childPolicyUpdate.parentPolicyId, k -> new LinkedHashMap<>()).put(childPolicyUpdate.childPolicyId, childPolicyUpdate.driverPolicy);
+		}
+
+		/*
+		 * Striped.bulkGet() returns the locks always in the same order, which prevents deadlocks
+		 */
+		final Iterable<Lock> parentPolicyLocks = this.parentPolicyLocks.bulkGet(driverPoliciesByParentId.keySet());
+		for (int attempt = 1;; attempt++)
+		{
+			/*
+			 * Conversion of the new child policies (without lock)
+			 */
+			final List<ChildPolicyVersion> newChildPolicyVersions = childPolicyUpdates.stream().filter(u -> u.driverPolicy.isPresent())
+			        .map(u -> newChildPolicyVersion(u.childPolicyId, u.targetValue, u.driverPolicy.get())).collect(Collectors.toList());
+
+			parentPolicyLocks.forEach(Lock::lock);
+			try
+			{
+				for (final String parentPolicyId : driverPoliciesByParentId.keySet())
+				{
+					if (!this.prpDao.getLatestPolicyVersion(parentPolicyId).isPresent())
+					{
+						throw new NotFoundException("Policy '" + parentPolicyId + "' not found");
+					}
+				}
+
+				if (newChildPolicyVersions.stream().anyMatch(v -> !v.previousLatestVersion.equals(this.prpDao.getLatestPolicyVersion(v.policyId))))
+				{
+					/*
+					 * Concurrent update of the same child policy: try again with the new latest versions
+					 */
+					if (attempt >= MAX_POLICY_UPDATE_ATTEMPTS)
+					{
+						throw new ClientErrorException("Too many concurrent updates of the same policies. Try again later.", Response.Status.CONFLICT);
+					}
+
+					LOGGER.debug("Concurrent update of the same child policies (attempt #{}): retrying", attempt);
+					continue;
+				}
+
+				/*
+				 * Write/commit new policy versions
+				 */
+				try (final Transaction tx = this.prpDao.newTx())
+				{
+					for (final ChildPolicyVersion newChildPolicyVersion : newChildPolicyVersions)
+					{
+						addChildPolicyVersion(tx, newChildPolicyVersion);
+					}
+
+					for (final ChildPolicyUpdate childPolicyUpdate : childPolicyUpdates)
+					{
+						if (!childPolicyUpdate.driverPolicy.isPresent())
+						{
+							this.prpDao.deletePolicy(tx, childPolicyUpdate.childPolicyId);
+						}
+					}
+
+					/*
+					 * The parent policies reference the new child policies implicitly, but may still have explicit references to the deleted ones
+					 */
+					for (final Entry<String, Set<String>> removedChildPolicyIdsEntry : removedChildPolicyIdsByParentId.entrySet())
+					{
+						if (!removedChildPolicyIdsEntry.getValue().isEmpty())
+						{
+							removeChildPolicyRefs(tx, removedChildPolicyIdsEntry.getKey(), removedChildPolicyIdsEntry.getValue());
+						}
+					}
+
+					/*
+					 * Create new PDP resource from this new update of policies (once for all)
+					 */
+					try
+					{
+						return commitPolicyUpdate(tx, driverPolicyIndex -> {
+							DriverPolicyIndex newDriverPolicyIndex = driverPolicyIndex;
+							for (final Entry<String, Map<String, Optional<JSONObject>>> driverPoliciesEntry : driverPoliciesByParentId.entrySet())
+							{
+								newDriverPolicyIndex = newDriverPolicyIndex.withChildPolicies(driverPoliciesEntry.getKey(), driverPoliciesEntry.getValue());
+							}
+
+							return newDriverPolicyIndex;
+						}, failOnInvalidPdpConf);
+					}
+					catch (final IOException e)
+					{
+						throw new RuntimeException("Error loading PDP configuration after policy update", e);
+					}
+				} /*
+				   * END try(tx)
+				   */
+				catch (final IllegalArgumentException | WebApplicationException e)
+				{
+					throw e;
+				}
+				catch (final Exception e)
+				{
+					throw new RuntimeException("Policy update transaction failed due to internal error", e);
+				}
+			}
+			finally
+			{
+				parentPolicyLocks.forEach(Lock::unlock);
+			}
+		}
+	}
+
+	/**
+	 * Creates/updates/deletes many child policies (of top-level policies {@code resource.type=...}) in DRIVER format at once, in a single transaction. Each top-level policy gets at most one new
+	 * version, and the PDP is reloaded only once, whatever the number of child policies.
+	 * 
+	 * @param validPolicyUpdates
+	 *            JSON object with a single key {@code policyUpdates}, whose value is an array of child policy updates, either
+	 *            {@code {"resource.type": "TOPIC", "resource.id": "Topic_A", "policy": {"rules": [...]}}} to create/update the DRIVER access policy of a resource (same as
+	 *            {@link #setChildPolicyFromDriverFormat(String, List, JSONObject)}), or {@code {"resource.type": "TOPIC", "resource.id": "Topic_A", "delete": true}} to delete it (same as
+	 *            {@link #deleteChildPolicy(String, List)}). Assumed validated against schema by JsonRiJaxrsProvider in JAX-RS service configuration (except the DRIVER access policies, validated
+	 *            here).
+	 * 
+	 * @return IDs of the updated and deleted child policies, with header {@value #POLICY_GENERATION_HEADER}: the policy generation from which the updates are visible to the PDP
+	 */
+	@POST
+	@Path("/pap/policies")
+	@Produces({ "application/json" })
+	@Consumes({ "application/json" })
+	public Response updateChildPoliciesFromDriverFormat(final JSONObject validPolicyUpdates)
+	{
+		try (final Bulkhead.Permit papPermit = enterPapBulkhead())
+		{
+			final JSONArray policyUpdatesJsonArray = validPolicyUpdates.optJSONArray("policyUpdates");
+			if (policyUpdatesJsonArray == null)
+			{
+				throw new BadRequestException("Invalid policy updates: missing 'policyUpdates' array");
+			}
+
+			final List<ChildPolicyUpdate> childPolicyUpdates = new ArrayList<>(policyUpdatesJsonArray.length());
+			final Set<String> childPolicyIds = new HashSet<>();
+			boolean isAnyChildPolicyAdded = false;
+			for (int i = 0; i < policyUpdatesJsonArray.length(); i++)
+			{
+				final JSONObject policyUpdateJsonObject = policyUpdatesJsonArray.getJSONObject(i);
+				final JSONObject driverPolicy = policyUpdateJsonObject.optJSONObject("policy");
+				if (driverPolicy == null)
+				{
+					if (!policyUpdateJsonObject.optBoolean("delete"))
+					{
+						throw new BadRequestException("Invalid policy update #" + i + ": no 'policy' and 'delete' is not true");
+					}
+				}
+				else
+				{
+					try
+					{
+						this.driverAccessPolicyJsonSchema.validate(driverPolicy);
+					}
+					catch (final ValidationException e)
+					{
+						throw new BadRequestException("Invalid policy in policy update #" + i + ": " + e.getMessage(), e);
+					}
+
+					isAnyChildPolicyAdded = true;
+				}
+
+				final String parentPolicyId = RESOURCE_TYPE_ATTRIBUTE_ALIAS + "=" + policyUpdateJsonObject.getString(RESOURCE_TYPE_ATTRIBUTE_ALIAS);
+				final String resourceId = policyUpdateJsonObject.getString(RESOURCE_ID_ATTRIBUTE_ALIAS);
+				final String childPolicyId = getChildPolicyId(parentPolicyId, new AbstractMap.SimpleImmutableEntry<>(RESOURCE_ID_ATTRIBUTE_ALIAS, resourceId));
+				if (!childPolicyIds.add(childPolicyId))
+				{
+					throw new BadRequestException("Invalid policy update #" + i + ": policy '" + childPolicyId + "' already updated by a previous item");
+				}
+
+				childPolicyUpdates.add(new ChildPolicyUpdate(parentPolicyId, childPolicyId, resourceId, Optional.ofNullable(driverPolicy)));
+			}
+
+			/*
+			 * Like deleteChildPolicy(), a deletion-only update does not fail on invalid PDP configuration.
+			 */
+			final long newPolicyGeneration = applyChildPolicyUpdates(childPolicyUpdates, isAnyChildPolicyAdded);
+
+			requestPdpReload();
+			final JSONObject result = new JSONObject();
+			result.put("updatedPolicies", new JSONArray(childPolicyUpdates.stream().filter(u -> u.driverPolicy.isPresent()).map(u -> u.childPolicyId).collect(Collectors.toList())));
+			result.put("deletedPolicies", new JSONArray(childPolicyUpdates.stream().filter(u -> !u.driverPolicy.isPresent()).map(u -> u.childPolicyId).collect(Collectors.toList())));
+			return Response.ok(result).header(POLICY_GENERATION_HEADER, newPolicyGeneration).build();
+		}
+	}
+
+	/**
+	 * Updates access policy in AuthzForce XACML/JSON format
+	 * 
+	 * @param string
+	 * @param xacmlJsonTargetValue
+	 * @param newChildPolicyVersion
+	 * @param childPolicyId
+	 * @param defaultRuleCombiningAlgo
+	 * 
+	 * 
+	 * @param xacmlPolicy
+	 *            AuthzForce XACML/JSON formatted policy
+	 * 
+	 * @return the updated policy
+	 */
+	// @PUT
+	// @Path("/policies/{policyId}/{var:policies}")
+	// @Produces({ "application/xacml+json" })
+	// @Consumes({ "application/xacml+json" })
+	// public JSONObject updatePolicyWithAuthzForceXacmlFormat(@PathParam("var") PathSegment pathSegment, JSONObject xacmlPolicy)
+	// {
+	// TODO
+	// }
+
+	/*
+	 * Gets the child policy's target match (attribute alias and value) from path segments {@code policies;a1=val1}
+	 */
+	private static Entry<String, String> getChildPolicyTargetMatch(final List<PathSegment> pathSegments)
+	{
+		if (pathSegments.size() > 1)
+		{
+			throw new BadRequestException("Too many path segments: " + pathSegments.size() + " (> 1)");
+		}
+
+		final PathSegment pathSeg0 = pathSegments.get(0);
+		if (!pathSeg0.getPath().equals("policies"))
+		{
+			throw new BadRequestException("Unexpected path in last segment: " + pathSeg0.getPath() + ". Expected: 'policies'");
+		}
+
+		final Entry<String, String> matrixArg = getSingleMatrixArg(pathSeg0);
+		if (matrixArg == null)
+		{
+			throw new BadRequestException("Missing matrix parameter");
+		}
+
+		return matrixArg;
+	}
+
+	private static String getChildPolicyId(final String policyId, final List<PathSegment> pathSegments)
+	{
+		return getChildPolicyId(policyId, getChildPolicyTargetMatch(pathSegments));
+	}
+
+	/**
+	 * Gets sub-policies of a given policy in Driver format
+	 * 
+	 * @param policyId
+	 *            top-level policy ID
+	 * 
+	 * @param pathSegments
+	 *            path segments {@code policies;a1=val1;a2=val2/...}
+	 * @param request
+	 *            HTTP request, for conditional requests (If-None-Match with the ETag of a previous response)
+	 * 
+	 * @return the child policy of policy {policyId} with Target = [a1=val1 AND a2=val2, etc.] (in XACML, this is a sequence of AnyOf, where each AnyOf is a single Allof with a single Match) where aN
+	 *         is an attribute alias defined by {@code attributeDictionary} arg to {@link #AuthzWsJaxrsRootResource(Resource, String, String, String, Resource, String)}
+	 */
+	@GET
+	@Path("/pap/policies/{policyId}/{var: .*}")
+	@Produces({ "application/json" })
+	public Response getLatestChildPolicyVersionInDriverFormat(@PathParam("policyId") final String policyId, @PathParam("var") final List<PathSegment> pathSegments,
+	        @Context final Request request)
+	{
+		final String childPolicyId = getChildPolicyId(policyId, pathSegments);
+		final Optional<StoredPolicyContent> optStoredContent = this.prpDao.getLatestPolicyVersionStoredContent(childPolicyId, Optional.of(DRIVER_ACCESS_POLICY_CONTENT_TYPE_ID));
+		if (!optStoredContent.isPresent())
+		{
+			throw new NotFoundException("");
+		}
+
+		return newStoredPolicyContentResponse(optStoredContent.get(), request);
+	}
+
+	/**
+	 * Deletes sub-policies (of a given top-level policy in DRIVER format
+	 * 
+	 * @param policyId
+	 *            top-level policy ID
+	 * 
+	 * @param pathSegments
+	 *            path segments {@code policies;a1=val1;a2=val2/...}
+	 * 
+	 * @return empty response with header {@value #POLICY_GENERATION_HEADER}: the policy generation from which the deletion is visible to the PDP
+	 * 
+	 */
+	@DELETE
+	@Path("/pap/policies/{policyId}/{var: .*}")
+	@Produces({ "application/json" })
+	public Response deleteChildPolicy(@PathParam("policyId") final String policyId, @PathParam("var") final List<PathSegment> pathSegments)
+	{
+		try (final Bulkhead.Permit papPermit = enterPapBulkhead())
+		{
+			final Entry<String, String> matrixArg = getChildPolicyTargetMatch(pathSegments);
+			final String childPolicyId = getChildPolicyId(policyId, matrixArg);
+			final long newPolicyGeneration = applyChildPolicyUpdates(Collections.singletonList(new ChildPolicyUpdate(policyId, childPolicyId, matrixArg.getValue(), Optional.empty())), false);
+
+			requestPdpReload();
+			return Response.noContent().header(POLICY_GENERATION_HEADER, newPolicyGeneration).build();
+		}
+	}
+
+	// /**
+	// * Evaluates XACML/XML Request
+	// *
+	// * @param request
+	// * XACML/XML Request
+	// *
+	// * @return XACML/XML Response
+	// */
+	// @POST
+	// @Produces({ "application/xml", "application/xacml+xml" })
+	// @Consumes({ "application/xml", "application/xacml+xml" })
+	// public Response evaluateXml(final Request request)
+	// {
+	// return this.pdpResource.evaluateXml(request);
+	// }
+
+	/**
+	 * Evaluates XACML/JSON Request according to JSON Profile of XACML 3.0. The common responses (single Permit/Deny/NotApplicable decision without obligations or advice) are written from
+	 * pre-encoded bytes (see {@link XacmlJsonCodec}).
+	 * 
+	 * @param request
+	 *            XACML/JSON Request
+	 * @param asyncResponse
+	 *            XACML/JSON Response (encoded), resumed by a PDP thread if there are dedicated PDP threads (see {@link AuthzWsOptions#setPdpThreadCount(int)})
+	 */
+	@POST
+	@Path("/pdp")
+	@Produces({ "application/json", "application/xacml+json" })
+	@Consumes({ "application/json", "application/xacml+json" })
+	public void evaluateJson(final JSONObject request, @Suspended final AsyncResponse asyncResponse)
+	{
+		/*
+		 * Media type negotiated as usual (Produces/Accept), the bytes are written as is
+		 */
+		evaluateAsync(asyncResponse, () -> XacmlJsonCodec.encodeResponse(evaluate(this.pdp, request)));
+	}
+
+	/*
+	 * Evaluates a PDP request on the PDP threads if any (else on the current thread), and resumes the asynchronous response with the result; or with HTTP 503 if too many PDP requests are waiting
+	 * for a PDP thread
+	 */
+	private void evaluateAsync(final AsyncResponse asyncResponse, final Supplier<?> evaluator)
+	{
+		final Runnable evaluation = () -> {
+			try
+			{
+				asyncResponse.resume(evaluator.get());
+			}
+			catch (final RuntimeException | Error e)
+			{
+				/*
+				 * Mapped to an HTTP response like a synchronous error (the response must be resumed anyway)
+				 */
+				asyncResponse.resume(e);
+			}
+		};
+
+		if (this.pdpExecutor == null)
+		{
+			evaluation.run();
+			return;
+		}
+
+		try
+		{
+			this.pdpExecutor.execute(evaluation);
+		}
+		catch (final RejectedExecutionException e)
+		{
+			this.pdpRejectedRequestCount.increment();
+			asyncResponse.resume(new ServiceUnavailableException("Too many pending PDP requests. Try again later.", 1L));
+		}
+	}
+
+	/*
+	 * Keeps track of recent requests to warm up the next PDP engine
+	 */
+	private void addRecentRequest(final JSONObject request)
+	{
+		this.recentRequests.lazySet(Math.floorMod(this.recentRequestCount.getAndIncrement(), this.recentRequests.length()), request);
+	}
+
+	private JSONObject evaluate(final PdpEngineSnapshot pdpEngine, final JSONObject request)
+	{
+		addRecentRequest(request);
+		if (this.decisionCache == null && this.decisionCoalescer == null)
+		{
+			return pdpEngine.evaluateJson(request);
+		}
+
+		/*
+		 * Requests that differ only by attributes unused by the policies, or the order of the subject DN, have the same key
+		 */
+		final JSONObject normalizedRequest = pdpEngine.normalizeRequest(request);
+		final Optional<DecisionRequestKey> requestKey = DecisionRequestKey.of(normalizedRequest);
+		if (!requestKey.isPresent())
+		{
+			LOGGER.debug("Request not cacheable (unsupported features): {}", request);
+			return pdpEngine.evaluateNormalizedJson(normalizedRequest);
+		}
+
+		return evaluate(pdpEngine, requestKey.get(), () -> pdpEngine.evaluateNormalizedJson(normalizedRequest));
+	}
+
+	/*
+	 * Gets the decision for a normalized request from the decision cache if enabled, else from the evaluation of the same request in progress if coalescing is enabled, else from the evaluator
+	 */
+	private JSONObject evaluate(final PdpEngineSnapshot pdpEngine, final DecisionRequestKey requestKey, final Supplier<JSONObject> evaluator)
+	{
+		final Supplier<JSONObject> coalescingEvaluator = this.decisionCoalescer == null ? evaluator : () -> this.decisionCoalescer.evaluate(pdpEngine, requestKey, evaluator);
+		return this.decisionCache == null ? coalescingEvaluator.get() : this.decisionCache.evaluate(pdpEngine, requestKey, coalescingEvaluator);
+	}
+
+	/**
+	 * Evaluates requests concurrently, each one submitted to an executor, and returns the results in the same order as the requests. The calling thread - possibly a thread of the same executor -
+	 * evaluates the first request, then, while joining the others in order, every request that no thread has started yet, e.g. rejected by the executor (queue full). Therefore the evaluation never
+	 * waits for a thread taken by another batch (no deadlock), and the requests of a batch never get rejected.
+	 * 
+	 * @param executor
+	 *            executor; if null, the requests are evaluated one after the other on the calling thread
+	 * @param requests
+	 *            requests
+	 * @param evaluator
+	 *            request evaluator
+	 * @return results, in the same order as {@code requests}
+	 */
+	static <T, R> List<R> evaluateConcurrently(final Executor executor, final List<T> requests, final Function<T, R> evaluator)
+	{
+		assert requests != null && evaluator != null;
+		if (executor == null || requests.size() < 2)
+		{
+			return requests.stream().map(evaluator).collect(Collectors.toList());
+		}
+
+		final List<FutureTask<R>> tasks = new ArrayList<>(requests.size());
+		for (final T request : requests)
+		{
+			final FutureTask<R> task = new FutureTask<>(() -> evaluator.apply(request));
+			if (!tasks.isEmpty())
+			{
+				try
+				{
+					executor.execute(task);
+				}
+				catch (final RejectedExecutionException e)
+				{
+					/*
+					 * Run by the calling thread below
+					 */
+				}
+			}
+
+			tasks.add(task);
+		}
+
+		final List<R> results = new ArrayList<>(requests.size());
+		try
+		{
+			for (final FutureTask<R> task : tasks)
+			{
+				/*
+				 * No-op if already started by another thread
+				 */
+				task.run();
+				results.add(task.get());
+			}
+		}
+		catch (final InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while waiting for the evaluation of a batch of requests", e);
+		}
+		catch (final ExecutionException e)
+		{
+			final Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException)
+			{
+				throw (RuntimeException) cause;
 			}
 
-			/*
-			 * Convert to AuthzForce/XACML/JSON format, increase current policy version if already exists, else default: 1.0. childPolicyInDriverFormat is assumed validated against schema by
-			 * JsonRiJaxrsProvider in JAX-RS service configuration
-			 */
-			final JSONObject xacmlJsonPolicy = driverAccessPolicyHandler.toXacmlJsonPolicy(validChildPolicyInDriverFormat, childPolicyId, newChildPolicyVersion, matrixArg.getValue());
+			if (cause instanceof Error)
+			{
+				throw (Error) cause;
+			}
 
+			throw new RuntimeException("Error evaluating a batch of requests", cause);
+		}
+		finally
+		{
 			/*
-			 * Validate result against schema
+			 * Nothing left to do unless an evaluation failed
 			 */
-			XacmlJsonUtils.POLICY_SCHEMA.validate(xacmlJsonPolicy);
+			tasks.forEach(task -> task.cancel(false));
+		}
 
-			/*
-			 * It is not absolutely necessary to wrap the JSON object with the root key 'policy' but we do it here for readability: the policy store's admin can guess the type of data in the JSON file
-			 * by looking at the root key.
-			 */
-			final JSONObject wrappedChildXacmlJsonPolicy = new JSONObject(Collections.singletonMap("policy", xacmlJsonPolicy));
+		return results;
+	}
 
-			/*
-			 * Write/commit new policy version
-			 */
-			try (final Transaction tx = this.prpDao.newTx())
+	/*
+	 * Evaluates requests with the same PDP engine, concurrently on the PDP threads if any (see evaluateJsonBatch()), responses in the same order as requests
+	 */
+	private List<JSONObject> evaluateAll(final List<JSONObject> requests)
+	{
+		final PdpEngineSnapshot pdpEngine = this.pdp;
+		return evaluateConcurrently(this.pdpExecutor, requests, request -> evaluate(pdpEngine, request));
+	}
+
+	private static void validateXacmlJsonRequest(final JSONObject request, final String requestDescription)
+	{
+		try
+		{
+			XacmlJsonUtils.REQUEST_SCHEMA.validate(request);
+		}
+		catch (final ValidationException e)
+		{
+			throw new BadRequestException("Invalid " + requestDescription + ": " + e.getMessage(), e);
+		}
+	}
+
+	/*
+	 * Splits a Multiple Decision Request with repeated attribute categories (XACML Multiple Decision Profile, section 2.3) into Individual Decision Requests
+	 */
+	private static List<JSONObject> getIndividualDecisionRequests(final JSONObject multiDecisionRequest)
+	{
+		final JSONObject request = multiDecisionRequest.getJSONObject("Request");
+		if (request.has("MultiRequests"))
+		{
+			throw new BadRequestException("Unsupported Multiple Decision Request: MultiRequests (only repeated attribute categories are supported)");
+		}
+
+		/*
+		 * Group categories by CategoryId (keep order of first occurrence)
+		 */
+		final JSONArray categories = request.optJSONArray("Category");
+		if (categories == null)
+		{
+			throw new BadRequestException("Invalid Multiple Decision Request: no 'Category' array");
+		}
+
+		final Map<String, List<JSONObject>> categoriesById = new LinkedHashMap<>();
+		for (final Object category : categories)
+		{
+			if (!(category instanceof JSONObject))
 			{
-				this.prpDao.addPolicyVersion(tx, childPolicyId, newChildPolicyVersion, wrappedChildXacmlJsonPolicy, Optional.empty());
-				/*
-				 * BEGIN DRIVER+-specific stuff: commit policy in DRIVER+ format
-				 * 
-				 * TODO: to be removed on the long term
-				 */
-				this.prpDao.addPolicyVersion(tx, childPolicyId, newChildPolicyVersion, validChildPolicyInDriverFormat, Optional.of(DRIVER_ACCESS_POLICY_CONTENT_TYPE_ID));
+				throw new BadRequestException("Invalid Multiple Decision Request: invalid item in 'Category' array (not a JSON object)");
+			}
 
-				/*
-				 * Make sure that the parent policy has a reference to the child policy
-				 */
-				final Optional<JSONObject> wrappedParentXacmlJsonPolicy = this.prpDao.getLatestPolicyVersionContent(policyId, Optional.empty());
-				if (!wrappedParentXacmlJsonPolicy.isPresent())
-				{
-					throw new NotFoundException("Policy '" + policyId + "' not found");
-				}
+			final JSONObject categoryJsonObject = (JSONObject) category;
+			categoriesById.computeIfAbsent(categoryJsonObject.optString("CategoryId"), k -> new ArrayList<>()).add(categoryJsonObject);
+		}
 
-				final JSONObject parentXacmlJsonPolicy = wrappedParentXacmlJsonPolicy.get().optJSONObject("policy");
-				if (parentXacmlJsonPolicy == null)
-				{
-					throw new RuntimeException("Invalid policy '" + policyId + "' (latest version): no 'policy' root key");
-				}
+		/*
+		 * Cartesian product of the category groups
+		 */
+		List<List<JSONObject>> individualRequestCategoryLists = Collections.singletonList(Collections.emptyList());
+		for (final List<JSONObject> repeatedCategories : categoriesById.values())
+		{
+			if (individualRequestCategoryLists.size() * repeatedCategories.size() > MAX_INDIVIDUAL_DECISION_REQUEST_COUNT)
+			{
+				throw new BadRequestException("Too many Individual Decision Requests in Multiple Decision Request (max: " + MAX_INDIVIDUAL_DECISION_REQUEST_COUNT + ")");
+			}
 
-				final boolean isParentPolicyUpdated;
-				final JSONArray policiesJsonArray = parentXacmlJsonPolicy.optJSONArray("policies");
-				final JSONArray newPoliciesJsonArray;
-				if (policiesJsonArray == null)
-				{
-					newPoliciesJsonArray = new JSONArray();
-					isParentPolicyUpdated = true;
-					parentXacmlJsonPolicy.put("policies", newPoliciesJsonArray);
-				}
-				else
+			final List<List<JSONObject>> newIndividualRequestCategoryLists = new ArrayList<>(individualRequestCategoryLists.size() * repeatedCategories.size());
+			for (final List<JSONObject> categoryList : individualRequestCategoryLists)
+			{
+				for (final JSONObject category : repeatedCategories)
 				{
-					newPoliciesJsonArray = policiesJsonArray;
-					isParentPolicyUpdated = !StreamSupport.stream(policiesJsonArray.spliterator(), true).anyMatch(json -> {
-						if (json instanceof JSONObject)
-						{
-							/*
-							 * Check whether it is the right child policy reference
-							 */
-							final JSONObject policyRefJsonObject = ((JSONObject) json).optJSONObject("policyRef");
-							return policyRefJsonObject != null && policyRefJsonObject.getString("id").equals(childPolicyId);
-						}
-						return false;
-					});
+					final List<JSONObject> newCategoryList = new ArrayList<>(categoryList.size() + 1);
+					newCategoryList.addAll(categoryList);
+					newCategoryList.add(category);
+					newIndividualRequestCategoryLists.add(newCategoryList);
 				}
+			}
 
-				if (isParentPolicyUpdated)
-				{
-					final JSONObject wrappedChildPolicyRefJsonObject = new JSONObject(Collections.singletonMap("policyRef", new JSONObject(Collections.singletonMap("id", childPolicyId))));
-					newPoliciesJsonArray.put(wrappedChildPolicyRefJsonObject);
-					final String latestParentPolicyVersion = parentXacmlJsonPolicy.optString("version");
-					if (latestParentPolicyVersion == null)
-					{
-						throw new RuntimeException("Invalid policy '" + policyId + "' (latest version): no 'version' key");
-					}
-
-					final String newParentPolicyVersion = incrementPolicyVersion(latestParentPolicyVersion);
-					this.prpDao.addPolicyVersion(tx, policyId, newParentPolicyVersion, wrappedParentXacmlJsonPolicy.get(), Optional.empty());
-				}
+			individualRequestCategoryLists = newIndividualRequestCategoryLists;
+		}
 
-				/*
-				 * Create new PDP resource from this new update of policies
-				 */
-				final PdpEngineConfiguration pdpEngineConf;
-				try
+		return individualRequestCategoryLists.stream().map(categoryList -> {
+			final JSONObject individualRequest = new JSONObject();
+			request.keySet().forEach(key -> {
+				if (!key.equals("Category"))
 				{
-					pdpEngineConf = new PdpEngineConfiguration(this.pdpJaxbConf, this.pdpEnvProps);
-					this.pdpResource = new XacmlPdpResource(pdpEngineConf);
+					individualRequest.put(key, request.get(key));
 				}
-				catch (final IOException e)
+			});
+			individualRequest.put("Category", new JSONArray(categoryList));
+			return new JSONObject(Collections.singletonMap("Request", individualRequest));
+		}).collect(Collectors.toList());
+	}
+
+	/**
+	 * Evaluates multiple XACML/JSON Requests in one call, against the same version of the policies, concurrently on the PDP threads if there are dedicated PDP threads (each request is submitted
+	 * separately, and the PDP thread handling the batch evaluates the ones not started by other threads), else one after the other on the current thread. The payload is either:
+	 * <ul>
+	 * <li>a JSON object with a single key 'Requests' whose value is an array of XACML/JSON Requests (each one with the usual root key 'Request'), in which case the result is a JSON object with a
+	 * single key 'Responses' whose value is the array of corresponding XACML/JSON Responses (in the same order);</li>
+	 * <li>or a Multiple Decision Request with repeated attribute categories according to the XACML Multiple Decision Profile (XACML/JSON Request with more than one category with the same
+	 * CategoryId), in which case the result is a XACML/JSON Response with one Result per Individual Decision Request.</li>
+	 * </ul>
+	 * 
+	 * @param batchRequest
+	 *            batch of XACML/JSON Requests
+	 * @param asyncResponse
+	 *            XACML/JSON Responses, resumed by a PDP thread if there are dedicated PDP threads (see {@link AuthzWsOptions#setPdpThreadCount(int)})
+	 */
+	@POST
+	@Path("/pdp/batch")
+	@Produces({ "application/json", "application/xacml+json" })
+	@Consumes({ "application/json", "application/xacml+json" })
+	public void evaluateJsonBatch(final JSONObject batchRequest, @Suspended final AsyncResponse asyncResponse)
+	{
+		final JSONArray requestsJsonArray = batchRequest.optJSONArray("Requests");
+		if (requestsJsonArray != null)
+		{
+			final List<JSONObject> requests = new ArrayList<>(requestsJsonArray.length());
+			for (int i = 0; i < requestsJsonArray.length(); i++)
+			{
+				final JSONObject request = requestsJsonArray.optJSONObject(i);
+				if (request == null)
 				{
-					throw new RuntimeException("Error loading PDP configuration after policy update", e);
+					throw new BadRequestException("Invalid item #" + i + " of 'Requests': not a JSON object");
 				}
 
-				/*
-				 * All right
-				 */
-				tx.commit();
-			} /*
-			   * END try(tx)
-			   */
-			catch (final Exception e)
-			{
-				throw new RuntimeException("Error closing policy update transaction", e);
+				validateXacmlJsonRequest(request, "item #" + i + " of 'Requests'");
+				requests.add(request);
 			}
-		} /*
-		   * END synchronized
-		   */
 
-		return validChildPolicyInDriverFormat;
+			/*
+			 * The whole batch is validated before taking a PDP thread
+			 */
+			evaluateAsync(asyncResponse, () -> new JSONObject(Collections.singletonMap("Responses", new JSONArray(evaluateAll(requests)))));
+			return;
+		}
+
+		if (batchRequest.has("Request"))
+		{
+			/*
+			 * Already validated by the JSON provider (root key 'Request')
+			 */
+			final List<JSONObject> individualRequests = getIndividualDecisionRequests(batchRequest);
+			evaluateAsync(asyncResponse, () -> {
+				final JSONArray results = new JSONArray();
+				evaluateAll(individualRequests).forEach(response -> response.getJSONArray("Response").forEach(results::put));
+				return new JSONObject(Collections.singletonMap("Response", results));
+			});
+			return;
+		}
 
+		throw new BadRequestException("Invalid batch request: expected root key 'Requests' (array of XACML/JSON Requests) or 'Request' (Multiple Decision Request)");
 	}
 
 	/**
-	 * Updates access policy in AuthzForce XACML/JSON format
+	 * Gets PDP statistics: current PDP engine generation (incremented on each policy update), decision cache and coalescing statistics (if enabled), statistics of the cache of canonical X.500 names (subject-id) and PDP thread pool statistics (if enabled)
 	 * 
-	 * @param string
-	 * @param xacmlJsonTargetValue
-	 * @param newChildPolicyVersion
-	 * @param childPolicyId
-	 * @param defaultRuleCombiningAlgo
-	 * 
-	 * 
-	 * @param xacmlPolicy
-	 *            AuthzForce XACML/JSON formatted policy
-	 * 
-	 * @return the updated policy
+	 * @return PDP statistics
 	 */
-	// @PUT
-	// @Path("/policies/{policyId}/{var:policies}")
-	// @Produces({ "application/xacml+json" })
-	// @Consumes({ "application/xacml+json" })
-	// public JSONObject updatePolicyWithAuthzForceXacmlFormat(@PathParam("var") PathSegment pathSegment, JSONObject xacmlPolicy)
-	// {
-	// TODO
-	// }
-
-	private static String getChildPolicyId(final String policyId, final List<PathSegment> pathSegments)
+	@GET
+	@Path("/pdp/stats")
+	@Produces({ "application/json" })
+	public JSONObject getPdpStats()
 	{
-		if (pathSegments.size() > 1)
+		final JSONObject stats = new JSONObject();
+		stats.put("generation", this.pdp.getGeneration());
+		stats.put("policyGeneration", this.policyGeneration);
+		if (this.decisionCache != null)
 		{
-			throw new BadRequestException("Too many path segments: " + pathSegments.size() + " (> 1)");
+			stats.put("decisionCache", this.decisionCache.getStats());
 		}
 
-		final PathSegment pathSeg0 = pathSegments.get(0);
-		if (!pathSeg0.getPath().equals("policies"))
+		if (this.decisionCoalescer != null)
 		{
-			throw new BadRequestException("Unexpected path in last segment: " + pathSeg0.getPath() + ". Expected: 'policies'");
+			stats.put("decisionCoalescing", this.decisionCoalescer.getStats());
 		}
 
-		final Entry<String, String> matrixArg = getSingleMatrixArg(pathSeg0);
-		if (matrixArg == null)
+		stats.put("x500NameCache", this.x500NameCanonicalizer.getStats());
+
+		if (this.pdpExecutor != null)
 		{
-			throw new BadRequestException("Missing matrix parameter");
+			final JSONObject executorStats = new JSONObject();
+			executorStats.put("threadCount", this.pdpExecutor.getMaximumPoolSize());
+			executorStats.put("activeThreadCount", this.pdpExecutor.getActiveCount());
+			executorStats.put("queuedRequestCount", this.pdpExecutor.getQueue().size());
+			executorStats.put("rejectedRequestCount", this.pdpRejectedRequestCount.sum());
+			stats.put("executor", executorStats);
 		}
 
-		return getChildPolicyId(policyId, matrixArg);
+		return stats;
+	}
+
+	/*
+	 * Locks on all the parent policies, in stripe order like Striped#bulkGet() (which prevents deadlocks), i.e. blocking all policy updates, e.g. for a snapshot of the whole policy repository
+	 */
+	private List<Lock> getAllParentPolicyLocks()
+	{
+		return IntStream.range(0, this.parentPolicyLocks.size()).mapToObj(this.parentPolicyLocks::getAt).collect(Collectors.toList());
 	}
 
 	/**
-	 * Gets sub-policies of a given policy in Driver format
-	 * 
-	 * @param policyId
-	 *            top-level policy ID
+	 * Exports a point-in-time snapshot of the policy repository as a ZIP archive (see {@link PrpSnapshotArchive}). The snapshot is written to a temporary file while policy updates are blocked, then
+	 * streamed to the client without blocking them.
 	 * 
-	 * @param pathSegments
-	 *            path segments {@code policies;a1=val1;a2=val2/...}
+	 * @param latestOnly
+	 *            true iff only the latest version of each policy is exported
 	 * 
-	 * @return the child policy of policy {policyId} with Target = [a1=val1 AND a2=val2, etc.] (in XACML, this is a sequence of AnyOf, where each AnyOf is a single Allof with a single Match) where aN
-	 *         is an attribute alias defined by {@code attributeDictionary} arg to {@link #AuthzWsJaxrsRootResource(Resource, String, String, String, Resource, String)}
+	 * @return snapshot archive
 	 */
 	@GET
-	@Path("/pap/policies/{policyId}/{var: .*}")
-	@Produces({ "application/json" })
-	public JSONObject getLatestChildPolicyVersionInDriverFormat(@PathParam("policyId") final String policyId, @PathParam("var") final List<PathSegment> pathSegments)
+	@Path("/pap/snapshot")
+	@Produces({ "application/zip" })
+	public Response exportPolicySnapshot(@QueryParam("latestOnly") final boolean latestOnly)
 	{
-		final String childPolicyId = getChildPolicyId(policyId, pathSegments);
-		final Optional<JSONObject> optJSONObject = this.prpDao.getLatestPolicyVersionContent(childPolicyId, Optional.of(DRIVER_ACCESS_POLICY_CONTENT_TYPE_ID));
-		if (!optJSONObject.isPresent())
+		try (final Bulkhead.Permit papPermit = enterPapBulkhead())
 		{
-			throw new NotFoundException("");
-		}
+			final File snapshotFile;
+			final List<Lock> allParentPolicyLocks = getAllParentPolicyLocks();
+			allParentPolicyLocks.forEach(Lock::lock);
+			try
+			{
+				snapshotFile = File.createTempFile("policy-snapshot-", ".zip");
+				try (final OutputStream out = new BufferedOutputStream(Files.newOutputStream(snapshotFile.toPath())))
+				{
+					final int entryCount = PrpSnapshotArchive.write(this.prpDao, latestOnly, out);
+					LOGGER.debug("Policy snapshot exported: {} policy version entries (latestOnly = {})", entryCount, latestOnly);
+				}
+				catch (final IOException | RuntimeException e)
+				{
+					Files.deleteIfExists(snapshotFile.toPath());
+					throw e;
+				}
+			}
+			catch (final IOException e)
+			{
+				throw new RuntimeException("Error exporting policy snapshot", e);
+			}
+			finally
+			{
+				allParentPolicyLocks.forEach(Lock::unlock);
+			}
 
-		return optJSONObject.get();
+			final StreamingOutput snapshotOutput = out -> {
+				try
+				{
+					Files.copy(snapshotFile.toPath(), out);
+				}
+				finally
+				{
+					Files.deleteIfExists(snapshotFile.toPath());
+				}
+			};
+			return Response.ok(snapshotOutput, "application/zip").header("Content-Disposition", "attachment; filename=\"policies.zip\"").build();
+		}
 	}
 
 	/**
-	 * Deletes sub-policies (of a given top-level policy in DRIVER format
-	 * 
-	 * @param policyId
-	 *            top-level policy ID
-	 * 
-	 * @param pathSegments
-	 *            path segments {@code policies;a1=val1;a2=val2/...}
+	 * Imports a snapshot of the policy repository as exported by {@link #exportPolicySnapshot(boolean)}, e.g. to bootstrap a new node: for each policy, the versions newer than the latest one in the
+	 * repository are added, in large transactions, then the PDP is reloaded only once. The archive is spooled to a temporary file, and every entry is validated like a policy update (XACML/JSON or
+	 * DRIVER policy schema) before any is imported: nothing is imported if any entry is invalid. The import itself is not atomic: if it fails afterwards, the policy versions added so far remain (and
+	 * are skipped if the snapshot is imported again).
 	 * 
+	 * @param snapshotArchive
+	 *            snapshot archive
 	 * 
+	 * @return number of imported policy version entries, with header {@value #POLICY_GENERATION_HEADER}: the policy generation from which the imported policies are visible to the PDP
 	 */
-	@DELETE
-	@Path("/pap/policies/{policyId}/{var: .*}")
+	@POST
+	@Path("/pap/snapshot")
+	@Consumes({ "application/zip" })
 	@Produces({ "application/json" })
-	public void deleteChildPolicy(@PathParam("policyId") final String policyId, @PathParam("var") final List<PathSegment> pathSegments)
+	public Response importPolicySnapshot(final InputStream snapshotArchive)
 	{
-		final String childPolicyId = getChildPolicyId(policyId, pathSegments);
-
-		synchronized (this.prpDao)
+		try (final Bulkhead.Permit papPermit = enterPapBulkhead())
 		{
-
 			/*
-			 * Write/commit new policy version
+			 * Spooled before locking, so that policy updates are not blocked by a slow client; and read twice (validation, then import)
 			 */
-			try (final Transaction tx = this.prpDao.newTx())
+			final java.nio.file.Path snapshotFile;
+			try
 			{
-				/*
-				 * Remove reference from parent
-				 * 
-				 */
-				final Optional<JSONObject> wrappedParentXacmlJsonPolicy = this.prpDao.getLatestPolicyVersionContent(policyId, Optional.empty());
-				if (!wrappedParentXacmlJsonPolicy.isPresent())
-				{
-					throw new NotFoundException("Policy '" + policyId + "' not found");
-				}
-
-				final JSONObject parentXacmlJsonPolicy = wrappedParentXacmlJsonPolicy.get().optJSONObject("policy");
-				if (parentXacmlJsonPolicy == null)
-				{
-					throw new RuntimeException("Invalid policy '" + policyId + "' (latest version): no 'policy' root key");
-				}
+				snapshotFile = Files.createTempFile("policy-snapshot-", ".zip");
+			}
+			catch (final IOException e)
+			{
+				throw new RuntimeException("Error importing policy snapshot", e);
+			}
 
-				final boolean isParentPolicyUpdated;
-				final JSONArray policiesJsonArray = parentXacmlJsonPolicy.optJSONArray("policies");
-				if (policiesJsonArray == null)
+			try
+			{
+				try
 				{
-					isParentPolicyUpdated = false;
+					Files.copy(snapshotArchive, snapshotFile, StandardCopyOption.REPLACE_EXISTING);
 				}
-				else
+				catch (final IOException e)
 				{
-					isParentPolicyUpdated = Iterators.removeIf(policiesJsonArray.iterator(), json -> {
-						if (json instanceof JSONObject)
-						{
-							final JSONObject policyRefJsonObject = ((JSONObject) json).optJSONObject("policyRef");
-							return policyRefJsonObject != null && policyRefJsonObject.getString("id").equals(childPolicyId);
-						}
-						return false;
-					});
+					throw new BadRequestException("Invalid policy snapshot archive: " + e.getMessage(), e);
 				}
 
-				if (isParentPolicyUpdated)
+				final int importedEntryCount;
+				final long newPolicyGeneration;
+				final List<Lock> allParentPolicyLocks = getAllParentPolicyLocks();
+				allParentPolicyLocks.forEach(Lock::lock);
+				try
 				{
-					final String latestParentPolicyVersion = parentXacmlJsonPolicy.optString("version");
-					if (latestParentPolicyVersion == null)
+					try
 					{
-						throw new RuntimeException("Invalid policy '" + policyId + "' (latest version): no 'version' key");
+						importedEntryCount = PrpSnapshotArchive.read(snapshotFile, this.prpDao, PrpSnapshotArchive.DEFAULT_IMPORT_BATCH_SIZE,
+						        Collections.singletonMap(DRIVER_ACCESS_POLICY_CONTENT_TYPE_ID, this.driverAccessPolicyJsonSchema));
+					}
+					catch (final IOException | IllegalArgumentException | JSONException e)
+					{
+						throw new BadRequestException("Invalid policy snapshot archive: " + e.getMessage(), e);
 					}
 
-					final String newParentPolicyVersion = incrementPolicyVersion(latestParentPolicyVersion);
-					this.prpDao.addPolicyVersion(tx, policyId, newParentPolicyVersion, wrappedParentXacmlJsonPolicy.get(), Optional.empty());
-				}
-
-				/*
-				 * Delete the child policy
-				 */
-				this.prpDao.deletePolicy(tx, childPolicyId);
-
-				/*
-				 * Create new PDP resource from this new update of policies
-				 */
-				final PdpEngineConfiguration pdpEngineConf;
-				try
-				{
-					pdpEngineConf = new PdpEngineConfiguration(this.pdpJaxbConf, this.pdpEnvProps);
-					this.pdpResource = new XacmlPdpResource(pdpEngineConf);
-				}
-				catch (final IllegalArgumentException e)
-				{
 					/*
-					 * FIXME: remove this line
+					 * Imported policies already committed: empty transaction, just to rebuild the DRIVER policy index and reload the PDP (once for all)
 					 */
-					LOGGER.error("Error loading PDP configuration after policy update", e);
+					try (final Transaction tx = this.prpDao.newTx())
+					{
+						newPolicyGeneration = commitPolicyUpdate(tx, driverPolicyIndex -> newDriverPolicyIndex(), true);
+					}
+					catch (final IllegalArgumentException | WebApplicationException e)
+					{
+						throw e;
+					}
+					catch (final Exception e)
+					{
+						throw new RuntimeException("Error loading PDP configuration after policy snapshot import", e);
+					}
 				}
-				catch (final IOException e)
+				finally
 				{
-					throw new RuntimeException("Error loading PDP configuration after policy update", e);
+					allParentPolicyLocks.forEach(Lock::unlock);
 				}
 
-				/*
-				 * All right
-				 */
-				tx.commit();
-			} /*
-			   * END try(tx)
-			   */
-			catch (final IllegalArgumentException e)
-			{
-				throw e;
+				requestPdpReload();
+				final JSONObject result = new JSONObject();
+				result.put("importedPolicyVersionEntries", importedEntryCount);
+				return Response.ok(result).header(POLICY_GENERATION_HEADER, newPolicyGeneration).build();
 			}
-			catch (final Exception e)
+			finally
 			{
-				throw new RuntimeException("Policy update transaction failed due to internal error", e);
+				try
+				{
+					Files.deleteIfExists(snapshotFile);
+				}
+				catch (final IOException e)
+				{
+					LOGGER.warn("Failed to delete temporary policy snapshot file: {}", snapshotFile, e);
+				}
 			}
-		} /*
-		   * END synchronized
-		   */
-
+		}
 	}
 
-	// /**
-	// * Evaluates XACML/XML Request
-	// *
-	// * @param request
-	// * XACML/XML Request
-	// *
-	// * @return XACML/XML Response
-	// */
-	// @POST
-	// @Produces({ "application/xml", "application/xacml+xml" })
-	// @Consumes({ "application/xml", "application/xacml+xml" })
-	// public Response evaluateXml(final Request request)
-	// {
-	// return this.pdpResource.evaluateXml(request);
-	// }
-
 	/**
-	 * Evaluates XACML/JSON Request according to JSON Profile of XACML 3.0
-	 * 
-	 * @param request
-	 *            XACML/JSON Request
+	 * Gets PAP statistics: policy content cache statistics (if the cache is enabled) and concurrent PAP request limit statistics (if enabled)
 	 * 
-	 * @return XACML/JSON Response
+	 * @return PAP statistics
 	 */
-	@POST
-	@Path("/pdp")
-	@Produces({ "application/json", "application/xacml+json" })
-	@Consumes({ "application/json", "application/xacml+json" })
-	public JSONObject evaluateJson(final JSONObject request)
+	@GET
+	@Path("/pap/stats")
+	@Produces({ "application/json" })
+	public JSONObject getPapStats()
 	{
-		return this.pdpResource.evaluateJson(request);
+		final JSONObject stats = new JSONObject();
+		if (this.policyContentCache != null)
+		{
+			stats.put("policyContentCache", this.policyContentCache.getStats());
+		}
+
+		if (this.papBulkhead != null)
+		{
+			stats.put("bulkhead", this.papBulkhead.getStats());
+		}
+
+		return stats;
 	}
 }
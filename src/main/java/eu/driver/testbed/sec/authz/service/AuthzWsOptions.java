@@ -0,0 +1,402 @@
+/**
+ * Copyright (C) 2018-2019 THALES.
+ *
+ * This file is part of AuthzForce CE.
+ *
+ * AuthzForce CE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * AuthzForce CE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with AuthzForce CE.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.driver.testbed.sec.authz.service;
+
+/**
+ * Optional (performance-related) settings of the authorization service, passed to {@link AuthzWsJaxrsRootResource}. Every setting has a default value that keeps the behavior of previous versions
+ * (with the default Driver-to-XACML/JSON template), so this may be left undefined in the Spring configuration.
+ * <p>
+ * This is a JavaBean meant to be configured with Spring bean properties, e.g. {@code p:decisionCacheSpec="maximumSize=10000,expireAfterWrite=60s"}.
+ */
+public final class AuthzWsOptions
+{
+	private String decisionCacheSpec = null;
+	private boolean decisionCoalescingEnabled = false;
+	private boolean driverPolicyIndexEnabled = false;
+	private boolean inMemoryPolicyProviderEnabled = false;
+	private boolean requestAttributePruningEnabled = false;
+	private boolean subjectIdCanonicalizationEnabled = false;
+	private long asyncPdpReloadDelayMillis = -1;
+	private boolean directPolicyConversionEnabled = true;
+	private String policyStoreFile = null;
+	private long policyContentCacheMaxWeight = 0;
+	private int policyVersionRetentionCount = 0;
+	private long policyVersionRetentionMillis = 0;
+	private long policyCompactionIntervalMillis = 60000;
+	private int pdpThreadCount = 0;
+	private int pdpMaxQueuedRequests = 1000;
+	private int papMaxConcurrentRequests = 0;
+
+	/**
+	 * @return decision cache specification, null if the decision cache is disabled
+	 * @see #setDecisionCacheSpec(String)
+	 */
+	public String getDecisionCacheSpec()
+	{
+		return decisionCacheSpec;
+	}
+
+	/**
+	 * Enables the cache of PDP decisions and sets its size and time-to-live, using the syntax of Guava's {@link com.google.common.cache.CacheBuilderSpec}, e.g.
+	 * {@code maximumSize=10000,expireAfterWrite=60s}. Cache hits/misses are always recorded. The cache is disabled if this is null or empty (default).
+	 *
+	 * @param decisionCacheSpec
+	 *            decision cache specification
+	 */
+	public void setDecisionCacheSpec(final String decisionCacheSpec)
+	{
+		this.decisionCacheSpec = decisionCacheSpec;
+	}
+
+	/**
+	 * @return true iff identical concurrent decision requests are coalesced
+	 * @see #setDecisionCoalescingEnabled(boolean)
+	 */
+	public boolean isDecisionCoalescingEnabled()
+	{
+		return decisionCoalescingEnabled;
+	}
+
+	/**
+	 * Enables the coalescing of identical concurrent decision requests: while a request is being evaluated by the PDP engine, the same requests (normalized like for the decision cache) wait for the
+	 * result of this evaluation instead of being evaluated again, e.g. when many Kafka clients ask for the same permission at once. A request only gets the result of an evaluation by the PDP engine
+	 * that was current when it arrived. Coalesced requests are counted on /pdp/stats. Disabled by default.
+	 *
+	 * @param decisionCoalescingEnabled
+	 *            true iff identical concurrent decision requests are coalesced
+	 */
+	public void setDecisionCoalescingEnabled(final boolean decisionCoalescingEnabled)
+	{
+		this.decisionCoalescingEnabled = decisionCoalescingEnabled;
+	}
+
+	/**
+	 * @return true iff the index of DRIVER access policies is enabled
+	 * @see #setDriverPolicyIndexEnabled(boolean)
+	 */
+	public boolean isDriverPolicyIndexEnabled()
+	{
+		return driverPolicyIndexEnabled;
+	}
+
+	/**
+	 * Enables the index of DRIVER access policies: the access policies in DRIVER format (children of resource-type-specific policies such as 'resource.type=TOPIC') are compiled to hash tables,
+	 * from which the usual requests (subject-id/group-id, action-id, resource-type, resource-id) are permitted in constant time, whatever the number of policies. Other requests/decisions still go
+	 * through the PDP engine. Disabled by default. This requires the default Driver-to-XACML/JSON template (driver-to-xacml-json.ftl): do not enable it with a customized template that changes the
+	 * semantics of DRIVER access policies.
+	 *
+	 * @param driverPolicyIndexEnabled
+	 *            true iff the index is enabled
+	 */
+	public void setDriverPolicyIndexEnabled(final boolean driverPolicyIndexEnabled)
+	{
+		this.driverPolicyIndexEnabled = driverPolicyIndexEnabled;
+	}
+
+	/**
+	 * @return true iff the in-memory policy provider is enabled
+	 * @see #setInMemoryPolicyProviderEnabled(boolean)
+	 */
+	public boolean isInMemoryPolicyProviderEnabled()
+	{
+		return inMemoryPolicyProviderEnabled;
+	}
+
+	/**
+	 * Enables the in-memory policy provider: the latest version of each policy is kept parsed in memory and in sync with the policy repository, and the PDP gets the policies from there, instead of
+	 * the policy files matched by the refPolicyProvider's policyLocation in the PDP configuration file. Therefore, a PDP reload after a policy update does not read any policy file, and rebuilds only
+	 * the changed policies and the policies referencing them. Disabled by default.
+	 *
+	 * @param inMemoryPolicyProviderEnabled
+	 *            true iff the in-memory policy provider is enabled
+	 */
+	public void setInMemoryPolicyProviderEnabled(final boolean inMemoryPolicyProviderEnabled)
+	{
+		this.inMemoryPolicyProviderEnabled = inMemoryPolicyProviderEnabled;
+	}
+
+	/**
+	 * @return true iff the attributes that no policy uses are removed from the requests
+	 * @see #setRequestAttributePruningEnabled(boolean)
+	 */
+	public boolean isRequestAttributePruningEnabled()
+	{
+		return requestAttributePruningEnabled;
+	}
+
+	/**
+	 * Enables request attribute pruning: when the PDP is (re)loaded, the attributes (category, ID, datatype) that the policies may read are collected from the AttributeDesignators of the policies,
+	 * and the other attributes (and attribute categories) are removed from the requests before they reach the PDP engine, and before computing the decision cache key, e.g. the client IP address
+	 * sent by Kafka brokers. The decisions are the same. Only the policies changed since the previous PDP load are read again. Pruning is disabled if a policy uses an AttributeSelector, or if the
+	 * PDP configuration has attribute providers. Disabled by default.
+	 *
+	 * @param requestAttributePruningEnabled
+	 *            true iff request attribute pruning is enabled
+	 */
+	public void setRequestAttributePruningEnabled(final boolean requestAttributePruningEnabled)
+	{
+		this.requestAttributePruningEnabled = requestAttributePruningEnabled;
+	}
+
+	/**
+	 * @return true iff the subject DNs are matched in canonical form
+	 * @see #setSubjectIdCanonicalizationEnabled(boolean)
+	 */
+	public boolean isSubjectIdCanonicalizationEnabled()
+	{
+		return subjectIdCanonicalizationEnabled;
+	}
+
+	/**
+	 * Enables subject-id canonicalization: the subject.id (certificate subject DN) of the DRIVER access policies is compiled to a single x500Name-equal match with a canonical form of the DN that
+	 * does not depend on the order of the RDNs (see {@link X500NameCanonicalizer}), instead of one match per order (LDAP and X.500); and the access-subject's subject-id of the requests is converted
+	 * to the same canonical form before evaluation, and before computing the decision cache key, so that requests differing only by the order of the subject DN get the same cached decision. The
+	 * canonical order is the LDAP order for the usual certificate DNs (starting with the CN), else an arbitrary but stable order, therefore XACML policies that match the subject-id with
+	 * x500Name-equal, other than the DRIVER access policies, must give the DN in this canonical order: do not enable it if you have such policies with DNs in another order. The DRIVER access policies
+	 * compiled before enabling it still match. Disabled by default.
+	 *
+	 * @param subjectIdCanonicalizationEnabled
+	 *            true iff subject-id canonicalization is enabled
+	 */
+	public void setSubjectIdCanonicalizationEnabled(final boolean subjectIdCanonicalizationEnabled)
+	{
+		this.subjectIdCanonicalizationEnabled = subjectIdCanonicalizationEnabled;
+	}
+
+	/**
+	 * @return delay (ms) of asynchronous PDP reload after a policy update, negative if the PDP is reloaded synchronously
+	 * @see #setAsyncPdpReloadDelayMillis(long)
+	 */
+	public long getAsyncPdpReloadDelayMillis()
+	{
+		return asyncPdpReloadDelayMillis;
+	}
+
+	/**
+	 * Enables asynchronous PDP reload after a policy update, if the delay is positive or zero: a policy update on the PAP returns as soon as the policy repository is updated, and the new PDP
+	 * replaces the current one in a background thread, at least {@code asyncPdpReloadDelayMillis} later, so that only the PDP of the last update made in the meantime is warmed up and swapped in.
+	 * The new PDP is still loaded before the PAP responds, since a policy update rejected by the PDP is not committed. The PAP response header
+	 * {@value AuthzWsJaxrsRootResource#POLICY_GENERATION_HEADER} gives the policy generation from which the update is visible to the PDP (PDP generation given by /pdp/stats). If negative (default),
+	 * the PDP is reloaded synchronously on each policy update, before the PAP responds.
+	 *
+	 * @param asyncPdpReloadDelayMillis
+	 *            asynchronous PDP reload delay (ms), negative to disable
+	 */
+	public void setAsyncPdpReloadDelayMillis(final long asyncPdpReloadDelayMillis)
+	{
+		this.asyncPdpReloadDelayMillis = asyncPdpReloadDelayMillis;
+	}
+
+	/**
+	 * @return true iff policies are converted directly (without FreeMarker template and XSLT)
+	 * @see #setDirectPolicyConversionEnabled(boolean)
+	 */
+	public boolean isDirectPolicyConversionEnabled()
+	{
+		return directPolicyConversionEnabled;
+	}
+
+	/**
+	 * Enables the direct conversion of policies: access policies in DRIVER format are compiled to XACML/JSON in Java, instead of being rendered with the Driver-to-XACML/JSON template (FreeMarker),
+	 * parsed and validated; and XACML/JSON policies are written as XACML/XML with StAX, instead of being serialized and transformed with the XSLT. The result is the same as with the default
+	 * template (driver-to-xacml-json.ftl). Enabled by default. Disable it to use a customized template (driverToXacmlJsonPolicyFtlLocation), which is ignored otherwise.
+	 *
+	 * @param directPolicyConversionEnabled
+	 *            true iff the direct conversion is enabled
+	 */
+	public void setDirectPolicyConversionEnabled(final boolean directPolicyConversionEnabled)
+	{
+		this.directPolicyConversionEnabled = directPolicyConversionEnabled;
+	}
+
+	/**
+	 * @return policy store file, null if the policy repository is the policy directory
+	 * @see #setPolicyStoreFile(String)
+	 */
+	public String getPolicyStoreFile()
+	{
+		return policyStoreFile;
+	}
+
+	/**
+	 * Sets the file of the embedded transactional key-value store (H2 MVStore) used as policy repository instead of the policy directory (one file per policy version): policy updates are ACID
+	 * transactions, and the latest version of a policy is found with a range scan instead of listing the directory. If the store is empty (e.g. the file does not exist yet), all the policies in the
+	 * policy directory are imported into it once, in a single transaction, and the policy directory is no longer used afterwards (left unchanged). The location may use the PDP configuration
+	 * placeholder {@code PARENT_DIR}. This requires the in-memory policy provider ({@link #setInMemoryPolicyProviderEnabled(boolean)}). If null or empty (default), the policy directory is the
+	 * policy repository.
+	 *
+	 * @param policyStoreFile
+	 *            policy store file location
+	 */
+	public void setPolicyStoreFile(final String policyStoreFile)
+	{
+		this.policyStoreFile = policyStoreFile;
+	}
+
+	/**
+	 * @return max weight of the policy content cache (bytes), 0 if the cache is disabled
+	 * @see #setPolicyContentCacheMaxWeight(long)
+	 */
+	public long getPolicyContentCacheMaxWeight()
+	{
+		return policyContentCacheMaxWeight;
+	}
+
+	/**
+	 * Enables the cache of the latest version of policies read from the policy repository (parsed JSON), e.g. top-level policies read before every update of their child policies, and policies
+	 * read by PAP GET requests; and sets its max weight, i.e. max total size of the cached policies (size of their JSON content in bytes, approximately). Cache hits/misses are available on
+	 * /services/authz/pap/stats. The cache is disabled if this is 0 (default) or negative.
+	 *
+	 * @param policyContentCacheMaxWeight
+	 *            max weight of the policy content cache (bytes)
+	 */
+	public void setPolicyContentCacheMaxWeight(final long policyContentCacheMaxWeight)
+	{
+		this.policyContentCacheMaxWeight = policyContentCacheMaxWeight;
+	}
+
+	/**
+	 * @return number of latest versions of each policy retained by the policy compaction, 0 if not limited by number
+	 * @see #setPolicyVersionRetentionCount(int)
+	 */
+	public int getPolicyVersionRetentionCount()
+	{
+		return policyVersionRetentionCount;
+	}
+
+	/**
+	 * Enables the background compaction of the policy repository (removal of old policy versions), retaining this number of latest versions of each policy, in addition to the versions retained by
+	 * age (see {@link #setPolicyVersionRetentionMillis(long)}). The latest version of a policy is always retained. If 0 (default) or negative, versions are retained by age only, or all retained if
+	 * the age is not set either (compaction disabled).
+	 *
+	 * @param policyVersionRetentionCount
+	 *            number of latest versions of each policy to be retained
+	 */
+	public void setPolicyVersionRetentionCount(final int policyVersionRetentionCount)
+	{
+		this.policyVersionRetentionCount = policyVersionRetentionCount;
+	}
+
+	/**
+	 * @return age (ms) under which policy versions are retained by the policy compaction, 0 if not limited by age
+	 * @see #setPolicyVersionRetentionMillis(long)
+	 */
+	public long getPolicyVersionRetentionMillis()
+	{
+		return policyVersionRetentionMillis;
+	}
+
+	/**
+	 * Enables the background compaction of the policy repository (removal of old policy versions), retaining the versions created less than this number of milliseconds ago, in addition to the
+	 * versions retained by number (see {@link #setPolicyVersionRetentionCount(int)}). The latest version of a policy is always retained. If 0 (default) or negative, versions are retained by number
+	 * only, or all retained if the number is not set either (compaction disabled).
+	 *
+	 * @param policyVersionRetentionMillis
+	 *            max age (ms) of the policy versions to be retained
+	 */
+	public void setPolicyVersionRetentionMillis(final long policyVersionRetentionMillis)
+	{
+		this.policyVersionRetentionMillis = policyVersionRetentionMillis;
+	}
+
+	/**
+	 * @return delay (ms) between two compactions of the policy repository
+	 * @see #setPolicyCompactionIntervalMillis(long)
+	 */
+	public long getPolicyCompactionIntervalMillis()
+	{
+		return policyCompactionIntervalMillis;
+	}
+
+	/**
+	 * Sets the delay between two compactions of the policy repository, if enabled (see {@link #setPolicyVersionRetentionCount(int)} and {@link #setPolicyVersionRetentionMillis(long)}). Default:
+	 * 60000 (1 min).
+	 *
+	 * @param policyCompactionIntervalMillis
+	 *            delay (ms) between two compactions, strictly positive
+	 */
+	public void setPolicyCompactionIntervalMillis(final long policyCompactionIntervalMillis)
+	{
+		this.policyCompactionIntervalMillis = policyCompactionIntervalMillis;
+	}
+
+	/**
+	 * @return number of threads dedicated to PDP evaluation, 0 or less if requests are evaluated on the HTTP server threads
+	 * @see #setPdpThreadCount(int)
+	 */
+	public int getPdpThreadCount()
+	{
+		return pdpThreadCount;
+	}
+
+	/**
+	 * Sets the number of threads dedicated to the evaluation of PDP requests (/pdp and /pdp/batch endpoints): the requests are evaluated asynchronously by this thread pool, and the HTTP
+	 * server thread is released meanwhile, so that decision latency does not depend on the load of the other endpoints (e.g. PAP). The requests waiting for a PDP thread are queued, up to
+	 * {@link #setPdpMaxQueuedRequests(int)}; the requests over the limit are rejected with HTTP 503. If 0 or less (default), the requests are evaluated on the HTTP server threads.
+	 *
+	 * @param pdpThreadCount
+	 *            number of PDP threads
+	 */
+	public void setPdpThreadCount(final int pdpThreadCount)
+	{
+		this.pdpThreadCount = pdpThreadCount;
+	}
+
+	/**
+	 * @return max number of PDP requests waiting for a PDP thread
+	 * @see #setPdpMaxQueuedRequests(int)
+	 */
+	public int getPdpMaxQueuedRequests()
+	{
+		return pdpMaxQueuedRequests;
+	}
+
+	/**
+	 * Sets the max number of PDP requests waiting for a PDP thread, if there are dedicated PDP threads (see {@link #setPdpThreadCount(int)}). Default: 1000.
+	 *
+	 * @param pdpMaxQueuedRequests
+	 *            max number of queued PDP requests, strictly positive
+	 */
+	public void setPdpMaxQueuedRequests(final int pdpMaxQueuedRequests)
+	{
+		this.pdpMaxQueuedRequests = pdpMaxQueuedRequests;
+	}
+
+	/**
+	 * @return max number of concurrent PAP policy updates/snapshots, 0 or less if unlimited
+	 * @see #setPapMaxConcurrentRequests(int)
+	 */
+	public int getPapMaxConcurrentRequests()
+	{
+		return papMaxConcurrentRequests;
+	}
+
+	/**
+	 * Sets the max number of concurrent PAP requests that update the policies or export/import a snapshot, so that they cannot take all the HTTP server threads from the PDP: the requests over the
+	 * limit are rejected at once with HTTP 503 (and a Retry-After header). If 0 or less (default), unlimited.
+	 *
+	 * @param papMaxConcurrentRequests
+	 *            max number of concurrent PAP requests
+	 */
+	public void setPapMaxConcurrentRequests(final int papMaxConcurrentRequests)
+	{
+		this.papMaxConcurrentRequests = papMaxConcurrentRequests;
+	}
+
+}
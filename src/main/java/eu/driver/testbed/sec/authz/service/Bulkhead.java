@@ -0,0 +1,104 @@
+/**
+ * Copyright (C) 2018-2019 THALES.
+ *
+ * This file is part of AuthzForce CE.
+ *
+ * AuthzForce CE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * AuthzForce CE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with AuthzForce CE.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.driver.testbed.sec.authz.service;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.ws.rs.ServiceUnavailableException;
+
+import org.json.JSONObject;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Bulkhead limiting the number of concurrent requests of a given kind (e.g. PAP policy updates), so that they cannot take all the threads of the HTTP server: the requests over the limit are
+ * rejected at once with HTTP 503 Service Unavailable (and Retry-After header), instead of waiting.
+ */
+final class Bulkhead
+{
+	/**
+	 * Permit to run a request, released on close
+	 */
+	interface Permit extends AutoCloseable
+	{
+		@Override
+		void close();
+	}
+
+	/*
+	 * Delay (seconds) after which a rejected request may be retried (Retry-After header)
+	 */
+	private static final long RETRY_AFTER_SECONDS = 1;
+
+	private final String name;
+	private final int maxConcurrentRequests;
+	private final Semaphore permits;
+	private final LongAdder rejectedRequestCount = new LongAdder();
+
+	/**
+	 * Creates the bulkhead
+	 *
+	 * @param name
+	 *            kind of requests (for error messages)
+	 * @param maxConcurrentRequests
+	 *            max number of concurrent requests
+	 * @throws IllegalArgumentException
+	 *             {@code maxConcurrentRequests <= 0}
+	 */
+	Bulkhead(final String name, final int maxConcurrentRequests) throws IllegalArgumentException
+	{
+		Preconditions.checkArgument(maxConcurrentRequests > 0, "Invalid max number of concurrent %s requests: %s (expected > 0)", name, maxConcurrentRequests);
+		this.name = name;
+		this.maxConcurrentRequests = maxConcurrentRequests;
+		this.permits = new Semaphore(maxConcurrentRequests);
+	}
+
+	/**
+	 * Gets a permit to run a request, to be closed when the request is done
+	 *
+	 * @return permit
+	 * @throws ServiceUnavailableException
+	 *             max number of concurrent requests reached
+	 */
+	Permit enter() throws ServiceUnavailableException
+	{
+		if (!permits.tryAcquire())
+		{
+			rejectedRequestCount.increment();
+			throw new ServiceUnavailableException("Too many concurrent " + name + " requests (max: " + maxConcurrentRequests + "). Try again later.", RETRY_AFTER_SECONDS);
+		}
+
+		return permits::release;
+	}
+
+	/**
+	 * Get bulkhead statistics
+	 *
+	 * @return statistics as JSON object: max and current number of concurrent requests, number of rejected requests
+	 */
+	JSONObject getStats()
+	{
+		final JSONObject stats = new JSONObject();
+		stats.put("maxConcurrentRequests", maxConcurrentRequests);
+		stats.put("concurrentRequests", maxConcurrentRequests - permits.availablePermits());
+		stats.put("rejectedRequestCount", rejectedRequestCount.sum());
+		return stats;
+	}
+}
@@ -0,0 +1,382 @@
+/**
+ * Copyright (C) 2018-2019 THALES.
+ *
+ * This file is part of AuthzForce CE.
+ *
+ * AuthzForce CE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * AuthzForce CE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with AuthzForce CE.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.driver.testbed.sec.authz.service;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.ow2.authzforce.core.pdp.api.policy.PolicyVersion;
+
+import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+
+/**
+ * {@link PrpDao} decorator with a bounded read-through cache of the latest version content of policies (parsed JSON), per policy ID and content type.
+ * <p>
+ * Entries are invalidated by {@link #addPolicyVersion(Transaction, String, String, JSONObject, Optional)} and {@link #deletePolicy(Transaction, String)}, and again at the end (commit or
+ * rollback) of the transaction, since reads may or may not see uncommitted changes depending on the underlying DAO. A content loaded while any policy is modified is not cached, so that an outdated
+ * content never replaces an invalidated entry.
+ * <p>
+ * The cached JSON objects are never handed out: callers get deep copies, which they may modify.
+ */
+final class CachingPrpDao implements PrpDao
+{
+	private static final class Key
+	{
+		private final String policyId;
+		private final Optional<String> customPolicyContentTypeId;
+		private transient volatile int hashCode = 0;
+
+		private Key(final String policyId, final Optional<String> customPolicyContentTypeId)
+		{
+			this.policyId = policyId;
+			this.customPolicyContentTypeId = customPolicyContentTypeId;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			if (hashCode == 0)
+			{
+				hashCode = Objects.hash(policyId, customPolicyContentTypeId);
+			}
+
+			return hashCode;
+		}
+
+		@Override
+		public boolean equals(final Object obj)
+		{
+			if (this == obj)
+			{
+				return true;
+			}
+
+			if (!(obj instanceof Key))
+			{
+				return false;
+			}
+
+			final Key other = (Key) obj;
+			return policyId.equals(other.policyId) && customPolicyContentTypeId.equals(other.customPolicyContentTypeId);
+		}
+	}
+
+	private static final class CachedContent
+	{
+		private final JSONObject json;
+		/*
+		 * Length of the serialized JSON, i.e. approximately the size of the stored content in bytes
+		 */
+		private final int weight;
+
+		private CachedContent(final JSONObject json)
+		{
+			this.json = json;
+			this.weight = json.toString().length();
+		}
+	}
+
+	private final class TransactionImpl implements Transaction
+	{
+		private final Transaction delegateTx;
+		/*
+		 * Policies modified in the transaction, to be invalidated (again) when the transaction ends
+		 */
+		private final Set<String> modifiedPolicyIds = new HashSet<>();
+
+		private TransactionImpl(final Transaction delegateTx)
+		{
+			this.delegateTx = delegateTx;
+		}
+
+		@Override
+		public void commit()
+		{
+			delegateTx.commit();
+			/*
+			 * The previous content may have been cached until now, whereas the new one is read right after commit (e.g. PDP reload)
+			 */
+			modifiedPolicyIds.forEach(CachingPrpDao.this::invalidate);
+		}
+
+		@Override
+		public void close() throws Exception
+		{
+			try
+			{
+				delegateTx.close();
+			}
+			finally
+			{
+				/*
+				 * Rolled back: the uncommitted content may have been cached; or committed: the previous content may have been cached (uncommitted changes not visible, e.g. MVStore)
+				 */
+				modifiedPolicyIds.forEach(CachingPrpDao.this::invalidate);
+			}
+		}
+	}
+
+	private static Object deepCopy(final Object json)
+	{
+		if (json instanceof JSONObject)
+		{
+			final JSONObject jsonObject = (JSONObject) json;
+			final JSONObject copy = new JSONObject();
+			for (final String key : jsonObject.keySet())
+			{
+				copy.put(key, deepCopy(jsonObject.get(key)));
+			}
+
+			return copy;
+		}
+
+		if (json instanceof JSONArray)
+		{
+			final JSONArray jsonArray = (JSONArray) json;
+			final JSONArray copy = new JSONArray();
+			for (final Object item : jsonArray)
+			{
+				copy.put(deepCopy(item));
+			}
+
+			return copy;
+		}
+
+		/*
+		 * Immutable: String, Number, Boolean, JSONObject.NULL
+		 */
+		return json;
+	}
+
+	private final PrpDao delegate;
+	private final Cache<Key, CachedContent> cache;
+	/*
+	 * Number of modifications (invalidations) so far; a content loaded from the delegate is cached only if this did not change in the meantime. Updated and checked in synchronized blocks (on the
+	 * cache).
+	 */
+	private long modificationCount = 0;
+
+	/**
+	 * Creates the cache
+	 *
+	 * @param delegate
+	 *            underlying DAO
+	 * @param maxWeightBytes
+	 *            max total size of the cached policies (size of the JSON content in bytes, approximately)
+	 * @throws IllegalArgumentException
+	 *             {@code delegate} is null or {@code maxWeightBytes} is not strictly positive
+	 */
+	CachingPrpDao(final PrpDao delegate, final long maxWeightBytes) throws IllegalArgumentException
+	{
+		Preconditions.checkArgument(delegate != null, "Undefined PRP DAO");
+		Preconditions.checkArgument(maxWeightBytes > 0, "Invalid policy content cache max weight: %s (expected > 0)", maxWeightBytes);
+		this.delegate = delegate;
+		this.cache = CacheBuilder.newBuilder().maximumWeight(maxWeightBytes).<Key, CachedContent>weigher((key, value) -> value.weight).recordStats().build();
+	}
+
+	private void invalidate(final String policyId)
+	{
+		synchronized (cache)
+		{
+			modificationCount++;
+			cache.asMap().keySet().removeIf(key -> key.policyId.equals(policyId));
+		}
+	}
+
+	@Override
+	public Transaction newTx()
+	{
+		return new TransactionImpl(delegate.newTx());
+	}
+
+	@Override
+	public void addPolicyVersion(final Transaction tx, final String policyId, final String policyVersion, final JSONObject policyContent, final Optional<String> customPolicyContentTypeId)
+	{
+		assert tx != null && policyId != null;
+		final TransactionImpl txImpl = (TransactionImpl) tx;
+		txImpl.modifiedPolicyIds.add(policyId);
+		try
+		{
+			delegate.addPolicyVersion(txImpl.delegateTx, policyId, policyVersion, policyContent, customPolicyContentTypeId);
+		}
+		finally
+		{
+			invalidate(policyId);
+		}
+	}
+
+	@Override
+	public Optional<PolicyVersion> getLatestPolicyVersion(final String policyId)
+	{
+		return delegate.getLatestPolicyVersion(policyId);
+	}
+
+	@Override
+	public Optional<JSONObject> getPolicy(final String policyId, final Optional<PolicyVersion> policyVersion)
+	{
+		return delegate.getPolicy(policyId, policyVersion);
+	}
+
+	@Override
+	public Optional<JSONObject> getLatestPolicyVersionContent(final String policyId, final Optional<String> customPolicyContentTypeId)
+	{
+		assert policyId != null && customPolicyContentTypeId != null;
+		final Key key = new Key(policyId, customPolicyContentTypeId);
+		final CachedContent cachedContent = cache.getIfPresent(key);
+		if (cachedContent != null)
+		{
+			return Optional.of((JSONObject) deepCopy(cachedContent.json));
+		}
+
+		final long modificationCountBeforeLoad;
+		synchronized (cache)
+		{
+			modificationCountBeforeLoad = modificationCount;
+		}
+
+		final Optional<JSONObject> content = delegate.getLatestPolicyVersionContent(policyId, customPolicyContentTypeId);
+		if (!content.isPresent())
+		{
+			return content;
+		}
+
+		final JSONObject json = content.get();
+		final CachedContent newCachedContent = new CachedContent((JSONObject) deepCopy(json));
+		synchronized (cache)
+		{
+			if (modificationCount == modificationCountBeforeLoad)
+			{
+				cache.put(key, newCachedContent);
+			}
+		}
+
+		return content;
+	}
+
+	@Override
+	public Optional<StoredPolicyContent> getLatestPolicyVersionStoredContent(final String policyId, final Optional<String> customPolicyContentTypeId)
+	{
+		return delegate.getLatestPolicyVersionStoredContent(policyId, customPolicyContentTypeId);
+	}
+
+	@Override
+	public List<String> getChildPolicyIds(final String parentPolicyId)
+	{
+		return delegate.getChildPolicyIds(parentPolicyId);
+	}
+
+	@Override
+	public Optional<JSONObject> getLatestEffectivePolicyVersionContent(final String policyId)
+	{
+		final Optional<JSONObject> wrappedXacmlJsonPolicy = getLatestPolicyVersionContent(policyId, Optional.empty());
+		if (!wrappedXacmlJsonPolicy.isPresent())
+		{
+			return wrappedXacmlJsonPolicy;
+		}
+
+		return Optional.of(PdpInputPolicyConverter.addChildPolicyRefs(wrappedXacmlJsonPolicy.get(), getChildPolicyIds(policyId)));
+	}
+
+	@Override
+	public void deletePolicy(final Transaction tx, final String policyId)
+	{
+		assert tx != null && policyId != null;
+		final TransactionImpl txImpl = (TransactionImpl) tx;
+		txImpl.modifiedPolicyIds.add(policyId);
+		try
+		{
+			delegate.deletePolicy(txImpl.delegateTx, policyId);
+		}
+		finally
+		{
+			invalidate(policyId);
+		}
+	}
+
+	@Override
+	public List<String> getPolicyIds()
+	{
+		return delegate.getPolicyIds();
+	}
+
+	@Override
+	public int removeOldPolicyVersions(final Transaction tx, final String policyId, final int minVersionCount, final long minCreationTime)
+	{
+		/*
+		 * The latest version (the only one cached) is never removed
+		 */
+		return delegate.removeOldPolicyVersions(((TransactionImpl) tx).delegateTx, policyId, minVersionCount, minCreationTime);
+	}
+
+	@Override
+	public void forEachStoredPolicyVersion(final boolean latestOnly, final StoredPolicyVersionConsumer consumer)
+	{
+		delegate.forEachStoredPolicyVersion(latestOnly, consumer);
+	}
+
+	@Override
+	public List<String> getLatestPdpInputPolicyLocations()
+	{
+		return delegate.getLatestPdpInputPolicyLocations();
+	}
+
+	@Override
+	public List<String> getLatestPdpInputPolicyLocations(final Transaction tx)
+	{
+		return delegate.getLatestPdpInputPolicyLocations(((TransactionImpl) tx).delegateTx);
+	}
+
+	@Override
+	public PdpPolicyStore getPdpPolicyStore(final Transaction tx)
+	{
+		return delegate.getPdpPolicyStore(((TransactionImpl) tx).delegateTx);
+	}
+
+	@Override
+	public void close()
+	{
+		delegate.close();
+	}
+
+	/**
+	 * Get cache statistics
+	 *
+	 * @return cache statistics as JSON object: hit/miss counts, eviction count, current size (number of entries) and weight (bytes)
+	 */
+	JSONObject getStats()
+	{
+		final CacheStats stats = cache.stats();
+		final JSONObject statsJson = new JSONObject();
+		statsJson.put("hitCount", stats.hitCount());
+		statsJson.put("missCount", stats.missCount());
+		statsJson.put("hitRate", stats.hitRate());
+		statsJson.put("evictionCount", stats.evictionCount());
+		statsJson.put("size", cache.size());
+		statsJson.put("weight", cache.asMap().values().stream().mapToLong(cachedContent -> cachedContent.weight).sum());
+		return statsJson;
+	}
+}
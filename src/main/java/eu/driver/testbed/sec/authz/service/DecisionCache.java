@@ -0,0 +1,149 @@
+/**
+ * Copyright (C) 2018-2019 THALES.
+ *
+ * This file is part of AuthzForce CE.
+ *
+ * AuthzForce CE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * AuthzForce CE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with AuthzForce CE.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.driver.testbed.sec.authz.service;
+
+import java.util.Objects;
+import java.util.function.Supplier;
+
+import org.json.JSONObject;
+
+import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+
+/**
+ * Bounded cache of XACML/JSON Responses (decisions) from the PDP, keyed by PDP engine generation and normalized XACML/JSON Request. Since the key includes the generation of the PDP engine
+ * ({@link PdpEngineSnapshot#getGeneration()}), a cached decision is never returned for a PDP engine other than the one it was computed by, even if the cache is not flushed yet when the engine is
+ * swapped.
+ */
+final class DecisionCache
+{
+	/**
+	 * Key of a decision: PDP engine generation and normalized request (also used by {@link DecisionCoalescer})
+	 */
+	static final class Key
+	{
+		private final long pdpGeneration;
+		private final DecisionRequestKey request;
+		private transient volatile int hashCode = 0;
+
+		Key(final long pdpGeneration, final DecisionRequestKey request)
+		{
+			this.pdpGeneration = pdpGeneration;
+			this.request = request;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			if (hashCode == 0)
+			{
+				hashCode = Objects.hash(pdpGeneration, request);
+			}
+
+			return hashCode;
+		}
+
+		@Override
+		public boolean equals(final Object obj)
+		{
+			if (this == obj)
+			{
+				return true;
+			}
+
+			if (!(obj instanceof Key))
+			{
+				return false;
+			}
+
+			final Key other = (Key) obj;
+			return pdpGeneration == other.pdpGeneration && request.equals(other.request);
+		}
+	}
+
+	private final Cache<Key, JSONObject> cache;
+
+	/**
+	 * Creates the cache
+	 *
+	 * @param cacheSpec
+	 *            cache specification in Guava's {@link com.google.common.cache.CacheBuilderSpec} syntax, e.g. {@code maximumSize=10000,expireAfterWrite=60s}
+	 * @throws IllegalArgumentException
+	 *             invalid {@code cacheSpec}
+	 */
+	DecisionCache(final String cacheSpec) throws IllegalArgumentException
+	{
+		Preconditions.checkArgument(cacheSpec != null && !cacheSpec.isEmpty(), "Undefined decision cache specification");
+		this.cache = CacheBuilder.from(cacheSpec).recordStats().build();
+	}
+
+	/**
+	 * Gets the decision for a normalized request from the cache if any, else evaluates the request and caches the result
+	 *
+	 * @param pdp
+	 *            PDP engine
+	 * @param requestKey
+	 *            normalized XACML/JSON Request
+	 * @param evaluator
+	 *            evaluates the request with {@code pdp} if the decision is not cached
+	 * @return XACML/JSON Response
+	 */
+	JSONObject evaluate(final PdpEngineSnapshot pdp, final DecisionRequestKey requestKey, final Supplier<JSONObject> evaluator)
+	{
+		assert pdp != null && requestKey != null && evaluator != null;
+
+		final Key key = new Key(pdp.getGeneration(), requestKey);
+		final JSONObject cachedResponse = cache.getIfPresent(key);
+		if (cachedResponse != null)
+		{
+			return cachedResponse;
+		}
+
+		final JSONObject response = evaluator.get();
+		cache.put(key, response);
+		return response;
+	}
+
+	/**
+	 * Discards all cached decisions, e.g. when the PDP engine has been reloaded (decisions of previous PDP generations cannot be used anymore)
+	 */
+	void invalidateAll()
+	{
+		cache.invalidateAll();
+	}
+
+	/**
+	 * Get cache statistics
+	 *
+	 * @return cache statistics as JSON object: hit/miss counts, eviction count and current size
+	 */
+	JSONObject getStats()
+	{
+		final CacheStats stats = cache.stats();
+		final JSONObject statsJson = new JSONObject();
+		statsJson.put("hitCount", stats.hitCount());
+		statsJson.put("missCount", stats.missCount());
+		statsJson.put("hitRate", stats.hitRate());
+		statsJson.put("evictionCount", stats.evictionCount());
+		statsJson.put("size", cache.size());
+		return statsJson;
+	}
+}
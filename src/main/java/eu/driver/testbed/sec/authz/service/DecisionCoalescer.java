@@ -0,0 +1,111 @@
+/**
+ * Copyright (C) 2018-2019 THALES.
+ *
+ * This file is part of AuthzForce CE.
+ *
+ * AuthzForce CE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * AuthzForce CE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with AuthzForce CE.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.driver.testbed.sec.authz.service;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import org.json.JSONObject;
+
+/**
+ * Coalescing of identical concurrent decision requests (single flight): while a request is being evaluated, the same requests (same normalized XACML/JSON Request) for the same PDP engine wait for
+ * the result of this evaluation instead of being evaluated again, e.g. when all the members of a Kafka consumer group ask for the same permission at once. Like the {@link DecisionCache}, the
+ * evaluations are keyed by PDP engine generation and normalized request, so a request never gets the decision of a PDP engine other than the one it was given (the current one when it arrived).
+ */
+final class DecisionCoalescer
+{
+	private final ConcurrentMap<DecisionCache.Key, CompletableFuture<JSONObject>> evaluationsInProgress = new ConcurrentHashMap<>();
+	private final LongAdder coalescedRequestCount = new LongAdder();
+
+	/**
+	 * Evaluates a normalized request, unless the same request is being evaluated by the same PDP engine already, in which case the result of this evaluation is returned
+	 *
+	 * @param pdp
+	 *            PDP engine
+	 * @param requestKey
+	 *            normalized XACML/JSON Request
+	 * @param evaluator
+	 *            evaluates the request with {@code pdp}, if no evaluation of the same request in progress
+	 * @return XACML/JSON Response
+	 */
+	JSONObject evaluate(final PdpEngineSnapshot pdp, final DecisionRequestKey requestKey, final Supplier<JSONObject> evaluator)
+	{
+		assert pdp != null && requestKey != null && evaluator != null;
+
+		final DecisionCache.Key key = new DecisionCache.Key(pdp.getGeneration(), requestKey);
+		final CompletableFuture<JSONObject> newEvaluation = new CompletableFuture<>();
+		final CompletableFuture<JSONObject> evaluationInProgress = evaluationsInProgress.putIfAbsent(key, newEvaluation);
+		if (evaluationInProgress != null)
+		{
+			coalescedRequestCount.increment();
+			try
+			{
+				return evaluationInProgress.join();
+			}
+			catch (final CompletionException e)
+			{
+				/*
+				 * Same error as the evaluating thread
+				 */
+				if (e.getCause() instanceof RuntimeException)
+				{
+					throw (RuntimeException) e.getCause();
+				}
+
+				throw e;
+			}
+		}
+
+		try
+		{
+			final JSONObject response = evaluator.get();
+			newEvaluation.complete(response);
+			return response;
+		}
+		catch (final RuntimeException | Error e)
+		{
+			newEvaluation.completeExceptionally(e);
+			throw e;
+		}
+		finally
+		{
+			/*
+			 * The next identical requests are evaluated again (or found in the decision cache)
+			 */
+			evaluationsInProgress.remove(key, newEvaluation);
+		}
+	}
+
+	/**
+	 * Get coalescing statistics
+	 *
+	 * @return statistics as JSON object: number of coalesced requests (that got the result of another evaluation), number of evaluations in progress
+	 */
+	JSONObject getStats()
+	{
+		final JSONObject stats = new JSONObject();
+		stats.put("coalescedRequestCount", coalescedRequestCount.sum());
+		stats.put("evaluationsInProgress", evaluationsInProgress.size());
+		return stats;
+	}
+}
@@ -0,0 +1,283 @@
+/**
+ * Copyright (C) 2018-2019 THALES.
+ *
+ * This file is part of AuthzForce CE.
+ *
+ * AuthzForce CE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * AuthzForce CE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with AuthzForce CE.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.driver.testbed.sec.authz.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Normalized form of a XACML/JSON Request, i.e. independent from the order of categories and attributes in the request, and from JSON formatting. Two requests with the same key get the same
+ * decision from the same PDP engine.
+ */
+final class DecisionRequestKey
+{
+	/*
+	 * ASCII control characters used as separators. Every string field is JSON-quoted (see JSONObject#quote(String)), which escapes the control characters, so that a separator never occurs in a
+	 * field, i.e. two different requests never get the same key.
+	 */
+	private static final char FIELD_SEPARATOR = '\u001f';
+	private static final char ITEM_SEPARATOR = '\u001e';
+	private static final char GROUP_SEPARATOR = '\u001d';
+
+	private final String normalizedRequest;
+
+	private DecisionRequestKey(final String normalizedRequest)
+	{
+		this.normalizedRequest = normalizedRequest;
+	}
+
+	private static Optional<String> normalizeAttribute(final JSONObject attribute)
+	{
+		for (final String key : attribute.keySet())
+		{
+			switch (key)
+			{
+				case "AttributeId":
+				case "Value":
+				case "Issuer":
+				case "DataType":
+				case "IncludeInResult":
+					break;
+				default:
+					return Optional.empty();
+			}
+		}
+
+		/*
+		 * valueToString() quotes strings, so that string "true" is not confused with boolean true (the datatype may be inferred from the JSON type)
+		 */
+		final Object value = attribute.opt("Value");
+		final List<String> encodedValues = new ArrayList<>();
+		if (value instanceof JSONArray)
+		{
+			for (final Object item : (JSONArray) value)
+			{
+				encodedValues.add(JSONObject.valueToString(item));
+			}
+		}
+		else
+		{
+			encodedValues.add(JSONObject.valueToString(value));
+		}
+
+		return Optional.of(normalizeAttribute(attribute.optString("AttributeId"), attribute.optString("Issuer"), attribute.optString("DataType"), attribute.optBoolean("IncludeInResult"),
+		        encodedValues, value instanceof JSONArray));
+	}
+
+	/**
+	 * Computes the normalized form of a XACML/JSON attribute
+	 *
+	 * @param attributeId
+	 *            AttributeId
+	 * @param issuer
+	 *            Issuer, empty if none
+	 * @param dataType
+	 *            DataType, empty if none
+	 * @param includeInResult
+	 *            IncludeInResult
+	 * @param encodedValues
+	 *            values as JSON text (quoted strings), e.g. from {@link JSONObject#valueToString(Object)}
+	 * @param isValueArray
+	 *            true iff the Value is a JSON array
+	 * @return normalized attribute
+	 */
+	private static String normalizeAttribute(final String attributeId, final String issuer, final String dataType, final boolean includeInResult, final List<String> encodedValues,
+	        final boolean isValueArray)
+	{
+		final StringBuilder sb = new StringBuilder(JSONObject.quote(attributeId)).append(FIELD_SEPARATOR).append(JSONObject.quote(issuer)).append(FIELD_SEPARATOR).append(JSONObject.quote(dataType))
+		        .append(FIELD_SEPARATOR).append(includeInResult).append(FIELD_SEPARATOR);
+		if (isValueArray)
+		{
+			encodedValues.forEach(value -> sb.append(value).append(ITEM_SEPARATOR));
+		}
+		else
+		{
+			encodedValues.forEach(sb::append);
+		}
+
+		return sb.toString();
+	}
+
+	private static Optional<String> normalizeCategory(final JSONObject category)
+	{
+		for (final String key : category.keySet())
+		{
+			/*
+			 * Categories with Content (XML) or Id (used in MultiRequests) are not supported
+			 */
+			if (!key.equals("CategoryId") && !key.equals("Attribute"))
+			{
+				return Optional.empty();
+			}
+		}
+
+		final JSONArray attributes = category.optJSONArray("Attribute");
+		final List<String> normalizedAttributes = new ArrayList<>(attributes == null ? 0 : attributes.length());
+		if (attributes != null)
+		{
+			for (final Object attribute : attributes)
+			{
+				if (!(attribute instanceof JSONObject))
+				{
+					return Optional.empty();
+				}
+
+				final Optional<String> normalizedAttribute = normalizeAttribute((JSONObject) attribute);
+				if (!normalizedAttribute.isPresent())
+				{
+					return Optional.empty();
+				}
+
+				normalizedAttributes.add(normalizedAttribute.get());
+			}
+		}
+
+		return Optional.of(normalizeCategory(category.optString("CategoryId"), normalizedAttributes));
+	}
+
+	/**
+	 * Computes the normalized form of a XACML/JSON category
+	 *
+	 * @param categoryId
+	 *            CategoryId
+	 * @param normalizedAttributes
+	 *            normalized attributes (see {@link #normalizeAttribute(String, String, String, boolean, List, boolean)}), sorted by this method
+	 * @return normalized category
+	 */
+	private static String normalizeCategory(final String categoryId, final List<String> normalizedAttributes)
+	{
+		Collections.sort(normalizedAttributes);
+		final StringBuilder sb = new StringBuilder(JSONObject.quote(categoryId)).append(GROUP_SEPARATOR);
+		normalizedAttributes.forEach(attribute -> sb.append(attribute).append(GROUP_SEPARATOR));
+		return sb.toString();
+	}
+
+	/**
+	 * Computes the normalized form of a XACML/JSON Request
+	 *
+	 * @param xacmlJsonRequest
+	 *            XACML/JSON Request (assumed valid against the XACML/JSON Request schema)
+	 * @return normalized request, or {@link Optional#empty()} if the request uses features that are not supported by the normalization (MultiRequests, XML Content, etc.), in which case the
+	 *         request must not be cached
+	 */
+	static Optional<DecisionRequestKey> of(final JSONObject xacmlJsonRequest)
+	{
+		assert xacmlJsonRequest != null;
+
+		final JSONObject request = xacmlJsonRequest.optJSONObject("Request");
+		if (request == null || xacmlJsonRequest.length() != 1)
+		{
+			return Optional.empty();
+		}
+
+		for (final String key : request.keySet())
+		{
+			switch (key)
+			{
+				case "ReturnPolicyIdList":
+				case "CombinedDecision":
+				case "XPathVersion":
+				case "Category":
+					break;
+				default:
+					return Optional.empty();
+			}
+		}
+
+		final JSONArray categories = request.optJSONArray("Category");
+		if (categories == null)
+		{
+			return Optional.empty();
+		}
+
+		final List<String> normalizedCategories = new ArrayList<>(categories.length());
+		for (final Object category : categories)
+		{
+			if (!(category instanceof JSONObject))
+			{
+				return Optional.empty();
+			}
+
+			final Optional<String> normalizedCategory = normalizeCategory((JSONObject) category);
+			if (!normalizedCategory.isPresent())
+			{
+				return Optional.empty();
+			}
+
+			normalizedCategories.add(normalizedCategory.get());
+		}
+
+		return Optional.of(of(request.optBoolean("ReturnPolicyIdList"), request.optBoolean("CombinedDecision"), request.optString("XPathVersion"), normalizedCategories));
+	}
+
+	/**
+	 * Computes the normalized form of a XACML/JSON Request from its parts
+	 *
+	 * @param returnPolicyIdList
+	 *            ReturnPolicyIdList
+	 * @param combinedDecision
+	 *            CombinedDecision
+	 * @param xpathVersion
+	 *            XPathVersion, empty if none
+	 * @param normalizedCategories
+	 *            normalized categories (see {@link #normalizeCategory(String, List)}), sorted by this method
+	 * @return normalized request
+	 */
+	private static DecisionRequestKey of(final boolean returnPolicyIdList, final boolean combinedDecision, final String xpathVersion, final List<String> normalizedCategories)
+	{
+		Collections.sort(normalizedCategories);
+		final StringBuilder sb = new StringBuilder().append(returnPolicyIdList).append(FIELD_SEPARATOR).append(combinedDecision).append(FIELD_SEPARATOR).append(JSONObject.quote(xpathVersion))
+		        .append(FIELD_SEPARATOR);
+		normalizedCategories.forEach(category -> sb.append(category).append(ITEM_SEPARATOR));
+		return new DecisionRequestKey(sb.toString());
+	}
+
+	@Override
+	public int hashCode()
+	{
+		return normalizedRequest.hashCode();
+	}
+
+	@Override
+	public boolean equals(final Object obj)
+	{
+		if (this == obj)
+		{
+			return true;
+		}
+
+		if (!(obj instanceof DecisionRequestKey))
+		{
+			return false;
+		}
+
+		return normalizedRequest.equals(((DecisionRequestKey) obj).normalizedRequest);
+	}
+
+	@Override
+	public String toString()
+	{
+		return normalizedRequest;
+	}
+}
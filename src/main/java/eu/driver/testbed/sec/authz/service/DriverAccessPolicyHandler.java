@@ -26,8 +26,10 @@ import java.io.StringWriter;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 
 import org.everit.json.schema.Schema;
 import org.everit.json.schema.loader.SchemaLoader;
@@ -64,18 +66,25 @@ public final class DriverAccessPolicyHandler
 		 */
 		private final Map<String, Object> subjectMatches = Maps.newHashMapWithExpectedSize(SUBJECT_MATCH_ATT_IDENTIFIERS.size());
 
+		/**
+		 * Values of the subject attributes as matched in the XACML policy (any of them): same as {@link #subjectMatches} except subject.id, in LDAP order and X.500 order (reverse), or in canonical form
+		 * if subject-id canonicalization is enabled (see {@link X500NameCanonicalizer})
+		 */
+		private final Map<String, List<String>> subjectMatchValues = Maps.newHashMapWithExpectedSize(SUBJECT_MATCH_ATT_IDENTIFIERS.size());
+
 		/**
 		 * Permitted actions
 		 */
 		private final List<Object> permissions;
 
-		private DriverAccessRule(final JSONObject schemaValidJsonRuleJsonObject)
+		private DriverAccessRule(final JSONObject schemaValidJsonRuleJsonObject, final X500NameCanonicalizer subjectIdCanonicalizer)
 		{
 			SUBJECT_MATCH_ATT_IDENTIFIERS.forEach(attId -> {
 				final String matchedVal = schemaValidJsonRuleJsonObject.optString(attId);
 				if (!matchedVal.isEmpty())
 				{
 					subjectMatches.put(attId, matchedVal);
+					subjectMatchValues.put(attId, attId.equals("subject.id") ? getSubjectIdMatchValues(matchedVal, subjectIdCanonicalizer) : Collections.singletonList(matchedVal));
 				}
 			});
 
@@ -90,6 +99,15 @@ public final class DriverAccessPolicyHandler
 			return subjectMatches;
 		}
 
+		/**
+		 * @return Values of the subject attributes as matched in the XACML policy (any of them), i.e. same as {@link #getSubjectMatches()} except subject.id, in LDAP order and X.500 order, or in
+		 *         canonical form
+		 */
+		public Map<String, List<String>> getSubjectMatchValues()
+		{
+			return subjectMatchValues;
+		}
+
 		/**
 		 * @return Permitted actions
 		 */
@@ -100,6 +118,28 @@ public final class DriverAccessPolicyHandler
 
 	}
 
+	/*
+	 * Values matching subject.id (certificate subject DN that may be in LDAP DN order or X.500 order): its canonical form if subjectIdCanonicalizer is defined, like the subject-id of the requests
+	 * (subject.id itself if not a valid X.500 name, the PDP rejects the policy); else subject.id in both orders.
+	 */
+	private static List<String> getSubjectIdMatchValues(final String subjectId, final X500NameCanonicalizer subjectIdCanonicalizer)
+	{
+		if (subjectIdCanonicalizer == null)
+		{
+			final String reverseOrderSubjectId = X500NameCanonicalizer.reverseRdns(subjectId);
+			return reverseOrderSubjectId.equals(subjectId) ? Collections.singletonList(subjectId) : Arrays.asList(subjectId, reverseOrderSubjectId);
+		}
+
+		try
+		{
+			return Collections.singletonList(subjectIdCanonicalizer.canonicalize(subjectId));
+		}
+		catch (final IllegalArgumentException e)
+		{
+			return Collections.singletonList(subjectId);
+		}
+	}
+
 	/**
 	 * Loads schema from Spring-handled resource
 	 * 
@@ -122,6 +162,187 @@ public final class DriverAccessPolicyHandler
 
 	}
 
+	/**
+	 * Gets the access rules of a DRIVER access policy
+	 * 
+	 * @param schemaValidDriverAccessPolicy
+	 *            Driver access policy assumed valid.
+	 * @return access rules, in the same order as in the policy
+	 */
+	public static List<DriverAccessRule> getDriverAccessRules(final JSONObject schemaValidDriverAccessPolicy)
+	{
+		return getDriverAccessRules(schemaValidDriverAccessPolicy, null);
+	}
+
+	/**
+	 * Gets the access rules of a DRIVER access policy, with subject.id matched in canonical form if subject-id canonicalization is enabled
+	 * 
+	 * @param schemaValidDriverAccessPolicy
+	 *            Driver access policy assumed valid.
+	 * @param subjectIdCanonicalizer
+	 *            canonicalizer of subject.id, null if subject-id canonicalization is disabled (subject.id matched in LDAP order and X.500 order)
+	 * @return access rules, in the same order as in the policy
+	 */
+	static List<DriverAccessRule> getDriverAccessRules(final JSONObject schemaValidDriverAccessPolicy, final X500NameCanonicalizer subjectIdCanonicalizer)
+	{
+		final JSONArray jsonRules = schemaValidDriverAccessPolicy.getJSONArray("rules");
+		final List<DriverAccessRule> driverAccessRules = new ArrayList<>(jsonRules.length());
+		for (final Object jsonRule : jsonRules)
+		{
+			if (jsonRule instanceof JSONObject)
+			{
+				final DriverAccessRule accessRule = new DriverAccessRule((JSONObject) jsonRule, subjectIdCanonicalizer);
+				driverAccessRules.add(accessRule);
+			}
+		}
+
+		return driverAccessRules;
+	}
+
+	private static final String FIRST_APPLICABLE_POLICY_COMBINING_ALG = "urn:oasis:names:tc:xacml:1.0:policy-combining-algorithm:first-applicable";
+	private static final String FIRST_APPLICABLE_RULE_COMBINING_ALG = "urn:oasis:names:tc:xacml:1.0:rule-combining-algorithm:first-applicable";
+	private static final String STRING_EQUAL_FUNCTION = "urn:oasis:names:tc:xacml:1.0:function:string-equal";
+	private static final String X500NAME_EQUAL_FUNCTION = "urn:oasis:names:tc:xacml:1.0:function:x500Name-equal";
+
+	private static JSONObject newXacmlJsonMatch(final String matchFunction, final String value, final String category, final String attributeId, final String dataType,
+	        final boolean mustBePresent)
+	{
+		final JSONObject attributeDesignator = new JSONObject();
+		attributeDesignator.put("category", category);
+		attributeDesignator.put("id", attributeId);
+		attributeDesignator.put("dataType", dataType);
+		attributeDesignator.put("mustBePresent", mustBePresent);
+
+		final JSONObject match = new JSONObject();
+		match.put("matchFunction", matchFunction);
+		match.put("value", value);
+		match.put("attributeDesignator", attributeDesignator);
+		return match;
+	}
+
+	private static JSONArray newXacmlJsonAllOf(final JSONObject match)
+	{
+		return new JSONArray(Collections.singletonList(match));
+	}
+
+	/*
+	 * Target with a single AnyOf/AllOf/Match
+	 */
+	private static JSONArray newXacmlJsonTarget(final JSONObject match)
+	{
+		return new JSONArray(Collections.singletonList(new JSONArray(Collections.singletonList(newXacmlJsonAllOf(match)))));
+	}
+
+	/*
+	 * AnyOf matching the subject attribute of a DRIVER access rule
+	 */
+	private static JSONArray newXacmlJsonSubjectAnyOf(final String attributeId, final List<String> attributeValues)
+	{
+		final JSONArray anyOf = new JSONArray();
+		for (final String attributeValue : attributeValues)
+		{
+			switch (attributeId)
+			{
+				case "subject.id":
+					/*
+					 * subject.id is a certificate subject DN that may be in LDAP DN order or X.500 order (reverse): attributeValues are both orders, or the canonical form like the subject-id
+					 * of the requests (see X500NameCanonicalizer).
+					 */
+					anyOf.put(newXacmlJsonAllOf(newXacmlJsonMatch(X500NAME_EQUAL_FUNCTION, attributeValue, DriverPolicyIndex.ACCESS_SUBJECT_CATEGORY, DriverPolicyIndex.SUBJECT_ID,
+					        DriverPolicyIndex.X500NAME_DATATYPE, false)));
+					break;
+				case "subject.group":
+					anyOf.put(newXacmlJsonAllOf(newXacmlJsonMatch(STRING_EQUAL_FUNCTION, attributeValue, DriverPolicyIndex.ACCESS_SUBJECT_CATEGORY, DriverPolicyIndex.GROUP_ID,
+					        DriverPolicyIndex.STRING_DATATYPE, false)));
+					break;
+				default:
+					anyOf.put(newXacmlJsonAllOf(
+					        newXacmlJsonMatch(STRING_EQUAL_FUNCTION, attributeValue, DriverPolicyIndex.ACCESS_SUBJECT_CATEGORY, attributeId, DriverPolicyIndex.STRING_DATATYPE, false)));
+			}
+		}
+
+		return anyOf;
+	}
+
+	/**
+	 * Compiles Driver access policy directly to XACML/JSON format, i.e. without the FreeMarker template, JSON parsing and schema validation of the template output. The result is the same as
+	 * {@link #toXacmlJsonPolicy(JSONObject, String, String, String, X500NameCanonicalizer)} with the default template (driver-to-xacml-json.ftl), and valid against the XACML/JSON policy schema by construction.
+	 * 
+	 * @param schemaValidDriverAccessPolicy
+	 *            Driver access policy assumed valid.
+	 * @param policyId
+	 *            policyId set in the resulting XACML/JSON policy
+	 * @param policyVersion
+	 *            policy Version set in the resulting XACML/JSON policy
+	 * @param targetValue
+	 *            policy's Match/AttributeValue set in the resulting XACML/JSON policy's Target (Target contains a single Match)
+	 * @param subjectIdCanonicalizer
+	 *            canonicalizer of subject.id, null if subject-id canonicalization is disabled (subject.id matched in LDAP order and X.500 order)
+	 * @return XACML/JSON policy
+	 */
+	static JSONObject compileXacmlJsonPolicy(final JSONObject schemaValidDriverAccessPolicy, final String policyId, final String policyVersion, final String targetValue,
+	        final X500NameCanonicalizer subjectIdCanonicalizer)
+	{
+		final List<DriverAccessRule> driverAccessRules = getDriverAccessRules(schemaValidDriverAccessPolicy, subjectIdCanonicalizer);
+		final JSONArray xacmlJsonRulePolicies = new JSONArray();
+		for (final DriverAccessRule driverAccessRule : driverAccessRules)
+		{
+			final JSONObject xacmlJsonRulePolicy = new JSONObject();
+			final Map<String, Object> subjectMatches = driverAccessRule.getSubjectMatches();
+			if (subjectMatches.isEmpty())
+			{
+				xacmlJsonRulePolicy.put("id", "ANY_SUBJECT");
+				xacmlJsonRulePolicy.put("version", "1.0");
+			}
+			else
+			{
+				final StringBuilder rulePolicyId = new StringBuilder();
+				final JSONArray subjectTarget = new JSONArray();
+				for (final Entry<String, Object> subjectMatch : subjectMatches.entrySet())
+				{
+					if (rulePolicyId.length() > 0)
+					{
+						rulePolicyId.append(" AND ");
+					}
+
+					rulePolicyId.append(subjectMatch.getKey()).append('=').append(subjectMatch.getValue());
+					subjectTarget.put(newXacmlJsonSubjectAnyOf(subjectMatch.getKey(), driverAccessRule.getSubjectMatchValues().get(subjectMatch.getKey())));
+				}
+
+				xacmlJsonRulePolicy.put("id", rulePolicyId.toString());
+				xacmlJsonRulePolicy.put("version", "1.0");
+				xacmlJsonRulePolicy.put("target", subjectTarget);
+			}
+
+			xacmlJsonRulePolicy.put("combiningAlgId", FIRST_APPLICABLE_RULE_COMBINING_ALG);
+			final JSONArray xacmlJsonRules = new JSONArray();
+			for (final Object driverPermission : driverAccessRule.getPermissions())
+			{
+				@SuppressWarnings("unchecked")
+				final Map<String, Object> driverPermissionMap = (Map<String, Object>) driverPermission;
+				final String action = driverPermissionMap.get("action").toString();
+				final JSONObject xacmlJsonRule = new JSONObject();
+				xacmlJsonRule.put("id", "action.id=" + action);
+				xacmlJsonRule.put("effect", Boolean.TRUE.equals(driverPermissionMap.get("allow")) ? "Permit" : "Deny");
+				xacmlJsonRule.put("target", newXacmlJsonTarget(newXacmlJsonMatch(STRING_EQUAL_FUNCTION, DriverPolicyIndex.KAFKA_OPERATIONS_BY_DRIVER_ACTION.getOrDefault(action, action),
+				        DriverPolicyIndex.ACTION_CATEGORY, DriverPolicyIndex.ACTION_ID, DriverPolicyIndex.STRING_DATATYPE, true)));
+				xacmlJsonRules.put(xacmlJsonRule);
+			}
+
+			xacmlJsonRulePolicy.put("rules", xacmlJsonRules);
+			xacmlJsonRulePolicies.put(new JSONObject(Collections.singletonMap("policy", xacmlJsonRulePolicy)));
+		}
+
+		final JSONObject xacmlJsonPolicy = new JSONObject();
+		xacmlJsonPolicy.put("id", policyId);
+		xacmlJsonPolicy.put("version", policyVersion);
+		xacmlJsonPolicy.put("target",
+		        newXacmlJsonTarget(newXacmlJsonMatch(STRING_EQUAL_FUNCTION, targetValue, DriverPolicyIndex.RESOURCE_CATEGORY, DriverPolicyIndex.RESOURCE_ID, DriverPolicyIndex.STRING_DATATYPE, true)));
+		xacmlJsonPolicy.put("combiningAlgId", FIRST_APPLICABLE_POLICY_COMBINING_ALG);
+		xacmlJsonPolicy.put("policies", xacmlJsonRulePolicies);
+		return xacmlJsonPolicy;
+	}
+
 	private static final Logger LOGGER = LoggerFactory.getLogger(DriverAccessPolicyHandler.class);
 
 	private final Template driverToXacmlJsonPolicyFtl;
@@ -183,6 +404,27 @@ public final class DriverAccessPolicyHandler
 	 * @return XACML/JSON policy
 	 */
 	public JSONObject toXacmlJsonPolicy(final JSONObject schemaValidDriverAccessPolicy, final String policyId, final String policyVersion, final String targetValue)
+	{
+		return toXacmlJsonPolicy(schemaValidDriverAccessPolicy, policyId, policyVersion, targetValue, null);
+	}
+
+	/**
+	 * Convert Driver access policy format to XACML/JSON format, with subject.id matched in canonical form if subject-id canonicalization is enabled
+	 * 
+	 * @param schemaValidDriverAccessPolicy
+	 *            Driver access policy assumed valid.
+	 * @param policyId
+	 *            policyId set in the resulting XACML/JSON policy
+	 * @param policyVersion
+	 *            policy Version set in the resulting XACML/JSON policy
+	 * @param targetValue
+	 *            policy's Match/AttributeValue set in the resulting XACML/JSON policy's Target (Target contains a single Match)
+	 * @param subjectIdCanonicalizer
+	 *            canonicalizer of subject.id, null if subject-id canonicalization is disabled (subject.id matched in LDAP order and X.500 order)
+	 * @return XACML/JSON policy
+	 */
+	JSONObject toXacmlJsonPolicy(final JSONObject schemaValidDriverAccessPolicy, final String policyId, final String policyVersion, final String targetValue,
+	        final X500NameCanonicalizer subjectIdCanonicalizer)
 	{
 		/*
 		 * driverAccessPolicy assumed valid against JSON schema
@@ -192,17 +434,7 @@ public final class DriverAccessPolicyHandler
 		 * { "rules": [ { "subject": "clientID1", "permissions": [ { "action": "PUBLISH", "allow": true }, { "action": "SUBSCRIBE", "allow": false } ] }, { "subject": "clientID2", "permissions": [ {
 		 * "action": "SUBSCRIBE", "allow": true } ] } ] }
 		 */
-		final JSONArray jsonRules = schemaValidDriverAccessPolicy.getJSONArray("rules");
-		final List<DriverAccessRule> driverAccessRules = new ArrayList<>(jsonRules.length());
-		for (final Object jsonRule : jsonRules)
-		{
-			if (jsonRule instanceof JSONObject)
-			{
-				final DriverAccessRule accessRule = new DriverAccessRule((JSONObject) jsonRule);
-				driverAccessRules.add(accessRule);
-			}
-		}
-
+		final List<DriverAccessRule> driverAccessRules = getDriverAccessRules(schemaValidDriverAccessPolicy, subjectIdCanonicalizer);
 		final Map<String, Object> root = ImmutableMap.of("id", policyId, "version", policyVersion, "targetValue", targetValue, "driverAccessRules", driverAccessRules);
 		final StringWriter out = new StringWriter();
 		LOGGER.debug("Generating XACML/JSON policy from DRIVER access rules using template with input: {}", root);
@@ -0,0 +1,870 @@
+/**
+ * Copyright (C) 2018-2019 THALES.
+ *
+ * This file is part of AuthzForce CE.
+ *
+ * AuthzForce CE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * AuthzForce CE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with AuthzForce CE.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.driver.testbed.sec.authz.service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Optional;
+import java.util.Set;
+import java.util.function.Function;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * Hash index of the DRIVER access policies (child policies of the resource-type-specific policies such as 'resource.type=TOPIC'), compiled from the policies in DRIVER format. It answers the
+ * authorization requests of the usual shape (subject-id/group-id, action-id, resource-type, resource-id) in constant time, instead of matching the request against every child policy of the
+ * resource-type-specific policy in turn.
+ * <p>
+ * The index gives an answer only when it is sure the PDP engine would give the same, i.e. only Permit decisions, and only if the structure of the root and resource-type-specific policies guarantees
+ * that a Permit from a DRIVER access policy is the final decision:
+ * <ul>
+ * <li>the root policy has no target and a permit-overrides-like combining algorithm (a Permit from any child is final), and no obligation/advice expressions (in any rule or inline policy);</li>
+ * <li>the resource-type-specific policy is referenced by the root policy, has the first-applicable combining algorithm, has a target on the resource-type only (if any), and no obligation/advice
+ * expressions;</li>
+ * <li>every other child of the resource-type-specific policy (not in DRIVER format) is an inline policy with Permit rules only, without condition or obligation/advice expressions, and cannot be
+ * Indeterminate because of a missing attribute.</li>
+ * </ul>
+ * In any other case (Deny, NotApplicable, other request shape, attributes of the policies given in another form such as shorthand category or datatype...), the request must be evaluated by the PDP
+ * engine. This assumes that the DRIVER access policies are converted to XACML with the default Driver-to-XACML/JSON template.
+ * <p>
+ * Immutable: updates return a new instance.
+ */
+final class DriverPolicyIndex
+{
+	private static final Logger LOGGER = LoggerFactory.getLogger(DriverPolicyIndex.class);
+
+	static final String ACCESS_SUBJECT_CATEGORY = "urn:oasis:names:tc:xacml:1.0:subject-category:access-subject";
+	static final String ACTION_CATEGORY = "urn:oasis:names:tc:xacml:3.0:attribute-category:action";
+	static final String RESOURCE_CATEGORY = "urn:oasis:names:tc:xacml:3.0:attribute-category:resource";
+	static final String SUBJECT_ID = "urn:oasis:names:tc:xacml:1.0:subject:subject-id";
+	static final String GROUP_ID = "urn:thalesgroup:xacml:group-id";
+	static final String ACTION_ID = "urn:oasis:names:tc:xacml:1.0:action:action-id";
+	static final String RESOURCE_TYPE = "urn:thalesgroup:xacml:resource:resource-type";
+	static final String RESOURCE_ID = "urn:oasis:names:tc:xacml:1.0:resource:resource-id";
+	static final String STRING_DATATYPE = "http://www.w3.org/2001/XMLSchema#string";
+	static final String X500NAME_DATATYPE = "urn:oasis:names:tc:xacml:1.0:data-type:x500Name";
+
+	private static final String STRING_EQUAL_FUNCTION = "urn:oasis:names:tc:xacml:1.0:function:string-equal";
+	private static final String FIRST_APPLICABLE_POLICY_COMBINING_ALG = "urn:oasis:names:tc:xacml:1.0:policy-combining-algorithm:first-applicable";
+
+	/*
+	 * Policy combining algorithms for which a Permit from any child policy is the final decision
+	 */
+	private static final Set<String> PERMIT_OVERRIDING_POLICY_COMBINING_ALGS = new HashSet<>(Arrays.asList("urn:oasis:names:tc:xacml:3.0:policy-combining-algorithm:deny-unless-permit",
+	        "urn:oasis:names:tc:xacml:3.0:policy-combining-algorithm:permit-overrides", "urn:oasis:names:tc:xacml:3.0:policy-combining-algorithm:ordered-permit-overrides",
+	        "urn:oasis:names:tc:xacml:1.0:policy-combining-algorithm:permit-overrides", "urn:oasis:names:tc:xacml:1.1:policy-combining-algorithm:ordered-permit-overrides"));
+
+	/*
+	 * Attributes (category, ID) that must be present in requests answered by the index, i.e. they cannot cause an Indeterminate result in other policies even with MustBePresent=true
+	 */
+	private static final Set<List<String>> REQUIRED_ATTRIBUTES = new HashSet<>(
+	        Arrays.asList(Arrays.asList(ACTION_CATEGORY, ACTION_ID), Arrays.asList(RESOURCE_CATEGORY, RESOURCE_TYPE), Arrays.asList(RESOURCE_CATEGORY, RESOURCE_ID)));
+
+	/*
+	 * Mapping of DRIVER-specific action IDs to Kafka operations, as in the Driver-to-XACML/JSON template (and DriverAccessPolicyHandler#compileXacmlJsonPolicy())
+	 */
+	static final Map<String, String> KAFKA_OPERATIONS_BY_DRIVER_ACTION = ImmutableMap.of("SUBSCRIBE", "READ", "PUBLISH", "WRITE");
+
+	/**
+	 * DRIVER access rule compiled for matching
+	 */
+	private static final class CompiledRule
+	{
+		/*
+		 * Rule position in the policy (first-applicable)
+		 */
+		private final int position;
+		/*
+		 * Canonical form of subject.id (see X500NameCanonicalizer), empty if undefined
+		 */
+		private final Optional<String> canonicalSubjectId;
+		private final Optional<String> subjectGroup;
+		/*
+		 * Effect of the first permission matching a given Kafka operation (true iff Permit)
+		 */
+		private final Map<String, Boolean> allowedByKafkaOperation;
+
+		private CompiledRule(final int position, final DriverAccessPolicyHandler.DriverAccessRule driverRule, final X500NameCanonicalizer x500NameCanonicalizer) throws IllegalArgumentException
+		{
+			this.position = position;
+			final Object subjectId = driverRule.getSubjectMatches().get("subject.id");
+			/*
+			 * subject.id may be in LDAP DN order or reverse order, both have the same canonical form
+			 */
+			this.canonicalSubjectId = subjectId == null ? Optional.empty() : Optional.of(x500NameCanonicalizer.canonicalize(subjectId.toString()));
+
+			final Object group = driverRule.getSubjectMatches().get("subject.group");
+			this.subjectGroup = group == null ? Optional.empty() : Optional.of(group.toString());
+
+			final Map<String, Boolean> mutableAllowedByKafkaOperation = new HashMap<>();
+			for (final Object permission : driverRule.getPermissions())
+			{
+				@SuppressWarnings("unchecked")
+				final Map<String, Object> permissionMap = (Map<String, Object>) permission;
+				final String action = permissionMap.get("action").toString();
+				mutableAllowedByKafkaOperation.putIfAbsent(KAFKA_OPERATIONS_BY_DRIVER_ACTION.getOrDefault(action, action), Boolean.TRUE.equals(permissionMap.get("allow")));
+			}
+
+			this.allowedByKafkaOperation = mutableAllowedByKafkaOperation;
+		}
+
+		private boolean matches(final Set<String> requestCanonicalSubjectIds, final Set<String> requestGroups)
+		{
+			if (canonicalSubjectId.isPresent() && !requestCanonicalSubjectIds.contains(canonicalSubjectId.get()))
+			{
+				return false;
+			}
+
+			return !subjectGroup.isPresent() || requestGroups.contains(subjectGroup.get());
+		}
+	}
+
+	/**
+	 * DRIVER access policy compiled to hash tables: subject (ID/group/any) to candidate rules
+	 */
+	private static final class CompiledPolicy
+	{
+		private final Map<String, List<CompiledRule>> rulesByCanonicalSubjectId = new HashMap<>();
+		private final Map<String, List<CompiledRule>> rulesBySubjectGroup = new HashMap<>();
+		private final List<CompiledRule> anySubjectRules = new ArrayList<>();
+
+		private CompiledPolicy(final List<DriverAccessPolicyHandler.DriverAccessRule> driverRules, final X500NameCanonicalizer x500NameCanonicalizer) throws IllegalArgumentException
+		{
+			int position = 0;
+			for (final DriverAccessPolicyHandler.DriverAccessRule driverRule : driverRules)
+			{
+				final CompiledRule rule = new CompiledRule(position, driverRule, x500NameCanonicalizer);
+				if (rule.canonicalSubjectId.isPresent())
+				{
+					rulesByCanonicalSubjectId.computeIfAbsent(rule.canonicalSubjectId.get(), k -> new ArrayList<>()).add(rule);
+				}
+				else if (rule.subjectGroup.isPresent())
+				{
+					rulesBySubjectGroup.computeIfAbsent(rule.subjectGroup.get(), k -> new ArrayList<>()).add(rule);
+				}
+				else
+				{
+					anySubjectRules.add(rule);
+				}
+
+				position++;
+			}
+		}
+
+		/*
+		 * Returns the effect of the first applicable rule (true iff Permit), empty if not applicable
+		 */
+		private Optional<Boolean> evaluate(final Set<String> requestCanonicalSubjectIds, final Set<String> requestGroups, final String kafkaOperation)
+		{
+			final List<CompiledRule> candidates = new ArrayList<>(anySubjectRules);
+			requestCanonicalSubjectIds.forEach(subjectId -> candidates.addAll(rulesByCanonicalSubjectId.getOrDefault(subjectId, Collections.emptyList())));
+			requestGroups.forEach(group -> candidates.addAll(rulesBySubjectGroup.getOrDefault(group, Collections.emptyList())));
+			CompiledRule firstApplicableRule = null;
+			for (final CompiledRule rule : candidates)
+			{
+				if ((firstApplicableRule == null || rule.position < firstApplicableRule.position) && rule.allowedByKafkaOperation.containsKey(kafkaOperation)
+				        && rule.matches(requestCanonicalSubjectIds, requestGroups))
+				{
+					firstApplicableRule = rule;
+				}
+			}
+
+			return firstApplicableRule == null ? Optional.empty() : Optional.of(firstApplicableRule.allowedByKafkaOperation.get(kafkaOperation));
+		}
+	}
+
+	/**
+	 * Index of the DRIVER access policies under a given resource-type-specific policy
+	 */
+	private static final class ParentPolicyIndex
+	{
+		/*
+		 * Value of resource-type in parent policy's target, empty if no target
+		 */
+		private final Optional<String> resourceType;
+		/*
+		 * Resource ID (child policy's target) -> child policies with this target by ID, in the same order as in the parent policy (first-applicable)
+		 */
+		private final Map<String, Map<String, CompiledPolicy>> childPoliciesByResourceId;
+
+		private ParentPolicyIndex(final Optional<String> resourceType, final Map<String, Map<String, CompiledPolicy>> childPoliciesByResourceId)
+		{
+			this.resourceType = resourceType;
+			this.childPoliciesByResourceId = childPoliciesByResourceId;
+		}
+	}
+
+	static final DriverPolicyIndex EMPTY = new DriverPolicyIndex(null, Collections.emptyMap());
+
+	/*
+	 * Canonicalizer of the subject DNs, whatever the subject-id canonicalization setting (the index matches subject.id in any order, like the policies), null iff EMPTY
+	 */
+	private final X500NameCanonicalizer x500NameCanonicalizer;
+	private final Map<String, ParentPolicyIndex> parentPolicyIndexesById;
+
+	private DriverPolicyIndex(final X500NameCanonicalizer x500NameCanonicalizer, final Map<String, ParentPolicyIndex> parentPolicyIndexesById)
+	{
+		this.x500NameCanonicalizer = x500NameCanonicalizer;
+		this.parentPolicyIndexesById = parentPolicyIndexesById;
+	}
+
+	/*
+	 * Keys of XACML/JSON policies and rules that cannot change the decision of a Permit-only policy. Any other key (e.g. condition, obligation/advice expressions, variable definitions, combiner
+	 * parameters) may make the policy Indeterminate or return more than a Permit, therefore the policy cannot be indexed.
+	 */
+	private static final Set<String> PERMIT_ONLY_POLICY_KEYS = new HashSet<>(Arrays.asList("id", "version", "description", "target", "combiningAlgId", "rules", "policies"));
+	private static final Set<String> PERMIT_ONLY_RULE_KEYS = new HashSet<>(Arrays.asList("id", "description", "effect", "target"));
+
+	/*
+	 * Checks that the policy cannot return anything else than Permit or NotApplicable (without obligation or advice), provided that attributes in REQUIRED_ATTRIBUTES are present
+	 */
+	private static boolean isPermitOnly(final JSONObject xacmlJsonPolicy)
+	{
+		if (!PERMIT_ONLY_POLICY_KEYS.containsAll(xacmlJsonPolicy.keySet()) || !hasOnlySafeAttributeDesignators(xacmlJsonPolicy.optJSONArray("target")))
+		{
+			return false;
+		}
+
+		final JSONArray rules = xacmlJsonPolicy.optJSONArray("rules");
+		if (rules != null)
+		{
+			for (final Object rule : rules)
+			{
+				if (!(rule instanceof JSONObject) || !PERMIT_ONLY_RULE_KEYS.containsAll(((JSONObject) rule).keySet()) || !"Permit".equals(((JSONObject) rule).optString("effect"))
+				        || !hasOnlySafeAttributeDesignators(((JSONObject) rule).optJSONArray("target")))
+				{
+					return false;
+				}
+			}
+		}
+
+		final JSONArray policies = xacmlJsonPolicy.optJSONArray("policies");
+		if (policies != null)
+		{
+			for (final Object policy : policies)
+			{
+				/*
+				 * Policy references cannot be checked here
+				 */
+				final JSONObject inlinePolicy = policy instanceof JSONObject ? ((JSONObject) policy).optJSONObject("policy") : null;
+				if (inlinePolicy == null || !isPermitOnly(inlinePolicy))
+				{
+					return false;
+				}
+			}
+		}
+
+		return true;
+	}
+
+	/*
+	 * Checks that neither the policy nor its rules and inline child policies have obligation/advice expressions (or any other key that is not in PERMIT_ONLY_POLICY_KEYS/PERMIT_ONLY_RULE_KEYS),
+	 * which would be added to a Permit from another policy
+	 */
+	private static boolean hasOnlyPermitOnlyKeys(final JSONObject xacmlJsonPolicy)
+	{
+		if (!PERMIT_ONLY_POLICY_KEYS.containsAll(xacmlJsonPolicy.keySet()))
+		{
+			return false;
+		}
+
+		final JSONArray rules = xacmlJsonPolicy.optJSONArray("rules");
+		if (rules != null)
+		{
+			for (final Object rule : rules)
+			{
+				if (!(rule instanceof JSONObject) || !PERMIT_ONLY_RULE_KEYS.containsAll(((JSONObject) rule).keySet()))
+				{
+					return false;
+				}
+			}
+		}
+
+		final JSONArray policies = xacmlJsonPolicy.optJSONArray("policies");
+		if (policies != null)
+		{
+			for (final Object policy : policies)
+			{
+				final JSONObject inlinePolicy = policy instanceof JSONObject ? ((JSONObject) policy).optJSONObject("policy") : null;
+				if (inlinePolicy != null && !hasOnlyPermitOnlyKeys(inlinePolicy))
+				{
+					return false;
+				}
+			}
+		}
+
+		return true;
+	}
+
+	/*
+	 * Checks that a target cannot be Indeterminate because of a missing attribute
+	 */
+	private static boolean hasOnlySafeAttributeDesignators(final JSONArray xacmlJsonTarget)
+	{
+		if (xacmlJsonTarget == null)
+		{
+			return true;
+		}
+
+		for (final Object anyOf : xacmlJsonTarget)
+		{
+			for (final Object allOf : (JSONArray) anyOf)
+			{
+				for (final Object match : (JSONArray) allOf)
+				{
+					final JSONObject designator = ((JSONObject) match).optJSONObject("attributeDesignator");
+					if (designator == null || designator.optBoolean("mustBePresent")
+					        && !REQUIRED_ATTRIBUTES.contains(Arrays.asList(designator.optString("category"), designator.optString("id"))))
+					{
+						return false;
+					}
+				}
+			}
+		}
+
+		return true;
+	}
+
+	/*
+	 * Gets the resource-type in the target of the resource-type-specific policy, null if the target has another shape; empty if no target
+	 */
+	private static Optional<String> getResourceTypeInTarget(final JSONObject parentXacmlJsonPolicy)
+	{
+		final JSONArray target = parentXacmlJsonPolicy.optJSONArray("target");
+		if (target == null || target.length() == 0)
+		{
+			return Optional.empty();
+		}
+
+		if (target.length() != 1 || target.getJSONArray(0).length() != 1 || target.getJSONArray(0).getJSONArray(0).length() != 1)
+		{
+			return null;
+		}
+
+		final JSONObject match = target.getJSONArray(0).getJSONArray(0).getJSONObject(0);
+		final JSONObject designator = match.optJSONObject("attributeDesignator");
+		if (!STRING_EQUAL_FUNCTION.equals(match.optString("matchFunction")) || designator == null || !RESOURCE_CATEGORY.equals(designator.optString("category"))
+		        || !RESOURCE_TYPE.equals(designator.optString("id")) || !STRING_DATATYPE.equals(designator.optString("dataType")) || designator.has("issuer"))
+		{
+			return null;
+		}
+
+		return Optional.of(match.getString("value"));
+	}
+
+	/**
+	 * Gets the resource ID, i.e. the value in the DRIVER access policy's target, from the ID of the child policy ('{parentPolicyId}#{key}={value}')
+	 */
+	private static String getResourceId(final String parentPolicyId, final String childPolicyId)
+	{
+		final String matrixArg = childPolicyId.substring(parentPolicyId.length() + 1);
+		return matrixArg.substring(matrixArg.indexOf('=') + 1);
+	}
+
+	/**
+	 * Creates the index from the policies in XACML/JSON format and DRIVER format
+	 *
+	 * @param rootXacmlJsonPolicy
+	 *            root policy (XACML/JSON)
+	 * @param xacmlJsonPolicyProvider
+	 *            provider of the latest version of the resource-type-specific policies (XACML/JSON) by ID
+	 * @param driverPolicyProvider
+	 *            provider of the latest version of the child policies in DRIVER format (empty if the policy is not in DRIVER format)
+	 * @param x500NameCanonicalizer
+	 *            canonicalizer of the subject DNs of the policies and requests
+	 * @return index (maybe empty if the policies do not have the expected structure)
+	 */
+	static DriverPolicyIndex newInstance(final JSONObject rootXacmlJsonPolicy, final Function<String, Optional<JSONObject>> xacmlJsonPolicyProvider,
+	        final Function<String, Optional<JSONObject>> driverPolicyProvider, final X500NameCanonicalizer x500NameCanonicalizer)
+	{
+		assert x500NameCanonicalizer != null;
+		if (rootXacmlJsonPolicy.has("target") || !PERMIT_OVERRIDING_POLICY_COMBINING_ALGS.contains(rootXacmlJsonPolicy.optString("combiningAlgId"))
+		        || !hasOnlyPermitOnlyKeys(rootXacmlJsonPolicy))
+		{
+			LOGGER.info("DRIVER policy index disabled: root policy has a target, a combining algorithm where a Permit is not final, or obligations/advice/variables");
+			return EMPTY;
+		}
+
+		final JSONArray rootChildPolicies = rootXacmlJsonPolicy.optJSONArray("policies");
+		if (rootChildPolicies == null)
+		{
+			return EMPTY;
+		}
+
+		final Map<String, ParentPolicyIndex> parentPolicyIndexesById = new HashMap<>();
+		for (final Object rootChildPolicy : rootChildPolicies)
+		{
+			final JSONObject policyRef = rootChildPolicy instanceof JSONObject ? ((JSONObject) rootChildPolicy).optJSONObject("policyRef") : null;
+			if (policyRef == null)
+			{
+				continue;
+			}
+
+			final String parentPolicyId = policyRef.getString("id");
+			final Optional<JSONObject> wrappedParentPolicy = xacmlJsonPolicyProvider.apply(parentPolicyId);
+			final JSONObject parentPolicy = wrappedParentPolicy.isPresent() ? wrappedParentPolicy.get().optJSONObject("policy") : null;
+			if (parentPolicy == null)
+			{
+				continue;
+			}
+
+			final Optional<ParentPolicyIndex> parentPolicyIndex = newParentPolicyIndex(parentPolicyId, parentPolicy, driverPolicyProvider, x500NameCanonicalizer);
+			if (parentPolicyIndex.isPresent())
+			{
+				parentPolicyIndexesById.put(parentPolicyId, parentPolicyIndex.get());
+			}
+		}
+
+		return new DriverPolicyIndex(x500NameCanonicalizer, parentPolicyIndexesById);
+	}
+
+	private static Optional<ParentPolicyIndex> newParentPolicyIndex(final String parentPolicyId, final JSONObject parentPolicy,
+	        final Function<String, Optional<JSONObject>> driverPolicyProvider, final X500NameCanonicalizer x500NameCanonicalizer)
+	{
+		final Optional<String> resourceType = getResourceTypeInTarget(parentPolicy);
+		if (resourceType == null || !FIRST_APPLICABLE_POLICY_COMBINING_ALG.equals(parentPolicy.optString("combiningAlgId")) || !PERMIT_ONLY_POLICY_KEYS.containsAll(parentPolicy.keySet()))
+		{
+			LOGGER.info("DRIVER policy index disabled for policy '{}': unexpected target, combining algorithm, or obligations/advice/variables", parentPolicyId);
+			return Optional.empty();
+		}
+
+		/*
+		 * Inline rules (if any) are evaluated first
+		 */
+		final JSONObject parentWithoutChildPolicies = new JSONObject(Collections.singletonMap("rules", parentPolicy.optJSONArray("rules") == null ? new JSONArray() : parentPolicy.get("rules")));
+		if (!isPermitOnly(parentWithoutChildPolicies))
+		{
+			LOGGER.info("DRIVER policy index disabled for policy '{}': inline rules not Permit-only", parentPolicyId);
+			return Optional.empty();
+		}
+
+		final Map<String, Map<String, CompiledPolicy>> childPoliciesByResourceId = new HashMap<>();
+		final JSONArray childPolicies = parentPolicy.optJSONArray("policies");
+		if (childPolicies != null)
+		{
+			for (final Object childPolicy : childPolicies)
+			{
+				if (!(childPolicy instanceof JSONObject))
+				{
+					return Optional.empty();
+				}
+
+				final JSONObject inlinePolicy = ((JSONObject) childPolicy).optJSONObject("policy");
+				if (inlinePolicy != null)
+				{
+					if (!isPermitOnly(inlinePolicy))
+					{
+						LOGGER.info("DRIVER policy index disabled for policy '{}': inline child policy '{}' not Permit-only", parentPolicyId, inlinePolicy.optString("id"));
+						return Optional.empty();
+					}
+
+					continue;
+				}
+
+				final JSONObject policyRef = ((JSONObject) childPolicy).optJSONObject("policyRef");
+				final String childPolicyId = policyRef == null ? null : policyRef.optString("id");
+				final Optional<JSONObject> driverPolicy = childPolicyId == null || !childPolicyId.startsWith(parentPolicyId + "#") ? Optional.empty()
+				        : driverPolicyProvider.apply(childPolicyId);
+				if (!driverPolicy.isPresent())
+				{
+					LOGGER.info("DRIVER policy index disabled for policy '{}': child policy '{}' is not a DRIVER access policy", parentPolicyId, childPolicyId);
+					return Optional.empty();
+				}
+
+				try
+				{
+					childPoliciesByResourceId.computeIfAbsent(getResourceId(parentPolicyId, childPolicyId), k -> new LinkedHashMap<>()).put(childPolicyId,
+					        new CompiledPolicy(DriverAccessPolicyHandler.getDriverAccessRules(driverPolicy.get()), x500NameCanonicalizer));
+				}
+				catch (final IllegalArgumentException e)
+				{
+					LOGGER.info("DRIVER policy index disabled for policy '{}': invalid subject.id in child policy '{}'", parentPolicyId, childPolicyId, e);
+					return Optional.empty();
+				}
+			}
+		}
+
+		return Optional.of(new ParentPolicyIndex(resourceType, childPoliciesByResourceId));
+	}
+
+	/**
+	 * Updates a DRIVER access policy in the index
+	 *
+	 * @param parentPolicyId
+	 *            resource-type-specific policy ID
+	 * @param childPolicyId
+	 *            DRIVER access policy ID ('{parentPolicyId}#{key}={value}')
+	 * @param driverPolicy
+	 *            new DRIVER access policy; empty if the policy is deleted
+	 * @return new index
+	 */
+	DriverPolicyIndex withChildPolicy(final String parentPolicyId, final String childPolicyId, final Optional<JSONObject> driverPolicy)
+	{
+		return withChildPolicies(parentPolicyId, Collections.singletonMap(childPolicyId, driverPolicy));
+	}
+
+	/**
+	 * Updates DRIVER access policies of the same parent policy in the index, at once (the index of the parent policy is copied only once)
+	 *
+	 * @param parentPolicyId
+	 *            resource-type-specific policy ID
+	 * @param driverPoliciesByChildPolicyId
+	 *            new DRIVER access policies by child policy ID ('{parentPolicyId}#{key}={value}'); empty if the policy is deleted
+	 * @return new index
+	 */
+	DriverPolicyIndex withChildPolicies(final String parentPolicyId, final Map<String, Optional<JSONObject>> driverPoliciesByChildPolicyId)
+	{
+		final ParentPolicyIndex parentPolicyIndex = parentPolicyIndexesById.get(parentPolicyId);
+		if (parentPolicyIndex == null)
+		{
+			/*
+			 * Parent policy not indexable
+			 */
+			return this;
+		}
+
+		final Map<String, Map<String, CompiledPolicy>> newChildPoliciesByResourceId = new HashMap<>(parentPolicyIndex.childPoliciesByResourceId);
+		for (final Entry<String, Optional<JSONObject>> driverPolicyEntry : driverPoliciesByChildPolicyId.entrySet())
+		{
+			final String childPolicyId = driverPolicyEntry.getKey();
+			final Optional<JSONObject> driverPolicy = driverPolicyEntry.getValue();
+			final String resourceId = getResourceId(parentPolicyId, childPolicyId);
+			/*
+			 * An existing child policy keeps its position
+			 */
+			final Map<String, CompiledPolicy> newChildPolicies = new LinkedHashMap<>(newChildPoliciesByResourceId.getOrDefault(resourceId, Collections.emptyMap()));
+			if (driverPolicy.isPresent())
+			{
+				if (!newChildPolicies.isEmpty() && !newChildPolicies.containsKey(childPolicyId))
+				{
+					/*
+					 * A new child policy is referenced implicitly by the parent policy, in child policy ID order after the explicit references (see PrpDao#getChildPolicyIds(String)), which
+					 * may not match the order of the child policies already indexed for the same resource, i.e. the order of evaluation by the PDP (first-applicable)
+					 */
+					LOGGER.info("DRIVER policy index disabled for policy '{}': new child policy '{}' for a resource already matched by other child policies", parentPolicyId, childPolicyId);
+					final Map<String, ParentPolicyIndex> newParentPolicyIndexesById = new HashMap<>(parentPolicyIndexesById);
+					newParentPolicyIndexesById.remove(parentPolicyId);
+					return new DriverPolicyIndex(this.x500NameCanonicalizer, newParentPolicyIndexesById);
+				}
+
+				try
+				{
+					newChildPolicies.put(childPolicyId, new CompiledPolicy(DriverAccessPolicyHandler.getDriverAccessRules(driverPolicy.get()), x500NameCanonicalizer));
+				}
+				catch (final IllegalArgumentException e)
+				{
+					/*
+					 * Cannot be indexed, therefore the parent policy cannot be anymore
+					 */
+					LOGGER.info("DRIVER policy index disabled for policy '{}': invalid subject.id in child policy '{}'", parentPolicyId, childPolicyId, e);
+					final Map<String, ParentPolicyIndex> newParentPolicyIndexesById = new HashMap<>(parentPolicyIndexesById);
+					newParentPolicyIndexesById.remove(parentPolicyId);
+					return new DriverPolicyIndex(this.x500NameCanonicalizer, newParentPolicyIndexesById);
+				}
+			}
+			else
+			{
+				newChildPolicies.remove(childPolicyId);
+			}
+
+			if (newChildPolicies.isEmpty())
+			{
+				newChildPoliciesByResourceId.remove(resourceId);
+			}
+			else
+			{
+				newChildPoliciesByResourceId.put(resourceId, newChildPolicies);
+			}
+		}
+
+		final Map<String, ParentPolicyIndex> newParentPolicyIndexesById = new HashMap<>(parentPolicyIndexesById);
+		newParentPolicyIndexesById.put(parentPolicyId, new ParentPolicyIndex(parentPolicyIndex.resourceType, newChildPoliciesByResourceId));
+		return new DriverPolicyIndex(this.x500NameCanonicalizer, newParentPolicyIndexesById);
+	}
+
+	/**
+	 * Attributes of a request of the usual shape, as needed by the index, collected from the request's categories and attributes. The request is not indexable, i.e. must be evaluated by the PDP
+	 * engine, if any attribute that the DRIVER access policies match (subject-id, group-id, action-id, resource-type, resource-id) is not exactly in the category and with the datatype of the
+	 * policies (e.g. shorthand category/datatype, or other datatype), or has non-string values; or if any category is repeated (Multiple Decision Profile), given as shorthand, or has XML content;
+	 * or if any attribute has IncludeInResult=true.
+	 */
+	private static final class RequestAttributes
+	{
+		private final Set<String> categoryIds = new HashSet<>();
+		private final Set<String> subjectIds = new HashSet<>();
+		private final Set<String> groups = new HashSet<>();
+		private final Set<String> actions = new HashSet<>();
+		private final Set<String> resourceTypes = new HashSet<>();
+		private final Set<String> resourceIds = new HashSet<>();
+		private boolean isIndexable = true;
+
+		/**
+		 * Adds a category of the request
+		 *
+		 * @param categoryId
+		 *            CategoryId
+		 * @param hasContent
+		 *            true iff the category has (XML) Content
+		 */
+		void addCategory(final String categoryId, final boolean hasContent)
+		{
+			/*
+			 * A shorthand CategoryId (no ':') may repeat a category given with its full URI
+			 */
+			if (!categoryIds.add(categoryId) || categoryId.indexOf(':') < 0 || hasContent)
+			{
+				this.isIndexable = false;
+			}
+		}
+
+		/**
+		 * Adds an attribute of the request
+		 *
+		 * @param categoryId
+		 *            CategoryId of the attribute's category
+		 * @param attributeId
+		 *            AttributeId
+		 * @param dataType
+		 *            DataType, null if undefined (string by default)
+		 * @param includeInResult
+		 *            IncludeInResult
+		 * @param stringValues
+		 *            attribute values, null if not all strings
+		 */
+		void addAttribute(final String categoryId, final String attributeId, final String dataType, final boolean includeInResult, final List<String> stringValues)
+		{
+			if (includeInResult)
+			{
+				this.isIndexable = false;
+				return;
+			}
+
+			final String expectedCategoryId;
+			final String expectedDataType;
+			final Set<String> values;
+			switch (attributeId)
+			{
+				case SUBJECT_ID:
+					expectedCategoryId = ACCESS_SUBJECT_CATEGORY;
+					expectedDataType = X500NAME_DATATYPE;
+					values = subjectIds;
+					break;
+				case GROUP_ID:
+					expectedCategoryId = ACCESS_SUBJECT_CATEGORY;
+					expectedDataType = STRING_DATATYPE;
+					values = groups;
+					break;
+				case ACTION_ID:
+					expectedCategoryId = ACTION_CATEGORY;
+					expectedDataType = STRING_DATATYPE;
+					values = actions;
+					break;
+				case RESOURCE_TYPE:
+					expectedCategoryId = RESOURCE_CATEGORY;
+					expectedDataType = STRING_DATATYPE;
+					values = resourceTypes;
+					break;
+				case RESOURCE_ID:
+					expectedCategoryId = RESOURCE_CATEGORY;
+					expectedDataType = STRING_DATATYPE;
+					values = resourceIds;
+					break;
+				default:
+					/*
+					 * Not matched by the DRIVER access policies
+					 */
+					return;
+			}
+
+			/*
+			 * The same attribute in another form (e.g. shorthand category/datatype) may still be matched by the policies, therefore the request must be evaluated by the PDP engine
+			 */
+			if (!categoryId.equals(expectedCategoryId) || !(dataType == null ? STRING_DATATYPE : dataType).equals(expectedDataType) || stringValues == null)
+			{
+				this.isIndexable = false;
+				return;
+			}
+
+			values.addAll(stringValues);
+		}
+	}
+
+	/*
+	 * String values of a XACML/JSON attribute, null if not all strings
+	 */
+	private static List<String> getStringValues(final JSONObject attribute)
+	{
+		final Object value = attribute.opt("Value");
+		final Iterable<?> items = value instanceof JSONArray ? (JSONArray) value : Collections.singleton(value);
+		final List<String> stringValues = new ArrayList<>(1);
+		for (final Object item : items)
+		{
+			if (!(item instanceof String))
+			{
+				return null;
+			}
+
+			stringValues.add((String) item);
+		}
+
+		return stringValues;
+	}
+
+	/**
+	 * Evaluates a XACML/JSON Request against the index
+	 *
+	 * @param xacmlJsonRequest
+	 *            XACML/JSON Request
+	 * @return XACML/JSON Response if the index can answer the request for sure (Permit); empty if the request must be evaluated by the PDP engine
+	 */
+	Optional<JSONObject> evaluate(final JSONObject xacmlJsonRequest)
+	{
+		if (parentPolicyIndexesById.isEmpty())
+		{
+			return Optional.empty();
+		}
+
+		final JSONObject request = xacmlJsonRequest.optJSONObject("Request");
+		if (request == null || request.optBoolean("ReturnPolicyIdList") || request.optBoolean("CombinedDecision") || request.has("MultiRequests"))
+		{
+			return Optional.empty();
+		}
+
+		final JSONArray categories = request.optJSONArray("Category");
+		if (categories == null)
+		{
+			return Optional.empty();
+		}
+
+		final RequestAttributes requestAttributes = new RequestAttributes();
+		for (final Object category : categories)
+		{
+			final JSONObject categoryJsonObject = (JSONObject) category;
+			final String categoryId = categoryJsonObject.optString("CategoryId");
+			requestAttributes.addCategory(categoryId, categoryJsonObject.has("Content"));
+			final JSONArray attributes = categoryJsonObject.optJSONArray("Attribute");
+			if (attributes == null)
+			{
+				continue;
+			}
+
+			for (final Object attribute : attributes)
+			{
+				final JSONObject attributeJsonObject = (JSONObject) attribute;
+				requestAttributes.addAttribute(categoryId, attributeJsonObject.optString("AttributeId"), attributeJsonObject.optString("DataType", null),
+				        attributeJsonObject.optBoolean("IncludeInResult"), getStringValues(attributeJsonObject));
+			}
+
+			if (!requestAttributes.isIndexable)
+			{
+				return Optional.empty();
+			}
+		}
+
+		return isPermitted(requestAttributes) ? Optional.of(new JSONObject(Collections.singletonMap("Response", new JSONArray(Collections.singleton(new JSONObject(Collections.singletonMap("Decision", "Permit"))))))) : Optional.empty();
+	}
+
+	/**
+	 * Evaluates the attributes of a request of the usual shape against the index
+	 *
+	 * @param requestAttributes
+	 *            request attributes
+	 * @return true iff the index can answer the request for sure with Permit; false if the request must be evaluated by the PDP engine
+	 */
+	private boolean isPermitted(final RequestAttributes requestAttributes)
+	{
+		return requestAttributes.isIndexable && isPermitted(requestAttributes.subjectIds, requestAttributes.groups, requestAttributes.actions, requestAttributes.resourceTypes,
+		        requestAttributes.resourceIds);
+	}
+
+	/**
+	 * Evaluates the attributes of a request of the usual shape against the index. The caller must make sure the request is indexable (see {@link RequestAttributes}).
+	 *
+	 * @param subjectIds
+	 *            access-subject's subject-id values (x500Name datatype)
+	 * @param groups
+	 *            access-subject's group-id values (string datatype)
+	 * @param actions
+	 *            action-id values (string datatype)
+	 * @param resourceTypes
+	 *            resource-type values (string datatype)
+	 * @param resourceIds
+	 *            resource-id values (string datatype)
+	 * @return true iff the index can answer the request for sure with Permit; false if the request must be evaluated by the PDP engine
+	 */
+	private boolean isPermitted(final Set<String> subjectIds, final Set<String> groups, final Set<String> actions, final Set<String> resourceTypes, final Set<String> resourceIds)
+	{
+		if (parentPolicyIndexesById.isEmpty() || actions.size() != 1 || resourceTypes.size() != 1 || resourceIds.size() != 1)
+		{
+			return false;
+		}
+
+		final Set<String> canonicalSubjectIds = new HashSet<>(subjectIds.size());
+		try
+		{
+			subjectIds.forEach(subjectId -> canonicalSubjectIds.add(x500NameCanonicalizer.canonicalize(subjectId)));
+		}
+		catch (final IllegalArgumentException e)
+		{
+			return false;
+		}
+
+		final String action = actions.iterator().next();
+		final String resourceType = resourceTypes.iterator().next();
+		final String resourceId = resourceIds.iterator().next();
+		for (final ParentPolicyIndex parentPolicyIndex : parentPolicyIndexesById.values())
+		{
+			if (parentPolicyIndex.resourceType.isPresent() && !parentPolicyIndex.resourceType.get().equals(resourceType))
+			{
+				continue;
+			}
+
+			/*
+			 * First-applicable: the first child policy with a matching rule decides
+			 */
+			for (final CompiledPolicy childPolicy : parentPolicyIndex.childPoliciesByResourceId.getOrDefault(resourceId, Collections.emptyMap()).values())
+			{
+				final Optional<Boolean> isPermitted = childPolicy.evaluate(canonicalSubjectIds, groups, action);
+				if (isPermitted.isPresent())
+				{
+					if (isPermitted.get())
+					{
+						return true;
+					}
+
+					break;
+				}
+			}
+		}
+
+		return false;
+	}
+}
@@ -20,28 +20,46 @@ package eu.driver.testbed.sec.authz.service;
 
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
-import java.io.File;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
 import java.io.Reader;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.DirectoryIteratorException;
 import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
-import java.util.ArrayDeque;
-import java.util.Deque;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
-import java.util.stream.StreamSupport;
-
-import javax.xml.transform.stream.StreamSource;
 
 import org.json.JSONObject;
 import org.json.JSONTokener;
-import org.ow2.authzforce.core.pdp.api.HashCollections;
-import org.ow2.authzforce.core.pdp.api.XmlUtils;
 import org.ow2.authzforce.core.pdp.api.policy.PolicyVersion;
 import org.ow2.authzforce.xacml.json.model.XacmlJsonUtils;
 import org.slf4j.Logger;
@@ -49,221 +67,457 @@ import org.slf4j.LoggerFactory;
 import org.springframework.util.FileSystemUtils;
 
 import com.google.common.base.Preconditions;
-
-import net.sf.saxon.s9api.SaxonApiException;
-import net.sf.saxon.s9api.XdmAtomicValue;
-import net.sf.saxon.s9api.Xslt30Transformer;
-import net.sf.saxon.s9api.XsltExecutable;
-import net.sf.saxon.trace.XSLTTraceListener;
+import com.google.common.hash.Hashing;
+import com.google.common.hash.HashingOutputStream;
 
 /**
  * Filesystem-based XACML PRP DAO (PRP = Policy Repository Point, DAO = Data Access Object interface) implementation
- * 
- * TODO: replace this filesystem-based DAO with a a higher-performance embedded transactional key-value database.
+ * <p>
+ * Transactions write new policy version files to a staging directory, and make them visible on commit by atomic renames, logged beforehand in a write-ahead log (see
+ * {@link FsBasedPrpWriteAheadLog}), like the removal of policy directories (renamed to a trash directory). The staging/trash directories and the log are in the '.tx' subdirectory of the
+ * policies directory. The in-memory state (policy version index, in-memory policy store) is updated on commit only, once the renames are done, so that readers never see uncommitted changes.
+ * <p>
+ * See {@link MvStorePrpDao} for the higher-performance embedded transactional key-value store alternative.
  */
 final class FsBasedPrpDao implements PrpDao
 {
 	private static final Logger LOGGER = LoggerFactory.getLogger(FsBasedPrpDao.class);
 
-	private static final class TransactionImpl implements Transaction
+	private final class TransactionImpl implements Transaction
 	{
-		private boolean isCommitted = false;
+		private final long txId = txCount.incrementAndGet();
+		/*
+		 * Directory of the files written by this transaction, until they are renamed to their final location on commit
+		 */
+		private final Path stagingDir = txStagingDir.resolve(Long.toString(txId));
+		/*
+		 * Renames (source -> target) making the changes of this transaction visible on commit, in order
+		 */
+		private final List<Entry<Path, Path>> commitRenames = new ArrayList<>(3);
 		/*
-		 * Maintain list of created files for rollback in case of error. At most 3 files created: a new policy P1's directory and version file, and possibly a new version of a policy P2 with new
-		 * reference to P1
+		 * Updates of the policy version index, then of the in-memory policy store (if any), applied in order on commit, once the renames are done. The latter are also applied to a copy of the store
+		 * before commit, see getPdpPolicyStore(Transaction).
 		 */
-		final Deque<java.nio.file.Path> createdFiles = new ArrayDeque<>(3);
+		private final List<Runnable> inMemoryUpdates = new ArrayList<>(3);
+		private final List<Consumer<PdpPolicyStore>> pdpPolicyStoreUpdates = new ArrayList<>(3);
 		/*
-		 * So far at most 1 file moved per transaction (when policy deleted)
+		 * Final location -> SHA-256 hash of the XACML/JSON policy files written by this transaction, computed while writing, for the manifest on commit
 		 */
-		final Map<Path, Path> movedFileSourcesToTargets = HashCollections.newUpdatableMap(1);
+		private final Map<Path, String> jsonPolicyFileHashes = new LinkedHashMap<>();
+		private boolean isCommitted = false;
+		/*
+		 * True iff committed (logged) but the renames failed, in which case the staged files are needed by the recovery on next startup
+		 */
+		private boolean isCommitIncomplete = false;
+
+		private void addInMemoryUpdate(final Runnable update)
+		{
+			inMemoryUpdates.add(update);
+		}
+
+		private void addPdpPolicyStoreUpdate(final Consumer<PdpPolicyStore> update)
+		{
+			pdpPolicyStoreUpdates.add(update);
+		}
 
-		private void addCreatedFile(final Path p)
+		/*
+		 * Stages a new file, renamed to policyFile on commit
+		 */
+		private Path stageFile(final Path policyFile) throws IOException
 		{
-			createdFiles.add(p);
+			Files.createDirectories(stagingDir);
+			final Path stagedFile = stagingDir.resolve(commitRenames.size() + STAGED_FILENAME_SUFFIX);
+			commitRenames.add(new SimpleImmutableEntry<>(stagedFile, policyFile));
+			return stagedFile;
 		}
 
-		public void addMoveFile(final Path policyDir, final Path backupDir)
+		/*
+		 * Stages the removal of a policy directory or policy version file, moved to the trash on commit
+		 */
+		private void stageRemoval(final Path policyDirOrFile)
 		{
-			movedFileSourcesToTargets.put(policyDir, backupDir);
+			commitRenames.add(new SimpleImmutableEntry<>(policyDirOrFile, txTrashDir.resolve(txId + "." + commitRenames.size())));
 		}
 
 		@Override
 		public void commit()
 		{
-			this.isCommitted = true;
+			try
+			{
+				wal.commit(txId, commitRenames, () -> this.isCommitted = true);
+			}
+			catch (final IOException e)
+			{
+				isCommitIncomplete = isCommitted;
+				throw new RuntimeException("Failed to commit policy update transaction #" + txId + (isCommitted ? " (committed but not fully applied until restart)" : ""), e);
+			}
+
+			/*
+			 * Changes visible in the repository: make them visible in memory
+			 */
+			inMemoryUpdates.forEach(Runnable::run);
+			if (pdpPolicyStore != null)
+			{
+				pdpPolicyStoreUpdates.forEach(update -> update.accept(pdpPolicyStore));
+			}
+
+			/*
+			 * New XACML/JSON policy files are valid and converted, no need to check them on next startup
+			 */
+			jsonPolicyFileHashes.forEach(manifest::append);
 		}
 
 		@Override
 		public void close() throws Exception
 		{
+			/*
+			 * If not committed (rollback), nothing is visible in the repository or in memory: only the staged files to discard
+			 */
 			try
 			{
-				if (!isCommitted)
+				if (isCommitted)
 				{
 					/*
-					 * Abort transaction
+					 * Purge the policy directories/files moved to the trash in the background, off the request path
 					 */
-					createdFiles.forEach(fp -> {
-						/*
-						 * delete directory only if empty, directories are last in the stack
-						 */
-						try
-						{
-							if (!Files.isDirectory(fp) || isDirectoryEmpty(fp))
-							{
-								Files.deleteIfExists(fp);
-							}
-						}
-						catch (final IOException e)
-						{
-							throw new RuntimeException("Failed rollback after policy update transaction failed", e);
-						}
-					});
+					final List<Path> trashedPaths = commitRenames.stream().filter(rename -> !rename.getKey().startsWith(stagingDir)).map(Entry::getValue).collect(Collectors.toList());
+					if (!trashedPaths.isEmpty())
+					{
+						purgeTrash(trashedPaths);
+					}
+				}
 
-					movedFileSourcesToTargets.entrySet().forEach(movedFileEntry -> {
-						try
-						{
-							/*
-							 * move file back from target (entry value) to source (entry key)
-							 */
-							// Files.move() does not work in Docker container
-							// Files.move(movedFileEntry.getValue(), movedFileEntry.getKey(), StandardCopyOption.REPLACE_EXISTING));
-							final File from = movedFileEntry.getValue().toFile();
-							final File to = movedFileEntry.getKey().toFile();
-							FileSystemUtils.copyRecursively(from, to);
-							FileSystemUtils.deleteRecursively(from);
-						}
-						catch (final IOException e)
-						{
-							throw new RuntimeException("Failed rollback after policy update transaction failed", e);
-						}
-					});
+				if (!isCommitIncomplete && Files.exists(stagingDir))
+				{
+					/*
+					 * Staged files left only if not committed
+					 */
+					FileSystemUtils.deleteRecursively(stagingDir.toFile());
 				}
 			}
 			finally
 			{
-				createdFiles.clear();
-				movedFileSourcesToTargets.clear();
+				commitRenames.clear();
+				inMemoryUpdates.clear();
+				pdpPolicyStoreUpdates.clear();
+				jsonPolicyFileHashes.clear();
 			}
 		}
 
 	}
 
-	private static boolean isDirectoryEmpty(final Path directory) throws IOException
+	/*
+	 * What an effective parent policy file is generated from: latest version file of the parent policy (and its modification time, in case the same version is written again) and child policy IDs
+	 */
+	private static final class EffectivePolicySource
 	{
+		private final Path pdpInputPolicyFile;
+		private final long lastModifiedTime;
+		private final List<String> childPolicyIds;
 
-		try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(directory))
+		private EffectivePolicySource(final Path pdpInputPolicyFile, final long lastModifiedTime, final List<String> childPolicyIds)
 		{
-			return !directoryStream.iterator().hasNext();
+			this.pdpInputPolicyFile = pdpInputPolicyFile;
+			this.lastModifiedTime = lastModifiedTime;
+			this.childPolicyIds = childPolicyIds;
 		}
-	}
-
-	private static final String ORG_JSON_XML_TO_XACML_3_0_XSLT_LOCATION = AuthzWsJaxrsRootResource.class.getResource("xacml-json-to-xml.xslt").toString();
-	private static final XsltExecutable ORG_JSON_XML_TO_XACML_3_0_XSLT;
 
-	static
-	{
-		try
+		@Override
+		public int hashCode()
 		{
-			ORG_JSON_XML_TO_XACML_3_0_XSLT = XmlUtils.SAXON_PROCESSOR.newXsltCompiler().compile(new StreamSource(ORG_JSON_XML_TO_XACML_3_0_XSLT_LOCATION));
+			return Objects.hash(pdpInputPolicyFile, lastModifiedTime, childPolicyIds);
 		}
-		catch (final SaxonApiException e)
+
+		@Override
+		public boolean equals(final Object obj)
 		{
-			throw new RuntimeException("Cannot create processor of XSLT file (org.json.XML to XACML 3.0/XML transformation): " + ORG_JSON_XML_TO_XACML_3_0_XSLT_LOCATION, e);
+			if (this == obj)
+			{
+				return true;
+			}
+
+			if (!(obj instanceof EffectivePolicySource))
+			{
+				return false;
+			}
+
+			final EffectivePolicySource other = (EffectivePolicySource) obj;
+			return lastModifiedTime == other.lastModifiedTime && pdpInputPolicyFile.equals(other.pdpInputPolicyFile) && childPolicyIds.equals(other.childPolicyIds);
 		}
 	}
 
+	/*
+	 * Policy version filename: {version}{suffix}, where the suffix starts with a dot and a non-digit, e.g. '1.0.xacml.xml'
+	 */
+	private static final Pattern POLICY_VERSION_FILENAME_PATTERN = Pattern.compile("^(\\d+(?:\\.\\d+)*)(\\.\\D.*)$");
+
+	/*
+	 * Directory of the transaction log, staged files and trash, in the policies directory (excluded from the policies), named so that it cannot be a policy ID
+	 */
+	static final String TX_DIRECTORY_NAME = ".tx";
+	/*
+	 * Suffix of staged files, so that they never match the policyLocation pattern of the PDP configuration
+	 */
+	private static final String STAGED_FILENAME_SUFFIX = ".staged";
+	/*
+	 * Minimum number of policy files between two progress messages during verification
+	 */
+	private static final int VERIFICATION_PROGRESS_LOG_MIN_INTERVAL = 1000;
+
 	private final Path policiesDir;
 	private final String pdpInputPolicyFilenameSuffix;
 	private final String jsonPolicyFilenameSuffix;
+	/*
+	 * In-memory store of PDP input policies, null if disabled
+	 */
+	private final PdpPolicyStore pdpPolicyStore;
+	/*
+	 * Directory of the effective parent policies (with explicit references to their child policies) in PDP input format, generated for the PDP (in the '.tx' directory, cleared on startup and
+	 * close)
+	 */
+	private final Path effectivePdpInputPoliciesDir;
+	/*
+	 * Parent policy ID -> source of its effective policy file as last generated, so that it is generated again only if the source changed. Guarded by getLatestPdpInputPolicyLocations().
+	 */
+	private final Map<String, EffectivePolicySource> effectivePdpInputPolicySources = new HashMap<>();
+	private final PdpInputPolicyConverter pdpInputPolicyConverter;
+	/*
+	 * Versions of the policies in the repository, so that version lookups never list policy directories
+	 */
+	private final PolicyVersionIndex policyVersionIndex = new PolicyVersionIndex();
+	/*
+	 * Transaction log, staging and trash directories
+	 */
+	private final FsBasedPrpWriteAheadLog wal;
+	private final Path txStagingDir;
+	private final Path txTrashDir;
+	private final AtomicLong txCount = new AtomicLong();
+	/*
+	 * Manifest of the XACML/JSON policy files already validated and converted
+	 */
+	private final FsBasedPrpManifest manifest;
+	/*
+	 * Background purge of the trash (single daemon thread), shut down by close()
+	 */
+	private final ExecutorService trashPurger = Executors.newSingleThreadExecutor(runnable -> {
+		final Thread thread = new Thread(runnable, "policy-trash-purger");
+		thread.setDaemon(true);
+		return thread;
+	});
 
-	private static void convertXacmlJsonToXmlPolicy(final JSONObject inputJson, final Path outXmlFile)
+	/**
+	 * Creates DAO
+	 * 
+	 * @param policiesDirectory
+	 *            policy repository directory
+	 * @param pdpInputPolicyFilenameSuffix
+	 *            filename suffix of policy files in PDP input format (XACML/XML)
+	 * @param xacmlJsonPolicyFilenameSuffix
+	 *            filename suffix of policy files in XACML/JSON format
+	 * @param pdpPolicyStore
+	 *            in-memory store to be loaded with the latest version of each policy in PDP input format, and kept in sync with the repository; null if none
+	 * @param pdpInputPolicyConverter
+	 *            converter of XACML/JSON policies to PDP input format (XACML/XML)
+	 */
+	FsBasedPrpDao(final Path policiesDirectory, final String pdpInputPolicyFilenameSuffix, final String xacmlJsonPolicyFilenameSuffix, final PdpPolicyStore pdpPolicyStore,
+	        final PdpInputPolicyConverter pdpInputPolicyConverter)
 	{
-		final Xslt30Transformer xslt = ORG_JSON_XML_TO_XACML_3_0_XSLT.load30();
-		xslt.setTraceListener(LOGGER.isDebugEnabled() ? new XSLTTraceListener() : null);
+		Preconditions.checkArgument(policiesDirectory != null && pdpInputPolicyFilenameSuffix != null && pdpInputPolicyConverter != null,
+		        "policiesDirectory or pdpInputPolicyFilenameSuffix or pdpInputPolicyConverter undefined");
+
+		if (!Files.isReadable(policiesDirectory) || !Files.isWritable(policiesDirectory))
+		{
+			throw new IllegalArgumentException("Policies directory '" + policiesDirectory + "' does not exist or not readable/writeable: readable: " + Files.isReadable(policiesDirectory)
+			        + ", writable: " + Files.isWritable(policiesDirectory));
+		}
+
+		this.pdpInputPolicyFilenameSuffix = pdpInputPolicyFilenameSuffix;
+		this.jsonPolicyFilenameSuffix = xacmlJsonPolicyFilenameSuffix;
+		this.pdpInputPolicyConverter = pdpInputPolicyConverter;
 
-		final String policyStr = inputJson.toString();
-		LOGGER.debug("Applying XSLT '{}' to XACML/JSON policy: {}", ORG_JSON_XML_TO_XACML_3_0_XSLT_LOCATION, policyStr);
+		/*
+		 * Complete the commits interrupted by a crash (if any), then drop whatever uncommitted transactions left
+		 */
+		final Path txDir = policiesDirectory.resolve(TX_DIRECTORY_NAME);
+		this.txStagingDir = txDir.resolve("staging");
+		this.txTrashDir = txDir.resolve("trash");
+		this.effectivePdpInputPoliciesDir = txDir.resolve("effective");
 		try
 		{
-			xslt.setGlobalContextItem(new XdmAtomicValue(policyStr));
-			/*
-			 * Call default template "xsl:initial-template"
-			 */
-			xslt.callTemplate(null, xslt.newSerializer(outXmlFile.toFile()));
+			Files.createDirectories(txDir);
+			this.wal = new FsBasedPrpWriteAheadLog(policiesDirectory, txDir.resolve("wal.log"));
+			FileSystemUtils.deleteRecursively(txStagingDir.toFile());
+			FileSystemUtils.deleteRecursively(txTrashDir.toFile());
+			FileSystemUtils.deleteRecursively(effectivePdpInputPoliciesDir.toFile());
+			Files.createDirectories(txStagingDir);
+			Files.createDirectories(txTrashDir);
+			Files.createDirectories(effectivePdpInputPoliciesDir);
+		}
+		catch (final IOException e)
+		{
+			throw new RuntimeException("Failed to initialize transaction directory of policy repository: " + txDir, e);
+		}
+
+		/*
+		 * Verify XACML/JSON policies in repository and convert to PDP-compatible XACML/XML versions if not done yet, unless already done according to the manifest
+		 */
+		this.manifest = new FsBasedPrpManifest(policiesDirectory, txDir.resolve("manifest.jsonl"), jsonPolicyFilenameSuffix, pdpInputPolicyFilenameSuffix);
+		final List<Path> jsonPolicyFilesToVerify;
+		try (final Stream<Path> jsonPolicyFileStream = Files.find(policiesDirectory, 2,
+		        (path, attrs) -> attrs.isRegularFile() && path.getFileName().toString().endsWith(jsonPolicyFilenameSuffix) && !manifest.checkUnchanged(path, attrs)))
+		{
+			jsonPolicyFilesToVerify = jsonPolicyFileStream.collect(Collectors.toList());
+		}
+		catch (IOException | DirectoryIteratorException e)
+		{
+			// IOException can never be thrown by the iteration.
+			// In this snippet, it can only be thrown by newDirectoryStream.
+			throw new RuntimeException("Error verifying policy repository in directory: " + policiesDirectory, e);
+		}
+
+		verifyPolicyFiles(jsonPolicyFilesToVerify);
+		this.manifest.save();
+
+		this.policiesDir = policiesDirectory;
+		this.pdpPolicyStore = pdpPolicyStore;
+
+		try (final DirectoryStream<Path> dirStream = Files.newDirectoryStream(policiesDirectory, path -> Files.isDirectory(path) && !path.equals(txDir)))
+		{
+			for (final Path policyVersionsDir : dirStream)
+			{
+				final String policyId = policyVersionsDir.getFileName().toString();
+				try (final DirectoryStream<Path> policyVersionsDirStream = Files.newDirectoryStream(policyVersionsDir, Files::isRegularFile))
+				{
+					for (final Path policyVersionFile : policyVersionsDirStream)
+					{
+						final Matcher matcher = POLICY_VERSION_FILENAME_PATTERN.matcher(policyVersionFile.getFileName().toString());
+						if (matcher.matches())
+						{
+							policyVersionIndex.add(policyId, new PolicyVersion(matcher.group(1)), matcher.group(2));
+						}
+						else
+						{
+							LOGGER.warn("Ignoring file in policy directory (invalid filename for a policy version): '{}'", policyVersionFile);
+						}
+					}
+				}
+			}
+		}
+		catch (IOException | DirectoryIteratorException e)
+		{
+			throw new RuntimeException("Error indexing policy versions in directory: " + policiesDirectory, e);
 		}
-		catch (final SaxonApiException e)
+
+		if (pdpPolicyStore != null)
 		{
-			throw new RuntimeException("Failed to transform XACML 3.0/JSON into XACML 3.0/XML policy", e);
+			getLatestPdpInputPolicyFiles().forEach((policyId, xmlFile) -> pdpPolicyStore.put(policyId, PdpInputPolicyConverter.unmarshalPdpInputPolicy(xmlFile)));
 		}
 	}
 
-	FsBasedPrpDao(final Path policiesDirectory, final String pdpInputPolicyFilenameSuffix, final String xacmlJsonPolicyFilenameSuffix)
+	/*
+	 * Validates a XACML/JSON policy file, converts it to PDP input format if not done yet, and adds it to the manifest
+	 */
+	private void verifyPolicyFile(final Path jsonFile) throws IOException
 	{
-		Preconditions.checkArgument(policiesDirectory != null && pdpInputPolicyFilenameSuffix != null, "policiesDirectory or pdpInputPolicyFilenameSuffix undefined");
-
-		if (!Files.isReadable(policiesDirectory) || !Files.isWritable(policiesDirectory))
+		LOGGER.debug("Checking policy file: '{}'", jsonFile);
+		/*
+		 * Validate
+		 */
+		final JSONObject jsonObject;
+		try (final Reader reader = Files.newBufferedReader(jsonFile, StandardCharsets.UTF_8))
 		{
-			throw new IllegalArgumentException("Policies directory '" + policiesDirectory + "' does not exist or not readable/writeable: readable: " + Files.isReadable(policiesDirectory)
-			        + ", writable: " + Files.isWritable(policiesDirectory));
+			jsonObject = new JSONObject(new JSONTokener(reader));
 		}
 
-		this.pdpInputPolicyFilenameSuffix = pdpInputPolicyFilenameSuffix;
-		this.jsonPolicyFilenameSuffix = xacmlJsonPolicyFilenameSuffix;
+		final JSONObject jsonPolicy = jsonObject.optJSONObject("policy");
+		if (jsonPolicy == null)
+		{
+			throw new IllegalArgumentException("Invalid XACML/JSON policy file: '" + jsonFile + "': root key != 'policy'");
+		}
 
+		XacmlJsonUtils.POLICY_SCHEMA.validate(jsonPolicy);
 		/*
-		 * Verify XACML/JSON policies in repository and convert to PDP-compatible XACML/XML versions if not done yet
+		 * Check if the corresponding PDP-compatible (XACML/XML) version exists
 		 */
+		final String jsonFilename = jsonFile.getFileName().toString();
+		final String pdpInputFilename = jsonFilename.substring(0, jsonFilename.length() - jsonPolicyFilenameSuffix.length()) + pdpInputPolicyFilenameSuffix;
+		final Path pdpInputPolicyFile = jsonFile.getParent().resolve(pdpInputFilename);
+		if (!Files.exists(pdpInputPolicyFile) || manifest.isKnown(jsonFile))
+		{
+			/*
+			 * We have to create it: transform the JSON to XML version of XACML policy. Also if the policy file or the XML version changed since converted (according to the manifest), since the XML
+			 * version may be outdated.
+			 */
+			LOGGER.debug("PDP-compatible policy file missing or outdated: '{}' -> generating/converting from file: '{}'", pdpInputPolicyFile, jsonFile);
+			pdpInputPolicyConverter.convertXacmlJsonToXmlPolicy(jsonObject, pdpInputPolicyFile);
+		}
 
-		try (final Stream<Path> jsonPolicyFileStream = Files.find(policiesDirectory, 2, (path, attrs) -> attrs.isRegularFile() && path.getFileName().toString().endsWith(jsonPolicyFilenameSuffix)))
+		manifest.put(jsonFile);
+	}
+
+	/*
+	 * Verifies policy files in parallel (fork-join pool bounded to the number of processors), logging progress, and fails with the list of all invalid files (if any) at the end
+	 */
+	private void verifyPolicyFiles(final List<Path> jsonPolicyFiles)
+	{
+		if (jsonPolicyFiles.isEmpty())
 		{
-			jsonPolicyFileStream.forEach(jsonFile -> {
-				LOGGER.debug("Checking policy file: '{}'", jsonFile);
-				/*
-				 * Validate
-				 */
-				final JSONObject jsonObject;
-				try (final Reader reader = Files.newBufferedReader(jsonFile, StandardCharsets.UTF_8))
-				{
-					jsonObject = new JSONObject(new JSONTokener(reader));
-				}
-				catch (final IOException e)
+			return;
+		}
+
+		final int fileCount = jsonPolicyFiles.size();
+		final int progressLogInterval = Math.max(VERIFICATION_PROGRESS_LOG_MIN_INTERVAL, fileCount / 10);
+		LOGGER.info("Verifying/converting {} policy files (new or changed since last startup)", fileCount);
+		final AtomicInteger verifiedFileCount = new AtomicInteger();
+		final Map<Path, String> failures = new ConcurrentSkipListMap<>();
+		final ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+		try
+		{
+			/*
+			 * A parallel stream started from a task of a ForkJoinPool runs in this pool, not the common pool. The manifest supports concurrent puts (see FsBasedPrpManifest), and is saved only
+			 * once all the tasks are done (get() below).
+			 */
+			pool.submit(() -> jsonPolicyFiles.parallelStream().forEach(jsonFile -> {
+				try
 				{
-					throw new RuntimeException("Error verifying policy repository: failed to read file: " + jsonFile, e);
+					verifyPolicyFile(jsonFile);
 				}
-
-				final JSONObject jsonPolicy = jsonObject.optJSONObject("policy");
-				if (jsonPolicy == null)
+				catch (final Exception e)
 				{
-					throw new IllegalArgumentException("Invalid XACML/JSON policy file: '" + jsonFile + "': root key != 'policy'");
+					LOGGER.debug("Invalid policy file: '{}'", jsonFile, e);
+					failures.put(jsonFile, e.toString());
 				}
 
-				XacmlJsonUtils.POLICY_SCHEMA.validate(jsonPolicy);
-				/*
-				 * Check if the corresponding PDP-compatible (XACML/XML) version exists
-				 */
-				final String jsonFilename = jsonFile.getFileName().toString();
-				final String pdpInputFilename = jsonFilename.substring(0, jsonFilename.length() - jsonPolicyFilenameSuffix.length()) + pdpInputPolicyFilenameSuffix;
-				final Path pdpInputPolicyFile = jsonFile.getParent().resolve(pdpInputFilename);
-				if (!Files.exists(pdpInputPolicyFile))
+				final int count = verifiedFileCount.incrementAndGet();
+				if (count % progressLogInterval == 0)
 				{
-					/*
-					 * We have to create it: transform the JSON to XML version of XACML policy
-					 */
-					LOGGER.debug("PDP-compatible policy file missing: '{}' -> generating/converting from file: '{}'", pdpInputPolicyFile, jsonFile);
-					convertXacmlJsonToXmlPolicy(jsonObject, pdpInputPolicyFile);
+					LOGGER.info("Verified/converted {}/{} policy files", count, fileCount);
 				}
-			});
+			})).get();
 		}
-		catch (IOException | DirectoryIteratorException e)
+		catch (final InterruptedException e)
 		{
-			// IOException can never be thrown by the iteration.
-			// In this snippet, it can only be thrown by newDirectoryStream.
-			throw new RuntimeException("Error verifying policy repository in directory: " + policiesDirectory, e);
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while verifying policy repository", e);
+		}
+		catch (final ExecutionException e)
+		{
+			throw new RuntimeException("Error verifying policy repository", e.getCause());
+		}
+		finally
+		{
+			pool.shutdown();
 		}
 
-		this.policiesDir = policiesDirectory;
+		if (!failures.isEmpty())
+		{
+			final StringBuilder summary = new StringBuilder().append(failures.size()).append(" invalid policy file(s) out of ").append(fileCount).append(':');
+			failures.forEach((jsonFile, error) -> summary.append(System.lineSeparator()).append("- ").append(jsonFile).append(": ").append(error));
+			LOGGER.error("Error verifying policy repository: {}", summary);
+			throw new IllegalArgumentException("Error verifying policy repository: " + summary);
+		}
+
+		LOGGER.info("Verified/converted {} policy files", fileCount);
 	}
 
 	@Override
@@ -272,6 +526,40 @@ final class FsBasedPrpDao implements PrpDao
 		return new TransactionImpl();
 	}
 
+	/*
+	 * Deletes policy directories/files moved to the trash, in the background
+	 */
+	private void purgeTrash(final List<Path> trashedPaths)
+	{
+		try
+		{
+			trashPurger.execute(() -> trashedPaths.forEach(trashedPath -> FileSystemUtils.deleteRecursively(trashedPath.toFile())));
+		}
+		catch (final RejectedExecutionException e)
+		{
+			/*
+			 * DAO closed: the trash is purged on next startup anyway
+			 */
+			LOGGER.debug("Policy repository closed: trash purge postponed until next startup", e);
+		}
+	}
+
+	@Override
+	public void close()
+	{
+		/*
+		 * Purges already requested are done before the thread stops
+		 */
+		trashPurger.shutdown();
+		manifest.close();
+		wal.close();
+		synchronized (this)
+		{
+			effectivePdpInputPolicySources.clear();
+			FileSystemUtils.deleteRecursively(effectivePdpInputPoliciesDir.toFile());
+		}
+	}
+
 	private String getFilenameSuffix(final Optional<String> customContentTypeId)
 	{
 		assert customContentTypeId != null;
@@ -299,86 +587,95 @@ final class FsBasedPrpDao implements PrpDao
 		assert tx != null && policyId != null && policyVersion != null && policyContent != null && customContentTypeId != null;
 		final FsBasedPrpDao.TransactionImpl txImpl = (FsBasedPrpDao.TransactionImpl) tx;
 
+		/*
+		 * The files are staged until commit, and the policy directory created on commit if it does not exist
+		 */
 		final Path policyDir = policiesDir.resolve(policyId);
-		if (!Files.isDirectory(policyDir))
+		if (!customContentTypeId.isPresent())
 		{
+			/*
+			 * Default XACML/JSON content to be converted to XACML/XML
+			 */
+			final Path newPdpInputPolicyVersionFile;
 			try
 			{
-				Files.createDirectory(policyDir);
-				txImpl.addCreatedFile(policyDir);
+				newPdpInputPolicyVersionFile = txImpl.stageFile(policyDir.resolve(policyVersion + this.pdpInputPolicyFilenameSuffix));
 			}
 			catch (final IOException e)
 			{
-				throw new RuntimeException("Error creating policy-specific directory: " + policyDir, e);
+				throw new RuntimeException("Error staging new policy version file in directory: " + txStagingDir, e);
 			}
-		}
 
-		if (!customContentTypeId.isPresent())
-		{
-			/*
-			 * Default XACML/JSON content to be converted to XACML/XML
-			 */
-			final Path newPdpInputPolicyVersionFile = policyDir.resolve(policyVersion + this.pdpInputPolicyFilenameSuffix);
 			/*
 			 * Make sure the version in policyContent is up-to-date
 			 */
 			policyContent.getJSONObject("policy").put("version", policyVersion);
-			convertXacmlJsonToXmlPolicy(policyContent, newPdpInputPolicyVersionFile);
-			txImpl.addCreatedFile(newPdpInputPolicyVersionFile);
+			pdpInputPolicyConverter.convertXacmlJsonToXmlPolicy(policyContent, newPdpInputPolicyVersionFile);
+			indexPolicyVersion(txImpl, policyId, policyVersion, this.pdpInputPolicyFilenameSuffix);
+			/*
+			 * Unmarshalled now, even without in-memory store (e.g. snapshot import from the command line), so that an invalid policy fails before commit
+			 */
+			final Object jaxbPolicy = PdpInputPolicyConverter.unmarshalPdpInputPolicy(newPdpInputPolicyVersionFile);
+			if (this.pdpPolicyStore != null)
+			{
+				txImpl.addPdpPolicyStoreUpdate(store -> store.put(policyId, jaxbPolicy));
+			}
 		}
 
-		final Path newPolicyVersionFile = policyDir.resolve(policyVersion + getFilenameSuffix(customContentTypeId));
-		try (final BufferedWriter writer = Files.newBufferedWriter(newPolicyVersionFile, StandardCharsets.UTF_8, StandardOpenOption.CREATE))
+		final String filenameSuffix = getFilenameSuffix(customContentTypeId);
+		final Path newPolicyVersionFile = policyDir.resolve(policyVersion + filenameSuffix);
+		try
 		{
-			policyContent.write(writer);
-			txImpl.addCreatedFile(newPolicyVersionFile);
+			final Path stagedPolicyVersionFile = txImpl.stageFile(newPolicyVersionFile);
+			final HashingOutputStream hashingOut = new HashingOutputStream(Hashing.sha256(), Files.newOutputStream(stagedPolicyVersionFile, StandardOpenOption.CREATE));
+			try (final BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(hashingOut, StandardCharsets.UTF_8)))
+			{
+				policyContent.write(writer);
+			}
+
+			if (!customContentTypeId.isPresent())
+			{
+				txImpl.jsonPolicyFileHashes.put(newPolicyVersionFile, hashingOut.hash().toString());
+			}
 		}
 		catch (final IOException e)
 		{
 			throw new RuntimeException("Error writing new policy to file: " + newPolicyVersionFile, e);
 		}
+
+		indexPolicyVersion(txImpl, policyId, policyVersion, filenameSuffix);
 	}
 
-	private Optional<PolicyVersion> getLatestPolicyVersion(final Path policyVersionsDirectory)
+	private void indexPolicyVersion(final TransactionImpl txImpl, final String policyId, final String policyVersion, final String filenameSuffix)
 	{
-		try (final DirectoryStream<Path> dirStream = Files.newDirectoryStream(policyVersionsDirectory, "*" + pdpInputPolicyFilenameSuffix))
-		{
-			return StreamSupport.stream(dirStream.spliterator(), true).filter(f -> Files.isRegularFile(f)).map(f -> getPolicyVersion(f, this.pdpInputPolicyFilenameSuffix))
-			        .max(PolicyVersion::compareTo);
-		}
-		catch (IOException | DirectoryIteratorException e)
-		{
-			// IOException can never be thrown by the iteration.
-			// In this snippet, it can only be thrown by newDirectoryStream.
-			throw new RuntimeException("Error getting latest policy version file in directory: " + policyVersionsDirectory, e);
-		}
+		final PolicyVersion version = new PolicyVersion(policyVersion);
+		txImpl.addInMemoryUpdate(() -> policyVersionIndex.add(policyId, version, filenameSuffix));
 	}
 
 	@Override
 	public Optional<PolicyVersion> getLatestPolicyVersion(final String policyId)
 	{
 		assert policyId != null;
+		return policyVersionIndex.getLatest(policyId, this.pdpInputPolicyFilenameSuffix);
+	}
 
-		final Path policyVersionsDir = policiesDir.resolve(policyId);
-		if (!Files.isDirectory(policyVersionsDir))
+	private static JSONObject readJson(final Path path) throws IOException
+	{
+		try (final BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8))
 		{
-			return Optional.empty();
+			return new JSONObject(new JSONTokener(reader));
 		}
-
-		return getLatestPolicyVersion(policyVersionsDir);
 	}
 
-	private static JSONObject getJson(final Path path)
+	private static JSONObject getJson(final Path policyFile)
 	{
-		assert Files.isRegularFile(path);
-
-		try (final BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8))
+		try
 		{
-			return new JSONObject(new JSONTokener(reader));
+			return readJson(policyFile);
 		}
 		catch (final IOException e)
 		{
-			throw new RuntimeException("Error reading JSON from file: " + path, e);
+			throw new RuntimeException("Error reading JSON from file: " + policyFile, e);
 		}
 	}
 
@@ -387,29 +684,19 @@ final class FsBasedPrpDao implements PrpDao
 	{
 		assert policyId != null && policyVersion != null;
 
-		final Path policyVersionsDir = policiesDir.resolve(policyId);
-		if (!Files.isDirectory(policyVersionsDir))
+		/*
+		 * Version undefined -> get the latest
+		 */
+		final Optional<PolicyVersion> actualPolicyVersion = policyVersion.isPresent() ? policyVersion : getLatestPolicyVersion(policyId);
+		if (!actualPolicyVersion.isPresent())
 		{
 			return Optional.empty();
 		}
 
 		/*
-		 * Each filename is named {policyVersion}{pdpInputPolicyFilenameSuffix}, e.g. '1.0.xacml.xml'
+		 * Each filename is named {policyVersion}{filenameSuffix}, e.g. '1.0.xacml.json'
 		 */
-		final String policyVersionStr;
-		if (policyVersion.isPresent())
-		{
-			policyVersionStr = policyVersion.get().toString();
-		}
-		else
-		{
-			/*
-			 * Version undefined -> get the latest
-			 */
-			policyVersionStr = getLatestPolicyVersion(policyVersionsDir).toString();
-		}
-
-		final Path jsonPolicyVersionFile = policyVersionsDir.resolve(policyVersionStr + this.jsonPolicyFilenameSuffix);
+		final Path jsonPolicyVersionFile = policiesDir.resolve(policyId).resolve(actualPolicyVersion.get() + this.jsonPolicyFilenameSuffix);
 		if (!Files.isRegularFile(jsonPolicyVersionFile))
 		{
 			return Optional.empty();
@@ -418,43 +705,55 @@ final class FsBasedPrpDao implements PrpDao
 		return Optional.of(getJson(jsonPolicyVersionFile));
 	}
 
-	private static PolicyVersion getPolicyVersion(final Path policyFile, final String filenameSuffix)
+	private Optional<JSONObject> getLatestPolicyVersionFileContent(final String policyId, final String filenameSuffix)
 	{
-		final String fileName = policyFile.getFileName().toString();
-		final String version = fileName.substring(0, fileName.length() - filenameSuffix.length());
-		return new PolicyVersion(version);
+		assert policyId != null && filenameSuffix != null;
+
+		final Optional<PolicyVersion> latestPolicyVersion = policyVersionIndex.getLatest(policyId, filenameSuffix);
+		return latestPolicyVersion.isPresent() ? Optional.of(getJson(policiesDir.resolve(policyId).resolve(latestPolicyVersion.get() + filenameSuffix))) : Optional.empty();
 	}
 
-	private Optional<JSONObject> getLatestPolicyVersionFileContent(final String policyId, final String filenameSuffix)
+	@Override
+	public Optional<JSONObject> getLatestPolicyVersionContent(final String policyId, final Optional<String> customPolicyContentTypeId)
 	{
-		assert policyId != null && filenameSuffix != null;
+		return getLatestPolicyVersionFileContent(policyId, getFilenameSuffix(customPolicyContentTypeId));
+	}
 
-		final Path policyVersionsDir = policiesDir.resolve(policyId);
-		if (!Files.isDirectory(policyVersionsDir))
+	@Override
+	public Optional<StoredPolicyContent> getLatestPolicyVersionStoredContent(final String policyId, final Optional<String> customPolicyContentTypeId)
+	{
+		assert policyId != null;
+		final String filenameSuffix = getFilenameSuffix(customPolicyContentTypeId);
+		final Optional<PolicyVersion> latestPolicyVersion = policyVersionIndex.getLatest(policyId, filenameSuffix);
+		if (!latestPolicyVersion.isPresent())
 		{
 			return Optional.empty();
 		}
 
-		final Optional<Path> latestPolicyVersionFilePath;
-		try (final DirectoryStream<Path> dirStream = Files.newDirectoryStream(policyVersionsDir, "*" + filenameSuffix))
+		return getStoredPolicyVersionContent(policyId, latestPolicyVersion.get(), filenameSuffix);
+	}
+
+	/*
+	 * Stored content of a given policy version with a given content type (filename suffix); empty if deleted in the meantime
+	 */
+	private Optional<StoredPolicyContent> getStoredPolicyVersionContent(final String policyId, final PolicyVersion policyVersion, final String filenameSuffix)
+	{
+		final Path policyFile = policiesDir.resolve(policyId).resolve(policyVersion + filenameSuffix);
+		try
 		{
-			latestPolicyVersionFilePath = StreamSupport.stream(dirStream.spliterator(), true).filter(f -> Files.isRegularFile(f))
-			        .max((f1, f2) -> getPolicyVersion(f1, filenameSuffix).compareTo(getPolicyVersion(f2, filenameSuffix)));
+			return Optional.of(StoredPolicyContent.ofFile(policyVersion, policyFile, Files.getLastModifiedTime(policyFile).toMillis()));
 		}
-		catch (IOException | DirectoryIteratorException e)
+		catch (final NoSuchFileException e)
 		{
-			// IOException can never be thrown by the iteration.
-			// In this snippet, it can only be thrown by newDirectoryStream.
-			throw new RuntimeException("Error getting last policy version file in directory: " + policyVersionsDir, e);
+			/*
+			 * Policy deleted in the meantime
+			 */
+			return Optional.empty();
+		}
+		catch (final IOException e)
+		{
+			throw new RuntimeException("Error reading policy file: " + policyFile, e);
 		}
-
-		return latestPolicyVersionFilePath.isPresent() ? Optional.of(getJson(latestPolicyVersionFilePath.get())) : Optional.empty();
-	}
-
-	@Override
-	public Optional<JSONObject> getLatestPolicyVersionContent(final String policyId, final Optional<String> customPolicyContentTypeId)
-	{
-		return getLatestPolicyVersionFileContent(policyId, getFilenameSuffix(customPolicyContentTypeId));
 	}
 
 	@Override
@@ -464,55 +763,333 @@ final class FsBasedPrpDao implements PrpDao
 		final FsBasedPrpDao.TransactionImpl txImpl = (FsBasedPrpDao.TransactionImpl) tx;
 
 		final Path policyDir = policiesDir.resolve(policyId);
-		if (!Files.isDirectory(policyDir))
+		if (policyVersionIndex.getVersions(policyId).isEmpty() && !Files.isDirectory(policyDir))
 		{
 			/*
-			 * Policy directory already gone / does not exist, so we're done
+			 * Policy already gone / does not exist, so we're done
 			 */
 			return;
 		}
 
 		/*
-		 * Move to temporary backup in case transaction fails (in which case we need to rollback)
+		 * The policy directory is moved to the trash on commit, in constant time (rename), instead of being backed up for rollback
+		 */
+		txImpl.stageRemoval(policyDir);
+		txImpl.addInMemoryUpdate(() -> policyVersionIndex.removeAll(policyId));
+		if (this.pdpPolicyStore != null)
+		{
+			txImpl.addPdpPolicyStoreUpdate(store -> store.remove(policyId));
+		}
+	}
+
+	@Override
+	public List<String> getPolicyIds()
+	{
+		return policyVersionIndex.getPolicyIds("", this.pdpInputPolicyFilenameSuffix);
+	}
+
+	/*
+	 * Creation time of a policy version, i.e. the modification time of its files (never modified after creation); empty if unknown (any file time not readable)
+	 */
+	private Optional<Long> getCreationTime(final String policyId, final PolicyVersion version, final Set<String> filenameSuffixes)
+	{
+		long creationTime = Long.MIN_VALUE;
+		for (final String filenameSuffix : filenameSuffixes)
+		{
+			try
+			{
+				creationTime = Math.max(creationTime, Files.getLastModifiedTime(policiesDir.resolve(policyId).resolve(version + filenameSuffix)).toMillis());
+			}
+			catch (final IOException e)
+			{
+				LOGGER.debug("Failed to get modification time of policy '{}' v{} file with suffix '{}'", policyId, version, filenameSuffix, e);
+				return Optional.empty();
+			}
+		}
+
+		return Optional.of(creationTime);
+	}
+
+	/*
+	 * A policy version is retained by the retention time if created since minCreationTime, or if its creation time is unknown (unless retention by number only)
+	 */
+	private boolean isRetainedByCreationTime(final String policyId, final PolicyVersion version, final Set<String> filenameSuffixes, final long minCreationTime)
+	{
+		if (minCreationTime == Long.MAX_VALUE)
+		{
+			return false;
+		}
+
+		final Optional<Long> creationTime = getCreationTime(policyId, version, filenameSuffixes);
+		return !creationTime.isPresent() || creationTime.get() >= minCreationTime;
+	}
+
+	@Override
+	public int removeOldPolicyVersions(final Transaction tx, final String policyId, final int minVersionCount, final long minCreationTime)
+	{
+		assert tx != null && policyId != null;
+		final FsBasedPrpDao.TransactionImpl txImpl = (FsBasedPrpDao.TransactionImpl) tx;
+		final Path policyDir = policiesDir.resolve(policyId);
+		int removedVersionCount = 0;
+		int versionRank = 0;
+		for (final Entry<PolicyVersion, Set<String>> versionEntry : policyVersionIndex.getVersions(policyId).descendingMap().entrySet())
+		{
+			final PolicyVersion version = versionEntry.getKey();
+			final Set<String> filenameSuffixes = versionEntry.getValue();
+			if (versionRank++ < minVersionCount || filenameSuffixes.stream().anyMatch(suffix -> version.equals(policyVersionIndex.getLatest(policyId, suffix).orElse(null)))
+			        || isRetainedByCreationTime(policyId, version, filenameSuffixes, minCreationTime))
+			{
+				/*
+				 * Retained, or latest version with some content type (legacy)
+				 */
+				continue;
+			}
+
+			for (final String filenameSuffix : filenameSuffixes)
+			{
+				txImpl.stageRemoval(policyDir.resolve(version + filenameSuffix));
+				txImpl.addInMemoryUpdate(() -> policyVersionIndex.remove(policyId, version, filenameSuffix));
+			}
+
+			removedVersionCount++;
+		}
+
+		return removedVersionCount;
+	}
+
+	@Override
+	public void forEachStoredPolicyVersion(final boolean latestOnly, final StoredPolicyVersionConsumer consumer)
+	{
+		assert consumer != null;
+		/*
+		 * XACML/JSON first, then the custom content types in order of filename suffix
 		 */
-		final String tmpDirPrefix = FsBasedPrpDao.class.getPackage().getName() + "#backup.";
+		final Comparator<String> filenameSuffixComparator = Comparator.comparing((final String filenameSuffix) -> !filenameSuffix.equals(this.jsonPolicyFilenameSuffix))
+		        .thenComparing(Comparator.naturalOrder());
+		for (final String policyId : getPolicyIds())
+		{
+			for (final Entry<PolicyVersion, Set<String>> versionEntry : policyVersionIndex.getVersions(policyId).entrySet())
+			{
+				final PolicyVersion version = versionEntry.getKey();
+				for (final String filenameSuffix : versionEntry.getValue().stream().filter(suffix -> !suffix.equals(this.pdpInputPolicyFilenameSuffix)).sorted(filenameSuffixComparator)
+				        .collect(Collectors.toList()))
+				{
+					if (latestOnly && !version.equals(policyVersionIndex.getLatest(policyId, filenameSuffix).orElse(null)))
+					{
+						continue;
+					}
+
+					final Optional<String> customPolicyContentTypeId = filenameSuffix.equals(this.jsonPolicyFilenameSuffix) ? Optional.empty() : Optional.of(filenameSuffix.substring(1));
+					getStoredPolicyVersionContent(policyId, version, filenameSuffix).ifPresent(content -> consumer.accept(policyId, customPolicyContentTypeId, content));
+				}
+			}
+		}
+	}
+
+	/*
+	 * Policy ID -> latest version file in PDP input format
+	 */
+	private Map<String, Path> getLatestPdpInputPolicyFiles()
+	{
+		final Map<String, Path> policyFiles = new HashMap<>();
+		for (final String policyId : policyVersionIndex.getPolicyIds("", this.pdpInputPolicyFilenameSuffix))
+		{
+			final Optional<PolicyVersion> latestPolicyVersion = getLatestPolicyVersion(policyId);
+			if (latestPolicyVersion.isPresent())
+			{
+				policyFiles.put(policyId, policiesDir.resolve(policyId).resolve(latestPolicyVersion.get() + this.pdpInputPolicyFilenameSuffix));
+			}
+		}
+
+		return policyFiles;
+	}
+
+	/*
+	 * Parent policy ID -> child policy IDs (sorted), from the IDs of all the policies
+	 */
+	private static Map<String, List<String>> getChildPolicyIdsByParentId(final Collection<String> policyIds)
+	{
+		final Map<String, List<String>> childPolicyIdsByParentId = new HashMap<>();
+		policyIds.stream().sorted().forEach(policyId -> {
+			final int parentPolicyIdEndIndex = policyId.indexOf('#');
+			if (parentPolicyIdEndIndex > 0)
+			{
+				childPolicyIdsByParentId.computeIfAbsent(policyId.substring(0, parentPolicyIdEndIndex), k -> new ArrayList<>()).add(policyId);
+			}
+		});
+		return childPolicyIdsByParentId;
+	}
+
+	@Override
+	public List<String> getChildPolicyIds(final String parentPolicyId)
+	{
+		assert parentPolicyId != null;
+
+		return policyVersionIndex.getPolicyIds(parentPolicyId + "#", this.pdpInputPolicyFilenameSuffix);
+	}
+
+	@Override
+	public Optional<JSONObject> getLatestEffectivePolicyVersionContent(final String policyId)
+	{
+		final Optional<JSONObject> wrappedXacmlJsonPolicy = getLatestPolicyVersionContent(policyId, Optional.empty());
+		if (!wrappedXacmlJsonPolicy.isPresent())
+		{
+			return wrappedXacmlJsonPolicy;
+		}
+
+		return Optional.of(PdpInputPolicyConverter.addChildPolicyRefs(wrappedXacmlJsonPolicy.get(), getChildPolicyIds(policyId)));
+	}
+
+	/*
+	 * Effective parent policy file (with explicit references to its child policies), generated from the XACML/JSON version of the parent policy again only if the latest version of the parent
+	 * policy or the child policies changed since the last time; or the latest version file of the parent policy if there is no XACML/JSON version to generate it from. Must be called while holding
+	 * the lock on this.
+	 */
+	private Path getEffectivePdpInputPolicyFile(final String parentPolicyId, final Path pdpInputPolicyFile, final Path jsonPolicyFile, final List<String> childPolicyIds)
+	{
+		final Path effectivePdpInputPolicyFile = effectivePdpInputPoliciesDir.resolve(parentPolicyId + this.pdpInputPolicyFilenameSuffix);
+		final EffectivePolicySource source;
 		try
 		{
-			final Path tmpDir = Files.createTempDirectory(tmpDirPrefix);
-			final Path policyBackupDir = tmpDir.resolve("policies#" + policyId);
-			// Files.move() does not work in Docker container
-			// Files.move(policyDir, policyBackupDir, StandardCopyOption.REPLACE_EXISTING);
-			final File policyDirFile = policyDir.toFile();
-			FileSystemUtils.copyRecursively(policyDirFile, policyBackupDir.toFile());
-			FileSystemUtils.deleteRecursively(policyDirFile);
-			txImpl.addMoveFile(policyDir, policyBackupDir);
+			source = new EffectivePolicySource(pdpInputPolicyFile, Files.getLastModifiedTime(pdpInputPolicyFile).toMillis(), childPolicyIds);
 		}
 		catch (final IOException e)
 		{
-			throw new RuntimeException("Failed to remove policy '" + policyId + "' from repository (trying to move to temporary backup directory with prefix '" + tmpDirPrefix + "')", e);
+			throw new RuntimeException("Error reading policy file: " + pdpInputPolicyFile, e);
+		}
+
+		if (source.equals(effectivePdpInputPolicySources.get(parentPolicyId)))
+		{
+			return effectivePdpInputPolicyFile;
+		}
+
+		if (!Files.isRegularFile(jsonPolicyFile))
+		{
+			effectivePdpInputPolicySources.remove(parentPolicyId);
+			return pdpInputPolicyFile;
 		}
+
+		pdpInputPolicyConverter.convertXacmlJsonToXmlPolicy(PdpInputPolicyConverter.addChildPolicyRefs(getJson(jsonPolicyFile), childPolicyIds), effectivePdpInputPolicyFile);
+		effectivePdpInputPolicySources.put(parentPolicyId, source);
+		return effectivePdpInputPolicyFile;
 	}
 
 	/*
-	 * Testing XACML/JSON to XACML/XML XSLT
+	 * Locations of the latest version files of the policies in PDP input format, given by their final location in the repository (policy ID -> file), with the effective parent policies instead of
+	 * the parent policies. The files staged by a transaction, if any, are found in stagedFiles (final location -> staged file). Must be called while holding the lock on this.
 	 */
-	// public static void main(final String... args) throws SaxonApiException, IOException, JAXBException
-	// {
-	// final Path path = Paths.get("src/test/resources/policies/resource.type=TOPIC/1.0.json");
-	// assert Files.isRegularFile(path);
-	//
-	// final String jsonStr = new String(Files.readAllBytes(path));
-	//
-	// final Xslt30Transformer xslt = ORG_JSON_XML_TO_XACML_3_0_XSLT.load30();
-	// xslt.setGlobalContextItem(new XdmAtomicValue(jsonStr));
-	// /*
-	// * Call default template "xsl:initial-template"
-	// */
-	// final StringWriter strWriter = new StringWriter();
-	// xslt.callTemplate(null, xslt.newSerializer(strWriter));
-	// final String xmlStr = strWriter.toString();
-	// System.out.println(xmlStr);
-	// Xacml3JaxbHelper.createXacml3Unmarshaller().unmarshal(new StringReader(xmlStr));
-	// }
-
-}
\ No newline at end of file
+	private List<String> getPdpInputPolicyLocations(final Map<String, Path> pdpInputPolicyFiles, final Map<Path, Path> stagedFiles)
+	{
+		final Map<String, List<String>> childPolicyIdsByParentId = getChildPolicyIdsByParentId(pdpInputPolicyFiles.keySet());
+		final List<String> policyLocations = new ArrayList<>(pdpInputPolicyFiles.size());
+		for (final Entry<String, Path> pdpInputPolicyFileEntry : pdpInputPolicyFiles.entrySet())
+		{
+			final Path pdpInputPolicyFile = stagedFiles.getOrDefault(pdpInputPolicyFileEntry.getValue(), pdpInputPolicyFileEntry.getValue());
+			final List<String> childPolicyIds = childPolicyIdsByParentId.get(pdpInputPolicyFileEntry.getKey());
+			final Path policyFile;
+			if (childPolicyIds == null)
+			{
+				policyFile = pdpInputPolicyFile;
+			}
+			else
+			{
+				/*
+				 * The PDP needs the effective parent policy, i.e. with explicit references to the child policies, generated from the XACML/JSON version of the same policy version
+				 */
+				final String pdpInputPolicyFilename = pdpInputPolicyFileEntry.getValue().getFileName().toString();
+				final Path jsonPolicyFile = pdpInputPolicyFileEntry.getValue()
+				        .resolveSibling(pdpInputPolicyFilename.substring(0, pdpInputPolicyFilename.length() - this.pdpInputPolicyFilenameSuffix.length()) + this.jsonPolicyFilenameSuffix);
+				policyFile = getEffectivePdpInputPolicyFile(pdpInputPolicyFileEntry.getKey(), pdpInputPolicyFile, stagedFiles.getOrDefault(jsonPolicyFile, jsonPolicyFile), childPolicyIds);
+			}
+
+			policyLocations.add(policyFile.toUri().toString());
+		}
+
+		/*
+		 * Drop the effective policies of the policies that are no longer parent policies
+		 */
+		final Iterator<String> effectivePolicyIdIterator = effectivePdpInputPolicySources.keySet().iterator();
+		while (effectivePolicyIdIterator.hasNext())
+		{
+			final String policyId = effectivePolicyIdIterator.next();
+			if (!childPolicyIdsByParentId.containsKey(policyId) || !pdpInputPolicyFiles.containsKey(policyId))
+			{
+				effectivePolicyIdIterator.remove();
+				FileSystemUtils.deleteRecursively(effectivePdpInputPoliciesDir.resolve(policyId + this.pdpInputPolicyFilenameSuffix).toFile());
+			}
+		}
+
+		return policyLocations;
+	}
+
+	@Override
+	public synchronized List<String> getLatestPdpInputPolicyLocations()
+	{
+		return getPdpInputPolicyLocations(getLatestPdpInputPolicyFiles(), Collections.emptyMap());
+	}
+
+	@Override
+	public synchronized List<String> getLatestPdpInputPolicyLocations(final Transaction tx)
+	{
+		assert tx != null;
+		final FsBasedPrpDao.TransactionImpl txImpl = (FsBasedPrpDao.TransactionImpl) tx;
+		final Map<String, Path> pdpInputPolicyFiles = getLatestPdpInputPolicyFiles();
+		final Map<Path, Path> stagedFiles = new HashMap<>();
+		/*
+		 * Latest version of the policies changed by the transaction (empty if deleted), replaying the renames of the commit in order
+		 */
+		final Map<String, Optional<PolicyVersion>> txLatestPolicyVersions = new HashMap<>();
+		for (final Entry<Path, Path> rename : txImpl.commitRenames)
+		{
+			final Path source = rename.getKey();
+			if (!source.startsWith(txImpl.stagingDir))
+			{
+				/*
+				 * Removal of a policy directory (deleted policy), or of an old version file (never the latest)
+				 */
+				if (source.getParent().equals(this.policiesDir))
+				{
+					final String policyId = source.getFileName().toString();
+					txLatestPolicyVersions.put(policyId, Optional.empty());
+					pdpInputPolicyFiles.remove(policyId);
+				}
+
+				continue;
+			}
+
+			final Path target = rename.getValue();
+			stagedFiles.put(target, source);
+			final String filename = target.getFileName().toString();
+			if (!filename.endsWith(this.pdpInputPolicyFilenameSuffix))
+			{
+				continue;
+			}
+
+			final String policyId = target.getParent().getFileName().toString();
+			final PolicyVersion version = new PolicyVersion(filename.substring(0, filename.length() - this.pdpInputPolicyFilenameSuffix.length()));
+			final Optional<PolicyVersion> latestVersion = txLatestPolicyVersions.computeIfAbsent(policyId, this::getLatestPolicyVersion);
+			if (!latestVersion.isPresent() || version.compareTo(latestVersion.get()) >= 0)
+			{
+				txLatestPolicyVersions.put(policyId, Optional.of(version));
+				pdpInputPolicyFiles.put(policyId, target);
+			}
+		}
+
+		return getPdpInputPolicyLocations(pdpInputPolicyFiles, stagedFiles);
+	}
+
+	@Override
+	public PdpPolicyStore getPdpPolicyStore(final Transaction tx)
+	{
+		assert tx != null;
+		if (this.pdpPolicyStore == null)
+		{
+			throw new UnsupportedOperationException("In-memory policy store disabled");
+		}
+
+		final PdpPolicyStore txPdpPolicyStore = this.pdpPolicyStore.copy();
+		((FsBasedPrpDao.TransactionImpl) tx).pdpPolicyStoreUpdates.forEach(update -> update.accept(txPdpPolicyStore));
+		return txPdpPolicyStore;
+	}
+
+}
@@ -0,0 +1,338 @@
+/**
+ * Copyright (C) 2018-2019 THALES.
+ *
+ * This file is part of AuthzForce CE.
+ *
+ * AuthzForce CE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * AuthzForce CE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with AuthzForce CE.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.driver.testbed.sec.authz.service;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.hash.Hashing;
+
+/**
+ * Manifest of the XACML/JSON policy files of {@link FsBasedPrpDao} that have been validated, and converted to PDP input format (XACML/XML), so that they are not parsed/validated again on
+ * startup unless they changed in the meantime. Each entry is a JSON object on a single line: {@code {"path":...,"size":...,"mtime":...,"sha256":...,"xmlSize":...,"xmlMtime":...}} (path relative to
+ * the policies directory), where the last two are the size and modification time of the XACML/XML version of the policy (same filename, but PDP input suffix). A file is trusted if it has the same
+ * size and modification time as in its entry, or the same size and content hash (e.g. restored from a backup), and its XACML/XML version exists, with the same size and modification time.
+ * <p>
+ * Entries of new files are appended on commit. The manifest is rewritten on startup with the entries of the files found.
+ * <p>
+ * Thread-safe: on startup, {@link #checkUnchanged(Path, BasicFileAttributes)} and {@link #put(Path)} may be called concurrently (policy files verified in parallel), but {@link #save()} only once they
+ * are all done; then {@link #append(Path, String)} may be called concurrently by commits, until {@link #close()}.
+ */
+final class FsBasedPrpManifest
+{
+	private static final Logger LOGGER = LoggerFactory.getLogger(FsBasedPrpManifest.class);
+
+	private static final class Entry
+	{
+		private final long size;
+		private final long lastModifiedTime;
+		private final String sha256;
+		private final long pdpInputPolicySize;
+		private final long pdpInputPolicyLastModifiedTime;
+
+		private Entry(final long size, final long lastModifiedTime, final String sha256, final long pdpInputPolicySize, final long pdpInputPolicyLastModifiedTime)
+		{
+			this.size = size;
+			this.lastModifiedTime = lastModifiedTime;
+			this.sha256 = sha256;
+			this.pdpInputPolicySize = pdpInputPolicySize;
+			this.pdpInputPolicyLastModifiedTime = pdpInputPolicyLastModifiedTime;
+		}
+
+		private JSONObject toJson(final String path)
+		{
+			return new JSONObject().put("path", path).put("size", size).put("mtime", lastModifiedTime).put("sha256", sha256).put("xmlSize", pdpInputPolicySize).put("xmlMtime",
+			        pdpInputPolicyLastModifiedTime);
+		}
+	}
+
+	private static String sha256(final Path file) throws IOException
+	{
+		return Hashing.sha256().hashBytes(Files.readAllBytes(file)).toString();
+	}
+
+	private final Path baseDir;
+	private final Path manifestFile;
+	private final String jsonPolicyFilenameSuffix;
+	private final String pdpInputPolicyFilenameSuffix;
+	/*
+	 * Entries from the manifest file as loaded on startup
+	 */
+	private final Map<String, Entry> loadedEntries = new HashMap<>();
+	/*
+	 * Entries of the files found on startup, concurrent map since added by the parallel verification of the policy files (see FsBasedPrpDao#verifyPolicyFiles(List))
+	 */
+	private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+	private FileChannel appendChannel = null;
+
+	/**
+	 * Loads the manifest (if any)
+	 *
+	 * @param baseDirectory
+	 *            base directory of the paths in the manifest (policies directory)
+	 * @param manifestFile
+	 *            manifest file
+	 * @param jsonPolicyFilenameSuffix
+	 *            filename suffix of the XACML/JSON policy files
+	 * @param pdpInputPolicyFilenameSuffix
+	 *            filename suffix of the XACML/XML policy files (PDP input)
+	 */
+	FsBasedPrpManifest(final Path baseDirectory, final Path manifestFile, final String jsonPolicyFilenameSuffix, final String pdpInputPolicyFilenameSuffix)
+	{
+		assert baseDirectory != null && manifestFile != null && jsonPolicyFilenameSuffix != null && pdpInputPolicyFilenameSuffix != null;
+		this.baseDir = baseDirectory;
+		this.manifestFile = manifestFile;
+		this.jsonPolicyFilenameSuffix = jsonPolicyFilenameSuffix;
+		this.pdpInputPolicyFilenameSuffix = pdpInputPolicyFilenameSuffix;
+		if (!Files.exists(manifestFile))
+		{
+			return;
+		}
+
+		try (final BufferedReader reader = Files.newBufferedReader(manifestFile, StandardCharsets.UTF_8))
+		{
+			String line;
+			while ((line = reader.readLine()) != null)
+			{
+				try
+				{
+					final JSONObject entry = new JSONObject(line);
+					loadedEntries.put(entry.getString("path"),
+					        new Entry(entry.getLong("size"), entry.getLong("mtime"), entry.getString("sha256"), entry.getLong("xmlSize"), entry.getLong("xmlMtime")));
+				}
+				catch (final JSONException e)
+				{
+					/*
+					 * E.g. incomplete last entry (crash while appending) or entry of an older format, the file will be validated again
+					 */
+					LOGGER.warn("Ignoring invalid entry in policy manifest '{}': {}", manifestFile, line);
+				}
+			}
+		}
+		catch (final IOException e)
+		{
+			LOGGER.warn("Failed to read policy manifest '{}': all policy files will be validated", manifestFile, e);
+			loadedEntries.clear();
+		}
+	}
+
+	/**
+	 * Checks whether a policy file found on startup is in the manifest, unchanged, i.e. does not need to be validated/converted again; and if so, keeps its entry in the manifest
+	 *
+	 * @param file
+	 *            policy file in XACML/JSON format
+	 * @param attrs
+	 *            file attributes
+	 * @return true iff the file is trusted (validated and converted to PDP input format)
+	 */
+	boolean checkUnchanged(final Path file, final BasicFileAttributes attrs)
+	{
+		final String path = baseDir.relativize(file).toString();
+		final Entry entry = loadedEntries.get(path);
+		if (entry == null || entry.size != attrs.size())
+		{
+			return false;
+		}
+
+		/*
+		 * The XACML/XML version, loaded by the PDP as is, must be the one converted from this file
+		 */
+		try
+		{
+			final BasicFileAttributes pdpInputPolicyAttrs = Files.readAttributes(getPdpInputPolicyFile(file), BasicFileAttributes.class);
+			if (pdpInputPolicyAttrs.size() != entry.pdpInputPolicySize || pdpInputPolicyAttrs.lastModifiedTime().toMillis() != entry.pdpInputPolicyLastModifiedTime)
+			{
+				return false;
+			}
+		}
+		catch (final IOException e)
+		{
+			/*
+			 * E.g. NoSuchFileException
+			 */
+			return false;
+		}
+
+		final long lastModifiedTime = attrs.lastModifiedTime().toMillis();
+		if (entry.lastModifiedTime == lastModifiedTime)
+		{
+			entries.put(path, entry);
+			return true;
+		}
+
+		/*
+		 * Modified since validated, or just touched/copied?
+		 */
+		try
+		{
+			if (entry.sha256.equals(sha256(file)))
+			{
+				entries.put(path, new Entry(entry.size, lastModifiedTime, entry.sha256, entry.pdpInputPolicySize, entry.pdpInputPolicyLastModifiedTime));
+				return true;
+			}
+		}
+		catch (final IOException e)
+		{
+			LOGGER.debug("Failed to hash policy file '{}'", file, e);
+		}
+
+		return false;
+	}
+
+	/**
+	 * Checks whether a policy file found on startup was in the manifest, i.e. validated and converted before, whether it changed since or not
+	 *
+	 * @param file
+	 *            policy file in XACML/JSON format
+	 * @return true iff the manifest has an entry for the file
+	 */
+	boolean isKnown(final Path file)
+	{
+		return loadedEntries.containsKey(baseDir.relativize(file).toString());
+	}
+
+	private Path getPdpInputPolicyFile(final Path jsonFile)
+	{
+		final String jsonFilename = jsonFile.getFileName().toString();
+		return jsonFile.resolveSibling(jsonFilename.substring(0, jsonFilename.length() - jsonPolicyFilenameSuffix.length()) + pdpInputPolicyFilenameSuffix);
+	}
+
+	/**
+	 * Adds/replaces the entry of a policy file validated and converted to PDP input format on startup. May be called concurrently for different files.
+	 *
+	 * @param file
+	 *            policy file in XACML/JSON format
+	 * @throws IOException
+	 *             error reading file attributes/content
+	 */
+	void put(final Path file) throws IOException
+	{
+		entries.put(baseDir.relativize(file).toString(), newEntry(file, sha256(file)));
+	}
+
+	private Entry newEntry(final Path file, final String sha256) throws IOException
+	{
+		final BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+		final BasicFileAttributes pdpInputPolicyAttrs = Files.readAttributes(getPdpInputPolicyFile(file), BasicFileAttributes.class);
+		return new Entry(attrs.size(), attrs.lastModifiedTime().toMillis(), sha256, pdpInputPolicyAttrs.size(), pdpInputPolicyAttrs.lastModifiedTime().toMillis());
+	}
+
+	/**
+	 * Rewrites the manifest file with the entries of the policy files found on startup (atomic replacement), and opens it for appending entries on commit. Must be called after all the calls to
+	 * {@link #checkUnchanged(Path, BasicFileAttributes)} and {@link #put(Path)} have returned.
+	 */
+	void save()
+	{
+		final Path tmpManifestFile = manifestFile.resolveSibling(manifestFile.getFileName() + ".tmp");
+		try
+		{
+			try (final BufferedWriter writer = Files.newBufferedWriter(tmpManifestFile, StandardCharsets.UTF_8))
+			{
+				for (final Map.Entry<String, Entry> entry : entries.entrySet())
+				{
+					writer.write(entry.getValue().toJson(entry.getKey()).toString());
+					writer.write('\n');
+				}
+			}
+
+			Files.move(tmpManifestFile, manifestFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			this.appendChannel = FileChannel.open(manifestFile, StandardOpenOption.APPEND);
+		}
+		catch (final IOException e)
+		{
+			throw new RuntimeException("Failed to write policy manifest: " + manifestFile, e);
+		}
+
+		loadedEntries.clear();
+		entries.clear();
+	}
+
+	/**
+	 * Appends the entry of a committed policy file (validated and converted to PDP input format). Errors are only logged: the file is validated again on next startup.
+	 *
+	 * @param file
+	 *            policy file in XACML/JSON format
+	 * @param sha256
+	 *            SHA-256 hash of the file content (hex), computed when the file was written, so that the file is not read again
+	 */
+	synchronized void append(final Path file, final String sha256)
+	{
+		assert sha256 != null;
+		if (appendChannel == null)
+		{
+			/*
+			 * Closed
+			 */
+			return;
+		}
+
+		final String path = baseDir.relativize(file).toString();
+		try
+		{
+			final ByteBuffer buffer = ByteBuffer.wrap((newEntry(file, sha256).toJson(path).toString() + '\n').getBytes(StandardCharsets.UTF_8));
+			while (buffer.hasRemaining())
+			{
+				appendChannel.write(buffer);
+			}
+		}
+		catch (final IOException e)
+		{
+			LOGGER.warn("Failed to add policy file '{}' to manifest '{}'", file, manifestFile, e);
+		}
+	}
+
+	/**
+	 * Closes the manifest file opened for appending by {@link #save()}. No entry is appended afterwards.
+	 */
+	synchronized void close()
+	{
+		if (appendChannel == null)
+		{
+			return;
+		}
+
+		try
+		{
+			appendChannel.close();
+		}
+		catch (final IOException e)
+		{
+			LOGGER.warn("Failed to close policy manifest '{}'", manifestFile, e);
+		}
+
+		appendChannel = null;
+	}
+}
@@ -0,0 +1,259 @@
+/**
+ * Copyright (C) 2018-2019 THALES.
+ *
+ * This file is part of AuthzForce CE.
+ *
+ * AuthzForce CE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * AuthzForce CE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with AuthzForce CE.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.driver.testbed.sec.authz.service;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.FileSystemUtils;
+
+/**
+ * Write-ahead log (WAL) of the transactions of {@link FsBasedPrpDao}. A transaction stages its writes out of sight of the repository, then commits by logging (and syncing) the list of file renames
+ * that make them visible (staged files to their final location, deleted policy directories to the trash), before doing these renames; and logs the end of the commit afterwards. On startup, the
+ * renames of the commits that have not ended (e.g. crash in the middle of a commit) are redone, so that a transaction is either fully applied or not at all.
+ * <p>
+ * Each record is a JSON object on a single line: {@code {"commit":txId,"renames":[[from,to],...]}} or {@code {"end":txId}}, with paths relative to the policy repository directory.
+ */
+final class FsBasedPrpWriteAheadLog
+{
+	private static final Logger LOGGER = LoggerFactory.getLogger(FsBasedPrpWriteAheadLog.class);
+
+	/*
+	 * The log is truncated after a commit when it gets bigger than this
+	 */
+	private static final long CHECKPOINT_SIZE_BYTES = 1024 * 1024;
+
+	private final Path baseDir;
+	private final Path walFile;
+	private final FileChannel walChannel;
+
+	/**
+	 * Opens the log, and redoes the commits that have not ended
+	 *
+	 * @param baseDirectory
+	 *            base directory of the files to be renamed (policy repository directory)
+	 * @param walFile
+	 *            log file, created if it does not exist
+	 */
+	FsBasedPrpWriteAheadLog(final Path baseDirectory, final Path walFile)
+	{
+		assert baseDirectory != null && walFile != null;
+		this.baseDir = baseDirectory;
+		this.walFile = walFile;
+		if (Files.exists(walFile))
+		{
+			recover();
+		}
+
+		try
+		{
+			this.walChannel = FileChannel.open(walFile, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+			/*
+			 * All commits done at this point
+			 */
+			this.walChannel.truncate(0);
+		}
+		catch (final IOException e)
+		{
+			throw new RuntimeException("Failed to open policy repository transaction log: " + walFile, e);
+		}
+	}
+
+	private void recover()
+	{
+		/*
+		 * Transaction ID -> renames of the commits that have not ended
+		 */
+		final Map<Long, JSONArray> unfinishedCommits = new LinkedHashMap<>();
+		try (final BufferedReader reader = Files.newBufferedReader(walFile, StandardCharsets.UTF_8))
+		{
+			String line;
+			while ((line = reader.readLine()) != null)
+			{
+				final JSONObject record;
+				try
+				{
+					record = new JSONObject(line);
+				}
+				catch (final JSONException e)
+				{
+					/*
+					 * Incomplete last record (crash while logging the commit), i.e. the commit did not happen
+					 */
+					LOGGER.warn("Ignoring invalid record in policy repository transaction log '{}': {}", walFile, line);
+					continue;
+				}
+
+				if (record.has("commit"))
+				{
+					unfinishedCommits.put(record.getLong("commit"), record.getJSONArray("renames"));
+				}
+				else
+				{
+					unfinishedCommits.remove(record.getLong("end"));
+				}
+			}
+		}
+		catch (final IOException e)
+		{
+			throw new RuntimeException("Failed to read policy repository transaction log: " + walFile, e);
+		}
+
+		unfinishedCommits.forEach((txId, renames) -> {
+			LOGGER.warn("Redoing unfinished commit of policy repository transaction #{}", txId);
+			for (final Object rename : renames)
+			{
+				final JSONArray fromTo = (JSONArray) rename;
+				try
+				{
+					rename(baseDir.resolve(fromTo.getString(0)), baseDir.resolve(fromTo.getString(1)));
+				}
+				catch (final IOException e)
+				{
+					throw new RuntimeException("Failed to recover policy repository transaction #" + txId + " from log: " + walFile, e);
+				}
+			}
+		});
+	}
+
+	/*
+	 * Idempotent rename (source already renamed -> nothing to do), so that a commit may be redone
+	 */
+	private static void rename(final Path from, final Path to) throws IOException
+	{
+		if (!Files.exists(from))
+		{
+			return;
+		}
+
+		Files.createDirectories(to.getParent());
+		try
+		{
+			Files.move(from, to, StandardCopyOption.ATOMIC_MOVE);
+		}
+		catch (final AtomicMoveNotSupportedException e)
+		{
+			/*
+			 * E.g. directory from a lower layer of Docker container's overlay filesystem
+			 */
+			LOGGER.debug("Atomic move not supported from '{}' to '{}' -> copy and delete", from, to);
+			if (Files.isDirectory(to))
+			{
+				FileSystemUtils.deleteRecursively(to.toFile());
+			}
+
+			FileSystemUtils.copyRecursively(from.toFile(), to.toFile());
+			FileSystemUtils.deleteRecursively(from.toFile());
+		}
+	}
+
+	private void append(final JSONObject record, final boolean sync) throws IOException
+	{
+		final ByteBuffer buffer = ByteBuffer.wrap((record.toString() + '\n').getBytes(StandardCharsets.UTF_8));
+		while (buffer.hasRemaining())
+		{
+			walChannel.write(buffer);
+		}
+
+		if (sync)
+		{
+			walChannel.force(false);
+		}
+	}
+
+	/**
+	 * Commits a transaction: logs then does the renames, in the given order
+	 *
+	 * @param txId
+	 *            transaction ID
+	 * @param renames
+	 *            file/directory renames (source -> target, both in the base directory), making the changes of the transaction visible
+	 * @param onCommitLogged
+	 *            called once the commit is logged, i.e. once the transaction is committed for sure (at least after recovery)
+	 * @throws IOException
+	 *             error logging or renaming the files (the transaction is committed anyway if {@code onCommitLogged} was called, and recovery will complete it on next startup)
+	 */
+	synchronized void commit(final long txId, final List<Entry<Path, Path>> renames, final Runnable onCommitLogged) throws IOException
+	{
+		final JSONArray renamesJsonArray = new JSONArray();
+		for (final Entry<Path, Path> rename : renames)
+		{
+			if (Files.isRegularFile(rename.getKey()))
+			{
+				/*
+				 * Staged file content must be on disk before the commit is logged
+				 */
+				try (final FileChannel stagedFileChannel = FileChannel.open(rename.getKey(), StandardOpenOption.READ))
+				{
+					stagedFileChannel.force(true);
+				}
+			}
+
+			renamesJsonArray.put(new JSONArray().put(baseDir.relativize(rename.getKey()).toString()).put(baseDir.relativize(rename.getValue()).toString()));
+		}
+
+		append(new JSONObject().put("commit", txId).put("renames", renamesJsonArray), true);
+		onCommitLogged.run();
+		for (final Entry<Path, Path> rename : renames)
+		{
+			rename(rename.getKey(), rename.getValue());
+		}
+
+		append(new JSONObject().put("end", txId), false);
+		if (walChannel.size() > CHECKPOINT_SIZE_BYTES)
+		{
+			/*
+			 * Commits are serialized, so no commit is pending at this point
+			 */
+			walChannel.truncate(0);
+		}
+	}
+
+	/**
+	 * Closes the log file. No transaction may be committed afterwards.
+	 */
+	synchronized void close()
+	{
+		try
+		{
+			walChannel.close();
+		}
+		catch (final IOException e)
+		{
+			LOGGER.warn("Failed to close policy repository transaction log '{}'", walFile, e);
+		}
+	}
+}
@@ -0,0 +1,669 @@
+/**
+ * Copyright (C) 2018-2019 THALES.
+ *
+ * This file is part of AuthzForce CE.
+ *
+ * AuthzForce CE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * AuthzForce CE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with AuthzForce CE.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.driver.testbed.sec.authz.service;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Optional;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+import org.h2.mvstore.MVStore;
+import org.h2.mvstore.tx.TransactionMap;
+import org.h2.mvstore.tx.TransactionStore;
+import org.json.JSONObject;
+import org.ow2.authzforce.core.pdp.api.policy.PolicyVersion;
+import org.ow2.authzforce.xacml.json.model.XacmlJsonUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Strings;
+
+/**
+ * XACML PRP DAO (PRP = Policy Repository Point, DAO = Data Access Object interface) implementation based on an embedded transactional key-value store (H2 MVStore), in a single file.
+ * <p>
+ * Each policy content type is a map from '{policyId}\u0000{policyVersion}' to the policy content, where the policy version is encoded so that the key order is the policy version order: the latest
+ * version of a policy is found with a single key lookup (range scan) instead of a directory listing. Changes are made in MVStore transactions (rolled back if not committed), and written to disk
+ * on commit.
+ * <p>
+ * When the store is empty, it is loaded once from the policy directory of {@link FsBasedPrpDao} (if any), which is left unchanged.
+ * <p>
+ * The PDP must use the in-memory policy provider, which is kept in sync with the committed state of the store, i.e. updated on commit only (same as {@link FsBasedPrpDao}): the policies are
+ * not available as files ({@link #getLatestPdpInputPolicyLocations()} is not supported).
+ */
+final class MvStorePrpDao implements PrpDao
+{
+	private static final Logger LOGGER = LoggerFactory.getLogger(MvStorePrpDao.class);
+
+	private static final String POLICY_MAP_NAME_PREFIX = "policies.";
+	/*
+	 * Policy versions in PDP input format (XACML/XML), which also define the existing policy versions
+	 */
+	private static final String PDP_INPUT_POLICY_MAP_NAME = POLICY_MAP_NAME_PREFIX + "pdp";
+	private static final String XACML_JSON_POLICY_MAP_NAME = POLICY_MAP_NAME_PREFIX + "xacml-json";
+	private static final String CUSTOM_POLICY_MAP_NAME_PREFIX = POLICY_MAP_NAME_PREFIX + "custom.";
+	/*
+	 * Creation time of the policy versions (milliseconds since the epoch), for the retention policy (versions migrated or created before it was added have none)
+	 */
+	private static final String CREATION_TIME_MAP_NAME = POLICY_MAP_NAME_PREFIX + "created";
+
+	/*
+	 * Separator of policy ID and version in map keys, lower than any character in policy IDs, so that the keys of a given policy are contiguous
+	 */
+	private static final char KEY_SEPARATOR = '\u0000';
+	private static final char KEY_SEPARATOR_SUCCESSOR = '\u0001';
+
+	/*
+	 * Max number of digits of a policy version number (int)
+	 */
+	private static final int POLICY_VERSION_NUMBER_MAX_LENGTH = 10;
+
+	/*
+	 * Filename of a policy version in FsBasedPrpDao's directory: '{version}.{contentTypeId}' (content type ID not starting with a digit)
+	 */
+	private static final Pattern POLICY_VERSION_FILENAME_PATTERN = Pattern.compile("^(\\d+(?:\\.\\d+)*)\\.(\\D.*)$");
+
+	private static final class TransactionImpl implements Transaction
+	{
+		private final org.h2.mvstore.tx.Transaction mvTx;
+		private final MVStore mvStore;
+		private final PdpPolicyStore pdpPolicyStore;
+		private boolean isCommitted = false;
+		/*
+		 * Updates of the in-memory policy store, applied in order on commit (or to a copy of the store before commit, see getPdpPolicyStore(Transaction))
+		 */
+		private final List<Consumer<PdpPolicyStore>> pdpPolicyStoreUpdates = new ArrayList<>(3);
+
+		private TransactionImpl(final org.h2.mvstore.tx.Transaction mvTx, final MVStore mvStore, final PdpPolicyStore pdpPolicyStore)
+		{
+			this.mvTx = mvTx;
+			this.mvStore = mvStore;
+			this.pdpPolicyStore = pdpPolicyStore;
+		}
+
+		private void addPdpPolicyStoreUpdate(final Consumer<PdpPolicyStore> update)
+		{
+			pdpPolicyStoreUpdates.add(update);
+		}
+
+		@Override
+		public void commit()
+		{
+			mvTx.commit();
+			/*
+			 * Durability: write to disk now instead of waiting for the store's background auto-commit
+			 */
+			mvStore.commit();
+			this.isCommitted = true;
+			pdpPolicyStoreUpdates.forEach(update -> update.accept(pdpPolicyStore));
+		}
+
+		@Override
+		public void close()
+		{
+			try
+			{
+				if (!isCommitted)
+				{
+					/*
+					 * Abort transaction
+					 */
+					mvTx.rollback();
+				}
+			}
+			finally
+			{
+				pdpPolicyStoreUpdates.clear();
+			}
+		}
+	}
+
+	/*
+	 * Encodes a policy version so that the lexicographical order of the encoded versions is the order of the versions
+	 */
+	private static String encodePolicyVersion(final String policyVersion)
+	{
+		return String.join(".", Arrays.stream(policyVersion.split("\\.")).map(number -> Strings.padStart(number, POLICY_VERSION_NUMBER_MAX_LENGTH, '0'))
+		        .collect(Collectors.toList()));
+	}
+
+	private static String decodePolicyVersion(final String encodedPolicyVersion)
+	{
+		return String.join(".",
+		        Arrays.stream(encodedPolicyVersion.split("\\.")).map(number -> Integer.toString(Integer.parseInt(number, 10))).collect(Collectors.toList()));
+	}
+
+	private static String getKey(final String policyId, final String policyVersion)
+	{
+		return policyId + KEY_SEPARATOR + encodePolicyVersion(policyVersion);
+	}
+
+	private static String getPolicyId(final String key)
+	{
+		return key.substring(0, key.indexOf(KEY_SEPARATOR));
+	}
+
+	private static String getCustomPolicyMapName(final String customContentTypeId)
+	{
+		return CUSTOM_POLICY_MAP_NAME_PREFIX + customContentTypeId;
+	}
+
+	private static String getPolicyMapName(final Optional<String> customContentTypeId)
+	{
+		assert customContentTypeId != null;
+		return customContentTypeId.isPresent() ? getCustomPolicyMapName(customContentTypeId.get()) : XACML_JSON_POLICY_MAP_NAME;
+	}
+
+	/*
+	 * Latest key of a given policy in a given map, i.e. the key of the latest version
+	 */
+	private static Optional<String> getLatestKey(final TransactionMap<String, ?> map, final String policyId)
+	{
+		final String latestKey = map.lowerKey(policyId + KEY_SEPARATOR_SUCCESSOR);
+		return latestKey != null && latestKey.startsWith(policyId + KEY_SEPARATOR) ? Optional.of(latestKey) : Optional.empty();
+	}
+
+	/*
+	 * Keys of all versions of a given policy in a given map
+	 */
+	private static List<String> getKeys(final TransactionMap<String, ?> map, final String policyId)
+	{
+		final String keyPrefix = policyId + KEY_SEPARATOR;
+		final List<String> keys = new ArrayList<>();
+		final Iterator<String> keyIterator = map.keyIterator(keyPrefix);
+		while (keyIterator.hasNext())
+		{
+			final String key = keyIterator.next();
+			if (!key.startsWith(keyPrefix))
+			{
+				break;
+			}
+
+			keys.add(key);
+		}
+
+		return keys;
+	}
+
+	private final MVStore mvStore;
+	private final TransactionStore txStore;
+	/*
+	 * In-memory store of PDP input policies (required: the PDP loads the policies from it, not from files)
+	 */
+	private final PdpPolicyStore pdpPolicyStore;
+	private final PdpInputPolicyConverter pdpInputPolicyConverter;
+
+	/**
+	 * Creates DAO
+	 *
+	 * @param storeFile
+	 *            store file, created if it does not exist
+	 * @param legacyPoliciesDirectory
+	 *            policy directory of {@link FsBasedPrpDao}, from which the policies are migrated if the store is empty; null if none
+	 * @param pdpInputPolicyFilenameSuffix
+	 *            filename suffix of policy files in PDP input format (XACML/XML) in {@code legacyPoliciesDirectory}
+	 * @param xacmlJsonPolicyFilenameSuffix
+	 *            filename suffix of policy files in XACML/JSON format in {@code legacyPoliciesDirectory}
+	 * @param pdpPolicyStore
+	 *            in-memory store to be loaded with the latest version of each policy in PDP input format, and kept in sync with the repository
+	 * @param pdpInputPolicyConverter
+	 *            converter of XACML/JSON policies to PDP input format (XACML/XML)
+	 * @throws IllegalArgumentException
+	 *             {@code pdpPolicyStore} is null (in-memory policy provider disabled), or {@code storeFile} or {@code pdpInputPolicyConverter} is null
+	 */
+	MvStorePrpDao(final Path storeFile, final Path legacyPoliciesDirectory, final String pdpInputPolicyFilenameSuffix, final String xacmlJsonPolicyFilenameSuffix,
+	        final PdpPolicyStore pdpPolicyStore, final PdpInputPolicyConverter pdpInputPolicyConverter) throws IllegalArgumentException
+	{
+		Preconditions.checkArgument(storeFile != null && pdpInputPolicyConverter != null, "Undefined policy store file or pdpInputPolicyConverter");
+		Preconditions.checkArgument(pdpPolicyStore != null,
+		        "Undefined in-memory policy store: the policy store file requires the in-memory policy provider (the policies are not available as files to the PDP)");
+
+		this.mvStore = new MVStore.Builder().fileName(storeFile.toString()).open();
+		this.txStore = new TransactionStore(this.mvStore);
+		this.txStore.init();
+		this.pdpPolicyStore = pdpPolicyStore;
+		this.pdpInputPolicyConverter = pdpInputPolicyConverter;
+
+		final boolean isEmpty = read(mvTx -> !mvTx.<String, byte[]>openMap(PDP_INPUT_POLICY_MAP_NAME).keyIterator(null).hasNext());
+		if (isEmpty && legacyPoliciesDirectory != null)
+		{
+			migrate(legacyPoliciesDirectory, pdpInputPolicyFilenameSuffix, xacmlJsonPolicyFilenameSuffix);
+		}
+
+		/*
+		 * Load the latest version of each policy in the in-memory policy store
+		 */
+		read(mvTx -> {
+			final TransactionMap<String, byte[]> pdpInputPolicyMap = mvTx.openMap(PDP_INPUT_POLICY_MAP_NAME);
+			final Iterator<String> keyIterator = pdpInputPolicyMap.keyIterator(null);
+			String previousKey = null;
+			while (keyIterator.hasNext())
+			{
+				final String key = keyIterator.next();
+				if (previousKey != null && !getPolicyId(key).equals(getPolicyId(previousKey)))
+				{
+					pdpPolicyStore.put(getPolicyId(previousKey), PdpInputPolicyConverter.unmarshalPdpInputPolicy(pdpInputPolicyMap.get(previousKey)));
+				}
+
+				previousKey = key;
+			}
+
+			if (previousKey != null)
+			{
+				pdpPolicyStore.put(getPolicyId(previousKey), PdpInputPolicyConverter.unmarshalPdpInputPolicy(pdpInputPolicyMap.get(previousKey)));
+			}
+
+			return null;
+		});
+	}
+
+	/*
+	 * Read-only access to the committed state of the store
+	 */
+	private <T> T read(final Function<org.h2.mvstore.tx.Transaction, T> reader)
+	{
+		final org.h2.mvstore.tx.Transaction mvTx = this.txStore.begin();
+		try
+		{
+			return reader.apply(mvTx);
+		}
+		finally
+		{
+			mvTx.commit();
+		}
+	}
+
+	/*
+	 * One-shot migration of all the versions of all the policies in FsBasedPrpDao's policy directory ('{policyId}/{version}.{contentTypeId}')
+	 */
+	private void migrate(final Path policiesDirectory, final String pdpInputPolicyFilenameSuffix, final String xacmlJsonPolicyFilenameSuffix)
+	{
+		LOGGER.info("Policy store empty -> migrating policies from directory '{}'", policiesDirectory);
+		final org.h2.mvstore.tx.Transaction mvTx = this.txStore.begin();
+		int policyVersionCount = 0;
+		/*
+		 * Not the transaction directory of FsBasedPrpDao (staged files, manifest...)
+		 */
+		try (final DirectoryStream<Path> policyDirStream = Files.newDirectoryStream(policiesDirectory,
+		        path -> Files.isDirectory(path) && !path.getFileName().toString().equals(FsBasedPrpDao.TX_DIRECTORY_NAME)))
+		{
+			final TransactionMap<String, byte[]> pdpInputPolicyMap = mvTx.openMap(PDP_INPUT_POLICY_MAP_NAME);
+			for (final Path policyDir : policyDirStream)
+			{
+				final String policyId = policyDir.getFileName().toString();
+				try (final DirectoryStream<Path> policyVersionFileStream = Files.newDirectoryStream(policyDir, Files::isRegularFile))
+				{
+					for (final Path policyVersionFile : policyVersionFileStream)
+					{
+						final String filename = policyVersionFile.getFileName().toString();
+						if (filename.endsWith(pdpInputPolicyFilenameSuffix))
+						{
+							final String policyVersion = filename.substring(0, filename.length() - pdpInputPolicyFilenameSuffix.length());
+							pdpInputPolicyMap.put(getKey(policyId, policyVersion), Files.readAllBytes(policyVersionFile));
+							policyVersionCount++;
+							continue;
+						}
+
+						final String policyMapName;
+						final String policyVersion;
+						if (filename.endsWith(xacmlJsonPolicyFilenameSuffix))
+						{
+							policyMapName = XACML_JSON_POLICY_MAP_NAME;
+							policyVersion = filename.substring(0, filename.length() - xacmlJsonPolicyFilenameSuffix.length());
+						}
+						else
+						{
+							final Matcher matcher = POLICY_VERSION_FILENAME_PATTERN.matcher(filename);
+							if (!matcher.matches())
+							{
+								LOGGER.warn("Policy migration: ignoring file '{}' (not a policy version)", policyVersionFile);
+								continue;
+							}
+
+							policyVersion = matcher.group(1);
+							policyMapName = getCustomPolicyMapName(matcher.group(2));
+						}
+
+						final JSONObject policyContent = new JSONObject(new String(Files.readAllBytes(policyVersionFile), StandardCharsets.UTF_8));
+						if (policyMapName.equals(XACML_JSON_POLICY_MAP_NAME))
+						{
+							mvTx.<String, Long>openMap(CREATION_TIME_MAP_NAME).put(getKey(policyId, policyVersion), Files.getLastModifiedTime(policyVersionFile).toMillis());
+							final JSONObject jsonPolicy = policyContent.optJSONObject("policy");
+							if (jsonPolicy == null)
+							{
+								throw new IllegalArgumentException("Invalid XACML/JSON policy file: '" + policyVersionFile + "': root key != 'policy'");
+							}
+
+							XacmlJsonUtils.POLICY_SCHEMA.validate(jsonPolicy);
+							if (!Files.exists(policyDir.resolve(policyVersion + pdpInputPolicyFilenameSuffix)))
+							{
+								pdpInputPolicyMap.put(getKey(policyId, policyVersion), this.pdpInputPolicyConverter.convertXacmlJsonToXmlPolicy(policyContent));
+							}
+						}
+
+						mvTx.<String, String>openMap(policyMapName).put(getKey(policyId, policyVersion), policyContent.toString());
+					}
+				}
+			}
+
+			mvTx.commit();
+			this.mvStore.commit();
+		}
+		catch (IOException | DirectoryIteratorException e)
+		{
+			mvTx.rollback();
+			throw new RuntimeException("Error migrating policies from directory: " + policiesDirectory, e);
+		}
+		catch (final RuntimeException e)
+		{
+			mvTx.rollback();
+			throw e;
+		}
+
+		LOGGER.info("Migrated {} policy versions from directory '{}' (no longer used, may be removed)", policyVersionCount, policiesDirectory);
+	}
+
+	@Override
+	public Transaction newTx()
+	{
+		return new TransactionImpl(this.txStore.begin(), this.mvStore, this.pdpPolicyStore);
+	}
+
+	@Override
+	public void addPolicyVersion(final Transaction tx, final String policyId, final String policyVersion, final JSONObject policyContent, final Optional<String> customContentTypeId)
+	{
+		assert tx != null && policyId != null && policyVersion != null && policyContent != null && customContentTypeId != null;
+		final MvStorePrpDao.TransactionImpl txImpl = (MvStorePrpDao.TransactionImpl) tx;
+		final String key = getKey(policyId, policyVersion);
+		if (!customContentTypeId.isPresent())
+		{
+			/*
+			 * Default XACML/JSON content to be converted to XACML/XML. Make sure the version in policyContent is up-to-date.
+			 */
+			policyContent.getJSONObject("policy").put("version", policyVersion);
+			final byte[] pdpInputPolicy = this.pdpInputPolicyConverter.convertXacmlJsonToXmlPolicy(policyContent);
+			txImpl.mvTx.<String, byte[]>openMap(PDP_INPUT_POLICY_MAP_NAME).put(key, pdpInputPolicy);
+			txImpl.mvTx.<String, Long>openMap(CREATION_TIME_MAP_NAME).put(key, System.currentTimeMillis());
+			/*
+			 * Unmarshalled now, so that an invalid policy fails before commit
+			 */
+			final Object jaxbPolicy = PdpInputPolicyConverter.unmarshalPdpInputPolicy(pdpInputPolicy);
+			txImpl.addPdpPolicyStoreUpdate(store -> store.put(policyId, jaxbPolicy));
+		}
+
+		txImpl.mvTx.<String, String>openMap(getPolicyMapName(customContentTypeId)).put(key, policyContent.toString());
+	}
+
+	@Override
+	public Optional<PolicyVersion> getLatestPolicyVersion(final String policyId)
+	{
+		assert policyId != null;
+		return read(mvTx -> getLatestKey(mvTx.<String, byte[]>openMap(PDP_INPUT_POLICY_MAP_NAME), policyId)
+		        .map(key -> new PolicyVersion(decodePolicyVersion(key.substring(key.indexOf(KEY_SEPARATOR) + 1)))));
+	}
+
+	@Override
+	public Optional<JSONObject> getPolicy(final String policyId, final Optional<PolicyVersion> policyVersion)
+	{
+		assert policyId != null && policyVersion != null;
+		return read(mvTx -> {
+			final TransactionMap<String, String> xacmlJsonPolicyMap = mvTx.openMap(XACML_JSON_POLICY_MAP_NAME);
+			final Optional<String> key = policyVersion.isPresent() ? Optional.of(getKey(policyId, policyVersion.get().toString())) : getLatestKey(xacmlJsonPolicyMap, policyId);
+			return key.map(xacmlJsonPolicyMap::get).map(JSONObject::new);
+		});
+	}
+
+	@Override
+	public Optional<JSONObject> getLatestPolicyVersionContent(final String policyId, final Optional<String> customPolicyContentTypeId)
+	{
+		assert policyId != null && customPolicyContentTypeId != null;
+		return read(mvTx -> {
+			final TransactionMap<String, String> policyMap = mvTx.openMap(getPolicyMapName(customPolicyContentTypeId));
+			return getLatestKey(policyMap, policyId).map(policyMap::get).map(JSONObject::new);
+		});
+	}
+
+	@Override
+	public Optional<StoredPolicyContent> getLatestPolicyVersionStoredContent(final String policyId, final Optional<String> customPolicyContentTypeId)
+	{
+		assert policyId != null && customPolicyContentTypeId != null;
+		return read(mvTx -> {
+			final TransactionMap<String, String> policyMap = mvTx.openMap(getPolicyMapName(customPolicyContentTypeId));
+			final Optional<String> latestKey = getLatestKey(policyMap, policyId);
+			if (!latestKey.isPresent())
+			{
+				return Optional.empty();
+			}
+
+			final String key = latestKey.get();
+			final PolicyVersion version = new PolicyVersion(decodePolicyVersion(key.substring(key.indexOf(KEY_SEPARATOR) + 1)));
+			return Optional.of(StoredPolicyContent.ofBytes(version, policyMap.get(key).getBytes(StandardCharsets.UTF_8)));
+		});
+	}
+
+	@Override
+	public List<String> getChildPolicyIds(final String parentPolicyId)
+	{
+		assert parentPolicyId != null;
+		/*
+		 * '$' is the character following '#'
+		 */
+		final String childPolicyIdPrefix = parentPolicyId + "#";
+		final String childPolicyIdUpperBound = parentPolicyId + "$";
+		return read(mvTx -> {
+			final List<String> childPolicyIds = new ArrayList<>();
+			final Iterator<String> keyIterator = mvTx.<String, byte[]>openMap(PDP_INPUT_POLICY_MAP_NAME).keyIterator(childPolicyIdPrefix);
+			while (keyIterator.hasNext())
+			{
+				final String key = keyIterator.next();
+				if (key.compareTo(childPolicyIdUpperBound) >= 0)
+				{
+					break;
+				}
+
+				final String childPolicyId = getPolicyId(key);
+				if (childPolicyIds.isEmpty() || !childPolicyIds.get(childPolicyIds.size() - 1).equals(childPolicyId))
+				{
+					childPolicyIds.add(childPolicyId);
+				}
+			}
+
+			return childPolicyIds;
+		});
+	}
+
+	@Override
+	public Optional<JSONObject> getLatestEffectivePolicyVersionContent(final String policyId)
+	{
+		final Optional<JSONObject> wrappedXacmlJsonPolicy = getLatestPolicyVersionContent(policyId, Optional.empty());
+		if (!wrappedXacmlJsonPolicy.isPresent())
+		{
+			return wrappedXacmlJsonPolicy;
+		}
+
+		return Optional.of(PdpInputPolicyConverter.addChildPolicyRefs(wrappedXacmlJsonPolicy.get(), getChildPolicyIds(policyId)));
+	}
+
+	@Override
+	public void deletePolicy(final Transaction tx, final String policyId)
+	{
+		assert tx != null && policyId != null;
+		final MvStorePrpDao.TransactionImpl txImpl = (MvStorePrpDao.TransactionImpl) tx;
+		for (final String mapName : this.mvStore.getMapNames())
+		{
+			if (mapName.startsWith(POLICY_MAP_NAME_PREFIX))
+			{
+				final TransactionMap<String, Object> policyMap = txImpl.mvTx.openMap(mapName);
+				getKeys(policyMap, policyId).forEach(policyMap::remove);
+			}
+		}
+
+		txImpl.addPdpPolicyStoreUpdate(store -> store.remove(policyId));
+	}
+
+	@Override
+	public List<String> getPolicyIds()
+	{
+		return read(mvTx -> {
+			final List<String> policyIds = new ArrayList<>();
+			final Iterator<String> keyIterator = mvTx.<String, byte[]>openMap(PDP_INPUT_POLICY_MAP_NAME).keyIterator(null);
+			while (keyIterator.hasNext())
+			{
+				/*
+				 * Keys of the same policy are contiguous
+				 */
+				final String policyId = getPolicyId(keyIterator.next());
+				if (policyIds.isEmpty() || !policyIds.get(policyIds.size() - 1).equals(policyId))
+				{
+					policyIds.add(policyId);
+				}
+			}
+
+			return policyIds;
+		});
+	}
+
+	@Override
+	public int removeOldPolicyVersions(final Transaction tx, final String policyId, final int minVersionCount, final long minCreationTime)
+	{
+		assert tx != null && policyId != null;
+		final MvStorePrpDao.TransactionImpl txImpl = (MvStorePrpDao.TransactionImpl) tx;
+		final List<TransactionMap<String, Object>> policyMaps = new ArrayList<>();
+		for (final String mapName : this.mvStore.getMapNames())
+		{
+			if (mapName.startsWith(POLICY_MAP_NAME_PREFIX))
+			{
+				policyMaps.add(txImpl.mvTx.openMap(mapName));
+			}
+		}
+
+		/*
+		 * Latest version with each content type, never removed (the latest version has all content types but in legacy cases)
+		 */
+		final Set<String> latestKeys = policyMaps.stream().map(policyMap -> getLatestKey(policyMap, policyId)).filter(Optional::isPresent).map(Optional::get).collect(Collectors.toSet());
+		final TransactionMap<String, Long> creationTimeMap = txImpl.mvTx.openMap(CREATION_TIME_MAP_NAME);
+		final List<String> keys = getKeys(txImpl.mvTx.<String, byte[]>openMap(PDP_INPUT_POLICY_MAP_NAME), policyId);
+		int removedVersionCount = 0;
+		/*
+		 * Keys in version order, the last minVersionCount ones retained
+		 */
+		for (final String key : keys.subList(0, Math.max(0, keys.size() - minVersionCount)))
+		{
+			/*
+			 * Unknown creation time (version created before the retention policy was added): retained, unless retention by number only
+			 */
+			final Long creationTime = creationTimeMap.get(key);
+			if (latestKeys.contains(key) || minCreationTime != Long.MAX_VALUE && (creationTime == null || creationTime >= minCreationTime))
+			{
+				continue;
+			}
+
+			policyMaps.forEach(policyMap -> policyMap.remove(key));
+			removedVersionCount++;
+		}
+
+		return removedVersionCount;
+	}
+
+	@Override
+	public void forEachStoredPolicyVersion(final boolean latestOnly, final StoredPolicyVersionConsumer consumer)
+	{
+		assert consumer != null;
+		/*
+		 * Single read transaction, i.e. consistent snapshot of the store
+		 */
+		read(mvTx -> {
+			/*
+			 * XACML/JSON first, then the custom content types in order (map names)
+			 */
+			final Map<Optional<String>, TransactionMap<String, String>> policyMapsByContentType = new LinkedHashMap<>();
+			policyMapsByContentType.put(Optional.empty(), mvTx.openMap(XACML_JSON_POLICY_MAP_NAME));
+			this.mvStore.getMapNames().stream().filter(mapName -> mapName.startsWith(CUSTOM_POLICY_MAP_NAME_PREFIX)).sorted()
+			        .forEach(mapName -> policyMapsByContentType.put(Optional.of(mapName.substring(CUSTOM_POLICY_MAP_NAME_PREFIX.length())), mvTx.openMap(mapName)));
+
+			final Iterator<String> keyIterator = mvTx.<String, byte[]>openMap(PDP_INPUT_POLICY_MAP_NAME).keyIterator(null);
+			while (keyIterator.hasNext())
+			{
+				final String key = keyIterator.next();
+				final int separatorIndex = key.indexOf(KEY_SEPARATOR);
+				final String policyId = key.substring(0, separatorIndex);
+				final PolicyVersion version = new PolicyVersion(decodePolicyVersion(key.substring(separatorIndex + 1)));
+				for (final Entry<Optional<String>, TransactionMap<String, String>> policyMapEntry : policyMapsByContentType.entrySet())
+				{
+					final TransactionMap<String, String> policyMap = policyMapEntry.getValue();
+					if (latestOnly && !getLatestKey(policyMap, policyId).filter(key::equals).isPresent())
+					{
+						continue;
+					}
+
+					final String policyContent = policyMap.get(key);
+					if (policyContent != null)
+					{
+						consumer.accept(policyId, policyMapEntry.getKey(), StoredPolicyContent.ofBytes(version, policyContent.getBytes(StandardCharsets.UTF_8)));
+					}
+				}
+			}
+
+			return null;
+		});
+	}
+
+	@Override
+	public List<String> getLatestPdpInputPolicyLocations()
+	{
+		throw new UnsupportedOperationException("Policy locations not available from the policy store: the in-memory policy provider must be enabled");
+	}
+
+	@Override
+	public List<String> getLatestPdpInputPolicyLocations(final Transaction tx)
+	{
+		throw new UnsupportedOperationException("Policy locations not available from the policy store: the in-memory policy provider must be enabled");
+	}
+
+	@Override
+	public PdpPolicyStore getPdpPolicyStore(final Transaction tx)
+	{
+		assert tx != null;
+		final PdpPolicyStore txPdpPolicyStore = this.pdpPolicyStore.copy();
+		((MvStorePrpDao.TransactionImpl) tx).pdpPolicyStoreUpdates.forEach(update -> update.accept(txPdpPolicyStore));
+		return txPdpPolicyStore;
+	}
+
+	@Override
+	public void close()
+	{
+		this.mvStore.close();
+	}
+}
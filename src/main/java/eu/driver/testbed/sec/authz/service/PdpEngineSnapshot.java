@@ -0,0 +1,136 @@
+/**
+ * Copyright (C) 2018-2019 THALES.
+ *
+ * This file is part of AuthzForce CE.
+ *
+ * AuthzForce CE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * AuthzForce CE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with AuthzForce CE.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.driver.testbed.sec.authz.service;
+
+import java.util.Optional;
+
+import org.json.JSONObject;
+import org.ow2.authzforce.rest.pdp.jaxrs.XacmlPdpResource;
+
+/**
+ * PDP engine loaded from a given state of the policy repository, tagged with a generation number. The generation changes every time the PDP engine is reloaded after a policy change, so anything
+ * derived from a PDP engine (e.g. cached decisions) may be tied to the generation it comes from.
+ * <p>
+ * The generation is the one of the policy repository state the PDP engine was loaded from, i.e. the number of policy updates since startup.
+ * <p>
+ * The PDP engine may be completed with an index of the DRIVER access policies ({@link DriverPolicyIndex}) built from the same state of the policy repository, which answers the usual requests first;
+ * and with a {@link RequestAttributePruner} loaded from the same state, which removes the attributes that the policies do not use from the requests to the PDP engine. If subject-id
+ * canonicalization is enabled, the subject-id of the requests to the PDP engine is also converted to the canonical form of the DRIVER access policies (see {@link X500NameCanonicalizer}).
+ */
+final class PdpEngineSnapshot
+{
+	private final XacmlPdpResource pdpResource;
+	private final DriverPolicyIndex driverPolicyIndex;
+	private final RequestAttributePruner requestAttributePruner;
+	/*
+	 * Canonicalizer of the request subject-id, null if subject-id canonicalization is disabled
+	 */
+	private final X500NameCanonicalizer subjectIdCanonicalizer;
+	private final long generation;
+
+	PdpEngineSnapshot(final XacmlPdpResource pdpResource, final DriverPolicyIndex driverPolicyIndex, final RequestAttributePruner requestAttributePruner,
+	        final X500NameCanonicalizer subjectIdCanonicalizer, final long generation)
+	{
+		assert pdpResource != null && driverPolicyIndex != null && requestAttributePruner != null;
+		this.pdpResource = pdpResource;
+		this.driverPolicyIndex = driverPolicyIndex;
+		this.requestAttributePruner = requestAttributePruner;
+		this.subjectIdCanonicalizer = subjectIdCanonicalizer;
+		this.generation = generation;
+	}
+
+	/**
+	 * @return generation number of this PDP engine
+	 */
+	long getGeneration()
+	{
+		return generation;
+	}
+
+	/**
+	 * @return index of the DRIVER access policies ({@link DriverPolicyIndex#EMPTY} if disabled)
+	 */
+	DriverPolicyIndex getDriverPolicyIndex()
+	{
+		return driverPolicyIndex;
+	}
+
+	/**
+	 * Normalizes a XACML/JSON Request for the PDP engine: converts the subject-id to the canonical form matched by the DRIVER access policies if subject-id canonicalization is enabled (see
+	 * {@link X500NameCanonicalizer}), and removes the attributes that the policies of this PDP engine do not use, e.g. before computing the decision cache key, so that requests differing only by
+	 * unused attributes (or the order of the subject DN) get the same cached decision
+	 *
+	 * @param request
+	 *            XACML/JSON Request, not modified
+	 * @return normalized XACML/JSON Request (the original one if nothing to change)
+	 */
+	JSONObject normalizeRequest(final JSONObject request)
+	{
+		return requestAttributePruner.prune(subjectIdCanonicalizer == null ? request : subjectIdCanonicalizer.canonicalizeSubjectIds(request));
+	}
+
+	/**
+	 * Warms up the PDP engine (lazy initializations, JIT compilation...) before it is used for the first time, by evaluating sample requests directly with the PDP engine
+	 *
+	 * @param sampleRequests
+	 *            XACML/JSON Requests, e.g. recent requests to the previous PDP engine
+	 */
+	void warmUp(final Iterable<JSONObject> sampleRequests)
+	{
+		for (final JSONObject request : sampleRequests)
+		{
+			try
+			{
+				pdpResource.evaluateJson(normalizeRequest(request));
+			}
+			catch (final RuntimeException e)
+			{
+				/*
+				 * Warm-up only, the error will occur again (and be handled) if the request is sent again
+				 */
+			}
+		}
+	}
+
+	/**
+	 * Evaluates XACML/JSON Request, with the DRIVER policy index first, then the PDP engine (after normalization, see {@link #normalizeRequest(JSONObject)}) if the index cannot answer
+	 *
+	 * @param request
+	 *            XACML/JSON Request
+	 * @return XACML/JSON Response
+	 */
+	JSONObject evaluateJson(final JSONObject request)
+	{
+		final Optional<JSONObject> indexedResponse = driverPolicyIndex.evaluate(request);
+		return indexedResponse.isPresent() ? indexedResponse.get() : pdpResource.evaluateJson(normalizeRequest(request));
+	}
+
+	/**
+	 * Evaluates XACML/JSON Request already normalized with {@link #normalizeRequest(JSONObject)}, like {@link #evaluateJson(JSONObject)} but without normalizing again
+	 *
+	 * @param normalizedRequest
+	 *            XACML/JSON Request returned by {@link #normalizeRequest(JSONObject)}
+	 * @return XACML/JSON Response
+	 */
+	JSONObject evaluateNormalizedJson(final JSONObject normalizedRequest)
+	{
+		final Optional<JSONObject> indexedResponse = driverPolicyIndex.evaluate(normalizedRequest);
+		return indexedResponse.isPresent() ? indexedResponse.get() : pdpResource.evaluateJson(normalizedRequest);
+	}
+}
@@ -0,0 +1,374 @@
+/**
+ * Copyright (C) 2018-2019 THALES.
+ *
+ * This file is part of AuthzForce CE.
+ *
+ * AuthzForce CE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * AuthzForce CE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with AuthzForce CE.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.driver.testbed.sec.authz.service;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.xml.bind.JAXBException;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+import javax.xml.transform.stream.StreamSource;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.ow2.authzforce.core.pdp.api.XmlUtils;
+import org.ow2.authzforce.xacml.Xacml3JaxbHelper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.sf.saxon.s9api.BuildingStreamWriter;
+import net.sf.saxon.s9api.DocumentBuilder;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.Serializer;
+import net.sf.saxon.s9api.XdmNode;
+import net.sf.saxon.s9api.Xslt30Transformer;
+import net.sf.saxon.s9api.XsltExecutable;
+import net.sf.saxon.trace.XSLTTraceListener;
+
+/**
+ * Conversion of policies from the policy repository's format (XACML/JSON) to the PDP input format (XACML/XML), shared by the {@link PrpDao} implementations
+ * <p>
+ * Thread-safe: the compiled XSLT is shared, but each conversion uses its own transformer (or XML stream writer).
+ */
+final class PdpInputPolicyConverter
+{
+	private static final Logger LOGGER = LoggerFactory.getLogger(PdpInputPolicyConverter.class);
+
+	private static final String ORG_JSON_XML_TO_XACML_3_0_XSLT_LOCATION = AuthzWsJaxrsRootResource.class.getResource("xacml-json-to-xml.xslt").toString();
+	private static final XsltExecutable ORG_JSON_XML_TO_XACML_3_0_XSLT;
+
+	static
+	{
+		try
+		{
+			ORG_JSON_XML_TO_XACML_3_0_XSLT = XmlUtils.SAXON_PROCESSOR.newXsltCompiler().compile(new StreamSource(ORG_JSON_XML_TO_XACML_3_0_XSLT_LOCATION));
+		}
+		catch (final SaxonApiException e)
+		{
+			throw new RuntimeException("Cannot create processor of XSLT file (org.json.XML to XACML 3.0/XML transformation): " + ORG_JSON_XML_TO_XACML_3_0_XSLT_LOCATION, e);
+		}
+	}
+
+	/*
+	 * True iff XACML/JSON policies are converted to XACML/XML with XacmlJsonPolicyXmlWriter, false iff with the XSLT
+	 */
+	private final boolean directPolicyConversionEnabled;
+
+	/**
+	 * Creates converter
+	 *
+	 * @param directPolicyConversionEnabled
+	 *            true iff XACML/JSON policies are converted to XACML/XML directly, false iff with the XSLT (xacml-json-to-xml.xslt)
+	 */
+	PdpInputPolicyConverter(final boolean directPolicyConversionEnabled)
+	{
+		this.directPolicyConversionEnabled = directPolicyConversionEnabled;
+	}
+
+	/*
+	 * XSLT transformer, serializer and document builder of the current thread, reused from one transformation to the next (an Xslt30Transformer may be reused, but not concurrently)
+	 */
+	private static final class XsltContext
+	{
+		private final Xslt30Transformer transformer;
+		private final Serializer serializer;
+		private final DocumentBuilder documentBuilder;
+
+		private XsltContext()
+		{
+			this.transformer = ORG_JSON_XML_TO_XACML_3_0_XSLT.load30();
+			if (LOGGER.isDebugEnabled())
+			{
+				this.transformer.setTraceListener(new XSLTTraceListener());
+			}
+
+			this.serializer = this.transformer.newSerializer();
+			this.documentBuilder = XmlUtils.SAXON_PROCESSOR.newDocumentBuilder();
+		}
+	}
+
+	private static final ThreadLocal<XsltContext> XSLT_CONTEXT = ThreadLocal.withInitial(XsltContext::new);
+
+	private static final String XPATH_FUNCTIONS_NS = "http://www.w3.org/2005/xpath-functions";
+
+	/*
+	 * Writes a JSON value in the XML representation of JSON defined by XPath 3.1 (result of fn:json-to-xml), i.e. the input of the XSLT templates
+	 */
+	private static void writeJsonAsXml(final Object jsonValue, final String key, final boolean isRoot, final XMLStreamWriter writer) throws XMLStreamException
+	{
+		final String localName;
+		if (jsonValue instanceof JSONObject)
+		{
+			localName = "map";
+		}
+		else if (jsonValue instanceof JSONArray)
+		{
+			localName = "array";
+		}
+		else if (jsonValue instanceof Boolean)
+		{
+			localName = "boolean";
+		}
+		else if (jsonValue instanceof Number)
+		{
+			localName = "number";
+		}
+		else if (jsonValue == null || JSONObject.NULL.equals(jsonValue))
+		{
+			localName = "null";
+		}
+		else
+		{
+			localName = "string";
+		}
+
+		writer.writeStartElement("", localName, XPATH_FUNCTIONS_NS);
+		if (isRoot)
+		{
+			writer.writeDefaultNamespace(XPATH_FUNCTIONS_NS);
+		}
+
+		if (key != null)
+		{
+			writer.writeAttribute("key", key);
+		}
+
+		if (jsonValue instanceof JSONObject)
+		{
+			final JSONObject jsonObject = (JSONObject) jsonValue;
+			for (final String childKey : jsonObject.keySet())
+			{
+				writeJsonAsXml(jsonObject.get(childKey), childKey, false, writer);
+			}
+		}
+		else if (jsonValue instanceof JSONArray)
+		{
+			for (final Object item : (JSONArray) jsonValue)
+			{
+				writeJsonAsXml(item, null, false, writer);
+			}
+		}
+		else if (!"null".equals(localName))
+		{
+			writer.writeCharacters(jsonValue.toString());
+		}
+
+		writer.writeEndElement();
+	}
+
+	private static void transformXacmlJsonToXmlPolicy(final JSONObject inputJson, final OutputStream out)
+	{
+		LOGGER.debug("Applying XSLT '{}' to XACML/JSON policy: {}", ORG_JSON_XML_TO_XACML_3_0_XSLT_LOCATION, inputJson);
+		final XsltContext xsltCtx = XSLT_CONTEXT.get();
+		try
+		{
+			/*
+			 * Build the XML representation of the JSON directly, same as the XSLT's initial template does with fn:json-to-xml() from the JSON string, without serializing the JSON to a string and
+			 * parsing it again
+			 */
+			final BuildingStreamWriter jsonXmlWriter = xsltCtx.documentBuilder.newBuildingStreamWriter();
+			jsonXmlWriter.writeStartDocument();
+			jsonXmlWriter.setDefaultNamespace(XPATH_FUNCTIONS_NS);
+			writeJsonAsXml(inputJson, null, true, jsonXmlWriter);
+			jsonXmlWriter.writeEndDocument();
+			jsonXmlWriter.close();
+			final XdmNode jsonXml = jsonXmlWriter.getDocumentNode();
+
+			xsltCtx.serializer.setOutputStream(out);
+			xsltCtx.transformer.applyTemplates(jsonXml, xsltCtx.serializer);
+		}
+		catch (final SaxonApiException | XMLStreamException e)
+		{
+			throw new RuntimeException("Failed to transform XACML 3.0/JSON into XACML 3.0/XML policy", e);
+		}
+		finally
+		{
+			/*
+			 * Do not keep a reference to the output stream in the thread-local serializer
+			 */
+			xsltCtx.serializer.setOutputStream(null);
+		}
+	}
+
+	/**
+	 * Converts a XACML/JSON policy to XACML/XML
+	 *
+	 * @param inputJson
+	 *            XACML/JSON policy wrapped in a JSON object with root key 'policy'
+	 * @param out
+	 *            output stream (not closed)
+	 */
+	void convertXacmlJsonToXmlPolicy(final JSONObject inputJson, final OutputStream out)
+	{
+		if (this.directPolicyConversionEnabled)
+		{
+			try
+			{
+				XacmlJsonPolicyXmlWriter.write(inputJson, out);
+			}
+			catch (final XMLStreamException e)
+			{
+				throw new RuntimeException("Failed to convert XACML 3.0/JSON into XACML 3.0/XML policy", e);
+			}
+		}
+		else
+		{
+			transformXacmlJsonToXmlPolicy(inputJson, out);
+		}
+	}
+
+	/**
+	 * Converts a XACML/JSON policy to a XACML/XML file
+	 *
+	 * @param inputJson
+	 *            XACML/JSON policy wrapped in a JSON object with root key 'policy'
+	 * @param outXmlFile
+	 *            output file
+	 */
+	void convertXacmlJsonToXmlPolicy(final JSONObject inputJson, final Path outXmlFile)
+	{
+		LOGGER.debug("Converting XACML/JSON policy to XACML/XML file '{}'", outXmlFile);
+		try (final OutputStream out = new BufferedOutputStream(Files.newOutputStream(outXmlFile)))
+		{
+			convertXacmlJsonToXmlPolicy(inputJson, out);
+		}
+		catch (final IOException e)
+		{
+			throw new RuntimeException("Failed to write XACML 3.0/XML policy file: " + outXmlFile, e);
+		}
+	}
+
+	/**
+	 * Converts a XACML/JSON policy to XACML/XML
+	 *
+	 * @param inputJson
+	 *            XACML/JSON policy wrapped in a JSON object with root key 'policy'
+	 * @return XACML/XML policy document (UTF-8)
+	 */
+	byte[] convertXacmlJsonToXmlPolicy(final JSONObject inputJson)
+	{
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		convertXacmlJsonToXmlPolicy(inputJson, out);
+		return out.toByteArray();
+	}
+
+	/**
+	 * Parses a policy in PDP input format
+	 *
+	 * @param xmlFile
+	 *            XACML/XML policy file
+	 * @return XACML/XML Policy or PolicySet (JAXB)
+	 */
+	static Object unmarshalPdpInputPolicy(final Path xmlFile)
+	{
+		try
+		{
+			return Xacml3JaxbHelper.createXacml3Unmarshaller().unmarshal(xmlFile.toFile());
+		}
+		catch (final JAXBException e)
+		{
+			throw new RuntimeException("Failed to parse XACML/XML policy file: " + xmlFile, e);
+		}
+	}
+
+	/**
+	 * Parses a policy in PDP input format
+	 *
+	 * @param xml
+	 *            XACML/XML policy document
+	 * @return XACML/XML Policy or PolicySet (JAXB)
+	 */
+	static Object unmarshalPdpInputPolicy(final byte[] xml)
+	{
+		try
+		{
+			return Xacml3JaxbHelper.createXacml3Unmarshaller().unmarshal(new ByteArrayInputStream(xml));
+		}
+		catch (final JAXBException e)
+		{
+			throw new RuntimeException("Failed to parse XACML/XML policy", e);
+		}
+	}
+
+	/**
+	 * Adds references to the child policies not referenced yet, after the policies of the parent policy (XACML/JSON), i.e. makes the effective parent policy (see
+	 * {@link PrpDao#getChildPolicyIds(String)})
+	 *
+	 * @param wrappedXacmlJsonPolicy
+	 *            XACML/JSON parent policy wrapped in a JSON object with root key 'policy', modified by this method
+	 * @param childPolicyIds
+	 *            child policy IDs
+	 * @return {@code wrappedXacmlJsonPolicy}
+	 */
+	static JSONObject addChildPolicyRefs(final JSONObject wrappedXacmlJsonPolicy, final List<String> childPolicyIds)
+	{
+		final JSONObject xacmlJsonPolicy = wrappedXacmlJsonPolicy.optJSONObject("policy");
+		if (childPolicyIds.isEmpty() || xacmlJsonPolicy == null || xacmlJsonPolicy.has("rules"))
+		{
+			/*
+			 * Not a policy set
+			 */
+			return wrappedXacmlJsonPolicy;
+		}
+
+		final JSONArray policiesJsonArray;
+		if (xacmlJsonPolicy.has("policies"))
+		{
+			policiesJsonArray = xacmlJsonPolicy.getJSONArray("policies");
+		}
+		else
+		{
+			policiesJsonArray = new JSONArray();
+			xacmlJsonPolicy.put("policies", policiesJsonArray);
+		}
+
+		/*
+		 * Child policies referenced explicitly (legacy)
+		 */
+		final Set<String> referencedPolicyIds = new HashSet<>();
+		for (final Object policyJson : policiesJsonArray)
+		{
+			final JSONObject policyRefJsonObject = policyJson instanceof JSONObject ? ((JSONObject) policyJson).optJSONObject("policyRef") : null;
+			if (policyRefJsonObject != null)
+			{
+				referencedPolicyIds.add(policyRefJsonObject.getString("id"));
+			}
+		}
+
+		for (final String childPolicyId : childPolicyIds)
+		{
+			if (!referencedPolicyIds.contains(childPolicyId))
+			{
+				policiesJsonArray.put(new JSONObject(Collections.singletonMap("policyRef", new JSONObject(Collections.singletonMap("id", childPolicyId)))));
+			}
+		}
+
+		return wrappedXacmlJsonPolicy;
+	}
+}
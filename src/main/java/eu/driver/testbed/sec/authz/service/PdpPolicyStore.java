@@ -0,0 +1,247 @@
+/**
+ * Copyright (C) 2018-2019 THALES.
+ *
+ * This file is part of AuthzForce CE.
+ *
+ * AuthzForce CE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * AuthzForce CE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with AuthzForce CE.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.driver.testbed.sec.authz.service;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.ow2.authzforce.core.pdp.api.policy.StaticTopLevelPolicyElementEvaluator;
+
+import com.google.common.base.Preconditions;
+
+import oasis.names.tc.xacml._3_0.core.schema.wd_17.Policy;
+import oasis.names.tc.xacml._3_0.core.schema.wd_17.PolicySet;
+
+/**
+ * In-memory store of the latest version of each policy in the PDP input format (XACML/XML, JAXB-unmarshalled), kept in sync with the policy repository by the {@link PrpDao}. It also keeps the policy
+ * evaluators built from these policies by {@link PrpRefPolicyProvider}, so that a PDP reload after a policy update only builds the evaluators of the changed policies and of the policies referencing
+ * them (directly or indirectly), and reuses all the others.
+ * <p>
+ * Thread-safe.
+ */
+final class PdpPolicyStore
+{
+	/*
+	 * Sorted by policy ID, to find the child policies of a parent policy by prefix (see PrpDao#getChildPolicyIds(String))
+	 */
+	private final NavigableMap<String, Object> jaxbPoliciesById = new TreeMap<>();
+
+	private final Map<String, StaticTopLevelPolicyElementEvaluator> evaluatorsById = new HashMap<>();
+
+	/*
+	 * Policy ID -> IDs of the policy(Set)s referencing it (directly or indirectly) in the cached evaluators
+	 */
+	private final Map<String, Set<String>> dependentPolicyIdsById = new HashMap<>();
+
+	/*
+	 * Incremented on every change of the policies, to detect evaluators built from policies changed in the meantime
+	 */
+	private long modCount = 0;
+
+	/*
+	 * Removes the evaluator of the policy and the evaluators of the policies depending on it
+	 */
+	private void invalidate(final String policyId)
+	{
+		modCount++;
+		if (jaxbPoliciesById.get(policyId) instanceof Policy)
+		{
+			/*
+			 * References to Policies (PolicyIdReferences) are not tracked (no policySetRefChain), so we don't know the referring policies
+			 */
+			evaluatorsById.clear();
+			dependentPolicyIdsById.clear();
+			return;
+		}
+
+		final Deque<String> policyIdsToInvalidate = new ArrayDeque<>();
+		policyIdsToInvalidate.add(policyId);
+		while (!policyIdsToInvalidate.isEmpty())
+		{
+			final String id = policyIdsToInvalidate.poll();
+			evaluatorsById.remove(id);
+			final Set<String> dependentPolicyIds = dependentPolicyIdsById.remove(id);
+			if (dependentPolicyIds != null)
+			{
+				policyIdsToInvalidate.addAll(dependentPolicyIds);
+			}
+		}
+	}
+
+	/*
+	 * Removes the evaluator of the parent policy (and the ones depending on it) after a child policy is added or removed, since the parent policy references its child policies implicitly
+	 */
+	private void invalidateParent(final String policyId)
+	{
+		final int parentPolicyIdEndIndex = policyId.indexOf('#');
+		if (parentPolicyIdEndIndex > 0)
+		{
+			invalidate(policyId.substring(0, parentPolicyIdEndIndex));
+		}
+	}
+
+	/**
+	 * Copies this store, including the cached evaluators, e.g. to apply changes that are not committed yet to the copy only
+	 *
+	 * @return independent copy of this store
+	 */
+	synchronized PdpPolicyStore copy()
+	{
+		final PdpPolicyStore copy = new PdpPolicyStore();
+		copy.jaxbPoliciesById.putAll(jaxbPoliciesById);
+		copy.evaluatorsById.putAll(evaluatorsById);
+		dependentPolicyIdsById.forEach((policyId, dependentPolicyIds) -> copy.dependentPolicyIdsById.put(policyId, new HashSet<>(dependentPolicyIds)));
+		copy.modCount = modCount;
+		return copy;
+	}
+
+	/**
+	 * Sets the latest version of a policy
+	 *
+	 * @param policyId
+	 *            policy ID
+	 * @param jaxbPolicy
+	 *            XACML/XML Policy or PolicySet
+	 * @return previous latest version of the policy, if any
+	 */
+	synchronized Optional<Object> put(final String policyId, final Object jaxbPolicy)
+	{
+		Preconditions.checkArgument(jaxbPolicy instanceof Policy || jaxbPolicy instanceof PolicySet, "Invalid XACML/XML policy: not a Policy or PolicySet");
+		invalidate(policyId);
+		final Optional<Object> previousJaxbPolicy = Optional.ofNullable(jaxbPoliciesById.put(policyId, jaxbPolicy));
+		invalidate(policyId);
+		if (!previousJaxbPolicy.isPresent())
+		{
+			invalidateParent(policyId);
+		}
+
+		return previousJaxbPolicy;
+	}
+
+	/**
+	 * Removes a policy
+	 *
+	 * @param policyId
+	 *            policy ID
+	 * @return latest version of the removed policy, if any
+	 */
+	synchronized Optional<Object> remove(final String policyId)
+	{
+		invalidate(policyId);
+		final Optional<Object> removedJaxbPolicy = Optional.ofNullable(jaxbPoliciesById.remove(policyId));
+		if (removedJaxbPolicy.isPresent())
+		{
+			invalidateParent(policyId);
+		}
+
+		return removedJaxbPolicy;
+	}
+
+	/**
+	 * Gets the latest version of a policy
+	 *
+	 * @param policyId
+	 *            policy ID
+	 * @return XACML/XML Policy or PolicySet; empty if no such policy
+	 */
+	synchronized Optional<Object> get(final String policyId)
+	{
+		return Optional.ofNullable(jaxbPoliciesById.get(policyId));
+	}
+
+	/**
+	 * Gets the child policies of a policy, i.e. the policies with ID '{parentPolicyId}#...'
+	 *
+	 * @param parentPolicyId
+	 *            parent policy ID
+	 * @return child policy IDs, sorted
+	 */
+	synchronized List<String> getChildPolicyIds(final String parentPolicyId)
+	{
+		/*
+		 * '$' is the character following '#'
+		 */
+		return new ArrayList<>(jaxbPoliciesById.subMap(parentPolicyId + "#", true, parentPolicyId + "$", false).keySet());
+	}
+
+	/**
+	 * @return current modification count, to be passed to {@link #putEvaluator(String, StaticTopLevelPolicyElementEvaluator, Collection, long)}
+	 */
+	synchronized long getModCount()
+	{
+		return modCount;
+	}
+
+	/**
+	 * Gets the cached evaluator of a policy
+	 *
+	 * @param policyId
+	 *            policy ID
+	 * @param referringPolicyIds
+	 *            IDs of the policy(Set)s referencing this policy (directly or indirectly), in which the evaluator is to be used
+	 * @return evaluator built from the latest version of the policy; empty if none cached
+	 */
+	synchronized Optional<StaticTopLevelPolicyElementEvaluator> getEvaluator(final String policyId, final Collection<String> referringPolicyIds)
+	{
+		final StaticTopLevelPolicyElementEvaluator evaluator = evaluatorsById.get(policyId);
+		if (evaluator == null)
+		{
+			return Optional.empty();
+		}
+
+		dependentPolicyIdsById.computeIfAbsent(policyId, k -> new HashSet<>()).addAll(referringPolicyIds);
+		return Optional.of(evaluator);
+	}
+
+	/**
+	 * Caches the evaluator of a policy, unless the policies have changed since the evaluator was built
+	 *
+	 * @param policyId
+	 *            policy ID
+	 * @param evaluator
+	 *            evaluator built from the latest version of the policy
+	 * @param referringPolicyIds
+	 *            IDs of the policy(Set)s referencing this policy (directly or indirectly), in which the evaluator is used
+	 * @param expectedModCount
+	 *            value of {@link #getModCount()} before the evaluator was built
+	 */
+	synchronized void putEvaluator(final String policyId, final StaticTopLevelPolicyElementEvaluator evaluator, final Collection<String> referringPolicyIds, final long expectedModCount)
+	{
+		if (modCount != expectedModCount)
+		{
+			return;
+		}
+
+		evaluatorsById.put(policyId, evaluator);
+		/*
+		 * A change to this policy invalidates the referring policies
+		 */
+		dependentPolicyIdsById.computeIfAbsent(policyId, k -> new HashSet<>()).addAll(referringPolicyIds);
+	}
+}
@@ -0,0 +1,119 @@
+/**
+ * Copyright (C) 2018-2019 THALES.
+ *
+ * This file is part of AuthzForce CE.
+ *
+ * AuthzForce CE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * AuthzForce CE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with AuthzForce CE.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.driver.testbed.sec.authz.service;
+
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Background PDP reloader: reload requests are coalesced, i.e. all the requests made until a reload starts (at least {@code delayMillis} after the first request) are served by this single reload.
+ * Requests made while a reload is running trigger another one afterwards, so the last policy update is always taken into account. Reloads are executed one at a time by a single daemon thread.
+ */
+final class PdpReloader
+{
+	private static final Logger LOGGER = LoggerFactory.getLogger(PdpReloader.class);
+
+	private static final long SHUTDOWN_TIMEOUT_SECONDS = 30;
+
+	private final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, runnable -> {
+		final Thread thread = new Thread(runnable, "pdp-reloader");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	private final long delayMillis;
+	private final Runnable reloadTask;
+	private final AtomicBoolean isReloadPending = new AtomicBoolean(false);
+
+	/**
+	 * Creates the reloader
+	 *
+	 * @param delayMillis
+	 *            delay (ms) between the first reload request and the actual reload, to coalesce bursts of requests
+	 * @param reloadTask
+	 *            PDP reload procedure
+	 */
+	PdpReloader(final long delayMillis, final Runnable reloadTask)
+	{
+		Preconditions.checkArgument(delayMillis >= 0 && reloadTask != null, "Invalid PDP reload delay (< 0) or undefined reload task");
+		this.delayMillis = delayMillis;
+		this.reloadTask = reloadTask;
+		/*
+		 * No point in reloading the PDP once closed
+		 */
+		this.executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+	}
+
+	private void reload()
+	{
+		/*
+		 * Requests from now on must trigger a new reload
+		 */
+		isReloadPending.set(false);
+		try
+		{
+			reloadTask.run();
+		}
+		catch (final RuntimeException e)
+		{
+			/*
+			 * Do not let the exception kill the executor's thread
+			 */
+			LOGGER.error("PDP reload failed", e);
+		}
+	}
+
+	/**
+	 * Requests a PDP reload, unless one is already pending
+	 */
+	void requestReload()
+	{
+		if (isReloadPending.compareAndSet(false, true))
+		{
+			executor.schedule(this::reload, delayMillis, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Stops the reloader: a pending reload is cancelled, a running one is completed (waiting up to {@value #SHUTDOWN_TIMEOUT_SECONDS} seconds)
+	 */
+	void close()
+	{
+		executor.shutdown();
+		try
+		{
+			if (!executor.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS))
+			{
+				LOGGER.warn("PDP reload not terminated after {}s -> interrupting", SHUTDOWN_TIMEOUT_SECONDS);
+				executor.shutdownNow();
+			}
+		}
+		catch (final InterruptedException e)
+		{
+			executor.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,172 @@
+/**
+ * Copyright (C) 2018-2019 THALES.
+ *
+ * This file is part of AuthzForce CE.
+ *
+ * AuthzForce CE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * AuthzForce CE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with AuthzForce CE.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.driver.testbed.sec.authz.service;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.function.Function;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Background compaction of the policy repository: removes the old versions of the policies according to a retention policy (keep the N latest versions and/or the versions newer than T), so that the
+ * size of the repository does not grow with the number of policy updates. Each policy is compacted in its own transaction, while holding the same lock as the policy updates on the PAP, so that
+ * compaction and updates of the same policy are serialized. The latest version of a policy is never removed, so the PDP is not affected.
+ */
+final class PolicyVersionCompactor
+{
+	private static final Logger LOGGER = LoggerFactory.getLogger(PolicyVersionCompactor.class);
+
+	private static final long SHUTDOWN_TIMEOUT_SECONDS = 30;
+
+	private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+		final Thread thread = new Thread(runnable, "policy-version-compactor");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	private final PrpDao prpDao;
+	private final Function<String, Lock> policyLockProvider;
+	private final int minVersionCount;
+	private final long maxAgeMillis;
+
+	/**
+	 * Creates the compactor and schedules the compaction
+	 *
+	 * @param prpDao
+	 *            policy repository
+	 * @param policyLockProvider
+	 *            provides the lock held by the policy updates of a given policy (ID)
+	 * @param minVersionCount
+	 *            number of latest versions of each policy to be retained; 0 or less to retain by age only (the latest version is always retained)
+	 * @param maxAgeMillis
+	 *            versions created less than this number of milliseconds ago are retained; 0 or less to retain by number only
+	 * @param intervalMillis
+	 *            delay (ms) between two compactions
+	 * @throws IllegalArgumentException
+	 *             undefined {@code prpDao} or {@code policyLockProvider}, no retention criterion ({@code minVersionCount} and {@code maxAgeMillis} both <= 0), or {@code intervalMillis} <= 0
+	 */
+	PolicyVersionCompactor(final PrpDao prpDao, final Function<String, Lock> policyLockProvider, final int minVersionCount, final long maxAgeMillis, final long intervalMillis)
+	        throws IllegalArgumentException
+	{
+		Preconditions.checkArgument(prpDao != null && policyLockProvider != null, "Undefined PRP DAO or policy lock provider");
+		Preconditions.checkArgument(minVersionCount > 0 || maxAgeMillis > 0, "Invalid policy version retention: neither version count nor age > 0");
+		Preconditions.checkArgument(intervalMillis > 0, "Invalid policy compaction interval: %s (expected > 0)", intervalMillis);
+		this.prpDao = prpDao;
+		this.policyLockProvider = policyLockProvider;
+		/*
+		 * Retained by age only -> the latest version must be retained anyway
+		 */
+		this.minVersionCount = Math.max(1, minVersionCount);
+		this.maxAgeMillis = maxAgeMillis;
+		executor.scheduleWithFixedDelay(this::compactSafely, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	private void compactSafely()
+	{
+		try
+		{
+			compact();
+		}
+		catch (final RuntimeException e)
+		{
+			/*
+			 * Do not let the exception cancel the next compactions
+			 */
+			LOGGER.error("Policy version compaction failed", e);
+		}
+	}
+
+	/**
+	 * Removes the old versions of every policy according to the retention policy
+	 *
+	 * @return number of policy versions removed
+	 */
+	int compact()
+	{
+		final long minCreationTime = maxAgeMillis > 0 ? System.currentTimeMillis() - maxAgeMillis : Long.MAX_VALUE;
+		int removedVersionCount = 0;
+		for (final String policyId : prpDao.getPolicyIds())
+		{
+			if (executor.isShutdown())
+			{
+				/*
+				 * Closed
+				 */
+				break;
+			}
+
+			final Lock policyLock = policyLockProvider.apply(policyId);
+			policyLock.lock();
+			try (final Transaction tx = prpDao.newTx())
+			{
+				final int policyRemovedVersionCount = prpDao.removeOldPolicyVersions(tx, policyId, minVersionCount, minCreationTime);
+				if (policyRemovedVersionCount > 0)
+				{
+					tx.commit();
+					removedVersionCount += policyRemovedVersionCount;
+				}
+			}
+			catch (final Exception e)
+			{
+				/*
+				 * Try the other policies anyway
+				 */
+				LOGGER.warn("Failed to remove old versions of policy '{}'", policyId, e);
+			}
+			finally
+			{
+				policyLock.unlock();
+			}
+		}
+
+		if (removedVersionCount > 0)
+		{
+			LOGGER.info("Policy version compaction: {} old policy versions removed", removedVersionCount);
+		}
+
+		return removedVersionCount;
+	}
+
+	/**
+	 * Stops the compaction: a running compaction stops after the current policy (waiting up to {@value #SHUTDOWN_TIMEOUT_SECONDS} seconds)
+	 */
+	void close()
+	{
+		executor.shutdown();
+		try
+		{
+			if (!executor.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS))
+			{
+				LOGGER.warn("Policy version compaction not terminated after {}s -> interrupting", SHUTDOWN_TIMEOUT_SECONDS);
+				executor.shutdownNow();
+			}
+		}
+		catch (final InterruptedException e)
+		{
+			executor.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,176 @@
+/**
+ * Copyright (C) 2018-2019 THALES.
+ *
+ * This file is part of AuthzForce CE.
+ *
+ * AuthzForce CE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * AuthzForce CE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with AuthzForce CE.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.driver.testbed.sec.authz.service;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.NavigableMap;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.stream.Collectors;
+
+import org.ow2.authzforce.core.pdp.api.policy.PolicyVersion;
+
+/**
+ * In-memory index of the policy versions in a policy repository: policy ID -> versions (sorted) -> content types (filename suffixes) of the version. Safe for concurrent use.
+ * <p>
+ * Updates of the same policy are atomic, and the versions of a policy can be read while they are updated.
+ */
+final class PolicyVersionIndex
+{
+	/*
+	 * Policy ID -> version -> filename suffixes (content types) of this version. The version map of a policy is modified only in ConcurrentMap#compute() on the policy ID, and never empty.
+	 */
+	private final ConcurrentMap<String, NavigableMap<PolicyVersion, Set<String>>> policyVersionsById = new ConcurrentHashMap<>();
+
+	/**
+	 * Adds a policy version with a given content type (filename suffix)
+	 *
+	 * @param policyId
+	 *            policy ID
+	 * @param version
+	 *            policy version
+	 * @param filenameSuffix
+	 *            filename suffix (content type) of the version
+	 */
+	void add(final String policyId, final PolicyVersion version, final String filenameSuffix)
+	{
+		assert policyId != null && version != null && filenameSuffix != null;
+		policyVersionsById.compute(policyId, (id, versions) -> {
+			final NavigableMap<PolicyVersion, Set<String>> newVersions = versions == null ? new ConcurrentSkipListMap<>() : versions;
+			newVersions.computeIfAbsent(version, v -> ConcurrentHashMap.newKeySet()).add(filenameSuffix);
+			return newVersions;
+		});
+	}
+
+	/**
+	 * Removes a policy version with a given content type (filename suffix), and the policy if there is no version left
+	 *
+	 * @param policyId
+	 *            policy ID
+	 * @param version
+	 *            policy version
+	 * @param filenameSuffix
+	 *            filename suffix (content type) of the version
+	 */
+	void remove(final String policyId, final PolicyVersion version, final String filenameSuffix)
+	{
+		assert policyId != null && version != null && filenameSuffix != null;
+		policyVersionsById.computeIfPresent(policyId, (id, versions) -> {
+			final Set<String> filenameSuffixes = versions.get(version);
+			if (filenameSuffixes != null)
+			{
+				filenameSuffixes.remove(filenameSuffix);
+				if (filenameSuffixes.isEmpty())
+				{
+					versions.remove(version);
+				}
+			}
+
+			return versions.isEmpty() ? null : versions;
+		});
+	}
+
+	/**
+	 * Removes all the versions of a policy
+	 *
+	 * @param policyId
+	 *            policy ID
+	 * @return the removed versions, null if none
+	 */
+	NavigableMap<PolicyVersion, Set<String>> removeAll(final String policyId)
+	{
+		assert policyId != null;
+		return policyVersionsById.remove(policyId);
+	}
+
+	/**
+	 * Gets all the versions of a policy
+	 *
+	 * @param policyId
+	 *            policy ID
+	 * @return snapshot of the versions (sorted) -> filename suffixes (content types) of the version; empty if the policy does not exist
+	 */
+	NavigableMap<PolicyVersion, Set<String>> getVersions(final String policyId)
+	{
+		assert policyId != null;
+		final NavigableMap<PolicyVersion, Set<String>> snapshot = new TreeMap<>();
+		final NavigableMap<PolicyVersion, Set<String>> versions = policyVersionsById.get(policyId);
+		if (versions != null)
+		{
+			versions.forEach((version, filenameSuffixes) -> snapshot.put(version, new HashSet<>(filenameSuffixes)));
+		}
+
+		return snapshot;
+	}
+
+	/**
+	 * Gets the latest version of a policy with a given content type
+	 *
+	 * @param policyId
+	 *            policy ID
+	 * @param filenameSuffix
+	 *            filename suffix (content type)
+	 * @return latest version with this content type, empty if none
+	 */
+	Optional<PolicyVersion> getLatest(final String policyId, final String filenameSuffix)
+	{
+		assert policyId != null && filenameSuffix != null;
+		final NavigableMap<PolicyVersion, Set<String>> versions = policyVersionsById.get(policyId);
+		if (versions == null)
+		{
+			return Optional.empty();
+		}
+
+		/*
+		 * The latest version has all the content types but in rare cases (e.g. legacy parent policy versions without custom content), so this almost always stops at the first entry
+		 */
+		for (final Entry<PolicyVersion, Set<String>> version : versions.descendingMap().entrySet())
+		{
+			if (version.getValue().contains(filenameSuffix))
+			{
+				return Optional.of(version.getKey());
+			}
+		}
+
+		return Optional.empty();
+	}
+
+	/**
+	 * Gets the IDs of the policies having a given ID prefix and at least one version with a given content type
+	 *
+	 * @param policyIdPrefix
+	 *            policy ID prefix, empty for all policies
+	 * @param filenameSuffix
+	 *            filename suffix (content type)
+	 * @return policy IDs (sorted)
+	 */
+	List<String> getPolicyIds(final String policyIdPrefix, final String filenameSuffix)
+	{
+		assert policyIdPrefix != null && filenameSuffix != null;
+		return policyVersionsById.entrySet().stream()
+		        .filter(policyVersions -> policyVersions.getKey().startsWith(policyIdPrefix) && policyVersions.getValue().values().stream().anyMatch(s -> s.contains(filenameSuffix)))
+		        .map(Entry::getKey).sorted().collect(Collectors.toList());
+	}
+}
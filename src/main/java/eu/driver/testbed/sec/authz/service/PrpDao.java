@@ -18,13 +18,36 @@
  */
 package eu.driver.testbed.sec.authz.service;
 
+import java.util.List;
 import java.util.Optional;
 
 import org.json.JSONObject;
 import org.ow2.authzforce.core.pdp.api.policy.PolicyVersion;
 
+/**
+ * Policy Repository (PRP) access. Implementations must support concurrent transactions on different policies.
+ */
 interface PrpDao
 {
+	/**
+	 * Consumer of the stored policy versions, see {@link PrpDao#forEachStoredPolicyVersion(boolean, StoredPolicyVersionConsumer)}
+	 */
+	@FunctionalInterface
+	interface StoredPolicyVersionConsumer
+	{
+		/**
+		 * Consumes a stored policy version
+		 *
+		 * @param policyId
+		 *            policy identifier
+		 * @param customPolicyContentTypeId
+		 *            custom content type (e.g. DRIVER format), empty for XACML/JSON
+		 * @param content
+		 *            policy version content (and version)
+		 */
+		void accept(String policyId, Optional<String> customPolicyContentTypeId, StoredPolicyContent content);
+	}
+
 	/**
 	 * Creates a transaction - ACID transaction - to handle rollback in case of error during a procedure involving changes to the PRP (database)
 	 * 
@@ -57,5 +80,104 @@ interface PrpDao
 
 	Optional<JSONObject> getLatestPolicyVersionContent(String policyId, Optional<String> customPolicyContentTypeId);
 
+	/**
+	 * Gets the latest version of a given policy as stored, i.e. without parsing it, e.g. to send it as is in a HTTP response
+	 *
+	 * @param policyId
+	 *            policy identifier
+	 * @param customPolicyContentTypeId
+	 *            custom content type (e.g. DRIVER format), empty for XACML/JSON
+	 * @return policy content; {@link Optional#empty()} if policy not found
+	 */
+	Optional<StoredPolicyContent> getLatestPolicyVersionStoredContent(String policyId, Optional<String> customPolicyContentTypeId);
+
+	/**
+	 * Gets the child policies of a given policy, i.e. the policies in the PRP with ID '{parentPolicyId}#...'. A parent policy references its child policies implicitly (after the policies it
+	 * contains or references explicitly), so that creating or deleting a child policy does not require a new version of the parent policy.
+	 * 
+	 * @param parentPolicyId
+	 *            parent policy identifier
+	 * @return child policy IDs, sorted (order in which they are combined in the parent policy)
+	 */
+	List<String> getChildPolicyIds(String parentPolicyId);
+
+	/**
+	 * Gets the latest version of a given policy in XACML/JSON format, as evaluated by the PDP, i.e. with explicit references to its child policies (see {@link #getChildPolicyIds(String)})
+	 * 
+	 * @param policyId
+	 *            policy identifier
+	 * @return policy content (JSON); {@link Optional#empty()} if policy not found
+	 */
+	Optional<JSONObject> getLatestEffectivePolicyVersionContent(String policyId);
+
 	void deletePolicy(Transaction tx, String policyId);
+
+	/**
+	 * Gets the IDs of all the policies in the PRP
+	 *
+	 * @return policy IDs, sorted
+	 */
+	List<String> getPolicyIds();
+
+	/**
+	 * Removes the old versions of a given policy according to a retention policy: a version is retained if it is one of the {@code minVersionCount} latest versions, or created since
+	 * {@code minCreationTime}. The latest version (with each content type) is always retained, and so is a version with unknown creation time, unless {@code minCreationTime} is
+	 * {@link Long#MAX_VALUE}.
+	 *
+	 * @param tx
+	 *            transaction
+	 * @param policyId
+	 *            policy identifier
+	 * @param minVersionCount
+	 *            number of latest versions to be retained
+	 * @param minCreationTime
+	 *            versions created since this time (milliseconds since the epoch) are retained; {@link Long#MAX_VALUE} to retain by number only
+	 * @return number of versions removed
+	 */
+	int removeOldPolicyVersions(Transaction tx, String policyId, int minVersionCount, long minCreationTime);
+
+	/**
+	 * Passes the stored versions of all the policies in the PRP to a consumer, e.g. to export the PRP, in order of policy ID, then version, then content type (XACML/JSON first). The caller must
+	 * make sure the policies are not modified meanwhile, unless the implementation reads a consistent snapshot anyway.
+	 *
+	 * @param latestOnly
+	 *            true iff only the latest version (with each content type) of each policy
+	 * @param consumer
+	 *            consumer of the policy versions
+	 */
+	void forEachStoredPolicyVersion(boolean latestOnly, StoredPolicyVersionConsumer consumer);
+
+	/**
+	 * Gets the locations of the latest version of every policy in the PDP input format (XACML/XML), i.e. the only policy versions the PDP needs to load
+	 * 
+	 * @return policy locations (URLs)
+	 */
+	List<String> getLatestPdpInputPolicyLocations();
+
+	/**
+	 * Gets the locations of the latest version of every policy in the PDP input format (XACML/XML) as they will be once a given transaction is committed (including the files staged by the
+	 * transaction), e.g. to validate the new PDP configuration before commit
+	 *
+	 * @param tx
+	 *            transaction, not committed yet
+	 * @return policy locations (URLs), valid until the transaction is closed
+	 */
+	List<String> getLatestPdpInputPolicyLocations(Transaction tx);
+
+	/**
+	 * Gets a copy of the in-memory store of PDP input policies (see {@link PdpPolicyStore}) with the changes of a given transaction, e.g. to validate the new PDP configuration before commit. The
+	 * in-memory store itself is updated on commit only.
+	 *
+	 * @param tx
+	 *            transaction, not committed yet
+	 * @return in-memory policy store as it will be once the transaction is committed
+	 * @throws UnsupportedOperationException
+	 *             no in-memory policy store
+	 */
+	PdpPolicyStore getPdpPolicyStore(Transaction tx) throws UnsupportedOperationException;
+
+	/**
+	 * Releases the resources of the DAO (background threads, open files...). The DAO must not be used afterwards.
+	 */
+	void close();
 }
\ No newline at end of file
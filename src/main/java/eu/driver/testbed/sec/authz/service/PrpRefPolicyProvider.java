@@ -0,0 +1,214 @@
+/**
+ * Copyright (C) 2018-2019 THALES.
+ *
+ * This file is part of AuthzForce CE.
+ *
+ * AuthzForce CE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * AuthzForce CE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with AuthzForce CE.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.driver.testbed.sec.authz.service;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import javax.xml.bind.JAXBElement;
+import javax.xml.bind.annotation.XmlAccessType;
+import javax.xml.bind.annotation.XmlAccessorType;
+import javax.xml.bind.annotation.XmlTransient;
+import javax.xml.bind.annotation.XmlType;
+
+import org.ow2.authzforce.core.pdp.api.EnvironmentProperties;
+import org.ow2.authzforce.core.pdp.api.IndeterminateEvaluationException;
+import org.ow2.authzforce.core.pdp.api.XmlUtils.XmlnsFilteringParserFactory;
+import org.ow2.authzforce.core.pdp.api.combining.CombiningAlgRegistry;
+import org.ow2.authzforce.core.pdp.api.expression.ExpressionFactory;
+import org.ow2.authzforce.core.pdp.api.policy.BaseStaticRefPolicyProvider;
+import org.ow2.authzforce.core.pdp.api.policy.CloseableRefPolicyProvider;
+import org.ow2.authzforce.core.pdp.api.policy.PolicyVersion;
+import org.ow2.authzforce.core.pdp.api.policy.PolicyVersionPatterns;
+import org.ow2.authzforce.core.pdp.api.policy.StaticTopLevelPolicyElementEvaluator;
+import org.ow2.authzforce.core.pdp.impl.policy.PolicyEvaluators;
+import org.ow2.authzforce.xmlns.pdp.ext.AbstractPolicyProvider;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+
+import oasis.names.tc.xacml._3_0.core.schema.wd_17.IdReferenceType;
+import oasis.names.tc.xacml._3_0.core.schema.wd_17.ObjectFactory;
+import oasis.names.tc.xacml._3_0.core.schema.wd_17.Policy;
+import oasis.names.tc.xacml._3_0.core.schema.wd_17.PolicySet;
+
+/**
+ * Static Ref Policy Provider (PDP extension) serving the policies from the in-memory {@link PdpPolicyStore}, kept in sync with the policy repository by the {@link PrpDao}. Unlike AuthzForce's
+ * StaticRefPolicyProvider based on policy file locations, a PDP reload never reads/parses policy files, and reuses the evaluators of the policies that have not changed since the previous load.
+ * <p>
+ * Only the latest version of each policy is available (same as StaticRefPolicyProvider with {@code ignoreOldVersions=true}). A policy set references its child policies implicitly (see
+ * {@link PrpDao#getChildPolicyIds(String)}).
+ * <p>
+ * The configuration ({@link Configuration}) refers to the in-memory policy store, therefore it cannot be defined in the PDP configuration file, but only set programmatically (see
+ * {@link AuthzWsJaxrsRootResource}).
+ */
+public final class PrpRefPolicyProvider extends BaseStaticRefPolicyProvider implements CloseableRefPolicyProvider
+{
+	private static final Logger LOGGER = LoggerFactory.getLogger(PrpRefPolicyProvider.class);
+
+	private static final ObjectFactory XACML_3_0_OBJECT_FACTORY = new ObjectFactory();
+
+	/**
+	 * PDP extension configuration, set programmatically only (no XML form)
+	 */
+	@XmlAccessorType(XmlAccessType.FIELD)
+	@XmlType(name = "PrpRefPolicyProvider", namespace = "urn:eu:driver:testbed:sec:authz:service:pdp:ext")
+	public static final class Configuration extends AbstractPolicyProvider
+	{
+		@XmlTransient
+		private transient PdpPolicyStore policyStore;
+
+		/*
+		 * Required by JAXB
+		 */
+		private Configuration()
+		{
+			this.policyStore = null;
+		}
+
+		Configuration(final String id, final PdpPolicyStore policyStore)
+		{
+			assert policyStore != null;
+			setId(id);
+			this.policyStore = policyStore;
+		}
+	}
+
+	/**
+	 * Factory of {@link PrpRefPolicyProvider}, registered as PDP extension (Java ServiceLoader)
+	 */
+	public static final class Factory extends CloseableRefPolicyProvider.Factory<Configuration>
+	{
+		@Override
+		public Class<Configuration> getJaxbClass()
+		{
+			return Configuration.class;
+		}
+
+		@Override
+		public CloseableRefPolicyProvider getInstance(final Configuration conf, final XmlnsFilteringParserFactory xmlParserFactory, final int maxPolicySetRefDepth,
+		        final ExpressionFactory expressionFactory, final CombiningAlgRegistry combiningAlgRegistry, final EnvironmentProperties environmentProperties) throws IllegalArgumentException
+		{
+			Preconditions.checkArgument(conf != null && conf.policyStore != null, "Undefined in-memory policy store");
+			return new PrpRefPolicyProvider(conf.policyStore, maxPolicySetRefDepth, expressionFactory, combiningAlgRegistry);
+		}
+	}
+
+	private final PdpPolicyStore policyStore;
+	private final ExpressionFactory expressionFactory;
+	private final CombiningAlgRegistry combiningAlgRegistry;
+
+	private PrpRefPolicyProvider(final PdpPolicyStore policyStore, final int maxPolicySetRefDepth, final ExpressionFactory expressionFactory, final CombiningAlgRegistry combiningAlgRegistry)
+	{
+		super(maxPolicySetRefDepth);
+		this.policyStore = policyStore;
+		this.expressionFactory = expressionFactory;
+		this.combiningAlgRegistry = combiningAlgRegistry;
+	}
+
+	/*
+	 * Adds the implicit references to the child policies (see PrpDao#getChildPolicyIds(String)) that are not referenced explicitly, after the policies of the policy set
+	 */
+	private static PolicySet withChildPolicyRefs(final PolicySet policySet, final List<String> childPolicyIds)
+	{
+		if (childPolicyIds.isEmpty())
+		{
+			return policySet;
+		}
+
+		final List<Serializable> policySetChildren = policySet.getPolicySetsAndPoliciesAndPolicySetIdReferences();
+		final Set<String> referencedPolicyIds = policySetChildren.stream()
+		        .filter(policySetChild -> policySetChild instanceof JAXBElement && ((JAXBElement<?>) policySetChild).getValue() instanceof IdReferenceType)
+		        .map(policySetChild -> ((IdReferenceType) ((JAXBElement<?>) policySetChild).getValue()).getValue()).collect(Collectors.toSet());
+		final List<Serializable> newPolicySetChildren = new ArrayList<>(policySetChildren.size() + childPolicyIds.size());
+		newPolicySetChildren.addAll(policySetChildren);
+		for (final String childPolicyId : childPolicyIds)
+		{
+			if (!referencedPolicyIds.contains(childPolicyId))
+			{
+				newPolicySetChildren.add(XACML_3_0_OBJECT_FACTORY.createPolicySetIdReference(new IdReferenceType(childPolicyId, null, null, null)));
+			}
+		}
+
+		return new PolicySet(policySet.getDescription(), policySet.getPolicyIssuer(), policySet.getPolicySetDefaults(), policySet.getTarget(), newPolicySetChildren,
+		        policySet.getObligationExpressions(), policySet.getAdviceExpressions(), policySet.getPolicySetId(), policySet.getVersion(), policySet.getPolicyCombiningAlgId(),
+		        policySet.getMaxDelegationDepth());
+	}
+
+	private StaticTopLevelPolicyElementEvaluator getEvaluator(final Class<?> jaxbPolicyClass, final String policyId, final Optional<PolicyVersionPatterns> policyVersionPatterns,
+	        final Deque<String> policySetRefChain)
+	{
+		final long modCount = this.policyStore.getModCount();
+		final Optional<Object> jaxbPolicy = this.policyStore.get(policyId);
+		if (!jaxbPolicy.isPresent() || !jaxbPolicyClass.isInstance(jaxbPolicy.get()))
+		{
+			return null;
+		}
+
+		final String policyVersion = jaxbPolicy.get() instanceof Policy ? ((Policy) jaxbPolicy.get()).getVersion() : ((PolicySet) jaxbPolicy.get()).getVersion();
+		if (policyVersionPatterns.isPresent() && !policyVersionPatterns.get().matches(new PolicyVersion(policyVersion)))
+		{
+			return null;
+		}
+
+		final List<String> referringPolicyIds = policySetRefChain == null ? Collections.emptyList()
+		        : policySetRefChain.stream().filter(id -> !id.equals(policyId)).collect(Collectors.toList());
+		final Optional<StaticTopLevelPolicyElementEvaluator> cachedEvaluator = this.policyStore.getEvaluator(policyId, referringPolicyIds);
+		if (cachedEvaluator.isPresent())
+		{
+			return cachedEvaluator.get();
+		}
+
+		LOGGER.debug("Building evaluator of policy '{}' v{}", policyId, policyVersion);
+		final StaticTopLevelPolicyElementEvaluator evaluator = jaxbPolicy.get() instanceof Policy
+		        ? PolicyEvaluators.getInstance((Policy) jaxbPolicy.get(), null, Collections.emptyMap(), this.expressionFactory, this.combiningAlgRegistry)
+		        : PolicyEvaluators.getInstanceStatic(withChildPolicyRefs((PolicySet) jaxbPolicy.get(), this.policyStore.getChildPolicyIds(policyId)), null, Collections.emptyMap(),
+		                this.expressionFactory, this.combiningAlgRegistry, this, policySetRefChain);
+		this.policyStore.putEvaluator(policyId, evaluator, referringPolicyIds, modCount);
+		return evaluator;
+	}
+
+	@Override
+	protected StaticTopLevelPolicyElementEvaluator getPolicy(final String policyId, final Optional<PolicyVersionPatterns> policyVersionPatterns) throws IndeterminateEvaluationException
+	{
+		return getEvaluator(Policy.class, policyId, policyVersionPatterns, null);
+	}
+
+	@Override
+	protected StaticTopLevelPolicyElementEvaluator getPolicySet(final String policyId, final Optional<PolicyVersionPatterns> policyVersionPatterns, final Deque<String> policySetRefChain)
+	        throws IndeterminateEvaluationException
+	{
+		return getEvaluator(PolicySet.class, policyId, policyVersionPatterns, policySetRefChain);
+	}
+
+	@Override
+	public void close()
+	{
+		/*
+		 * The policy store outlives the PDP engine, nothing to close
+		 */
+	}
+}
@@ -0,0 +1,308 @@
+/**
+ * Copyright (C) 2018-2019 THALES.
+ *
+ * This file is part of AuthzForce CE.
+ *
+ * AuthzForce CE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * AuthzForce CE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with AuthzForce CE.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.driver.testbed.sec.authz.service;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import org.everit.json.schema.Schema;
+import org.everit.json.schema.ValidationException;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+import org.ow2.authzforce.core.pdp.api.policy.PolicyVersion;
+import org.ow2.authzforce.xacml.json.model.XacmlJsonUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Snapshot archive of the policy repository (PRP), to bootstrap a new node or for backup/restore: a ZIP archive with a manifest entry '{@value #MANIFEST_ENTRY_NAME}' (format version, creation
+ * time), then an entry '{policyId}/{version}.{contentTypeId}' per policy version and content type, i.e. the same layout as the policy directory of {@link FsBasedPrpDao}, where the content type ID of
+ * XACML/JSON is '{@value #XACML_JSON_CONTENT_TYPE_ID}'. The policies in PDP input format (XACML/XML) are not exported but converted again on import.
+ * <p>
+ * The entries are written in order of policy ID, then version, as stored (without parsing), and imported in a few large transactions.
+ */
+final class PrpSnapshotArchive
+{
+	private static final Logger LOGGER = LoggerFactory.getLogger(PrpSnapshotArchive.class);
+
+	/**
+	 * Default number of policy version entries imported per transaction
+	 */
+	static final int DEFAULT_IMPORT_BATCH_SIZE = 1000;
+
+	private static final String MANIFEST_ENTRY_NAME = "snapshot.json";
+	private static final int FORMAT_VERSION = 1;
+	private static final String XACML_JSON_CONTENT_TYPE_ID = "xacml.json";
+
+	/*
+	 * '{policyId}/{version}.{contentTypeId}' (content type ID not starting with a digit, policy ID not starting with '.' to keep away from special directories)
+	 */
+	private static final Pattern POLICY_VERSION_ENTRY_NAME_PATTERN = Pattern.compile("^([^./][^/]*)/(\\d+(?:\\.\\d+)*)\\.(\\D[^/]*)$");
+
+	private PrpSnapshotArchive()
+	{
+		// no instance
+	}
+
+	/**
+	 * Writes a snapshot of the policy repository. The caller must make sure the policies are not modified meanwhile (see {@link PrpDao#forEachStoredPolicyVersion(boolean,
+	 * PrpDao.StoredPolicyVersionConsumer)}).
+	 *
+	 * @param prpDao
+	 *            policy repository
+	 * @param latestOnly
+	 *            true iff only the latest version of each policy is exported
+	 * @param out
+	 *            output stream (not closed by this method)
+	 * @return number of policy version entries written
+	 * @throws IOException
+	 *             error reading a policy or writing to the output stream
+	 */
+	static int write(final PrpDao prpDao, final boolean latestOnly, final OutputStream out) throws IOException
+	{
+		Preconditions.checkArgument(prpDao != null && out != null, "Undefined PRP DAO or output stream");
+		final ZipOutputStream zipOut = new ZipOutputStream(out, StandardCharsets.UTF_8);
+		/*
+		 * Throughput over ratio: JSON policies are highly compressible anyway
+		 */
+		zipOut.setLevel(Deflater.BEST_SPEED);
+
+		final JSONObject manifest = new JSONObject();
+		manifest.put("formatVersion", FORMAT_VERSION);
+		manifest.put("latestOnly", latestOnly);
+		manifest.put("creationTime", System.currentTimeMillis());
+		zipOut.putNextEntry(new ZipEntry(MANIFEST_ENTRY_NAME));
+		zipOut.write(manifest.toString().getBytes(StandardCharsets.UTF_8));
+		zipOut.closeEntry();
+
+		final AtomicInteger entryCount = new AtomicInteger(0);
+		try
+		{
+			prpDao.forEachStoredPolicyVersion(latestOnly, (policyId, customPolicyContentTypeId, content) -> {
+				try
+				{
+					zipOut.putNextEntry(new ZipEntry(policyId + "/" + content.getVersion() + "." + customPolicyContentTypeId.orElse(XACML_JSON_CONTENT_TYPE_ID)));
+					content.writeTo(zipOut);
+					zipOut.closeEntry();
+				}
+				catch (final IOException e)
+				{
+					throw new UncheckedIOException("Error writing version " + content.getVersion() + " of policy '" + policyId + "' to the snapshot archive", e);
+				}
+
+				entryCount.incrementAndGet();
+			});
+		}
+		catch (final UncheckedIOException e)
+		{
+			throw e.getCause();
+		}
+
+		zipOut.finish();
+		return entryCount.get();
+	}
+
+	/*
+	 * Handler of a policy version entry of the archive, reading its content from the archive stream
+	 */
+	@FunctionalInterface
+	private interface PolicyVersionEntryHandler
+	{
+		void handle(String entryName, String policyId, PolicyVersion version, Optional<String> customContentTypeId, ZipInputStream zipIn) throws IOException;
+	}
+
+	private static JSONObject readJsonEntry(final ZipInputStream zipIn)
+	{
+		/*
+		 * The reader must not be closed (it would close the archive stream). The tokener stops at the end of the entry at the latest.
+		 */
+		return new JSONObject(new JSONTokener(new InputStreamReader(zipIn, StandardCharsets.UTF_8)));
+	}
+
+	/*
+	 * Passes the policy version entries of an archive to a handler, in order, after checking the format version (manifest) and the entry names
+	 */
+	private static void forEachPolicyVersionEntry(final Path archive, final PolicyVersionEntryHandler handler) throws IOException, IllegalArgumentException
+	{
+		try (final ZipInputStream zipIn = new ZipInputStream(new BufferedInputStream(Files.newInputStream(archive)), StandardCharsets.UTF_8))
+		{
+			for (ZipEntry entry = zipIn.getNextEntry(); entry != null; entry = zipIn.getNextEntry())
+			{
+				if (entry.isDirectory())
+				{
+					continue;
+				}
+
+				final String entryName = entry.getName();
+				if (entryName.equals(MANIFEST_ENTRY_NAME))
+				{
+					final int formatVersion = readJsonEntry(zipIn).optInt("formatVersion", -1);
+					if (formatVersion != FORMAT_VERSION)
+					{
+						throw new IllegalArgumentException("Unsupported policy snapshot format version: " + formatVersion + " (expected: " + FORMAT_VERSION + ")");
+					}
+
+					continue;
+				}
+
+				final Matcher matcher = POLICY_VERSION_ENTRY_NAME_PATTERN.matcher(entryName);
+				if (!matcher.matches())
+				{
+					throw new IllegalArgumentException("Invalid policy snapshot entry: '" + entryName + "' (expected: {policyId}/{version}.{contentTypeId})");
+				}
+
+				final String contentTypeId = matcher.group(3);
+				handler.handle(entryName, matcher.group(1), new PolicyVersion(matcher.group(2)), contentTypeId.equals(XACML_JSON_CONTENT_TYPE_ID) ? Optional.empty() : Optional.of(contentTypeId),
+				        zipIn);
+			}
+		}
+	}
+
+	/*
+	 * Validates the content of a policy version entry like the PAP does on policy updates: XACML/JSON policy schema, or the schema of the custom content type
+	 */
+	private static void validateEntry(final String entryName, final Optional<String> customContentTypeId, final ZipInputStream zipIn, final Map<String, Schema> customContentSchemas)
+	        throws IllegalArgumentException
+	{
+		try
+		{
+			final JSONObject content = readJsonEntry(zipIn);
+			if (customContentTypeId.isPresent())
+			{
+				final Schema schema = customContentSchemas.get(customContentTypeId.get());
+				if (schema == null)
+				{
+					throw new IllegalArgumentException("Invalid policy snapshot entry: '" + entryName + "' (unsupported content type: '" + customContentTypeId.get() + "')");
+				}
+
+				schema.validate(content);
+				return;
+			}
+
+			final JSONObject xacmlJsonPolicy = content.optJSONObject("policy");
+			if (xacmlJsonPolicy == null)
+			{
+				throw new IllegalArgumentException("Invalid policy snapshot entry: '" + entryName + "' (XACML/JSON policy: root key != 'policy')");
+			}
+
+			XacmlJsonUtils.POLICY_SCHEMA.validate(xacmlJsonPolicy);
+		}
+		catch (final JSONException | ValidationException e)
+		{
+			throw new IllegalArgumentException("Invalid policy snapshot entry: '" + entryName + "' (" + e.getMessage() + ")", e);
+		}
+	}
+
+	private static void closeTx(final Transaction tx)
+	{
+		try
+		{
+			tx.close();
+		}
+		catch (final Exception e)
+		{
+			throw new RuntimeException("Failed to close policy import transaction", e);
+		}
+	}
+
+	/**
+	 * Imports a snapshot into the policy repository: for each policy, only the versions newer than the latest one in the repository (before the import) are added, so that importing the same
+	 * snapshot again does nothing. The whole archive is validated first, like the policy updates on the PAP, and nothing is imported if any entry is invalid. Then the versions are added in
+	 * transactions of {@code batchSize} entries, i.e. the import is not atomic: if it fails afterwards (e.g. I/O error), the batches committed so far remain in the repository. The caller must make
+	 * sure the policies are not modified meanwhile, and make the new policies visible to the PDP (only once, after the import).
+	 *
+	 * @param archive
+	 *            snapshot archive file (read twice: validation, then import)
+	 * @param prpDao
+	 *            policy repository
+	 * @param batchSize
+	 *            number of policy version entries per transaction
+	 * @param customContentSchemas
+	 *            JSON schema of each custom content type (e.g. DRIVER format) by content type ID, i.e. the file extension of the entries; entries of any other custom content type are invalid
+	 * @return number of policy version entries imported
+	 * @throws IOException
+	 *             error reading the archive
+	 * @throws IllegalArgumentException
+	 *             invalid archive (unsupported format version, invalid entry name or content), at the first invalid entry
+	 */
+	static int read(final Path archive, final PrpDao prpDao, final int batchSize, final Map<String, Schema> customContentSchemas) throws IOException, IllegalArgumentException
+	{
+		Preconditions.checkArgument(archive != null && prpDao != null && customContentSchemas != null, "Undefined archive or PRP DAO or custom content schemas");
+		Preconditions.checkArgument(batchSize > 0, "Invalid import batch size: %s (expected > 0)", batchSize);
+		forEachPolicyVersionEntry(archive, (entryName, policyId, version, customContentTypeId, zipIn) -> validateEntry(entryName, customContentTypeId, zipIn, customContentSchemas));
+
+		/*
+		 * Policy ID -> latest version in the repository before the import
+		 */
+		final Map<String, Optional<PolicyVersion>> previousLatestVersions = new HashMap<>();
+		final AtomicInteger importedEntryCount = new AtomicInteger(0);
+		final AtomicInteger skippedEntryCount = new AtomicInteger(0);
+		final AtomicInteger txEntryCount = new AtomicInteger(0);
+		final AtomicReference<Transaction> tx = new AtomicReference<>(prpDao.newTx());
+		try
+		{
+			forEachPolicyVersionEntry(archive, (entryName, policyId, version, customContentTypeId, zipIn) -> {
+				final Optional<PolicyVersion> previousLatestVersion = previousLatestVersions.computeIfAbsent(policyId, prpDao::getLatestPolicyVersion);
+				if (previousLatestVersion.isPresent() && version.compareTo(previousLatestVersion.get()) <= 0)
+				{
+					skippedEntryCount.incrementAndGet();
+					return;
+				}
+
+				prpDao.addPolicyVersion(tx.get(), policyId, version.toString(), readJsonEntry(zipIn), customContentTypeId);
+				importedEntryCount.incrementAndGet();
+				if (txEntryCount.incrementAndGet() >= batchSize)
+				{
+					tx.get().commit();
+					closeTx(tx.getAndSet(prpDao.newTx()));
+					txEntryCount.set(0);
+				}
+			});
+
+			tx.get().commit();
+		}
+		finally
+		{
+			closeTx(tx.get());
+		}
+
+		LOGGER.info("Policy snapshot imported: {} policy version entries added, {} skipped (not newer than the latest version in the repository)", importedEntryCount, skippedEntryCount);
+		return importedEntryCount.get();
+	}
+}
@@ -0,0 +1,150 @@
+/**
+ * Copyright (C) 2018-2019 THALES.
+ *
+ * This file is part of AuthzForce CE.
+ *
+ * AuthzForce CE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * AuthzForce CE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with AuthzForce CE.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.driver.testbed.sec.authz.service;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.everit.json.schema.Schema;
+import org.springframework.core.io.FileSystemResource;
+
+/**
+ * Command-line export/import of policy repository snapshots (see {@link PrpSnapshotArchive}), e.g. to bootstrap the policy repository of a new node before starting the service. Must not be used on a
+ * policy repository in use by a running service (use the PAP endpoint {@code /pap/snapshot} instead).
+ * <p>
+ * Usage: {@code export|import <repository> <archive> [--store] [--latest-only] [--driver-schema=<file>] [--pdp-input-suffix=.xacml.xml] [--xacml-json-suffix=.xacml.json]}, where
+ * {@code <repository>} is the policies directory, or the policy store file if {@code --store}. The entries of the archive are validated on import like policy updates on the PAP, the DRIVER
+ * policies against the schema given by {@code --driver-schema} (archives with DRIVER policies are rejected without it).
+ */
+public final class PrpSnapshotCli
+{
+	private static final String USAGE = "Usage: export|import <repository> <archive> [--store] [--latest-only] [--driver-schema=<file>] [--pdp-input-suffix=.xacml.xml] [--xacml-json-suffix=.xacml.json]\n"
+	        + "  <repository>: policies directory, or policy store file if --store\n" + "  --latest-only: export the latest version of each policy only\n"
+	        + "  --driver-schema: JSON schema of DRIVER access policies, to validate the DRIVER policies on import (required if the archive has any)";
+
+	private static final String PDP_INPUT_SUFFIX_OPTION_PREFIX = "--pdp-input-suffix=";
+	private static final String XACML_JSON_SUFFIX_OPTION_PREFIX = "--xacml-json-suffix=";
+	private static final String DRIVER_SCHEMA_OPTION_PREFIX = "--driver-schema=";
+
+	private PrpSnapshotCli()
+	{
+		// no instance
+	}
+
+	private static void exitWithUsage(final String error)
+	{
+		System.err.println(error);
+		System.err.println(USAGE);
+		System.exit(2);
+	}
+
+	/**
+	 * Main entry point
+	 *
+	 * @param args
+	 *            command-line arguments
+	 * @throws IOException
+	 *             error reading/writing the archive or the policy repository
+	 */
+	public static void main(final String[] args) throws IOException
+	{
+		final List<String> positionalArgs = new ArrayList<>(3);
+		boolean isStore = false;
+		boolean latestOnly = false;
+		String pdpInputPolicyFilenameSuffix = ".xacml.xml";
+		String xacmlJsonPolicyFilenameSuffix = ".xacml.json";
+		Path driverSchemaFile = null;
+		for (final String arg : args)
+		{
+			if (arg.equals("--store"))
+			{
+				isStore = true;
+			}
+			else if (arg.equals("--latest-only"))
+			{
+				latestOnly = true;
+			}
+			else if (arg.startsWith(PDP_INPUT_SUFFIX_OPTION_PREFIX))
+			{
+				pdpInputPolicyFilenameSuffix = arg.substring(PDP_INPUT_SUFFIX_OPTION_PREFIX.length());
+			}
+			else if (arg.startsWith(XACML_JSON_SUFFIX_OPTION_PREFIX))
+			{
+				xacmlJsonPolicyFilenameSuffix = arg.substring(XACML_JSON_SUFFIX_OPTION_PREFIX.length());
+			}
+			else if (arg.startsWith(DRIVER_SCHEMA_OPTION_PREFIX))
+			{
+				driverSchemaFile = Paths.get(arg.substring(DRIVER_SCHEMA_OPTION_PREFIX.length()));
+			}
+			else if (arg.startsWith("--"))
+			{
+				exitWithUsage("Invalid option: " + arg);
+			}
+			else
+			{
+				positionalArgs.add(arg);
+			}
+		}
+
+		if (positionalArgs.size() != 3 || !positionalArgs.get(0).equals("export") && !positionalArgs.get(0).equals("import"))
+		{
+			exitWithUsage("Invalid arguments");
+		}
+
+		final Path repository = Paths.get(positionalArgs.get(1));
+		final Path archive = Paths.get(positionalArgs.get(2));
+		final Map<String, Schema> customContentSchemas = driverSchemaFile == null ? Collections.emptyMap()
+		        : Collections.singletonMap(AuthzWsJaxrsRootResource.DRIVER_ACCESS_POLICY_CONTENT_TYPE_ID, DriverAccessPolicyHandler.newJsonSchema(new FileSystemResource(driverSchemaFile.toFile())));
+		/*
+		 * Direct conversion to the PDP input format on import (no XSLT)
+		 */
+		final PdpInputPolicyConverter pdpInputPolicyConverter = new PdpInputPolicyConverter(true);
+		final PrpDao prpDao = isStore
+		        ? new MvStorePrpDao(repository, null, pdpInputPolicyFilenameSuffix, xacmlJsonPolicyFilenameSuffix, new PdpPolicyStore(), pdpInputPolicyConverter)
+		        : new FsBasedPrpDao(repository, pdpInputPolicyFilenameSuffix, xacmlJsonPolicyFilenameSuffix, null, pdpInputPolicyConverter);
+		try
+		{
+			if (positionalArgs.get(0).equals("export"))
+			{
+				try (final OutputStream out = new BufferedOutputStream(Files.newOutputStream(archive)))
+				{
+					final int entryCount = PrpSnapshotArchive.write(prpDao, latestOnly, out);
+					System.out.println("Exported " + entryCount + " policy version entries to " + archive);
+				}
+			}
+			else
+			{
+				final int entryCount = PrpSnapshotArchive.read(archive, prpDao, PrpSnapshotArchive.DEFAULT_IMPORT_BATCH_SIZE, customContentSchemas);
+				System.out.println("Imported " + entryCount + " policy version entries from " + archive);
+			}
+		}
+		finally
+		{
+			prpDao.close();
+		}
+	}
+}
@@ -0,0 +1,334 @@
+/**
+ * Copyright (C) 2018-2019 THALES.
+ *
+ * This file is part of AuthzForce CE.
+ *
+ * AuthzForce CE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * AuthzForce CE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with AuthzForce CE.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.driver.testbed.sec.authz.service;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.ow2.authzforce.core.pdp.api.policy.PolicyVersion;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Removes from XACML/JSON Requests the attributes that no loaded policy may read, i.e. that no AttributeDesignator of the policies matches, and the attribute categories left without attributes, so
+ * that the PDP engine (request preprocessor, evaluation context) has less to do per decision, e.g. the client IP address sent by Kafka brokers but not used by DRIVER access policies. The decision is
+ * the same as with the original request.
+ * <p>
+ * Attributes are removed only when it is safe: attributes with IncludeInResult=true (returned in the result), categories with Content, and requests with MultiRequests (categories referenced by ID)
+ * are kept as is; and attributes/categories are matched by identifier only, unless the request gives the full datatype/category URI (the datatype may be implicit in XACML/JSON). Pruning is disabled
+ * altogether if any policy uses an AttributeSelector.
+ * <p>
+ * Immutable: a new instance is loaded with each new PDP engine, from the same state of the policy repository (see {@link Loader}).
+ */
+final class RequestAttributePruner
+{
+	private static final Logger LOGGER = LoggerFactory.getLogger(RequestAttributePruner.class);
+
+	/**
+	 * Pruner that keeps all the attributes (pruning disabled)
+	 */
+	static final RequestAttributePruner DISABLED = new RequestAttributePruner(null);
+
+	private static final char KEY_SEPARATOR = '\u001D';
+
+	/*
+	 * Designators found in a policy, empty if the policy uses an AttributeSelector (pruning not possible)
+	 */
+	private static final class PolicyDesignators
+	{
+		private final PolicyVersion version;
+		private final Optional<Set<String>> designatorKeys;
+
+		private PolicyDesignators(final PolicyVersion version, final Optional<Set<String>> designatorKeys)
+		{
+			this.version = version;
+			this.designatorKeys = designatorKeys;
+		}
+	}
+
+	/**
+	 * Loads the pruner matching the current state of the policy repository, keeping track of the attribute designators of each policy version, so that only the policies changed since the previous
+	 * load are read again
+	 */
+	static final class Loader
+	{
+		private final Map<String, PolicyDesignators> designatorsByPolicyId = new ConcurrentHashMap<>();
+
+		/**
+		 * Loads the pruner from the latest version of every policy in the policy repository (in XACML/JSON format). The caller must make sure the policies are not modified meanwhile.
+		 *
+		 * @param prpDao
+		 *            policy repository
+		 * @return pruner; {@link RequestAttributePruner#DISABLED} if a policy uses an AttributeSelector or cannot be read
+		 */
+		RequestAttributePruner load(final PrpDao prpDao)
+		{
+			final Set<String> policyIds = new HashSet<>(prpDao.getPolicyIds());
+			designatorsByPolicyId.keySet().retainAll(policyIds);
+			final Set<String> categoryIds = new HashSet<>();
+			final Set<String> attributeKeys = new HashSet<>();
+			final Set<String> designatorKeys = new HashSet<>();
+			for (final String policyId : policyIds)
+			{
+				final Optional<PolicyVersion> latestVersion = prpDao.getLatestPolicyVersion(policyId);
+				if (!latestVersion.isPresent())
+				{
+					/*
+					 * Deleted meanwhile
+					 */
+					continue;
+				}
+
+				PolicyDesignators policyDesignators = designatorsByPolicyId.get(policyId);
+				if (policyDesignators == null || !policyDesignators.version.equals(latestVersion.get()))
+				{
+					final Optional<JSONObject> policy = prpDao.getLatestPolicyVersionContent(policyId, Optional.empty());
+					if (!policy.isPresent())
+					{
+						LOGGER.warn("Request attribute pruning disabled: policy '{}' not found in XACML/JSON format", policyId);
+						return DISABLED;
+					}
+
+					final Set<String> policyDesignatorKeys = new HashSet<>();
+					policyDesignators = new PolicyDesignators(latestVersion.get(), collectDesignators(policy.get(), policyDesignatorKeys) ? Optional.of(policyDesignatorKeys) : Optional.empty());
+					designatorsByPolicyId.put(policyId, policyDesignators);
+				}
+
+				if (!policyDesignators.designatorKeys.isPresent())
+				{
+					LOGGER.info("Request attribute pruning disabled: policy '{}' uses an AttributeSelector", policyId);
+					return DISABLED;
+				}
+
+				for (final String designatorKey : policyDesignators.designatorKeys.get())
+				{
+					designatorKeys.add(designatorKey);
+					final int dataTypeSeparatorIndex = designatorKey.lastIndexOf(KEY_SEPARATOR);
+					attributeKeys.add(designatorKey.substring(0, dataTypeSeparatorIndex));
+					categoryIds.add(designatorKey.substring(0, designatorKey.indexOf(KEY_SEPARATOR)));
+				}
+			}
+
+			return new RequestAttributePruner(new Designators(categoryIds, attributeKeys, designatorKeys));
+		}
+	}
+
+	/*
+	 * Collects the keys of the AttributeDesignators in a XACML/JSON policy (element), false if an AttributeSelector is found
+	 */
+	private static boolean collectDesignators(final Object policyElement, final Set<String> designatorKeys)
+	{
+		if (policyElement instanceof JSONArray)
+		{
+			for (final Object item : (JSONArray) policyElement)
+			{
+				if (!collectDesignators(item, designatorKeys))
+				{
+					return false;
+				}
+			}
+
+			return true;
+		}
+
+		if (!(policyElement instanceof JSONObject))
+		{
+			return true;
+		}
+
+		final JSONObject jsonObject = (JSONObject) policyElement;
+		if (jsonObject.has("attributeSelector"))
+		{
+			return false;
+		}
+
+		final JSONObject designator = jsonObject.optJSONObject("attributeDesignator");
+		if (designator != null)
+		{
+			designatorKeys.add(designator.getString("category") + KEY_SEPARATOR + designator.getString("id") + KEY_SEPARATOR + designator.getString("dataType"));
+		}
+
+		for (final String key : jsonObject.keySet())
+		{
+			if (!collectDesignators(jsonObject.get(key), designatorKeys))
+			{
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	private static final class Designators
+	{
+		private final Set<String> categoryIds;
+		/*
+		 * category + attribute ID
+		 */
+		private final Set<String> attributeKeys;
+		/*
+		 * category + attribute ID + datatype
+		 */
+		private final Set<String> designatorKeys;
+
+		private Designators(final Set<String> categoryIds, final Set<String> attributeKeys, final Set<String> designatorKeys)
+		{
+			this.categoryIds = Collections.unmodifiableSet(categoryIds);
+			this.attributeKeys = Collections.unmodifiableSet(attributeKeys);
+			this.designatorKeys = Collections.unmodifiableSet(designatorKeys);
+		}
+	}
+
+	/*
+	 * Null if disabled
+	 */
+	private final Designators designators;
+
+	private RequestAttributePruner(final Designators designators)
+	{
+		this.designators = designators;
+	}
+
+	/*
+	 * Full identifier (URI/URN) as opposed to a shorthand (e.g. 'string' for the string datatype), which does not contain ':'
+	 */
+	private static boolean isFullIdentifier(final String identifier)
+	{
+		return identifier.indexOf(':') >= 0;
+	}
+
+	private boolean isUsed(final String categoryId, final JSONObject attribute)
+	{
+		if (attribute.optBoolean("IncludeInResult", false))
+		{
+			return true;
+		}
+
+		final String attributeKey = categoryId + KEY_SEPARATOR + attribute.getString("AttributeId");
+		if (!designators.attributeKeys.contains(attributeKey))
+		{
+			return false;
+		}
+
+		/*
+		 * Datatype known for sure only if given as URI (may be a shorthand or inferred from the value in XACML/JSON)
+		 */
+		final String dataType = attribute.optString("DataType", null);
+		return dataType == null || !isFullIdentifier(dataType) || designators.designatorKeys.contains(attributeKey + KEY_SEPARATOR + dataType);
+	}
+
+	private static boolean isAnyIncludedInResult(final JSONArray attributes)
+	{
+		for (final Object attribute : attributes)
+		{
+			if (((JSONObject) attribute).optBoolean("IncludeInResult", false))
+			{
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Removes the attributes that no loaded policy may read from a XACML/JSON Request, and the categories left without attributes
+	 *
+	 * @param request
+	 *            XACML/JSON Request (assumed valid against the XACML/JSON Request schema), not modified
+	 * @return pruned XACML/JSON Request (the original one if nothing to remove)
+	 */
+	JSONObject prune(final JSONObject request)
+	{
+		if (designators == null)
+		{
+			return request;
+		}
+
+		final JSONObject requestContent = request.getJSONObject("Request");
+		final JSONArray categories = requestContent.optJSONArray("Category");
+		if (categories == null || requestContent.has("MultiRequests"))
+		{
+			return request;
+		}
+
+		final JSONArray prunedCategories = new JSONArray();
+		boolean isPruned = false;
+		for (final Object categoryObject : categories)
+		{
+			final JSONObject category = (JSONObject) categoryObject;
+			final String categoryId = category.getString("CategoryId");
+			final JSONArray attributes = category.optJSONArray("Attribute");
+			if (category.has("Content") || attributes == null || !isFullIdentifier(categoryId))
+			{
+				prunedCategories.put(category);
+				continue;
+			}
+
+			/*
+			 * Category not used by any policy: removed as a whole, unless attributes to be included in the result
+			 */
+			if (!designators.categoryIds.contains(categoryId) && !isAnyIncludedInResult(attributes))
+			{
+				isPruned = true;
+				continue;
+			}
+
+			final JSONArray prunedAttributes = new JSONArray();
+			for (final Object attributeObject : attributes)
+			{
+				if (isUsed(categoryId, (JSONObject) attributeObject))
+				{
+					prunedAttributes.put(attributeObject);
+				}
+			}
+
+			if (prunedAttributes.length() == attributes.length())
+			{
+				prunedCategories.put(category);
+				continue;
+			}
+
+			isPruned = true;
+			if (prunedAttributes.length() > 0)
+			{
+				final JSONObject prunedCategory = new JSONObject(category, JSONObject.getNames(category));
+				prunedCategory.put("Attribute", prunedAttributes);
+				prunedCategories.put(prunedCategory);
+			}
+		}
+
+		/*
+		 * At least one category required
+		 */
+		if (!isPruned || prunedCategories.length() == 0)
+		{
+			return request;
+		}
+
+		final JSONObject prunedRequestContent = new JSONObject(requestContent, JSONObject.getNames(requestContent));
+		prunedRequestContent.put("Category", prunedCategories);
+		return new JSONObject().put("Request", prunedRequestContent);
+	}
+}
@@ -0,0 +1,165 @@
+/**
+ * Copyright (C) 2018-2019 THALES.
+ *
+ * This file is part of AuthzForce CE.
+ *
+ * AuthzForce CE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * AuthzForce CE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with AuthzForce CE.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.driver.testbed.sec.authz.service;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.json.JSONObject;
+import org.json.JSONTokener;
+import org.ow2.authzforce.core.pdp.api.policy.PolicyVersion;
+
+import com.google.common.hash.Hashing;
+
+/**
+ * Policy version content as stored in the PRP (JSON), to be copied as is to an output stream, without parsing (see {@link PrpDao#getLatestPolicyVersionStoredContent(String, java.util.Optional)})
+ */
+final class StoredPolicyContent
+{
+	private final PolicyVersion version;
+	private final String revision;
+	/*
+	 * Either file or bytes is not null
+	 */
+	private final Path file;
+	private final byte[] bytes;
+
+	private StoredPolicyContent(final PolicyVersion version, final String revision, final Path file, final byte[] bytes)
+	{
+		assert version != null && revision != null && (file == null) != (bytes == null);
+		this.version = version;
+		this.revision = revision;
+		this.file = file;
+		this.bytes = bytes;
+	}
+
+	/**
+	 * Creates a stored policy content from a policy file
+	 *
+	 * @param version
+	 *            policy version
+	 * @param file
+	 *            policy file (must be a committed file, i.e. not removed/replaced by a transaction except a policy deletion)
+	 * @param lastModifiedTime
+	 *            last modification time of the file (milliseconds since the epoch), to tell apart the content of the same version of a policy deleted and created again
+	 * @return stored policy content
+	 */
+	static StoredPolicyContent ofFile(final PolicyVersion version, final Path file, final long lastModifiedTime)
+	{
+		assert file != null;
+		return new StoredPolicyContent(version, version + "-" + Long.toHexString(lastModifiedTime), file, null);
+	}
+
+	/**
+	 * Creates a stored policy content from the content in memory
+	 *
+	 * @param version
+	 *            policy version
+	 * @param bytes
+	 *            policy content (UTF-8 JSON)
+	 * @return stored policy content
+	 */
+	static StoredPolicyContent ofBytes(final PolicyVersion version, final byte[] bytes)
+	{
+		assert bytes != null;
+		return new StoredPolicyContent(version, version + "-" + Hashing.murmur3_32().hashBytes(bytes), null, bytes);
+	}
+
+	/**
+	 * Gets the policy version
+	 *
+	 * @return policy version
+	 */
+	PolicyVersion getVersion()
+	{
+		return version;
+	}
+
+	/**
+	 * Gets the revision of the content, i.e. the policy version with a suffix that differs for different contents of the same policy version (the PAP reuses a version number after the policy is
+	 * deleted), suitable for a strong HTTP entity tag
+	 *
+	 * @return content revision
+	 */
+	String getRevision()
+	{
+		return revision;
+	}
+
+	/**
+	 * Copies the content to an output stream. The content of a file is transferred by the file channel ({@link FileChannel#transferTo(long, long, WritableByteChannel)}), in chunks to the channel
+	 * wrapping the output stream (servlet output streams are not channels, so the OS-level zero-copy transfer is not available).
+	 *
+	 * @param out
+	 *            output stream (not closed by this method)
+	 * @throws IOException
+	 *             error reading the policy file (e.g. policy deleted in the meantime) or writing to the output stream
+	 */
+	void writeTo(final OutputStream out) throws IOException
+	{
+		assert out != null;
+		if (bytes != null)
+		{
+			out.write(bytes);
+			return;
+		}
+
+		try (final FileChannel fileChannel = FileChannel.open(file, StandardOpenOption.READ))
+		{
+			/*
+			 * Closing this channel would close the output stream
+			 */
+			final WritableByteChannel outChannel = Channels.newChannel(out);
+			final long size = fileChannel.size();
+			long position = 0;
+			while (position < size)
+			{
+				position += fileChannel.transferTo(position, size - position, outChannel);
+			}
+		}
+	}
+
+	/**
+	 * Parses the content, e.g. to be modified before it is sent
+	 *
+	 * @return JSON content
+	 * @throws IOException
+	 *             error reading the policy file (e.g. policy deleted in the meantime)
+	 */
+	JSONObject toJson() throws IOException
+	{
+		if (bytes != null)
+		{
+			return new JSONObject(new String(bytes, StandardCharsets.UTF_8));
+		}
+
+		try (final BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8))
+		{
+			return new JSONObject(new JSONTokener(reader));
+		}
+	}
+}
@@ -0,0 +1,290 @@
+/**
+ * Copyright (C) 2018-2019 THALES.
+ *
+ * This file is part of AuthzForce CE.
+ *
+ * AuthzForce CE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * AuthzForce CE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with AuthzForce CE.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.driver.testbed.sec.authz.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.security.auth.x500.X500Principal;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+
+/**
+ * Canonical form of X.500 names (certificate subject DNs) that does not depend on the order of the RDNs, i.e. the same for a DN in LDAP order (RFC 2253, e.g. 'CN=client,O=org,C=FR') and in X.500
+ * order (reverse, e.g. 'C=FR,O=org,CN=client'). DRIVER access policies may give subject.id in either order. If subject-id canonicalization is enabled (see
+ * {@link AuthzWsOptions#setSubjectIdCanonicalizationEnabled(boolean)}), they are compiled with this canonical form (see
+ * {@link DriverAccessPolicyHandler#compileXacmlJsonPolicy(JSONObject, String, String, String, X500NameCanonicalizer)}), and the subject-id of the requests is converted to the same form before
+ * evaluation (see {@link #canonicalizeSubjectIds(JSONObject)}): a single x500Name-equal match per subject.id is enough. The DRIVER policy index uses this canonical form in any case.
+ * <p>
+ * The canonical form is the RFC 2253 canonical form of {@link X500Principal} (lower case, normalized spaces and escaping) in LDAP order or X.500 order, chosen as follows:
+ * <ol>
+ * <li>if only one of the two orders starts with a CN (or UID) RDN, this one, i.e. the LDAP order for the usual certificate DNs;</li>
+ * <li>else (no CN/UID RDN at either end, or at both ends), the order whose canonical form is the greater string, e.g. 'o=org,c=fr' for 'C=FR,O=org' or 'O=org,C=FR' ('o' &gt; 'c').</li>
+ * </ol>
+ * The second rule is arbitrary but stable (it depends only on the DN), so custom XACML policies that match such a subject-id with x500Name-equal must give the DN in that order. Canonical forms are
+ * cached per DN, since the requests come from a limited number of clients (Kafka brokers on behalf of the client certificate subjects).
+ */
+final class X500NameCanonicalizer
+{
+	/*
+	 * Max number of canonical forms in cache (one per client certificate subject, and per subject.id in the DRIVER access policies)
+	 */
+	private static final long MAX_CACHED_NAMES = 10000;
+
+	private final Cache<String, String> canonicalNames = CacheBuilder.newBuilder().maximumSize(MAX_CACHED_NAMES).recordStats().build();
+
+	/*
+	 * Splits a RFC 2253 name into RDNs, separated by unescaped commas
+	 */
+	private static List<String> getRdns(final String rfc2253Name)
+	{
+		final List<String> rdns = new ArrayList<>();
+		int rdnStartIndex = 0;
+		for (int i = 0; i < rfc2253Name.length(); i++)
+		{
+			final char c = rfc2253Name.charAt(i);
+			if (c == '\\')
+			{
+				/*
+				 * Skip escaped character
+				 */
+				i++;
+			}
+			else if (c == ',')
+			{
+				rdns.add(rfc2253Name.substring(rdnStartIndex, i));
+				rdnStartIndex = i + 1;
+			}
+		}
+
+		rdns.add(rfc2253Name.substring(rdnStartIndex));
+		return rdns;
+	}
+
+	/**
+	 * Reverses the order of the RDNs of a X.500 name, e.g. LDAP order to X.500 order. The name is not parsed or normalized: RDNs are separated by unescaped commas.
+	 *
+	 * @param x500Name
+	 *            X.500 name (RFC 2253 string)
+	 * @return X.500 name with the RDNs in reverse order (same as {@code x500Name} if single RDN)
+	 */
+	static String reverseRdns(final String x500Name)
+	{
+		final List<String> rdns = getRdns(x500Name);
+		Collections.reverse(rdns);
+		return String.join(",", rdns);
+	}
+
+	/*
+	 * True iff the name (canonical form) starts with the RDN of the subject itself (common name or user ID), as in the LDAP order of the usual certificate DNs
+	 */
+	private static boolean isSubjectRdnFirst(final String canonicalName)
+	{
+		return canonicalName.startsWith("cn=") || canonicalName.startsWith("uid=");
+	}
+
+	/**
+	 * Gets the canonical form of a X.500 name, independent from the order of the RDNs (LDAP or X.500 order)
+	 *
+	 * @param x500Name
+	 *            X.500 name (RFC 2253 string), in LDAP or X.500 order
+	 * @return canonical form
+	 * @throws IllegalArgumentException
+	 *             invalid X.500 name
+	 */
+	String canonicalize(final String x500Name) throws IllegalArgumentException
+	{
+		final String cachedCanonicalName = canonicalNames.getIfPresent(x500Name);
+		if (cachedCanonicalName != null)
+		{
+			return cachedCanonicalName;
+		}
+
+		final String ldapOrderName = new X500Principal(x500Name).getName(X500Principal.CANONICAL);
+		final String x500OrderName = reverseRdns(ldapOrderName);
+		final String canonicalName;
+		if (x500OrderName.equals(ldapOrderName))
+		{
+			canonicalName = ldapOrderName;
+		}
+		else
+		{
+			final boolean isSubjectRdnFirstInLdapOrder = isSubjectRdnFirst(ldapOrderName);
+			if (isSubjectRdnFirstInLdapOrder != isSubjectRdnFirst(x500OrderName))
+			{
+				canonicalName = isSubjectRdnFirstInLdapOrder ? ldapOrderName : x500OrderName;
+			}
+			else
+			{
+				/*
+				 * Arbitrary but stable order (see class documentation)
+				 */
+				canonicalName = ldapOrderName.compareTo(x500OrderName) >= 0 ? ldapOrderName : x500OrderName;
+			}
+		}
+
+		canonicalNames.put(x500Name, canonicalName);
+		return canonicalName;
+	}
+
+	/*
+	 * Canonical form of a subject-id value, the value itself if not a valid X.500 name (left to the PDP engine)
+	 */
+	private Object canonicalizeValue(final Object value)
+	{
+		if (!(value instanceof String))
+		{
+			return value;
+		}
+
+		try
+		{
+			return canonicalize((String) value);
+		}
+		catch (final IllegalArgumentException e)
+		{
+			return value;
+		}
+	}
+
+	private static boolean isX500NameSubjectId(final JSONObject attribute)
+	{
+		final String dataType = attribute.optString("DataType");
+		return attribute.optString("AttributeId").equals(DriverPolicyIndex.SUBJECT_ID) && (dataType.equals(DriverPolicyIndex.X500NAME_DATATYPE) || dataType.equals("x500Name"));
+	}
+
+	/*
+	 * Attribute with the canonical form of its values, the attribute itself if already canonical
+	 */
+	private JSONObject canonicalizeSubjectId(final JSONObject attribute)
+	{
+		final Object value = attribute.opt("Value");
+		final Object canonicalValue;
+		if (value instanceof JSONArray)
+		{
+			final JSONArray canonicalValues = new JSONArray();
+			boolean isCanonical = true;
+			for (final Object item : (JSONArray) value)
+			{
+				final Object canonicalItem = canonicalizeValue(item);
+				isCanonical = isCanonical && canonicalItem.equals(item);
+				canonicalValues.put(canonicalItem);
+			}
+
+			canonicalValue = isCanonical ? value : canonicalValues;
+		}
+		else
+		{
+			canonicalValue = value == null ? null : canonicalizeValue(value);
+		}
+
+		if (canonicalValue == null || canonicalValue.equals(value))
+		{
+			return attribute;
+		}
+
+		final JSONObject canonicalAttribute = new JSONObject(attribute, JSONObject.getNames(attribute));
+		canonicalAttribute.put("Value", canonicalValue);
+		return canonicalAttribute;
+	}
+
+	/**
+	 * Converts the access-subject's subject-id values (x500Name datatype) of a XACML/JSON Request to the canonical form, to match the DRIVER access policies compiled with the canonical form
+	 *
+	 * @param request
+	 *            XACML/JSON Request (assumed valid against the XACML/JSON Request schema), not modified
+	 * @return XACML/JSON Request with canonical subject-id values (the original one if already canonical or no subject-id)
+	 */
+	JSONObject canonicalizeSubjectIds(final JSONObject request)
+	{
+		final JSONObject requestContent = request.getJSONObject("Request");
+		final JSONArray categories = requestContent.optJSONArray("Category");
+		if (categories == null)
+		{
+			return request;
+		}
+
+		final JSONArray canonicalCategories = new JSONArray();
+		boolean isCanonical = true;
+		for (final Object categoryObject : categories)
+		{
+			final JSONObject category = (JSONObject) categoryObject;
+			final String categoryId = category.getString("CategoryId");
+			final JSONArray attributes = category.optJSONArray("Attribute");
+			if (attributes == null || !categoryId.equals(DriverPolicyIndex.ACCESS_SUBJECT_CATEGORY) && !categoryId.equals("AccessSubject"))
+			{
+				canonicalCategories.put(category);
+				continue;
+			}
+
+			final JSONArray canonicalAttributes = new JSONArray();
+			boolean isCanonicalCategory = true;
+			for (final Object attributeObject : attributes)
+			{
+				final JSONObject attribute = (JSONObject) attributeObject;
+				final JSONObject canonicalAttribute = isX500NameSubjectId(attribute) ? canonicalizeSubjectId(attribute) : attribute;
+				isCanonicalCategory = isCanonicalCategory && canonicalAttribute == attribute;
+				canonicalAttributes.put(canonicalAttribute);
+			}
+
+			if (isCanonicalCategory)
+			{
+				canonicalCategories.put(category);
+				continue;
+			}
+
+			isCanonical = false;
+			final JSONObject canonicalCategory = new JSONObject(category, JSONObject.getNames(category));
+			canonicalCategory.put("Attribute", canonicalAttributes);
+			canonicalCategories.put(canonicalCategory);
+		}
+
+		if (isCanonical)
+		{
+			return request;
+		}
+
+		final JSONObject canonicalRequestContent = new JSONObject(requestContent, JSONObject.getNames(requestContent));
+		canonicalRequestContent.put("Category", canonicalCategories);
+		return new JSONObject().put("Request", canonicalRequestContent);
+	}
+
+	/**
+	 * Get statistics of the cache of canonical forms
+	 *
+	 * @return statistics as JSON object: hit count, miss count, hit rate, eviction count, size
+	 */
+	JSONObject getStats()
+	{
+		final CacheStats stats = canonicalNames.stats();
+		final JSONObject statsJson = new JSONObject();
+		statsJson.put("hitCount", stats.hitCount());
+		statsJson.put("missCount", stats.missCount());
+		statsJson.put("hitRate", stats.hitRate());
+		statsJson.put("evictionCount", stats.evictionCount());
+		statsJson.put("size", canonicalNames.size());
+		return statsJson;
+	}
+}
@@ -0,0 +1,81 @@
+/**
+ * Copyright (C) 2018-2019 THALES.
+ *
+ * This file is part of AuthzForce CE.
+ *
+ * AuthzForce CE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * AuthzForce CE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with AuthzForce CE.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.driver.testbed.sec.authz.service;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * Encoder of XACML/JSON Responses of the PDP endpoint ({@code /pdp}): the common responses (single Permit/Deny/NotApplicable decision) are written from pre-encoded bytes, the others serialized as
+ * usual. The requests are parsed by the JSON provider of the endpoint, within the limits of its configuration.
+ */
+final class XacmlJsonCodec
+{
+	/*
+	 * XACML/JSON Responses with a single Result with a Decision only (no Status, Obligations, Advice, Attributes or PolicyIdentifierList), by Decision
+	 */
+	private static final Map<String, byte[]> PRE_ENCODED_RESPONSES_BY_DECISION = ImmutableMap.of("Permit", preEncodeResponse("Permit"), "Deny", preEncodeResponse("Deny"), "NotApplicable",
+	        preEncodeResponse("NotApplicable"));
+
+	private static byte[] preEncodeResponse(final String decision)
+	{
+		return ("{\"Response\":[{\"Decision\":\"" + decision + "\"}]}").getBytes(StandardCharsets.UTF_8);
+	}
+
+	private XacmlJsonCodec()
+	{
+		// no instance
+	}
+
+	/**
+	 * Encodes a XACML/JSON Response, using a pre-encoded response if there is a single Result with a Decision only (Permit, Deny or NotApplicable)
+	 *
+	 * @param response
+	 *            XACML/JSON Response
+	 * @return encoded response (UTF-8), possibly shared, i.e. must not be modified
+	 */
+	static byte[] encodeResponse(final JSONObject response)
+	{
+		assert response != null;
+		if (response.length() == 1)
+		{
+			final JSONArray results = response.optJSONArray("Response");
+			if (results != null && results.length() == 1)
+			{
+				final JSONObject result = results.optJSONObject(0);
+				if (result != null && result.length() == 1)
+				{
+					final Object decision = result.opt("Decision");
+					final byte[] preEncodedResponse = decision instanceof String ? PRE_ENCODED_RESPONSES_BY_DECISION.get(decision) : null;
+					if (preEncodedResponse != null)
+					{
+						return preEncodedResponse;
+					}
+				}
+			}
+		}
+
+		return response.toString().getBytes(StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,296 @@
+/**
+ * Copyright (C) 2018-2019 THALES.
+ *
+ * This file is part of AuthzForce CE.
+ *
+ * AuthzForce CE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * AuthzForce CE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with AuthzForce CE.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.driver.testbed.sec.authz.service;
+
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * XACML/JSON (AuthzForce format) to XACML/XML policy converter writing the XML directly with StAX, i.e. without serializing the JSON to a string for the XSLT (xacml-json-to-xml.xslt) to parse it
+ * again. Supports the same subset of XACML as the XSLT.
+ */
+final class XacmlJsonPolicyXmlWriter
+{
+	private static final String XACML_3_0_NS = "urn:oasis:names:tc:xacml:3.0:core:schema:wd-17";
+	private static final String XACML_3_0_NS_PREFIX = "xacml";
+	private static final String DEFAULT_POLICY_VERSION = "1.0";
+
+	private static final XMLOutputFactory XML_OUTPUT_FACTORY = XMLOutputFactory.newInstance();
+
+	/*
+	 * Match functions for which the AttributeValue's datatype is string instead of the AttributeDesignator's (same as in the XSLT)
+	 */
+	private static final Set<String> STRING_VALUE_MATCH_FUNCTIONS = new HashSet<>(Arrays.asList("urn:oasis:names:tc:xacml:3.0:function:anyURI-starts-with",
+	        "urn:oasis:names:tc:xacml:3.0:function:anyURI-ends-with", "urn:oasis:names:tc:xacml:3.0:function:anyURI-contains", "urn:oasis:names:tc:xacml:2.0:function:anyURI-regexp-match",
+	        "urn:oasis:names:tc:xacml:2.0:function:ipAddress-regexp-match", "urn:oasis:names:tc:xacml:2.0:function:dnsName-regexp-match",
+	        "urn:oasis:names:tc:xacml:2.0:function:rfc822Name-regexp-match", "urn:oasis:names:tc:xacml:2.0:function:x500Name-regexp-match",
+	        "urn:oasis:names:tc:xacml:1.0:function:rfc822Name-match"));
+
+	private final XMLStreamWriter writer;
+	/*
+	 * Counter of generated Policy IDs (PolicySet with rules), unique in the document
+	 */
+	private int generatedPolicyCount = 0;
+	private boolean isRootElementWritten = false;
+
+	private XacmlJsonPolicyXmlWriter(final XMLStreamWriter writer)
+	{
+		this.writer = writer;
+	}
+
+	private void writeStartElement(final String localName) throws XMLStreamException
+	{
+		writer.writeStartElement(XACML_3_0_NS_PREFIX, localName, XACML_3_0_NS);
+		if (!isRootElementWritten)
+		{
+			writer.writeNamespace(XACML_3_0_NS_PREFIX, XACML_3_0_NS);
+			isRootElementWritten = true;
+		}
+	}
+
+	private void writeDescription(final JSONObject json) throws XMLStreamException
+	{
+		final String description = json.optString("description", null);
+		if (description != null)
+		{
+			writeStartElement("Description");
+			writer.writeCharacters(description);
+			writer.writeEndElement();
+		}
+	}
+
+	private void writeTarget(final JSONObject json) throws XMLStreamException
+	{
+		writeStartElement("Target");
+		final JSONArray anyOfs = json.optJSONArray("target");
+		if (anyOfs != null)
+		{
+			for (final Object anyOf : anyOfs)
+			{
+				if (!(anyOf instanceof JSONArray))
+				{
+					continue;
+				}
+
+				writeStartElement("AnyOf");
+				for (final Object allOf : (JSONArray) anyOf)
+				{
+					if (!(allOf instanceof JSONArray))
+					{
+						continue;
+					}
+
+					writeStartElement("AllOf");
+					for (final Object match : (JSONArray) allOf)
+					{
+						if (match instanceof JSONObject)
+						{
+							writeMatch((JSONObject) match);
+						}
+					}
+
+					writer.writeEndElement();
+				}
+
+				writer.writeEndElement();
+			}
+		}
+
+		writer.writeEndElement();
+	}
+
+	private void writeMatch(final JSONObject match) throws XMLStreamException
+	{
+		final String matchFunction = match.optString("matchFunction");
+		final JSONObject attributeDesignator = match.optJSONObject("attributeDesignator");
+		writeStartElement("Match");
+		writer.writeAttribute("MatchId", matchFunction);
+		writeStartElement("AttributeValue");
+		writer.writeAttribute("DataType", STRING_VALUE_MATCH_FUNCTIONS.contains(matchFunction) ? DriverPolicyIndex.STRING_DATATYPE
+		        : attributeDesignator == null ? "" : attributeDesignator.optString("dataType"));
+		writer.writeCharacters(match.optString("value"));
+		writer.writeEndElement();
+		/*
+		 * TODO: support AttributeSelector (not supported by the XSLT either)
+		 */
+		if (attributeDesignator != null)
+		{
+			writeStartElement("AttributeDesignator");
+			writer.writeAttribute("DataType", attributeDesignator.optString("dataType"));
+			writer.writeAttribute("MustBePresent", Boolean.toString(attributeDesignator.optBoolean("mustBePresent")));
+			writer.writeAttribute("Category", attributeDesignator.optString("category"));
+			writer.writeAttribute("AttributeId", attributeDesignator.optString("id"));
+			final String issuer = attributeDesignator.optString("issuer", null);
+			if (issuer != null)
+			{
+				writer.writeAttribute("Issuer", issuer);
+			}
+
+			writer.writeEndElement();
+		}
+
+		writer.writeEndElement();
+	}
+
+	private void writeRules(final JSONArray rules) throws XMLStreamException
+	{
+		for (final Object rule : rules)
+		{
+			if (!(rule instanceof JSONObject))
+			{
+				continue;
+			}
+
+			final JSONObject ruleJson = (JSONObject) rule;
+			writeStartElement("Rule");
+			writer.writeAttribute("Effect", ruleJson.optString("effect"));
+			writer.writeAttribute("RuleId", ruleJson.optString("id"));
+			writeDescription(ruleJson);
+			writeTarget(ruleJson);
+			/*
+			 * TODO: support Condition, Advice/ObligationExpressions (not supported by the XSLT either)
+			 */
+			writer.writeEndElement();
+		}
+	}
+
+	private void writePolicy(final JSONObject policy) throws XMLStreamException
+	{
+		final String version = policy.optString("version", DEFAULT_POLICY_VERSION);
+		final String combiningAlgId = policy.optString("combiningAlgId");
+		final JSONArray rules = policy.optJSONArray("rules");
+		final JSONArray policies = policy.optJSONArray("policies");
+		if (policies == null)
+		{
+			writeStartElement("Policy");
+			writer.writeAttribute("RuleCombiningAlgId", combiningAlgId);
+			writer.writeAttribute("PolicyId", policy.optString("id"));
+			writer.writeAttribute("Version", version);
+			writeDescription(policy);
+			writeTarget(policy);
+			if (rules != null)
+			{
+				writeRules(rules);
+			}
+
+			writer.writeEndElement();
+			return;
+		}
+
+		writeStartElement("PolicySet");
+		writer.writeAttribute("PolicyCombiningAlgId", combiningAlgId);
+		writer.writeAttribute("PolicySetId", policy.optString("id"));
+		writer.writeAttribute("Version", version);
+		writeDescription(policy);
+		writeTarget(policy);
+		if (rules != null)
+		{
+			/*
+			 * Rules of a PolicySet go to a generated Policy, first in the PolicySet
+			 */
+			writeStartElement("Policy");
+			writer.writeAttribute("RuleCombiningAlgId", combiningAlgId.replace("policy", "rule"));
+			writer.writeAttribute("PolicyId", "#generated_" + generatedPolicyCount++);
+			writer.writeAttribute("Version", DEFAULT_POLICY_VERSION);
+			writeStartElement("Target");
+			writer.writeEndElement();
+			writeRules(rules);
+			writer.writeEndElement();
+		}
+
+		for (final Object policyOrRef : policies)
+		{
+			if (policyOrRef instanceof JSONObject)
+			{
+				writePolicyOrRef((JSONObject) policyOrRef);
+			}
+		}
+
+		/*
+		 * TODO: support MaxDelegationDepth, Advice/ObligationExpressions, (Policy)(Set)CombinerParameters, PolicyIssuer, PolicySetDefaults (not supported by the XSLT either)
+		 */
+		writer.writeEndElement();
+	}
+
+	/*
+	 * Writes the 'policy' or 'policyRef' of a JSON object wrapping it
+	 */
+	private void writePolicyOrRef(final JSONObject json) throws XMLStreamException
+	{
+		final JSONObject policy = json.optJSONObject("policy");
+		if (policy != null)
+		{
+			writePolicy(policy);
+			return;
+		}
+
+		final JSONObject policyRef = json.optJSONObject("policyRef");
+		if (policyRef != null)
+		{
+			/*
+			 * TODO: Version, EarliestVersion and LatestVersion (not supported by the XSLT either)
+			 */
+			writeStartElement("PolicySetIdReference");
+			writer.writeCharacters(policyRef.optString("id"));
+			writer.writeEndElement();
+		}
+	}
+
+	/**
+	 * Converts a XACML/JSON policy to XACML/XML, same as the XSLT
+	 *
+	 * @param wrappedXacmlJsonPolicy
+	 *            XACML/JSON policy wrapped in a JSON object with root key 'policy'
+	 * @param out
+	 *            output stream (not closed)
+	 * @throws XMLStreamException
+	 *             error writing the XML
+	 */
+	static void write(final JSONObject wrappedXacmlJsonPolicy, final OutputStream out) throws XMLStreamException
+	{
+		final JSONObject xacmlJsonPolicy = wrappedXacmlJsonPolicy.optJSONObject("policy");
+		if (xacmlJsonPolicy == null)
+		{
+			throw new IllegalArgumentException("Invalid XACML/JSON policy: root key != 'policy'");
+		}
+
+		final XMLStreamWriter xmlStreamWriter = XML_OUTPUT_FACTORY.createXMLStreamWriter(out, StandardCharsets.UTF_8.name());
+		try
+		{
+			xmlStreamWriter.writeStartDocument(StandardCharsets.UTF_8.name(), "1.0");
+			new XacmlJsonPolicyXmlWriter(xmlStreamWriter).writePolicy(xacmlJsonPolicy);
+			xmlStreamWriter.writeEndDocument();
+			xmlStreamWriter.flush();
+		}
+		finally
+		{
+			xmlStreamWriter.close();
+		}
+	}
+}
@@ -0,0 +1,108 @@
+/**
+ * Copyright (C) 2018-2019 THALES.
+ *
+ * This file is part of AuthzForce CE.
+ *
+ * AuthzForce CE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * AuthzForce CE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with AuthzForce CE.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.driver.testbed.sec.authz.service;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests of the concurrent evaluation of the requests of a batch on the PDP threads ({@link AuthzWsJaxrsRootResource#evaluateConcurrently(java.util.concurrent.Executor, List, java.util.function.Function)})
+ */
+public class BatchEvaluationTest
+{
+	private static final List<Integer> REQUESTS = IntStream.range(0, 100).boxed().collect(Collectors.toList());
+	private static final List<String> EXPECTED_RESULTS = REQUESTS.stream().map(i -> "result-" + i).collect(Collectors.toList());
+
+	@Test
+	public void testConcurrentEvaluationInRequestOrder() throws InterruptedException
+	{
+		final int threadCount = 4;
+		final ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+		try
+		{
+			/*
+			 * Each of the first requests completes only when all of them have started, i.e. are evaluated at the same time (the calling thread and the executor threads)
+			 */
+			final int concurrentRequestCount = threadCount + 1;
+			final CountDownLatch startedRequests = new CountDownLatch(concurrentRequestCount);
+			final List<String> results = AuthzWsJaxrsRootResource.evaluateConcurrently(executor, REQUESTS, request -> {
+				if (request < concurrentRequestCount)
+				{
+					startedRequests.countDown();
+					try
+					{
+						Assert.assertTrue("Requests of the batch not evaluated concurrently", startedRequests.await(10, TimeUnit.SECONDS));
+					}
+					catch (final InterruptedException e)
+					{
+						throw new RuntimeException(e);
+					}
+				}
+
+				return "result-" + request;
+			});
+			Assert.assertEquals("Results not in the same order as the requests", EXPECTED_RESULTS, results);
+		}
+		finally
+		{
+			executor.shutdownNow();
+			executor.awaitTermination(10, TimeUnit.SECONDS);
+		}
+	}
+
+	@Test
+	public void testEvaluationFromSingleBusyThreadWithFullQueue() throws Exception
+	{
+		/*
+		 * The batch is evaluated by the only executor thread, and the queue is too small for the requests of the batch: the requests not started (or rejected) are evaluated by the calling thread
+		 */
+		final ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(10));
+		try
+		{
+			final List<String> results = executor.submit(() -> AuthzWsJaxrsRootResource.evaluateConcurrently(executor, REQUESTS, request -> "result-" + request)).get(10, TimeUnit.SECONDS);
+			Assert.assertEquals("Results not in the same order as the requests", EXPECTED_RESULTS, results);
+		}
+		finally
+		{
+			executor.shutdownNow();
+			executor.awaitTermination(10, TimeUnit.SECONDS);
+		}
+	}
+
+	@Test
+	public void testSequentialEvaluationWithoutExecutor()
+	{
+		final Thread callingThread = Thread.currentThread();
+		final List<String> results = AuthzWsJaxrsRootResource.evaluateConcurrently(null, REQUESTS, request -> {
+			Assert.assertSame("Request not evaluated by the calling thread", callingThread, Thread.currentThread());
+			return "result-" + request;
+		});
+		Assert.assertEquals("Results not in the same order as the requests", EXPECTED_RESULTS, results);
+	}
+}
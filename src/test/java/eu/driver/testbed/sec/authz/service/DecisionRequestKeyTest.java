@@ -0,0 +1,82 @@
+/**
+ * Copyright (C) 2018-2019 THALES.
+ *
+ * This file is part of AuthzForce CE.
+ *
+ * AuthzForce CE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * AuthzForce CE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with AuthzForce CE.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.driver.testbed.sec.authz.service;
+
+import java.util.Optional;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests of the normalized form of XACML/JSON Requests used as decision cache key ({@link DecisionRequestKey})
+ */
+public class DecisionRequestKeyTest
+{
+	private static JSONObject newAttribute(final String attributeId, final String issuer, final String value)
+	{
+		final JSONObject attribute = new JSONObject().put("AttributeId", attributeId).put("Value", value);
+		return issuer == null ? attribute : attribute.put("Issuer", issuer);
+	}
+
+	private static JSONObject newRequest(final JSONObject... subjectAttributes)
+	{
+		final JSONArray subjectAttributeArray = new JSONArray();
+		for (final JSONObject subjectAttribute : subjectAttributes)
+		{
+			subjectAttributeArray.put(subjectAttribute);
+		}
+
+		final JSONObject subjectCategory = new JSONObject().put("CategoryId", "urn:oasis:names:tc:xacml:1.0:subject-category:access-subject").put("Attribute", subjectAttributeArray);
+		final JSONObject actionCategory = new JSONObject().put("CategoryId", "urn:oasis:names:tc:xacml:3.0:attribute-category:action").put("Attribute",
+		        new JSONArray().put(newAttribute("urn:oasis:names:tc:xacml:1.0:action:action-id", null, "WRITE")));
+		return new JSONObject().put("Request", new JSONObject().put("Category", new JSONArray().put(subjectCategory).put(actionCategory)));
+	}
+
+	private static DecisionRequestKey keyOf(final JSONObject request)
+	{
+		final Optional<DecisionRequestKey> key = DecisionRequestKey.of(request);
+		Assert.assertTrue("Request not normalized", key.isPresent());
+		return key.get();
+	}
+
+	@Test
+	public void testSameKeyRegardlessOfOrder()
+	{
+		final JSONObject subjectId = newAttribute("urn:oasis:names:tc:xacml:1.0:subject:subject-id", null, "CN=ClientID1");
+		final JSONObject ipAddress = newAttribute("urn:oasis:names:tc:xacml:3.0:subject:authn-locality:ip-address", null, "1.2.3.4");
+		final JSONObject request = newRequest(subjectId, ipAddress);
+		final JSONObject reorderedRequest = newRequest(ipAddress, subjectId);
+		final JSONArray reorderedCategories = reorderedRequest.getJSONObject("Request").getJSONArray("Category");
+		reorderedRequest.getJSONObject("Request").put("Category", new JSONArray().put(reorderedCategories.get(1)).put(reorderedCategories.get(0)));
+		Assert.assertEquals(keyOf(request), keyOf(reorderedRequest));
+	}
+
+	@Test
+	public void testSeparatorsInFieldsDoNotCollide()
+	{
+		/*
+		 * Same fields concatenated with the key separators if the separators were not escaped
+		 */
+		final JSONObject request = newRequest(newAttribute("subject-id\u001fX", "", "CN=ClientID1"));
+		final JSONObject otherRequest = newRequest(newAttribute("subject-id", "X\u001f", "CN=ClientID1"));
+		Assert.assertNotEquals(keyOf(request), keyOf(otherRequest));
+	}
+}
@@ -0,0 +1,183 @@
+/**
+ * Copyright (C) 2018-2019 THALES.
+ *
+ * This file is part of AuthzForce CE.
+ *
+ * AuthzForce CE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * AuthzForce CE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with AuthzForce CE.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.driver.testbed.sec.authz.service;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests of the recovery of the policy repository transactions from the transaction log ({@link FsBasedPrpWriteAheadLog}) on restart
+ */
+public class FsBasedPrpWriteAheadLogTest
+{
+	private static final String STAGED_FILE = ".tx/staging/1/1.0.xacml.json";
+	private static final String TARGET_FILE = "root/1.0.xacml.json";
+	private static final String STAGED_DIR = ".tx/staging/1/child";
+	private static final String TARGET_DIR = "root#child";
+
+	@Rule
+	public final TemporaryFolder tmpFolder = new TemporaryFolder();
+
+	private Path baseDir;
+	private Path walFile;
+
+	@Before
+	public void setUp() throws IOException
+	{
+		baseDir = tmpFolder.newFolder("policies").toPath();
+		walFile = Files.createDirectories(baseDir.resolve(".tx")).resolve("wal.log");
+	}
+
+	private void write(final String relativePath, final String content) throws IOException
+	{
+		final Path file = baseDir.resolve(relativePath);
+		Files.createDirectories(file.getParent());
+		Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private String read(final String relativePath) throws IOException
+	{
+		return new String(Files.readAllBytes(baseDir.resolve(relativePath)), StandardCharsets.UTF_8);
+	}
+
+	private static String commitRecord(final long txId)
+	{
+		final JSONArray renames = new JSONArray().put(new JSONArray().put(STAGED_FILE).put(TARGET_FILE)).put(new JSONArray().put(STAGED_DIR).put(TARGET_DIR));
+		return new JSONObject().put("commit", txId).put("renames", renames).toString();
+	}
+
+	private void writeLog(final String... records) throws IOException
+	{
+		Files.write(walFile, Arrays.asList(records), StandardCharsets.UTF_8);
+	}
+
+	/*
+	 * Simulates a restart: opening the log recovers the unfinished commits
+	 */
+	private void restart() throws IOException
+	{
+		new FsBasedPrpWriteAheadLog(baseDir, walFile).close();
+		Assert.assertEquals("Transaction log not truncated after recovery", 0, Files.size(walFile));
+	}
+
+	private void assertCommitted() throws IOException
+	{
+		Assert.assertFalse("Staged file not renamed", Files.exists(baseDir.resolve(STAGED_FILE)));
+		Assert.assertEquals("new", read(TARGET_FILE));
+		Assert.assertFalse("Staged directory not renamed", Files.exists(baseDir.resolve(STAGED_DIR)));
+		Assert.assertEquals("child", read(TARGET_DIR + "/1.0.xacml.json"));
+	}
+
+	@Test
+	public void testRecoveryOfUnfinishedCommit() throws IOException
+	{
+		/*
+		 * Crash after logging the commit, before any rename
+		 */
+		write(STAGED_FILE, "new");
+		write(STAGED_DIR + "/1.0.xacml.json", "child");
+		write(TARGET_FILE, "old");
+		writeLog(commitRecord(1));
+
+		restart();
+		assertCommitted();
+	}
+
+	@Test
+	public void testRecoveryOfPartiallyDoneCommitIsIdempotent() throws IOException
+	{
+		/*
+		 * Crash after the first rename, while logging the next commit (incomplete last record)
+		 */
+		write(TARGET_FILE, "new");
+		write(STAGED_DIR + "/1.0.xacml.json", "child");
+		final String nextCommitRecord = commitRecord(2);
+		writeLog(commitRecord(1), nextCommitRecord.substring(0, nextCommitRecord.length() / 2));
+
+		restart();
+		assertCommitted();
+
+		/*
+		 * Crash again during the recovery, after all the renames: redone once more, without any change
+		 */
+		writeLog(commitRecord(1));
+		restart();
+		assertCommitted();
+	}
+
+	@Test
+	public void testEndedCommitNotRedone() throws IOException
+	{
+		/*
+		 * Files staged by a later transaction (not committed) at the same paths as the ended commit
+		 */
+		write(STAGED_FILE, "uncommitted");
+		write(TARGET_FILE, "new");
+		writeLog(commitRecord(1), new JSONObject().put("end", 1).toString());
+
+		restart();
+		Assert.assertEquals("uncommitted", read(STAGED_FILE));
+		Assert.assertEquals("new", read(TARGET_FILE));
+	}
+
+	@Test
+	public void testCommit() throws IOException
+	{
+		write(STAGED_FILE, "new");
+		write(STAGED_DIR + "/1.0.xacml.json", "child");
+		final FsBasedPrpWriteAheadLog wal = new FsBasedPrpWriteAheadLog(baseDir, walFile);
+		final AtomicBoolean commitLogged = new AtomicBoolean(false);
+		try
+		{
+			wal.commit(1, Arrays.asList(new SimpleImmutableEntry<>(baseDir.resolve(STAGED_FILE), baseDir.resolve(TARGET_FILE)),
+			        new SimpleImmutableEntry<>(baseDir.resolve(STAGED_DIR), baseDir.resolve(TARGET_DIR))), () -> {
+				        Assert.assertTrue("Commit not logged before the renames", Files.exists(baseDir.resolve(STAGED_FILE)));
+				        commitLogged.set(true);
+			        });
+		}
+		finally
+		{
+			wal.close();
+		}
+
+		Assert.assertTrue(commitLogged.get());
+		assertCommitted();
+
+		/*
+		 * Commit ended: nothing to redo, even if new files are staged at the same paths
+		 */
+		write(STAGED_FILE, "uncommitted");
+		restart();
+		Assert.assertEquals("uncommitted", read(STAGED_FILE));
+		Assert.assertEquals("new", read(TARGET_FILE));
+	}
+}
@@ -0,0 +1,174 @@
+/**
+ * Copyright (C) 2018-2019 THALES.
+ *
+ * This file is part of AuthzForce CE.
+ *
+ * AuthzForce CE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * AuthzForce CE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with AuthzForce CE.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.driver.testbed.sec.authz.service;
+
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.transform.stream.StreamSource;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.ow2.authzforce.core.pdp.api.XmlUtils;
+
+import com.google.common.io.ByteStreams;
+
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XdmAtomicValue;
+import net.sf.saxon.s9api.Xslt30Transformer;
+import net.sf.saxon.s9api.XsltExecutable;
+
+/**
+ * JMH benchmark of the conversion of XACML/JSON policies to XACML/XML ({@link PdpInputPolicyConverter}): the baseline XSLT transformation (new transformer and JSON string for each policy, as
+ * before the thread-local transformer) vs. the thread-local XSLT transformer fed with the XML representation of the JSON ({@code directPolicyConversionEnabled=false}) vs. the direct conversion
+ * (default), for a small topic policy and a large parent policy (many child policy references).
+ * <p>
+ * Not run by the unit tests. Run the main method with the test classpath, e.g. from the IDE, or {@code mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=eu.driver.testbed.sec.authz.service.PdpInputPolicyConverterBenchmark}. The GC profiler gives the allocation rate per operation ({@code gc.alloc.rate.norm}), to be compared with
+ * the {@code baselineXslt} benchmark.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PdpInputPolicyConverterBenchmark
+{
+	private static final XsltExecutable XSLT;
+
+	static
+	{
+		try
+		{
+			XSLT = XmlUtils.SAXON_PROCESSOR.newXsltCompiler().compile(new StreamSource(AuthzWsJaxrsRootResource.class.getResource("xacml-json-to-xml.xslt").toString()));
+		}
+		catch (final SaxonApiException e)
+		{
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Number of child policy references in the policy: 0 for a topic policy (single rule), e.g. 5000 for the parent policy of 5000 topic policies
+	 */
+	@Param({ "0", "5000" })
+	public int childPolicyCount;
+
+	private final OutputStream out = ByteStreams.nullOutputStream();
+	private final PdpInputPolicyConverter pooledXsltConverter = new PdpInputPolicyConverter(false);
+	private final PdpInputPolicyConverter directConverter = new PdpInputPolicyConverter(true);
+	private JSONObject policy;
+
+	private static JSONObject newMatch(final String attributeId, final String value)
+	{
+		return new JSONObject().put("matchFunction", "urn:oasis:names:tc:xacml:1.0:function:string-equal").put("value", value).put("attributeDesignator",
+		        new JSONObject().put("category", "urn:oasis:names:tc:xacml:3.0:attribute-category:resource").put("id", attributeId).put("dataType", "http://www.w3.org/2001/XMLSchema#string")
+		                .put("mustBePresent", false));
+	}
+
+	/**
+	 * Creates the policy to be converted
+	 */
+	@Setup
+	public void setUp()
+	{
+		final JSONArray policies = new JSONArray();
+		if (childPolicyCount == 0)
+		{
+			final JSONObject rule = new JSONObject().put("id", "permit-write").put("effect", "Permit").put("target",
+			        new JSONArray().put(new JSONArray().put(new JSONArray().put(newMatch("urn:oasis:names:tc:xacml:1.0:action:action-id", "WRITE")))));
+			policies.put(new JSONObject().put("policy", new JSONObject().put("id", "resource.type=TOPIC#resource.id=Topic_A#rules").put("version", "1.0")
+			        .put("combiningAlgId", "urn:oasis:names:tc:xacml:3.0:rule-combining-algorithm:deny-unless-permit").put("rules", new JSONArray().put(rule))));
+		}
+		else
+		{
+			for (int i = 0; i < childPolicyCount; i++)
+			{
+				policies.put(new JSONObject().put("policyRef", new JSONObject().put("id", "resource.type=TOPIC#resource.id=Topic_" + i)));
+			}
+		}
+
+		this.policy = new JSONObject().put("policy",
+		        new JSONObject().put("id", childPolicyCount == 0 ? "resource.type=TOPIC#resource.id=Topic_A" : "resource.type=TOPIC").put("version", "1.0")
+		                .put("combiningAlgId", "urn:oasis:names:tc:xacml:3.0:policy-combining-algorithm:deny-unless-permit")
+		                .put("target", new JSONArray().put(new JSONArray().put(new JSONArray().put(newMatch("urn:oasis:names:tc:xacml:1.0:resource:resource-id", "Topic_A")))))
+		                .put("policies", policies));
+	}
+
+	/**
+	 * Baseline: conversion as done before the thread-local transformer, i.e. new transformer, JSON serialized to a string, parsed by fn:json-to-xml() in the XSLT
+	 *
+	 * @throws SaxonApiException
+	 *             XSLT error
+	 */
+	@Benchmark
+	public void baselineXslt() throws SaxonApiException
+	{
+		final Xslt30Transformer xslt = XSLT.load30();
+		xslt.setGlobalContextItem(new XdmAtomicValue(policy.toString()));
+		xslt.callTemplate(null, xslt.newSerializer(out));
+	}
+
+	/**
+	 * Conversion with the thread-local XSLT transformer ({@code directPolicyConversionEnabled=false})
+	 */
+	@Benchmark
+	public void pooledXslt()
+	{
+		pooledXsltConverter.convertXacmlJsonToXmlPolicy(policy, out);
+	}
+
+	/**
+	 * Direct conversion without XSLT ({@code directPolicyConversionEnabled=true}, default)
+	 */
+	@Benchmark
+	public void direct()
+	{
+		directConverter.convertXacmlJsonToXmlPolicy(policy, out);
+	}
+
+	/**
+	 * Runs the benchmark with the GC profiler
+	 *
+	 * @param args
+	 *            ignored
+	 * @throws RunnerException
+	 *             benchmark error
+	 */
+	public static void main(final String[] args) throws RunnerException
+	{
+		new Runner(new OptionsBuilder().include(PdpInputPolicyConverterBenchmark.class.getSimpleName()).addProfiler(GCProfiler.class).build()).run();
+	}
+}
@@ -0,0 +1,167 @@
+/**
+ * Copyright (C) 2018-2019 THALES.
+ *
+ * This file is part of AuthzForce CE.
+ *
+ * AuthzForce CE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * AuthzForce CE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with AuthzForce CE.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.driver.testbed.sec.authz.service.test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Collections;
+
+import javax.ws.rs.core.Response;
+
+import org.apache.cxf.jaxrs.client.WebClient;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.ow2.authzforce.jaxrs.util.JsonRiJaxrsProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.context.SpringBootTest.WebEnvironment;
+import org.springframework.boot.web.server.LocalServerPort;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import eu.driver.testbed.sec.authz.service.AuthzWsJaxrsRootResource;
+import eu.driver.testbed.sec.authz.service.AuthzWsSpringBootApp;
+
+/**
+ * Test of the asynchronous PDP reload after policy updates (asyncPdpReloadDelayMillis). Not a subclass of {@link AuthzWsSpringBootAppTest}, whose tests expect the policy updates to be visible to the
+ * PDP as soon as the PAP responds.
+ */
+@RunWith(SpringRunner.class)
+@SpringBootTest(classes = AuthzWsSpringBootApp.class, webEnvironment = WebEnvironment.RANDOM_PORT, properties = "spring.beans.conf=file:${cfg.dir}/spring-beans-async.xml")
+@DirtiesContext
+public class AuthzWsSpringBootAppAsyncPdpReloadTest
+{
+	private static final String CXF_HTTP_CLIENT_CONF_LOCATION = System.getProperty("authz_service_test_http_client_conf_dir", "target/test-classes");
+
+	/*
+	 * Max time for the PDP to reach a policy generation, much longer than the reload delay
+	 */
+	private static final long MAX_PDP_RELOAD_WAIT_MILLIS = 20000;
+
+	@BeforeClass
+	public static void setup() throws IOException
+	{
+		AuthzWsSpringBootAppTest.setup();
+	}
+
+	@LocalServerPort
+	private int localPort;
+
+	@Value("${server.ssl.enabled}")
+	private boolean tlsEnabled;
+
+	private WebClient papClient = null;
+	private WebClient pdpClient = null;
+
+	@Before
+	public void setupTest()
+	{
+		final String baseAddress = (tlsEnabled ? "https" : "http") + "://localhost:" + localPort + "/services";
+		papClient = WebClient.create(baseAddress, Collections.singletonList(new JsonRiJaxrsProvider()), CXF_HTTP_CLIENT_CONF_LOCATION + "/cxf-http-client.xml").path("authz").path("pap");
+		pdpClient = WebClient.create(baseAddress, Collections.singletonList(new JsonRiJaxrsProvider()), CXF_HTTP_CLIENT_CONF_LOCATION + "/cxf-http-client.xml").path("authz").path("pdp");
+		if (!tlsEnabled)
+		{
+			papClient.header("Authorization", "Basic " + org.apache.cxf.common.util.Base64Utility.encode("admin:admin".getBytes()));
+		}
+	}
+
+	private JSONObject getPdpStats()
+	{
+		return WebClient.fromClient(this.pdpClient, true).path("stats").accept("application/json").get(JSONObject.class);
+	}
+
+	private long getPolicyGeneration(final Response papResponse)
+	{
+		Assert.assertTrue("Policy update failed", papResponse.getStatus() == Response.Status.OK.getStatusCode() || papResponse.getStatus() == Response.Status.NO_CONTENT.getStatusCode());
+		final String policyGenerationHeader = papResponse.getHeaderString(AuthzWsJaxrsRootResource.POLICY_GENERATION_HEADER);
+		Assert.assertNotNull("Missing policy generation header in PAP response", policyGenerationHeader);
+		return Long.parseLong(policyGenerationHeader);
+	}
+
+	private void waitForPdpGeneration(final long policyGeneration) throws InterruptedException
+	{
+		final long deadline = System.currentTimeMillis() + MAX_PDP_RELOAD_WAIT_MILLIS;
+		while (getPdpStats().getLong("generation") < policyGeneration)
+		{
+			Assert.assertTrue("PDP did not reach policy generation " + policyGeneration + " in time", System.currentTimeMillis() < deadline);
+			Thread.sleep(100);
+		}
+
+		Assert.assertTrue("Invalid policy generation in PDP stats", getPdpStats().getLong("policyGeneration") >= policyGeneration);
+	}
+
+	private String getDecision(final JSONObject request)
+	{
+		final JSONObject response = WebClient.fromClient(this.pdpClient, true).type("application/json").accept("application/json").post(request, JSONObject.class);
+		return response.getJSONArray("Response").getJSONObject(0).getString("Decision");
+	}
+
+	@Test
+	public void testAsyncPdpReload() throws IOException, InterruptedException
+	{
+		/*
+		 * Request permitted by the policy of TOPIC_A, for another topic that has no policy yet
+		 */
+		final JSONObject request = new JSONObject(
+		        new String(Files.readAllBytes(Paths.get("src/test/resources/samples/topic#+PUB-SUB#+SUB/pdp/Permit.clientID1.WRITE.TOPIC_A/Request.xacml.json")), StandardCharsets.UTF_8));
+		final JSONArray categories = request.getJSONObject("Request").getJSONArray("Category");
+		for (int i = 0; i < categories.length(); i++)
+		{
+			for (final Object attribute : categories.getJSONObject(i).getJSONArray("Attribute"))
+			{
+				final JSONObject attributeJson = (JSONObject) attribute;
+				if (attributeJson.getString("AttributeId").equals("urn:oasis:names:tc:xacml:1.0:resource:resource-id"))
+				{
+					attributeJson.put("Value", "TOPIC_ASYNC");
+				}
+			}
+		}
+
+		Assert.assertNotEquals("Request permitted before the policy update", "Permit", getDecision(request));
+
+		final JSONObject driverAccessPolicy = new JSONObject(
+		        new String(Files.readAllBytes(Paths.get("src/test/resources/samples/topic#+PUB-SUB#+SUB/pap/resource.type=TOPIC/TOPIC_A#policy.driver.json")), StandardCharsets.UTF_8));
+		final long policyGeneration = getPolicyGeneration(WebClient.fromClient(this.papClient, true).path("policies").path("resource.type=TOPIC").path("policies")
+		        .matrix("resource.id", "TOPIC_ASYNC").type("application/json").accept("application/json").put(driverAccessPolicy));
+
+		/*
+		 * The PAP responds before the PDP reload (delayed by 2 s)
+		 */
+		Assert.assertTrue("PDP reloaded synchronously", getPdpStats().getLong("generation") < policyGeneration);
+
+		waitForPdpGeneration(policyGeneration);
+		Assert.assertEquals("Policy update not visible to the PDP after reload", "Permit", getDecision(request));
+
+		/*
+		 * Deletion visible once the PDP reaches the next generation
+		 */
+		final long policyGenerationAfterDeletion = getPolicyGeneration(
+		        WebClient.fromClient(this.papClient, true).path("policies").path("resource.type=TOPIC").path("policies").matrix("resource.id", "TOPIC_ASYNC").delete());
+		Assert.assertTrue("Policy generation not incremented by the deletion", policyGenerationAfterDeletion > policyGeneration);
+		waitForPdpGeneration(policyGenerationAfterDeletion);
+		Assert.assertNotEquals("Policy deletion not visible to the PDP after reload", "Permit", getDecision(request));
+	}
+}
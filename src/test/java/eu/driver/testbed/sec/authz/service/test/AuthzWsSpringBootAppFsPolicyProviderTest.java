@@ -0,0 +1,111 @@
+/**
+ * Copyright (C) 2018-2019 THALES.
+ *
+ * This file is part of AuthzForce CE.
+ *
+ * AuthzForce CE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * AuthzForce CE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with AuthzForce CE.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.driver.testbed.sec.authz.service.test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.stream.StreamSupport;
+
+import org.json.JSONObject;
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.context.SpringBootTest.WebEnvironment;
+
+import eu.driver.testbed.sec.authz.service.AuthzWsSpringBootApp;
+
+/**
+ * Same tests as {@link AuthzWsSpringBootAppTest} without the in-memory policy provider, i.e. the PDP loads the policy files, including the effective parent policies generated in the transaction
+ * directory of the policies directory (with explicit references to their child policies)
+ */
+@SpringBootTest(classes = AuthzWsSpringBootApp.class, webEnvironment = WebEnvironment.RANDOM_PORT, properties = "spring.beans.conf=file:${cfg.dir}/spring-beans-fs-policy-provider.xml")
+public class AuthzWsSpringBootAppFsPolicyProviderTest extends AuthzWsSpringBootAppTest
+{
+	private static final Path EFFECTIVE_TOPIC_PARENT_POLICY_FILE = Paths.get("target/test-classes/data/policies/.tx/effective/resource.type=TOPIC.xacml.xml");
+
+	private static final FileTime NOT_REGENERATED_MARK = FileTime.fromMillis(0);
+
+	private static String readEffectiveTopicParentPolicy() throws IOException
+	{
+		return new String(Files.readAllBytes(EFFECTIVE_TOPIC_PARENT_POLICY_FILE), StandardCharsets.UTF_8);
+	}
+
+	private boolean hasChildPolicyRefs(final String parentPolicyId)
+	{
+		return StreamSupport.stream(getTopLevelPolicy(parentPolicyId).getJSONObject("policy").getJSONArray("policies").spliterator(), false)
+		        .anyMatch(json -> json instanceof JSONObject && ((JSONObject) json).optJSONObject("policyRef") != null
+		                && ((JSONObject) json).getJSONObject("policyRef").getString("id").startsWith(parentPolicyId + "#"));
+	}
+
+	@Test
+	public void testEffectiveParentPolicyFiles() throws IOException
+	{
+		final JSONObject schemaValidDriverAccessPolicy = new JSONObject(
+		        new String(Files.readAllBytes(Paths.get("src/test/resources/samples/topic#+PUB-SUB#+SUB/pap/resource.type=TOPIC/TOPIC_A#policy.driver.json"))));
+
+		/*
+		 * New child policy -> effective parent policy (re)generated with the reference to the child policy
+		 */
+		setChildPolicy("resource.type=TOPIC", "resource.id", "TOPIC_FS1", schemaValidDriverAccessPolicy);
+		Assert.assertTrue("Effective parent policy file not generated", Files.exists(EFFECTIVE_TOPIC_PARENT_POLICY_FILE));
+		Assert.assertTrue("Child policy reference not found in effective parent policy file", readEffectiveTopicParentPolicy().contains("resource.type=TOPIC#resource.id=TOPIC_FS1"));
+
+		/*
+		 * New version of the same child policy -> same parent policy and child policies, effective parent policy not generated again
+		 */
+		Files.setLastModifiedTime(EFFECTIVE_TOPIC_PARENT_POLICY_FILE, NOT_REGENERATED_MARK);
+		setChildPolicy("resource.type=TOPIC", "resource.id", "TOPIC_FS1", schemaValidDriverAccessPolicy);
+		Assert.assertEquals("Effective parent policy file generated again whereas the child policies did not change", NOT_REGENERATED_MARK,
+		        Files.getLastModifiedTime(EFFECTIVE_TOPIC_PARENT_POLICY_FILE));
+
+		/*
+		 * Other child policy added -> generated again
+		 */
+		setChildPolicy("resource.type=TOPIC", "resource.id", "TOPIC_FS2", schemaValidDriverAccessPolicy);
+		Assert.assertNotEquals("Effective parent policy file not generated again after a new child policy", NOT_REGENERATED_MARK, Files.getLastModifiedTime(EFFECTIVE_TOPIC_PARENT_POLICY_FILE));
+		final String effectivePolicyWithBothChildren = readEffectiveTopicParentPolicy();
+		Assert.assertTrue("Child policy reference not found in effective parent policy file",
+		        effectivePolicyWithBothChildren.contains("resource.type=TOPIC#resource.id=TOPIC_FS1") && effectivePolicyWithBothChildren.contains("resource.type=TOPIC#resource.id=TOPIC_FS2"));
+
+		/*
+		 * Child policy removed -> generated again without the reference
+		 */
+		Files.setLastModifiedTime(EFFECTIVE_TOPIC_PARENT_POLICY_FILE, NOT_REGENERATED_MARK);
+		deleteChildPolicy("resource.type=TOPIC", "resource.id", "TOPIC_FS1");
+		Assert.assertNotEquals("Effective parent policy file not generated again after removal of a child policy", NOT_REGENERATED_MARK,
+		        Files.getLastModifiedTime(EFFECTIVE_TOPIC_PARENT_POLICY_FILE));
+		final String effectivePolicyWithoutRemovedChild = readEffectiveTopicParentPolicy();
+		Assert.assertFalse("Reference to removed child policy found in effective parent policy file", effectivePolicyWithoutRemovedChild.contains("resource.type=TOPIC#resource.id=TOPIC_FS1"));
+		Assert.assertTrue("Child policy reference not found in effective parent policy file", effectivePolicyWithoutRemovedChild.contains("resource.type=TOPIC#resource.id=TOPIC_FS2"));
+
+		/*
+		 * Last child policy (of this test) removed -> no effective parent policy file anymore, unless other tests left child policies
+		 */
+		deleteChildPolicy("resource.type=TOPIC", "resource.id", "TOPIC_FS2");
+		Assert.assertEquals("Effective parent policy file inconsistent with the child policies", hasChildPolicyRefs("resource.type=TOPIC"), Files.exists(EFFECTIVE_TOPIC_PARENT_POLICY_FILE));
+		if (Files.exists(EFFECTIVE_TOPIC_PARENT_POLICY_FILE))
+		{
+			Assert.assertFalse("Reference to removed child policy found in effective parent policy file", readEffectiveTopicParentPolicy().contains("resource.type=TOPIC#resource.id=TOPIC_FS2"));
+		}
+	}
+}
@@ -0,0 +1,80 @@
+/**
+ * Copyright (C) 2018-2019 THALES.
+ *
+ * This file is part of AuthzForce CE.
+ *
+ * AuthzForce CE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * AuthzForce CE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with AuthzForce CE.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.driver.testbed.sec.authz.service.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import org.apache.cxf.jaxrs.client.WebClient;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.context.SpringBootTest.WebEnvironment;
+
+import eu.driver.testbed.sec.authz.service.AuthzWsSpringBootApp;
+
+/**
+ * Same tests as {@link AuthzWsSpringBootAppTest} with the policy store file (MVStore) as policy repository, migrated from the policies directory on startup
+ */
+@SpringBootTest(classes = AuthzWsSpringBootApp.class, webEnvironment = WebEnvironment.RANDOM_PORT, properties = "spring.beans.conf=file:${cfg.dir}/spring-beans-mvstore.xml")
+public class AuthzWsSpringBootAppMvStoreTest extends AuthzWsSpringBootAppTest
+{
+	private static final Path POLICY_STORE_FILE = Paths.get("target/test-classes/data/policies.mv.db");
+
+	/**
+	 * Same policies directory as {@link AuthzWsSpringBootAppTest#setup()}, with the transaction directory left by a previous run with the policies directory as repository (must not be migrated),
+	 * and no policy store yet (migration on startup)
+	 * 
+	 * @throws IOException
+	 *             error preparing the data directory
+	 */
+	@BeforeClass
+	public static void setup() throws IOException
+	{
+		AuthzWsSpringBootAppTest.setup();
+		final Path txDir = Files.createDirectories(Paths.get("target/test-classes/data/policies/.tx"));
+		Files.copy(Paths.get("src/test/resources/conf/default-policies/root/1.0.xacml.json"), txDir.resolve("1.0.xacml.json"));
+		Files.deleteIfExists(POLICY_STORE_FILE);
+	}
+
+	@Test
+	public void testPolicyStoreMigration() throws IOException
+	{
+		Assert.assertTrue("Policy store file not created", Files.exists(POLICY_STORE_FILE));
+		final byte[] snapshot = WebClient.fromClient(this.papClient, true).path("snapshot").accept("application/zip").get(byte[].class);
+		boolean isRootPolicyMigrated = false;
+		try (final ZipInputStream zipIn = new ZipInputStream(new ByteArrayInputStream(snapshot), StandardCharsets.UTF_8))
+		{
+			for (ZipEntry entry = zipIn.getNextEntry(); entry != null; entry = zipIn.getNextEntry())
+			{
+				Assert.assertFalse("Transaction directory of the policies directory migrated to the policy store: " + entry.getName(), entry.getName().startsWith(".tx/"));
+				isRootPolicyMigrated = isRootPolicyMigrated || entry.getName().equals("root/1.0.xacml.json");
+			}
+		}
+
+		Assert.assertTrue("Root policy not migrated to the policy store", isRootPolicyMigrated);
+	}
+}
@@ -19,6 +19,8 @@
 package eu.driver.testbed.sec.authz.service.test;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -30,17 +32,31 @@ import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
 import java.util.stream.StreamSupport;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
 
 import javax.ws.rs.NotFoundException;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
 
 import org.apache.cxf.jaxrs.client.WebClient;
 import org.everit.json.schema.Schema;
 import org.everit.json.schema.loader.SchemaLoader;
+import org.json.JSONArray;
 import org.json.JSONObject;
 import org.json.JSONTokener;
 import org.junit.Assert;
@@ -58,11 +74,15 @@ import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.boot.test.context.SpringBootTest.WebEnvironment;
 import org.springframework.boot.web.server.LocalServerPort;
+import org.springframework.test.annotation.DirtiesContext;
 import org.springframework.test.context.junit4.SpringRunner;
 import org.springframework.util.FileSystemUtils;
 import org.springframework.util.ResourceUtils;
+import org.springframework.util.StreamUtils;
 
+import eu.driver.testbed.sec.authz.service.AuthzWsJaxrsRootResource;
 import eu.driver.testbed.sec.authz.service.AuthzWsSpringBootApp;
+import eu.driver.testbed.sec.authz.service.DriverAccessPolicyHandler;
 
 /**
  * Test for CXF/JAX-RS-based REST profile implementation using XACML JSON Profile for payloads
@@ -77,6 +97,10 @@ import eu.driver.testbed.sec.authz.service.AuthzWsSpringBootApp;
  */
 @RunWith(SpringRunner.class)
 @SpringBootTest(classes = AuthzWsSpringBootApp.class, webEnvironment = WebEnvironment.RANDOM_PORT)
+/*
+ * The subclasses run the same tests with other configurations (policy repository...), on the same data directory: each application context is closed after its test class.
+ */
+@DirtiesContext
 public class AuthzWsSpringBootAppTest
 {
 	private static final Logger LOGGER = LoggerFactory.getLogger(AuthzWsSpringBootApp.class);
@@ -154,8 +178,8 @@ public class AuthzWsSpringBootAppTest
 	@Value("${server.ssl.enabled}")
 	private boolean tlsEnabled;
 
-	private WebClient papClient = null;
-	private WebClient pdpClient = null;
+	protected WebClient papClient = null;
+	protected WebClient pdpClient = null;
 
 	/*
 	 * You cannot use Spring-injected variables in the constructor like this because it is called before the Spring ApplicationContext is loaded
@@ -203,12 +227,12 @@ public class AuthzWsSpringBootAppTest
 	// TODO: test validation of DRIVER-formatted policy and conversion to AuthzForce-XACML/JSON format
 	// }
 
-	private JSONObject getTopLevelPolicy(final String policyId)
+	protected JSONObject getTopLevelPolicy(final String policyId)
 	{
 		return WebClient.fromClient(this.papClient, true).path("policies").path(policyId).accept("application/json").get(JSONObject.class);
 	}
 
-	private JSONObject setChildPolicy(final String parentPolicyId, final String childPolicyTargetMatchAttributeId, final String childPolicyTargetMatchAttributeValue,
+	protected JSONObject setChildPolicy(final String parentPolicyId, final String childPolicyTargetMatchAttributeId, final String childPolicyTargetMatchAttributeValue,
 	        final JSONObject childPolicyContent)
 	{
 		return WebClient.fromClient(this.papClient, true).path("policies").path(parentPolicyId).path("policies").matrix(childPolicyTargetMatchAttributeId, childPolicyTargetMatchAttributeValue)
@@ -221,13 +245,13 @@ public class AuthzWsSpringBootAppTest
 		        .accept("application/json").get(JSONObject.class);
 	}
 
-	private void deleteChildPolicy(final String parentPolicyId, final String childPolicyTargetMatchAttributeId, final String childPolicyTargetMatchAttributeValue)
+	protected void deleteChildPolicy(final String parentPolicyId, final String childPolicyTargetMatchAttributeId, final String childPolicyTargetMatchAttributeValue)
 	{
 		WebClient.fromClient(this.papClient, true).path("policies").path(parentPolicyId).path("policies").matrix(childPolicyTargetMatchAttributeId, childPolicyTargetMatchAttributeValue).delete();
 
 	}
 
-	private boolean verifyChildPolicyRef(final String parentPolicyId, final String childPolicyId)
+	protected boolean verifyChildPolicyRef(final String parentPolicyId, final String childPolicyId)
 	{
 		final JSONObject parentPolicy = getTopLevelPolicy(parentPolicyId);
 		return StreamSupport.stream(parentPolicy.getJSONObject("policy").getJSONArray("policies").spliterator(), true).anyMatch(json -> {
@@ -260,6 +284,29 @@ public class AuthzWsSpringBootAppTest
 		Assert.assertEquals("Invalid returned policy Id", policyJO2.getString("id"), "resource.type=TOPIC");
 	}
 
+	@Test
+	public void compileDriverPolicySameAsTemplate() throws IOException
+	{
+		final DriverAccessPolicyHandler templateBasedHandler = new DriverAccessPolicyHandler(DRIVER_ACCESS_POLICY_JSON_SCHEMA, "classpath:conf/driver-to-xacml-json.ftl");
+		final List<Path> driverPolicyFiles;
+		try (final Stream<Path> pathStream = Files.walk(Paths.get("src/test/resources/samples")))
+		{
+			driverPolicyFiles = pathStream.filter(path -> path.getFileName().toString().endsWith("policy.driver.json")).collect(Collectors.toList());
+		}
+
+		Assert.assertFalse("No sample DRIVER access policy", driverPolicyFiles.isEmpty());
+		for (final Path driverPolicyFile : driverPolicyFiles)
+		{
+			final JSONObject schemaValidDriverAccessPolicy = new JSONObject(new String(Files.readAllBytes(driverPolicyFile), StandardCharsets.UTF_8));
+			DRIVER_ACCESS_POLICY_JSON_SCHEMA.validate(schemaValidDriverAccessPolicy);
+			final JSONObject expectedXacmlJsonPolicy = templateBasedHandler.toXacmlJsonPolicy(schemaValidDriverAccessPolicy, "resource.type=TOPIC#resource.id=TOPIC_A", "1.2", "TOPIC_A");
+			final JSONObject actualXacmlJsonPolicy = DriverAccessPolicyHandler.compileXacmlJsonPolicy(schemaValidDriverAccessPolicy, "resource.type=TOPIC#resource.id=TOPIC_A", "1.2",
+			        "TOPIC_A");
+			XacmlJsonUtils.POLICY_SCHEMA.validate(actualXacmlJsonPolicy);
+			Assert.assertTrue("Compiled XACML/JSON policy != template output for DRIVER access policy: " + driverPolicyFile, actualXacmlJsonPolicy.similar(expectedXacmlJsonPolicy));
+		}
+	}
+
 	@Test
 	public void setAndDeleteChildPolicy() throws IOException
 	{
@@ -345,6 +392,47 @@ public class AuthzWsSpringBootAppTest
 		Assert.assertTrue("Child policy reference still in parent policy after DELETE operation", !childPolicyRefFound6);
 	}
 
+	@Test
+	public void getPoliciesWithEntityTag() throws IOException
+	{
+		final JSONObject schemaValidDriverAccessPolicy = new JSONObject(
+		        new String(Files.readAllBytes(Paths.get("src/test/resources/samples/topic#+PUB-SUB#+SUB/pap/resource.type=TOPIC/TOPIC_A#policy.driver.json"))));
+		setChildPolicy("resource.type=TOPIC", "resource.id", "TOPIC_E", schemaValidDriverAccessPolicy);
+
+		final Response childPolicyResponse = WebClient.fromClient(this.papClient, true).path("policies").path("resource.type=TOPIC").path("policies").matrix("resource.id", "TOPIC_E")
+		        .accept("application/json").get();
+		Assert.assertEquals("Invalid response status", Response.Status.OK.getStatusCode(), childPolicyResponse.getStatus());
+		Assert.assertTrue("Invalid returned policy content", childPolicyResponse.readEntity(JSONObject.class).similar(schemaValidDriverAccessPolicy));
+		final String childPolicyETag = childPolicyResponse.getHeaderString("ETag");
+		Assert.assertNotNull("No ETag in response", childPolicyETag);
+
+		final Response notModifiedChildPolicyResponse = WebClient.fromClient(this.papClient, true).path("policies").path("resource.type=TOPIC").path("policies")
+		        .matrix("resource.id", "TOPIC_E").accept("application/json").header("If-None-Match", childPolicyETag).get();
+		Assert.assertEquals("Invalid response status to If-None-Match with current ETag", Response.Status.NOT_MODIFIED.getStatusCode(), notModifiedChildPolicyResponse.getStatus());
+
+		/*
+		 * The parent policy's ETag changes when a child policy is added/removed (implicit reference)
+		 */
+		final String parentPolicyETag = WebClient.fromClient(this.papClient, true).path("policies").path("resource.type=TOPIC").accept("application/json").get().getHeaderString("ETag");
+		Assert.assertNotNull("No ETag in response", parentPolicyETag);
+		setChildPolicy("resource.type=TOPIC", "resource.id", "TOPIC_F", schemaValidDriverAccessPolicy);
+		final Response modifiedParentPolicyResponse = WebClient.fromClient(this.papClient, true).path("policies").path("resource.type=TOPIC").accept("application/json")
+		        .header("If-None-Match", parentPolicyETag).get();
+		Assert.assertEquals("Invalid response status to If-None-Match with ETag before child policy creation", Response.Status.OK.getStatusCode(),
+		        modifiedParentPolicyResponse.getStatus());
+
+		/*
+		 * A new version of the child policy has a new ETag
+		 */
+		setChildPolicy("resource.type=TOPIC", "resource.id", "TOPIC_E", schemaValidDriverAccessPolicy);
+		final Response modifiedChildPolicyResponse = WebClient.fromClient(this.papClient, true).path("policies").path("resource.type=TOPIC").path("policies")
+		        .matrix("resource.id", "TOPIC_E").accept("application/json").header("If-None-Match", childPolicyETag).get();
+		Assert.assertEquals("Invalid response status to If-None-Match with ETag of previous version", Response.Status.OK.getStatusCode(), modifiedChildPolicyResponse.getStatus());
+
+		deleteChildPolicy("resource.type=TOPIC", "resource.id", "TOPIC_E");
+		deleteChildPolicy("resource.type=TOPIC", "resource.id", "TOPIC_F");
+	}
+
 	/*
 	 * Policy with action different from special cases SUBSCRIBE/PUBLISH
 	 */
@@ -386,6 +474,50 @@ public class AuthzWsSpringBootAppTest
 		}
 	}
 
+	/*
+	 * Policy valid according to the DRIVER schema, but rejected by the PDP (subject.id not a valid X.500 name): the update must not be committed
+	 */
+	@Test
+	public void setChildPolicyRejectedByPdp() throws IOException
+	{
+		final JSONObject driverAccessPolicy = new JSONObject(
+		        "{\"rules\": [{\"subject.id\": \"not an X.500 name\", \"permissions\": [{\"action\": \"PUBLISH\", \"allow\": true}]}]}");
+		DRIVER_ACCESS_POLICY_JSON_SCHEMA.validate(driverAccessPolicy);
+		final long policyGenerationBefore = getPdpStats().getLong("policyGeneration");
+
+		final Response response = WebClient.fromClient(this.papClient, true).path("policies").path("resource.type=TOPIC").path("policies").matrix("resource.id", "TOPIC_REJECTED")
+		        .type("application/json").accept("application/json").put(driverAccessPolicy);
+		Assert.assertTrue("Policy rejected by the PDP accepted by the PAP: HTTP " + response.getStatus(), response.getStatus() >= 400);
+
+		/*
+		 * Nothing persisted
+		 */
+		try
+		{
+			getChildPolicy("resource.type=TOPIC", "resource.id", "TOPIC_REJECTED");
+			Assert.fail("Child policy rejected by the PDP committed");
+		}
+		catch (final NotFoundException e)
+		{
+			// OK
+		}
+
+		Assert.assertFalse("Reference to child policy rejected by the PDP found in parent policy", verifyChildPolicyRef("resource.type=TOPIC", "resource.type=TOPIC#resource.id=TOPIC_REJECTED"));
+		Assert.assertFalse("Child policy rejected by the PDP written to the policy directory",
+		        Files.exists(Paths.get("target/test-classes/data/policies").resolve("resource.type=TOPIC#resource.id=TOPIC_REJECTED")));
+		Assert.assertEquals("Policy generation changed by the policy update rejected by the PDP", policyGenerationBefore, getPdpStats().getLong("policyGeneration"));
+
+		/*
+		 * Policy updates still possible afterwards
+		 */
+		final JSONObject validDriverAccessPolicy = new JSONObject(
+		        new String(Files.readAllBytes(Paths.get("src/test/resources/samples/topic#+PUB-SUB#+SUB/pap/resource.type=TOPIC/TOPIC_A#policy.driver.json"))));
+		setChildPolicy("resource.type=TOPIC", "resource.id", "TOPIC_REJECTED", validDriverAccessPolicy);
+		Assert.assertTrue("Valid child policy not set after a policy update rejected by the PDP",
+		        getChildPolicy("resource.type=TOPIC", "resource.id", "TOPIC_REJECTED").similar(validDriverAccessPolicy));
+		deleteChildPolicy("resource.type=TOPIC", "resource.id", "TOPIC_REJECTED");
+	}
+
 	private void testPdpRequest(final Path pdpReqRespDir) throws IOException
 	{
 		final Path reqLocation = pdpReqRespDir.resolve("Request.xacml.json");
@@ -399,7 +531,7 @@ public class AuthzWsSpringBootAppTest
 
 			XacmlJsonUtils.REQUEST_SCHEMA.validate(jsonRequest);
 
-			// expected response
+			// OK response
 			final Path respLocation = pdpReqRespDir.resolve("Response.xacml.json");
 			try (final Reader respIn = Files.newBufferedReader(respLocation))
 			{
@@ -518,6 +650,531 @@ public class AuthzWsSpringBootAppTest
 		testPdp(Paths.get("src/test/resources/samples/group#x500Name+READ"));
 	}
 
+	@Test
+	public void testPdpShorthandSubjectNotIndexed() throws IOException
+	{
+		/*
+		 * Subject-specific Deny rule before an any-subject Permit rule: the subject-id given with a shorthand datatype or category must not be skipped by the DRIVER policy index (which would
+		 * answer Permit from the any-subject rule)
+		 */
+		final JSONObject driverPolicy = new JSONObject(
+		        "{\"rules\":[{\"subject.id\":\"CN=ClientID1\",\"permissions\":[{\"action\":\"READ\",\"allow\":false}]},{\"permissions\":[{\"action\":\"READ\",\"allow\":true}]}]}");
+		setChildPolicy("resource.type=TOPIC", "resource.id", "TOPIC_SHORTHAND", driverPolicy);
+		try
+		{
+			final Path pdpReqRespDir = Paths.get("src/test/resources/samples/topic#+PUB-SUB#+SUB/pdp/Deny.clientID1.READ.TOPIC_A");
+			final JSONObject expectedResponse = readJsonFile(pdpReqRespDir.resolve("Response.xacml.json"), "Response");
+			for (final String shorthand : Arrays.asList("DataType", "CategoryId"))
+			{
+				final JSONObject request = readJsonFile(pdpReqRespDir.resolve("Request.xacml.json"), "Request");
+				final JSONArray categories = request.getJSONObject("Request").getJSONArray("Category");
+				categories.getJSONObject(2).getJSONArray("Attribute").getJSONObject(1).put("Value", "TOPIC_SHORTHAND");
+				if (shorthand.equals("DataType"))
+				{
+					categories.getJSONObject(0).getJSONArray("Attribute").getJSONObject(0).put("DataType", "x500Name");
+				}
+				else
+				{
+					categories.getJSONObject(0).put("CategoryId", "AccessSubject");
+				}
+
+				for (final String endpoint : Arrays.asList("", "stream"))
+				{
+					final Response response = WebClient.fromClient(this.pdpClient, true).path(endpoint).type("application/json").accept("application/json")
+					        .post(request.toString().getBytes(StandardCharsets.UTF_8));
+					/*
+					 * Either rejected or evaluated by the PDP engine, which applies the Deny rule
+					 */
+					if (response.getStatus() == Response.Status.OK.getStatusCode())
+					{
+						Assert.assertTrue("Invalid response to request with shorthand subject " + shorthand + " on /pdp/" + endpoint,
+						        expectedResponse.similar(new JSONObject(response.readEntity(String.class))));
+					}
+				}
+			}
+		}
+		finally
+		{
+			deleteChildPolicy("resource.type=TOPIC", "resource.id", "TOPIC_SHORTHAND");
+		}
+	}
+
+	@Test
+	public void testPdpSubjectIdCanonicalization() throws IOException
+	{
+		/*
+		 * Same subject DN in LDAP DN order and reverse order -> same decision, from the cache for the second one
+		 */
+		testPdp(Paths.get("src/test/resources/samples/group#x500Name+READ"));
+		final WebClient client = WebClient.fromClient(this.pdpClient, true).type("application/json").accept("application/json");
+		final Path ldapOrderReqRespDir = Paths.get("src/test/resources/samples/group#x500Name+READ/pdp/Permit.x500Name_in_LDAP_DN_order.JOIN.group1");
+		final JSONObject expectedResponse = readJsonFile(ldapOrderReqRespDir.resolve("Response.xacml.json"), "Response");
+		Assert.assertTrue("Invalid response", expectedResponse.similar(client.post(readJsonFile(ldapOrderReqRespDir.resolve("Request.xacml.json"), "Request"), JSONObject.class)));
+		final JSONObject statsBefore = getPdpStats();
+
+		final Path reverseOrderReqRespDir = Paths.get("src/test/resources/samples/group#x500Name+READ/pdp/Permit.x500Name_not_in_LDAP_DN_order.JOIN.group1");
+		Assert.assertTrue("Invalid response to request with subject DN in reverse order",
+		        expectedResponse.similar(WebClient.fromClient(client, true).post(readJsonFile(reverseOrderReqRespDir.resolve("Request.xacml.json"), "Request"), JSONObject.class)));
+		final JSONObject statsAfter = getPdpStats();
+		if (statsAfter.getLong("generation") == statsBefore.getLong("generation"))
+		{
+			Assert.assertTrue("No decision cache hit for request with subject DN in reverse order",
+			        statsAfter.getJSONObject("decisionCache").getLong("hitCount") > statsBefore.getJSONObject("decisionCache").getLong("hitCount"));
+		}
+
+		Assert.assertTrue("No canonical X.500 name cache hit", statsAfter.getJSONObject("x500NameCache").getLong("hitCount") > 0);
+	}
+
+	protected JSONObject getPdpStats()
+	{
+		return WebClient.fromClient(this.pdpClient, true).path("stats").accept("application/json").get(JSONObject.class);
+	}
+
+	@Test
+	public void testPdpDecisionCache() throws IOException
+	{
+		/*
+		 * Request that depends on default policies only
+		 */
+		final Path pdpReqRespDir = Paths.get("src/test/resources/samples/topic#+PUB-SUB#+SUB/pdp/Permit.ANONYMOUS.READ.TOPIC._schemas");
+		testPdpRequest(pdpReqRespDir);
+		final JSONObject statsBefore = getPdpStats();
+		Assert.assertTrue("Missing PDP generation in PDP stats", statsBefore.has("generation"));
+		final long hitCountBefore = statsBefore.getJSONObject("decisionCache").getLong("hitCount");
+
+		/*
+		 * Same request again -> must be a cache hit (unless policies updated in the meantime) with the same response
+		 */
+		testPdpRequest(pdpReqRespDir);
+		final JSONObject statsAfter = getPdpStats();
+		if (statsAfter.getLong("generation") == statsBefore.getLong("generation"))
+		{
+			Assert.assertTrue("No decision cache hit", statsAfter.getJSONObject("decisionCache").getLong("hitCount") > hitCountBefore);
+		}
+	}
+
+	@Test
+	public void testPdpRequestAttributePruning() throws IOException
+	{
+		/*
+		 * Requests that differ only by attributes that no policy uses (client IP address) -> same decision, from the cache for the second one
+		 */
+		final Path pdpReqRespDir = Paths.get("src/test/resources/samples/topic#+PUB-SUB#+SUB/pdp/Permit.ANONYMOUS.READ.GROUP.compose-connect-group");
+		final JSONObject request = readJsonFile(pdpReqRespDir.resolve("Request.xacml.json"), "Request");
+		final JSONObject expectedResponse = readJsonFile(pdpReqRespDir.resolve("Response.xacml.json"), "Response");
+		final WebClient client = WebClient.fromClient(this.pdpClient, true).type("application/json").accept("application/json");
+		Assert.assertTrue("Invalid response", expectedResponse.similar(client.post(request, JSONObject.class)));
+		final JSONObject statsBefore = getPdpStats();
+
+		final JSONObject otherIpAddressAttribute = new JSONObject();
+		otherIpAddressAttribute.put("AttributeId", "urn:oasis:names:tc:xacml:3.0:subject:authn-locality:ip-address");
+		otherIpAddressAttribute.put("DataType", "urn:oasis:names:tc:xacml:2.0:data-type:ipAddress");
+		otherIpAddressAttribute.put("Value", "192.168.0.1");
+		final JSONObject subjectCategory = request.getJSONObject("Request").getJSONArray("Category").getJSONObject(0);
+		final JSONArray subjectAttributes = subjectCategory.getJSONArray("Attribute");
+		for (int i = 0; i < subjectAttributes.length(); i++)
+		{
+			if (subjectAttributes.getJSONObject(i).getString("AttributeId").equals(otherIpAddressAttribute.getString("AttributeId")))
+			{
+				subjectAttributes.put(i, otherIpAddressAttribute);
+			}
+		}
+
+		Assert.assertTrue("Invalid response to request with unused attribute changed", expectedResponse.similar(WebClient.fromClient(client, true).post(request, JSONObject.class)));
+		final JSONObject statsAfter = getPdpStats();
+		if (statsAfter.getLong("generation") == statsBefore.getLong("generation"))
+		{
+			Assert.assertTrue("No decision cache hit for request with unused attribute changed",
+			        statsAfter.getJSONObject("decisionCache").getLong("hitCount") > statsBefore.getJSONObject("decisionCache").getLong("hitCount"));
+		}
+	}
+
+	@Test
+	public void testPdpRequestAttributePruningIncludeInResult() throws IOException
+	{
+		/*
+		 * Attribute to be included in the result, in a category that no policy uses (environment) -> not pruned
+		 */
+		final Path pdpReqRespDir = Paths.get("src/test/resources/samples/topic#+PUB-SUB#+SUB/pdp/Permit.ANONYMOUS.READ.GROUP.compose-connect-group");
+		final JSONObject request = readJsonFile(pdpReqRespDir.resolve("Request.xacml.json"), "Request");
+		JSONObject environmentCategory = null;
+		for (final Object category : request.getJSONObject("Request").getJSONArray("Category"))
+		{
+			if (((JSONObject) category).getString("CategoryId").equals("urn:oasis:names:tc:xacml:3.0:attribute-category:environment"))
+			{
+				environmentCategory = (JSONObject) category;
+			}
+		}
+
+		Assert.assertNotNull("No environment category in test request", environmentCategory);
+		final JSONObject environmentAttribute = environmentCategory.getJSONArray("Attribute").getJSONObject(0);
+		environmentAttribute.put("IncludeInResult", true);
+
+		final JSONObject result = WebClient.fromClient(this.pdpClient, true).type("application/json").accept("application/json").post(request, JSONObject.class).getJSONArray("Response")
+		        .getJSONObject(0);
+		Assert.assertEquals("Invalid decision", "Permit", result.getString("Decision"));
+		final JSONArray resultCategories = result.optJSONArray("Category");
+		Assert.assertNotNull("Attribute with IncludeInResult=true missing from the result", resultCategories);
+		final boolean isEnvironmentAttributeIncluded = StreamSupport.stream(resultCategories.spliterator(), false)
+		        .anyMatch(category -> ((JSONObject) category).getString("CategoryId").equals("urn:oasis:names:tc:xacml:3.0:attribute-category:environment")
+		                && StreamSupport.stream(((JSONObject) category).getJSONArray("Attribute").spliterator(), false)
+		                        .anyMatch(attribute -> ((JSONObject) attribute).getString("AttributeId").equals(environmentAttribute.getString("AttributeId"))));
+		Assert.assertTrue("Attribute with IncludeInResult=true (category not used by any policy) missing from the result", isEnvironmentAttributeIncluded);
+	}
+
+	@Test
+	public void testPdpDecisionCoalescing() throws IOException, InterruptedException, ExecutionException
+	{
+		/*
+		 * Identical requests in parallel (coalesced if evaluated at the same time) -> same response for all
+		 */
+		final Path pdpReqRespDir = Paths.get("src/test/resources/samples/topic#+PUB-SUB#+SUB/pdp/Permit.ANONYMOUS.DESCRIBE.TOPIC.__confluent.support.metrics");
+		final JSONObject request = readJsonFile(pdpReqRespDir.resolve("Request.xacml.json"), "Request");
+		final JSONObject expectedResponse = readJsonFile(pdpReqRespDir.resolve("Response.xacml.json"), "Response");
+		final int requestCount = 16;
+		final ExecutorService executor = Executors.newFixedThreadPool(requestCount);
+		try
+		{
+			final List<Future<JSONObject>> responses = IntStream.range(0, requestCount)
+			        .mapToObj(i -> executor.submit(() -> WebClient.fromClient(this.pdpClient, true).type("application/json").accept("application/json").post(request, JSONObject.class)))
+			        .collect(Collectors.toList());
+			for (final Future<JSONObject> response : responses)
+			{
+				Assert.assertTrue("Invalid response to coalesced request", expectedResponse.similar(response.get()));
+			}
+		}
+		finally
+		{
+			executor.shutdown();
+		}
+
+		Assert.assertTrue("Missing decision coalescing stats in PDP stats", getPdpStats().has("decisionCoalescing"));
+	}
+
+	@Test
+	public void testPdpExecutorAndPapBulkhead() throws IOException
+	{
+		testPdpRequest(Paths.get("src/test/resources/samples/topic#+PUB-SUB#+SUB/pdp/Permit.ANONYMOUS.READ.TOPIC._schemas"));
+		final JSONObject pdpExecutorStats = getPdpStats().getJSONObject("executor");
+		Assert.assertEquals("Invalid PDP thread count in PDP stats", 4, pdpExecutorStats.getInt("threadCount"));
+		Assert.assertEquals("PDP requests rejected", 0, pdpExecutorStats.getLong("rejectedRequestCount"));
+
+		final JSONObject papBulkheadStats = WebClient.fromClient(this.papClient, true).path("stats").accept("application/json").get(JSONObject.class).getJSONObject("bulkhead");
+		Assert.assertEquals("Invalid max number of concurrent PAP requests in PAP stats", 16, papBulkheadStats.getInt("maxConcurrentRequests"));
+	}
+
+	@Test
+	public void testPolicyContentCache() throws IOException
+	{
+		final JSONObject schemaValidDriverAccessPolicy = new JSONObject(
+		        new String(Files.readAllBytes(Paths.get("src/test/resources/samples/topic#+PUB-SUB#+SUB/pap/resource.type=TOPIC/TOPIC_A#policy.driver.json"))));
+		setChildPolicy("resource.type=TOPIC", "resource.id", "TOPIC_G", schemaValidDriverAccessPolicy);
+		getTopLevelPolicy("resource.type=TOPIC");
+		final JSONObject statsBefore = WebClient.fromClient(this.papClient, true).path("stats").accept("application/json").get(JSONObject.class);
+		final long hitCountBefore = statsBefore.getJSONObject("policyContentCache").getLong("hitCount");
+
+		/*
+		 * The parent policy (with child policies) is parsed from the stored content only once
+		 */
+		getTopLevelPolicy("resource.type=TOPIC");
+		final JSONObject statsAfter = WebClient.fromClient(this.papClient, true).path("stats").accept("application/json").get(JSONObject.class);
+		Assert.assertTrue("No policy content cache hit", statsAfter.getJSONObject("policyContentCache").getLong("hitCount") > hitCountBefore);
+
+		/*
+		 * The cached parent policy must not be modified by the callers (child policy references added, then removed)
+		 */
+		Assert.assertTrue("Child policy reference not found in parent policy", verifyChildPolicyRef("resource.type=TOPIC", "resource.type=TOPIC#resource.id=TOPIC_G"));
+		deleteChildPolicy("resource.type=TOPIC", "resource.id", "TOPIC_G");
+		Assert.assertFalse("Child policy reference still in parent policy after DELETE operation",
+		        verifyChildPolicyRef("resource.type=TOPIC", "resource.type=TOPIC#resource.id=TOPIC_G"));
+	}
+
+	@Test
+	public void testPolicySnapshotExportImport() throws IOException
+	{
+		final JSONObject schemaValidDriverAccessPolicy = new JSONObject(
+		        new String(Files.readAllBytes(Paths.get("src/test/resources/samples/topic#+PUB-SUB#+SUB/pap/resource.type=TOPIC/TOPIC_A#policy.driver.json"))));
+		setChildPolicy("resource.type=TOPIC", "resource.id", "TOPIC_H", schemaValidDriverAccessPolicy);
+		final byte[] snapshot = WebClient.fromClient(this.papClient, true).path("snapshot").query("latestOnly", true).accept("application/zip").get(byte[].class);
+		final List<String> entryNames = new ArrayList<>();
+		try (final ZipInputStream zipIn = new ZipInputStream(new ByteArrayInputStream(snapshot), StandardCharsets.UTF_8))
+		{
+			for (ZipEntry entry = zipIn.getNextEntry(); entry != null; entry = zipIn.getNextEntry())
+			{
+				entryNames.add(entry.getName());
+			}
+		}
+
+		Assert.assertTrue("Child policy in DRIVER format not found in snapshot",
+		        entryNames.stream().anyMatch(name -> name.startsWith("resource.type=TOPIC#resource.id=TOPIC_H/") && name.endsWith(".driver.json")));
+
+		/*
+		 * Nothing newer in the snapshot than in the repository
+		 */
+		final JSONObject importResult = WebClient.fromClient(this.papClient, true).path("snapshot").type("application/zip").accept("application/json").post(snapshot, JSONObject.class);
+		Assert.assertEquals("Policy versions imported from a snapshot of the same repository", 0, importResult.getInt("importedPolicyVersionEntries"));
+
+		/*
+		 * Deleted child policy restored from the snapshot
+		 */
+		deleteChildPolicy("resource.type=TOPIC", "resource.id", "TOPIC_H");
+		final JSONObject restoreResult = WebClient.fromClient(this.papClient, true).path("snapshot").type("application/zip").accept("application/json").post(snapshot, JSONObject.class);
+		Assert.assertTrue("Deleted child policy not imported from snapshot", restoreResult.getInt("importedPolicyVersionEntries") > 0);
+		Assert.assertTrue("Child policy reference not found in parent policy after import", verifyChildPolicyRef("resource.type=TOPIC", "resource.type=TOPIC#resource.id=TOPIC_H"));
+		Assert.assertTrue("Invalid child policy after import", getChildPolicy("resource.type=TOPIC", "resource.id", "TOPIC_H").similar(schemaValidDriverAccessPolicy));
+		deleteChildPolicy("resource.type=TOPIC", "resource.id", "TOPIC_H");
+	}
+
+	@Test
+	public void testPolicySnapshotImportInvalidEntry() throws IOException
+	{
+		final JSONObject schemaValidDriverAccessPolicy = new JSONObject(
+		        new String(Files.readAllBytes(Paths.get("src/test/resources/samples/topic#+PUB-SUB#+SUB/pap/resource.type=TOPIC/TOPIC_A#policy.driver.json"))));
+		setChildPolicy("resource.type=TOPIC", "resource.id", "TOPIC_I", schemaValidDriverAccessPolicy);
+		final byte[] snapshot = WebClient.fromClient(this.papClient, true).path("snapshot").query("latestOnly", true).accept("application/zip").get(byte[].class);
+		deleteChildPolicy("resource.type=TOPIC", "resource.id", "TOPIC_I");
+		final long policyGenerationBeforeImport = getPdpStats().getLong("policyGeneration");
+
+		/*
+		 * Valid snapshot (with the deleted child policy) followed by an entry invalid against the DRIVER policy schema, then the XACML/JSON policy schema
+		 */
+		for (final String[] invalidEntry : Arrays.asList(new String[] { "resource.type=TOPIC#resource.id=TOPIC_J/0.1.driver.json", "{\"rules\": \"not an array\"}" },
+		        new String[] { "resource.type=TOPIC#resource.id=TOPIC_J/0.1.xacml.json", "{\"policy\": {\"id\": \"resource.type=TOPIC#resource.id=TOPIC_J\"}}" }))
+		{
+			final ByteArrayOutputStream invalidSnapshot = new ByteArrayOutputStream();
+			try (final ZipInputStream zipIn = new ZipInputStream(new ByteArrayInputStream(snapshot), StandardCharsets.UTF_8);
+			        final ZipOutputStream zipOut = new ZipOutputStream(invalidSnapshot, StandardCharsets.UTF_8))
+			{
+				for (ZipEntry entry = zipIn.getNextEntry(); entry != null; entry = zipIn.getNextEntry())
+				{
+					zipOut.putNextEntry(new ZipEntry(entry.getName()));
+					StreamUtils.copy(zipIn, zipOut);
+					zipOut.closeEntry();
+				}
+
+				zipOut.putNextEntry(new ZipEntry(invalidEntry[0]));
+				zipOut.write(invalidEntry[1].getBytes(StandardCharsets.UTF_8));
+				zipOut.closeEntry();
+			}
+
+			final Response response = WebClient.fromClient(this.papClient, true).path("snapshot").type("application/zip").accept("application/json").post(invalidSnapshot.toByteArray());
+			Assert.assertEquals("Invalid snapshot entry accepted: " + invalidEntry[0], Response.Status.BAD_REQUEST.getStatusCode(), response.getStatus());
+
+			/*
+			 * Nothing imported, not even the valid entries before the invalid one
+			 */
+			try
+			{
+				getChildPolicy("resource.type=TOPIC", "resource.id", "TOPIC_I");
+				Assert.fail("Child policy imported from a snapshot with an invalid entry: " + invalidEntry[0]);
+			}
+			catch (final NotFoundException e)
+			{
+				// expected
+			}
+
+			Assert.assertFalse("Child policy reference found in parent policy after import of a snapshot with an invalid entry",
+			        verifyChildPolicyRef("resource.type=TOPIC", "resource.type=TOPIC#resource.id=TOPIC_I"));
+			Assert.assertEquals("Policy generation changed by the import of a snapshot with an invalid entry", policyGenerationBeforeImport, getPdpStats().getLong("policyGeneration"));
+		}
+	}
+
+	private JSONObject readJsonFile(final Path path, final String expectedRootKey) throws IOException
+	{
+		try (final Reader in = Files.newBufferedReader(path))
+		{
+			final JSONObject json = new LimitsCheckingJSONObject(in, MAX_JSON_STRING_LENGTH, MAX_JSON_CHILDREN_COUNT, MAX_JSON_DEPTH);
+			if (!json.has(expectedRootKey))
+			{
+				throw new IllegalArgumentException("Invalid JSON file: " + path + ". Expected root key: \"" + expectedRootKey + "\"");
+			}
+
+			return json;
+		}
+	}
+
+	@Test
+	public void testPdpPreEncodedResponse() throws IOException
+	{
+		/*
+		 * Requests that depend on default policies only, with single Permit decision responses (pre-encoded)
+		 */
+		final Path pdpTestDir = Paths.get("src/test/resources/samples/topic#+PUB-SUB#+SUB/pdp");
+		for (final String pdpReqRespDirName : Arrays.asList("Permit.ANONYMOUS.READ.TOPIC._schemas", "Permit.ANONYMOUS.READ.GROUP.compose-connect-group",
+		        "Permit.ANONYMOUS.DESCRIBE.TOPIC.__confluent.support.metrics"))
+		{
+			final Path pdpReqRespDir = pdpTestDir.resolve(pdpReqRespDirName);
+			final byte[] request = Files.readAllBytes(pdpReqRespDir.resolve("Request.xacml.json"));
+			final JSONObject expectedResponse = readJsonFile(pdpReqRespDir.resolve("Response.xacml.json"), "Response");
+			/*
+			 * Twice for the decision cache, with each media type of the endpoint
+			 */
+			for (final String mediaType : Arrays.asList("application/json", "application/xacml+json", "application/json", "application/xacml+json"))
+			{
+				final Response response = WebClient.fromClient(this.pdpClient, true).type("application/json").accept(mediaType).post(request);
+				Assert.assertEquals("Invalid status of PDP response for request: " + pdpReqRespDirName, Response.Status.OK.getStatusCode(), response.getStatus());
+				Assert.assertTrue("Invalid media type of PDP response for request: " + pdpReqRespDirName, response.getMediaType().isCompatible(MediaType.valueOf(mediaType)));
+				Assert.assertTrue("Invalid PDP response for request: " + pdpReqRespDirName, expectedResponse.similar(new JSONObject(response.readEntity(String.class))));
+			}
+		}
+
+		/*
+		 * Invalid request -> rejected by the JSON provider as usual
+		 */
+		final Response response = WebClient.fromClient(this.pdpClient, true).type("application/json").accept("application/json")
+		        .post("{\"Request\":{\"Category\":\"invalid\"}}".getBytes(StandardCharsets.UTF_8));
+		Assert.assertEquals("Invalid status of response to invalid XACML/JSON Request", Response.Status.BAD_REQUEST.getStatusCode(), response.getStatus());
+	}
+
+	@Test
+	public void testPdpBatch() throws IOException
+	{
+		/*
+		 * Requests that depend on default policies only
+		 */
+		final Path pdpTestDir = Paths.get("src/test/resources/samples/topic#+PUB-SUB#+SUB/pdp");
+		final List<Path> pdpReqRespDirs = Arrays.asList(pdpTestDir.resolve("Permit.ANONYMOUS.READ.TOPIC._schemas"), pdpTestDir.resolve("Permit.ANONYMOUS.READ.GROUP.compose-connect-group"),
+		        pdpTestDir.resolve("Permit.ANONYMOUS.DESCRIBE.TOPIC.__confluent.support.metrics"));
+		final JSONArray requests = new JSONArray();
+		for (final Path pdpReqRespDir : pdpReqRespDirs)
+		{
+			requests.put(readJsonFile(pdpReqRespDir.resolve("Request.xacml.json"), "Request"));
+		}
+
+		final JSONObject batchRequest = new JSONObject(Collections.singletonMap("Requests", requests));
+		final JSONObject batchResponse = WebClient.fromClient(this.pdpClient, true).path("batch").type("application/json").accept("application/json").post(batchRequest, JSONObject.class);
+		final JSONArray responses = batchResponse.getJSONArray("Responses");
+		Assert.assertEquals("Invalid number of responses in batch response", pdpReqRespDirs.size(), responses.length());
+		for (int i = 0; i < pdpReqRespDirs.size(); i++)
+		{
+			final JSONObject expectedResponse = readJsonFile(pdpReqRespDirs.get(i).resolve("Response.xacml.json"), "Response");
+			Assert.assertTrue("Invalid response #" + i + " in batch response", expectedResponse.similar(responses.getJSONObject(i)));
+		}
+	}
+
+	@Test
+	public void testPolicyGeneration() throws IOException, InterruptedException
+	{
+		final Path path = Paths.get("src/test/resources/samples/topic#+PUB-SUB#+SUB/pap/resource.type=TOPIC/TOPIC_A#policy.driver.json");
+		final JSONObject schemaValidDriverAccessPolicy = new JSONObject(new String(Files.readAllBytes(path)));
+		final Response response = WebClient.fromClient(this.papClient, true).path("policies").path("resource.type=TOPIC").path("policies").matrix("resource.id", "TOPIC_GEN")
+		        .type("application/json").accept("application/json").put(schemaValidDriverAccessPolicy);
+		Assert.assertEquals("Policy update failed", Response.Status.OK.getStatusCode(), response.getStatus());
+		final String policyGenerationHeader = response.getHeaderString(AuthzWsJaxrsRootResource.POLICY_GENERATION_HEADER);
+		Assert.assertNotNull("Missing policy generation header in PAP response", policyGenerationHeader);
+		final long policyGeneration = Long.parseLong(policyGenerationHeader);
+
+		/*
+		 * Wait for the PDP to reach this generation (in case of asynchronous PDP reload)
+		 */
+		final long deadline = System.currentTimeMillis() + 10000;
+		while (getPdpStats().getLong("generation") < policyGeneration)
+		{
+			Assert.assertTrue("PDP did not reach policy generation " + policyGeneration + " in time", System.currentTimeMillis() < deadline);
+			Thread.sleep(100);
+		}
+
+		Assert.assertTrue("Invalid policy generation in PDP stats", getPdpStats().getLong("policyGeneration") >= policyGeneration);
+		deleteChildPolicy("resource.type=TOPIC", "resource.id", "TOPIC_GEN");
+	}
+
+	private JSONObject newPolicyUpdate(final String resourceType, final String resourceId, final JSONObject driverAccessPolicy)
+	{
+		final JSONObject policyUpdate = new JSONObject();
+		policyUpdate.put("resource.type", resourceType);
+		policyUpdate.put("resource.id", resourceId);
+		if (driverAccessPolicy == null)
+		{
+			policyUpdate.put("delete", true);
+		}
+		else
+		{
+			policyUpdate.put("policy", driverAccessPolicy);
+		}
+
+		return policyUpdate;
+	}
+
+	@Test
+	public void testBulkPolicyUpdates() throws IOException
+	{
+		final Path path = Paths.get("src/test/resources/samples/topic#+PUB-SUB#+SUB/pap/resource.type=TOPIC/TOPIC_A#policy.driver.json");
+		final JSONObject schemaValidDriverAccessPolicy = new JSONObject(new String(Files.readAllBytes(path)));
+		final String parentPolicyId = "resource.type=TOPIC";
+		final String parentPolicyVersion = getTopLevelPolicy(parentPolicyId).getJSONObject("policy").getString("version");
+
+		/*
+		 * Create two topic policies at once
+		 */
+		final JSONArray policyCreations = new JSONArray(
+		        Arrays.asList(newPolicyUpdate("TOPIC", "TOPIC_BULK_1", schemaValidDriverAccessPolicy), newPolicyUpdate("TOPIC", "TOPIC_BULK_2", schemaValidDriverAccessPolicy)));
+		final Response creationResponse = WebClient.fromClient(this.papClient, true).path("policies").type("application/json").accept("application/json")
+		        .post(new JSONObject(Collections.singletonMap("policyUpdates", policyCreations)));
+		Assert.assertEquals("Bulk policy update failed", Response.Status.OK.getStatusCode(), creationResponse.getStatus());
+		Assert.assertNotNull("Missing policy generation header in PAP response", creationResponse.getHeaderString(AuthzWsJaxrsRootResource.POLICY_GENERATION_HEADER));
+
+		final JSONObject parentPolicy = getTopLevelPolicy(parentPolicyId).getJSONObject("policy");
+		Assert.assertEquals("Parent policy must not get a new version when child policies are added", parentPolicyVersion, parentPolicy.getString("version"));
+		Assert.assertTrue("Missing policyRef to child policy TOPIC_BULK_1", verifyChildPolicyRef(parentPolicyId, parentPolicyId + "#resource.id=TOPIC_BULK_1"));
+		Assert.assertTrue("Missing policyRef to child policy TOPIC_BULK_2", verifyChildPolicyRef(parentPolicyId, parentPolicyId + "#resource.id=TOPIC_BULK_2"));
+		Assert.assertTrue("Invalid child policy TOPIC_BULK_2", schemaValidDriverAccessPolicy.similar(getChildPolicy(parentPolicyId, "resource.id", "TOPIC_BULK_2")));
+
+		/*
+		 * Delete them at once
+		 */
+		final JSONArray policyDeletions = new JSONArray(Arrays.asList(newPolicyUpdate("TOPIC", "TOPIC_BULK_1", null), newPolicyUpdate("TOPIC", "TOPIC_BULK_2", null)));
+		final Response deletionResponse = WebClient.fromClient(this.papClient, true).path("policies").type("application/json").accept("application/json")
+		        .post(new JSONObject(Collections.singletonMap("policyUpdates", policyDeletions)));
+		Assert.assertEquals("Bulk policy deletion failed", Response.Status.OK.getStatusCode(), deletionResponse.getStatus());
+		Assert.assertFalse("policyRef to deleted child policy TOPIC_BULK_1 still present", verifyChildPolicyRef(parentPolicyId, parentPolicyId + "#resource.id=TOPIC_BULK_1"));
+		Assert.assertFalse("policyRef to deleted child policy TOPIC_BULK_2 still present", verifyChildPolicyRef(parentPolicyId, parentPolicyId + "#resource.id=TOPIC_BULK_2"));
+		try
+		{
+			getChildPolicy(parentPolicyId, "resource.id", "TOPIC_BULK_2");
+			Assert.fail("Deleted child policy TOPIC_BULK_2 still present");
+		}
+		catch (final NotFoundException e)
+		{
+			// OK
+		}
+	}
+
+	@Test
+	public void testConcurrentPolicyUpdates() throws IOException, InterruptedException, ExecutionException
+	{
+		final JSONObject topicPolicy = new JSONObject(new String(Files.readAllBytes(Paths.get("src/test/resources/samples/topic#+PUB-SUB#+SUB/pap/resource.type=TOPIC/TOPIC_A#policy.driver.json"))));
+		final JSONObject groupPolicy = new JSONObject(
+		        new String(Files.readAllBytes(Paths.get("src/test/resources/samples/group#x500Name+READ/pap/resource.type=GROUP/consumerGroup1#policy.driver.json"))));
+		final int updateCount = 8;
+		final ExecutorService executor = Executors.newFixedThreadPool(updateCount);
+		try
+		{
+			/*
+			 * Updates of topic and group policies in parallel, several updates of the same topic policy
+			 */
+			final List<Future<JSONObject>> results = IntStream.range(0, updateCount)
+			        .mapToObj(i -> executor.submit(() -> i % 2 == 0 ? setChildPolicy("resource.type=TOPIC", "resource.id", "TOPIC_CONCURRENT_" + (i % 4), topicPolicy)
+			                : setChildPolicy("resource.type=GROUP", "resource.id", "GROUP_CONCURRENT_" + i, groupPolicy)))
+			        .collect(Collectors.toList());
+			for (final Future<JSONObject> result : results)
+			{
+				result.get();
+			}
+		}
+		finally
+		{
+			executor.shutdown();
+		}
+
+		for (int i = 0; i < updateCount; i++)
+		{
+			final String parentPolicyId = i % 2 == 0 ? "resource.type=TOPIC" : "resource.type=GROUP";
+			final String resourceId = i % 2 == 0 ? "TOPIC_CONCURRENT_" + (i % 4) : "GROUP_CONCURRENT_" + i;
+			Assert.assertTrue("Missing policyRef to child policy " + resourceId, verifyChildPolicyRef(parentPolicyId, parentPolicyId + "#resource.id=" + resourceId));
+			deleteChildPolicy(parentPolicyId, "resource.id", resourceId);
+		}
+	}
+
 	// public static void main(String... args) throws FileNotFoundException
 	// {
 	// final String reqLocation = "src/test/resources/Request.json";
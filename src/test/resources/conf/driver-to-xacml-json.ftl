@@ -29,10 +29,11 @@
 					"target": [
 						<#list driverAccessRule.subjectMatches as attributeId, attributeValue>
 						[
+							<#-- subject.id is a certificate subject DN that may be in LDAP DN order or X.500 order (reverse): subjectMatchValues gives it in both orders, or in canonical form like the subject-id of the requests if subject-id canonicalization is enabled. -->
+							<#list driverAccessRule.subjectMatchValues[attributeId] as matchValue>
 							[
-								
 								{
-									"value": "${attributeValue}",
+									"value": "${matchValue?json_string}",
 									"attributeDesignator": {
 										"category": "urn:oasis:names:tc:xacml:1.0:subject-category:access-subject",
 										<#switch attributeId>
@@ -42,24 +43,6 @@
 										"mustBePresent": false
 									},
 									"matchFunction": "urn:oasis:names:tc:xacml:1.0:function:x500Name-equal"
-									
-									<#-- subject.id is a certificate subject DN that may be in LDAP DN order or X.500 order (reverse). We must support both. -->
-									<#assign subjectIdRdns = attributeValue?split(",") >
-									<#if subjectIdRdns?size gt 1 >
-								}
-							],
-							[
-								{
-								
-									"value": "${subjectIdRdns?reverse?join(",")}",
-									"attributeDesignator": {
-										"category": "urn:oasis:names:tc:xacml:1.0:subject-category:access-subject",
-										"id": "urn:oasis:names:tc:xacml:1.0:subject:subject-id",
-										"dataType": "urn:oasis:names:tc:xacml:1.0:data-type:x500Name",
-										"mustBePresent": false
-									},
-									"matchFunction": "urn:oasis:names:tc:xacml:1.0:function:x500Name-equal"
-									</#if>
 											<#break>
 									  		<#case "subject.group">
 										"id":"urn:thalesgroup:xacml:group-id",
@@ -78,6 +61,8 @@
 										</#switch>
 								}
 							]
+								<#sep>,</#sep>
+							</#list>
 						]
 							<#sep>,</#sep>
 						</#list>